@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the Parcel form of the device configuration
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceConfigParcelTest extends TestCase {
+
+    public void testRoundTrip() {
+        DeviceConfig config = new DeviceConfig();
+        config.putBoolean("enabled", true);
+        config.putInt("rate", 50);
+        config.putLong("timeout", 1L << 40);
+        config.putDouble("gain", -2.75);
+        config.putString("name", "sensor");
+        config.putString("empty", null);
+        DeviceConfig read = ParcelTestUtils.roundTrip(config, DeviceConfig.CREATOR);
+
+        assertEquals(6, read.size());
+        assertEquals("enabled", read.keyAt(0));
+        assertTrue(read.getBoolean("enabled", false));
+        assertEquals(DeviceConfig.TYPE_INT, read.getType("rate"));
+        assertEquals(50, read.getInt("rate", 0));
+        assertEquals(1L << 40, read.getLong("timeout", 0));
+        assertEquals(-2.75, read.getDouble("gain", 0), 0);
+        assertEquals("sensor", read.getString("name", null));
+        assertNull(read.getString("empty", "default"));
+    }
+
+    public void testAnEmptyConfigurationCanGrowAfterBeingRead() {
+        DeviceConfig read = ParcelTestUtils.roundTrip(new DeviceConfig(), DeviceConfig.CREATOR);
+        assertEquals(0, read.size());
+
+        read.putInt("key", 1);
+        assertEquals(1, read.getInt("key", 0));
+    }
+
+    public void testMissingArraysAreRejected() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeStringArray(null);
+            parcel.writeByteArray(new byte[0]);
+            parcel.writeLongArray(new long[0]);
+            parcel.writeStringArray(new String[0]);
+            parcel.setDataPosition(0);
+
+            DeviceConfig.CREATOR.createFromParcel(parcel);
+            fail("A configuration without keys was accepted");
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testArraysOfDifferentLengthsAreRejected() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeStringArray(new String[] {"first", "second"});
+            parcel.writeByteArray(new byte[] {DeviceConfig.TYPE_INT, DeviceConfig.TYPE_INT});
+            parcel.writeLongArray(new long[] {1});
+            parcel.writeStringArray(new String[2]);
+            parcel.setDataPosition(0);
+
+            DeviceConfig.CREATOR.createFromParcel(parcel);
+            fail("A configuration with a missing value was accepted");
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the Parcel form of the device descriptions sharing their sensor lists
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceDescriptionParcelTest extends TestCase {
+
+    public void testDevicesReadFromParcelShareTheSensorList() {
+        List<SensorDescription> sensors = Arrays.asList(
+                new SensorDescription("Oximeter", "%", "Oxygen Saturation"),
+                new SensorDescription("Pulsimeter", "bpm", "Heart Rate"));
+        DeviceDescription dev = new DeviceDescription("dev", "1", "Parcel Model", "Manufacturer", sensors, "addr");
+
+        DeviceDescription first = ParcelTestUtils.roundTrip(dev, DeviceDescription.CREATOR);
+        DeviceDescription second = ParcelTestUtils.roundTrip(dev, DeviceDescription.CREATOR);
+
+        assertEquals("dev", first.getDeviceID());
+        assertEquals("addr", first.getAddress());
+        assertEquals(sensors, first.getSensorList());
+        assertSame(first.getSensorList(), second.getSensorList());
+        assertSame(dev.getSensorList(), first.getSensorList());
+    }
+
+    public void testSensorDescriptionRoundTrip() {
+        SensorDescription sensor = new SensorDescription("Thermometer", "C", "Body Temperature");
+        SensorDescription read = ParcelTestUtils.roundTrip(sensor, SensorDescription.CREATOR);
+
+        assertEquals(sensor, read);
+        assertEquals(sensor.hashCode(), read.hashCode());
+    }
+
+}
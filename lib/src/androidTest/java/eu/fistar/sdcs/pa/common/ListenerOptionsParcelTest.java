@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the Parcel form of the options of the listeners
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ListenerOptionsParcelTest extends TestCase {
+
+    public void testRoundTrip() {
+        ListenerOptions options = new ListenerOptions();
+        options.setMinLogLevel(PAAndroidConstants.LOG_LEVEL.WARNING);
+        options.setCredit(100, 4096);
+        options.setAcceptsRawData(true);
+        options.setAcceptsExtendedObservations(true);
+        options.setRulesOnly(true);
+        options.setAcceptsMultiData(true);
+        ListenerOptions read = ParcelTestUtils.roundTrip(options, ListenerOptions.CREATOR);
+
+        assertEquals(PAAndroidConstants.LOG_LEVEL.WARNING, read.getMinLogLevel());
+        assertEquals(100, read.getCreditObservations());
+        assertEquals(4096, read.getCreditBytes());
+        assertTrue(read.acceptsRawData());
+        assertTrue(read.acceptsExtendedObservations());
+        assertTrue(read.isRulesOnly());
+        assertTrue(read.acceptsMultiData());
+    }
+
+    public void testTheNextArgumentIsReadAfterTheOptions() {
+        ListenerOptions options = new ListenerOptions();
+        options.setRulesOnly(true);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            options.writeToParcel(parcel, 0);
+            parcel.writeInt(42);
+            parcel.setDataPosition(0);
+
+            ListenerOptions read = ListenerOptions.CREATOR.createFromParcel(parcel);
+            assertTrue(read.isRulesOnly());
+            assertEquals(42, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testOptionsAddedByLaterVersionsAreSkipped() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(4 + 4 + 8 + 4 * 4 + 8);
+            parcel.writeInt(PAAndroidConstants.LOG_LEVEL.INFO);
+            parcel.writeInt(10);
+            parcel.writeLong(0);
+            parcel.writeByte((byte) 1);
+            parcel.writeByte((byte) 0);
+            parcel.writeByte((byte) 1);
+            parcel.writeByte((byte) 1);
+            parcel.writeLong(123);
+            parcel.writeInt(42);
+            parcel.setDataPosition(0);
+
+            ListenerOptions read = ListenerOptions.CREATOR.createFromParcel(parcel);
+            assertEquals(10, read.getCreditObservations());
+            assertTrue(read.acceptsRawData());
+            assertFalse(read.acceptsExtendedObservations());
+            assertTrue(read.isRulesOnly());
+            assertTrue(read.acceptsMultiData());
+            assertEquals(42, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testOptionsOfInvalidLengthAreRejected() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(1 << 20);
+            parcel.writeInt(PAAndroidConstants.LOG_LEVEL.INFO);
+            parcel.setDataPosition(0);
+
+            ListenerOptions.CREATOR.createFromParcel(parcel);
+            fail("Options longer than the Parcel were accepted");
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests of the Parcel form of the batches of log messages
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LogBatchParcelTest extends TestCase {
+
+    public void testRoundTrip() {
+        LogBatch batch = new LogBatch(new int[]{PAAndroidConstants.LOG_LEVEL.INFO, PAAndroidConstants.LOG_LEVEL.ERROR},
+                new long[]{1000, 2000}, new String[]{"da1", null}, new String[]{"first", "second"},
+                new String[]{"da2"}, new int[]{7});
+        LogBatch read = ParcelTestUtils.roundTrip(batch, LogBatch.CREATOR);
+
+        assertEquals(2, read.size());
+        assertEquals(PAAndroidConstants.LOG_LEVEL.ERROR, read.getLevel(1));
+        assertEquals(2000, read.getTimestamp(1));
+        assertEquals("da1", read.getDaId(0));
+        assertNull(read.getDaId(1));
+        assertEquals("second", read.getMessage(1));
+        assertEquals(Arrays.asList("da2"), Arrays.asList(read.getDroppedDaIds()));
+        assertEquals(7, read.getTotalDropped());
+    }
+
+}
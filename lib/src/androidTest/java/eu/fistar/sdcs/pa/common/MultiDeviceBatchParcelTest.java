@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the Parcel form of the batches of many devices
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class MultiDeviceBatchParcelTest extends TestCase {
+
+    private static final DeviceDescription HUB_SENSOR = new DeviceDescription("sensor1", "SN1", "Model",
+            "Maker", Arrays.asList(new SensorDescription("thermometer", "C", "temperature")), "00:11:22:33:44:55");
+
+    private static List<Observation> observations(String property, int count) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < count; i++) {
+            Observation obs = new Observation(new SensorDescription("sensor", "C", property), new String[]{String.valueOf(i)});
+            obs.setPhenomenonTime(1000 + i);
+            observations.add(obs);
+        }
+        return observations;
+    }
+
+    public void testRoundTrip() {
+        MultiDeviceBatch batch = new MultiDeviceBatch(PAAndroidConstants.PRIORITY.ALARM);
+        batch.add(HUB_SENSOR, observations("temperature", 2), true);
+        batch.add(new DeviceDescription("sensor2", null, null, null, null, null), observations("humidity", 3));
+        MultiDeviceBatch read = ParcelTestUtils.roundTrip(batch, MultiDeviceBatch.CREATOR);
+
+        assertEquals(2, read.size());
+        assertEquals(PAAndroidConstants.PRIORITY.ALARM, read.getPriority());
+        assertEquals("sensor1", read.getDeviceID(0));
+        assertEquals(HUB_SENSOR, read.getDevice(0));
+        assertEquals("sensor2", read.getDeviceID(1));
+        assertNull(read.getDevice(1));
+        assertEquals(2, read.getObservations(0).size());
+        assertEquals(3, read.getObservations(1).size());
+        assertEquals("humidity", read.getObservations(1).get(2).getPropertyName());
+        assertEquals("2", read.getObservations(1).get(2).getValues().get(0));
+    }
+
+    public void testEmptyBatchReadFromAParcelAcceptsGroups() {
+        MultiDeviceBatch read = ParcelTestUtils.roundTrip(new MultiDeviceBatch(), MultiDeviceBatch.CREATOR);
+        assertEquals(0, read.size());
+
+        for (int i = 0; i < 20; i++) {
+            read.add(new DeviceDescription("sensor" + i, null, null, null, null, null), observations("p", 1));
+        }
+
+        assertEquals(20, read.size());
+        assertEquals("sensor19", read.getDeviceID(19));
+        assertEquals(1, read.getObservations(19).size());
+    }
+
+    public void testUnknownDevicesResolveToPlaceholders() {
+        MultiDeviceBatch batch = new MultiDeviceBatch();
+        batch.add(HUB_SENSOR, observations("temperature", 1));
+        MultiDeviceBatch read = ParcelTestUtils.roundTrip(batch, MultiDeviceBatch.CREATOR);
+
+        DeviceDescription placeholder = read.resolveDevice(0, null);
+        assertEquals("sensor1", placeholder.getDeviceID());
+        assertTrue(placeholder.getSensorList().isEmpty());
+        assertFalse(placeholder.isRegistered());
+
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.register(HUB_SENSOR, "da");
+        assertEquals(HUB_SENSOR, read.resolveDevice(0, registry));
+    }
+
+    public void testEstimatedSizeMatchesTheParcel() {
+        MultiDeviceBatch batch = new MultiDeviceBatch();
+        batch.add(HUB_SENSOR, observations("temperature", 10), true);
+        batch.add(new DeviceDescription("sensor2", null, null, null, null, null), observations("humidity", 10));
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            batch.writeToParcel(parcel, 0);
+            assertEquals(parcel.dataSize(), batch.estimateParcelSize(), parcel.dataSize() / 10);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertRejected(String message, int[] groupEnds, int includedIndex, int observations) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(PAAndroidConstants.PRIORITY.NORMAL);
+            parcel.writeStringList(Arrays.asList("sensor1", "sensor2"));
+            parcel.writeIntArray(groupEnds);
+            parcel.writeInt(1);
+            parcel.writeInt(includedIndex);
+            HUB_SENSOR.writeToParcel(parcel, 0);
+            parcel.writeTypedList(observations("temperature", observations));
+            parcel.setDataPosition(0);
+
+            MultiDeviceBatch.CREATOR.createFromParcel(parcel);
+            fail(message);
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testGroupsNotMatchingTheDevicesAreRejected() {
+        assertRejected("Fewer groups than devices were accepted", new int[]{2}, 0, 2);
+    }
+
+    public void testIncludedDevicesOutOfRangeAreRejected() {
+        assertRejected("An included device out of range was accepted", new int[]{1, 2}, 2, 2);
+    }
+
+    public void testGroupsBeyondTheObservationsAreRejected() {
+        assertRejected("A group beyond the observations was accepted", new int[]{1, 3}, 0, 2);
+        assertRejected("Decreasing groups were accepted", new int[]{2, 1}, 0, 2);
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the Parcel form of plain, traced and waveform observations, and of its compatibility
+ * with the versions of the library before 3.5.0
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationParcelTest extends TestCase {
+
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "mV", "ECG");
+
+    private static List<Observation> roundTripList(List<Observation> observations) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(observations);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(Observation.CREATOR);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testPlainObservationsKeepTheLegacyFormat() {
+        Observation obs = new Observation(SENSOR, new String[]{"1.5", "2"});
+        obs.setPhenomenonTime(1000);
+        obs.setDuration(10);
+
+        // A reader of the previous versions reads the base fields and expects the next item
+        Parcel parcel = Parcel.obtain();
+        try {
+            obs.writeToParcel(parcel, 0);
+            parcel.writeInt(42);
+            parcel.setDataPosition(0);
+
+            assertEquals("ECG", parcel.readString());
+            assertEquals("mV", parcel.readString());
+            List<String> values = new ArrayList<String>();
+            parcel.readStringList(values);
+            assertEquals(Arrays.asList("1.5", "2"), values);
+            assertEquals(1000, parcel.readLong());
+            assertEquals(10, parcel.readLong());
+            assertEquals(42, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testLegacyParcelsAreRead() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeString("ECG");
+            parcel.writeString("mV");
+            parcel.writeStringList(Arrays.asList("3"));
+            parcel.writeLong(2000);
+            parcel.writeLong(0);
+            parcel.writeInt(1);
+            parcel.setDataPosition(0);
+
+            Observation read = Observation.CREATOR.createFromParcel(parcel);
+            assertEquals(Arrays.asList("3"), read.getValues());
+            assertEquals(2000, read.getPhenomenonTime());
+            assertFalse(read.isTraced());
+            assertEquals(1, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testTracesAreKept() {
+        Observation obs = new Observation(SENSOR, new String[]{"1"});
+        obs.startTrace();
+        obs.stamp(PAAndroidConstants.TRACE_STAGE.DA_SENT);
+
+        Observation read = roundTripList(Arrays.asList(obs, new Observation(SENSOR, new String[]{"2"}))).get(0);
+        assertTrue(read.isTraced());
+        assertEquals(obs.getTraceStamp(PAAndroidConstants.TRACE_STAGE.CAPTURED),
+                read.getTraceStamp(PAAndroidConstants.TRACE_STAGE.CAPTURED));
+        assertEquals(obs.getTraceStamp(PAAndroidConstants.TRACE_STAGE.DA_SENT),
+                read.getTraceStamp(PAAndroidConstants.TRACE_STAGE.DA_SENT));
+    }
+
+    public void testUnknownBlocksAreSkipped() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new Observation(SENSOR, new String[]{"1"}).writeToParcel(parcel, 0);
+            parcel.writeInt(Observation.EXTENSIONS_MAGIC);
+            parcel.writeInt(Observation.EXTENSIONS_VERSION + 1);
+            int start = Observation.beginBlock(parcel, 99);
+            parcel.writeLong(123);
+            Observation.endBlock(parcel, start);
+            parcel.writeInt(Observation.TAG_END);
+            parcel.writeInt(7);
+            parcel.setDataPosition(0);
+
+            Observation read = Observation.CREATOR.createFromParcel(parcel);
+            assertEquals(Arrays.asList("1"), read.getValues());
+            assertEquals(7, parcel.readInt());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testBlocksOverrunningTheParcelAreRejected() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new Observation(SENSOR, new String[]{"1"}).writeToParcel(parcel, 0);
+            parcel.writeInt(Observation.EXTENSIONS_MAGIC);
+            parcel.writeInt(Observation.EXTENSIONS_VERSION);
+            parcel.writeInt(99);
+            parcel.writeInt(1 << 20);
+            parcel.writeLong(123);
+            parcel.writeInt(Observation.TAG_END);
+            parcel.setDataPosition(0);
+
+            Observation.CREATOR.createFromParcel(parcel);
+            fail("A block longer than the Parcel was accepted");
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testBlocksOfNegativeLengthAreRejected() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            new Observation(SENSOR, new String[]{"1"}).writeToParcel(parcel, 0);
+            parcel.writeInt(Observation.EXTENSIONS_MAGIC);
+            parcel.writeInt(Observation.EXTENSIONS_VERSION);
+            parcel.writeInt(99);
+            parcel.writeInt(-12);
+            parcel.writeInt(Observation.TAG_END);
+            parcel.setDataPosition(0);
+
+            Observation.CREATOR.createFromParcel(parcel);
+            fail("A block of negative length was accepted");
+        } catch (BadParcelableException e) {
+            // Expected
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void testWaveformsAreRecreated() {
+        float[] floats = {0.5f, -1.25f, 3f};
+        short[] shorts = {100, 102, 99, 97, -300};
+        List<Observation> read = roundTripList(Arrays.<Observation>asList(
+                new WaveformObservation(SENSOR, 1000, 250, floats),
+                new WaveformObservation(SENSOR, 2000, 500, shorts, false),
+                new WaveformObservation(SENSOR, 3000, 500, shorts, true),
+                new Observation(SENSOR, new String[]{"4"})));
+
+        WaveformObservation floatWaveform = (WaveformObservation) read.get(0);
+        assertEquals(250.0, floatWaveform.getSampleRate());
+        assertEquals(1000, floatWaveform.getPhenomenonTime());
+        assertTrue(Arrays.equals(floats, floatWaveform.getFloatSamples()));
+
+        WaveformObservation shortWaveform = (WaveformObservation) read.get(1);
+        assertFalse(shortWaveform.isCompressed());
+        assertTrue(Arrays.equals(shorts, shortWaveform.getShortSamples()));
+
+        WaveformObservation compressed = (WaveformObservation) read.get(2);
+        assertTrue(compressed.isCompressed());
+        assertTrue(Arrays.equals(shorts, compressed.getShortSamples()));
+        assertEquals(Arrays.asList("100", "102", "99", "97", "-300"), compressed.getValues());
+
+        assertEquals(Observation.class, read.get(3).getClass());
+        assertEquals(Arrays.asList("4"), read.get(3).getValues());
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the payloads of marshaled observations
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationPayloadParcelTest extends TestCase {
+
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "kg", "Body Weight");
+
+    private static ObservationPayload payload() {
+        DeviceDescription dev = new DeviceDescription("dev", "1", "Scale", "Maker", Arrays.asList(SENSOR), "addr");
+        List<Observation> observations = Arrays.asList(new Observation(SENSOR, new String[]{"70.5"}),
+                new WaveformObservation(SENSOR, 1000, 100, new short[]{1, 2, 3}, true));
+        return new ObservationPayload(observations, dev, "da", PAAndroidConstants.PRIORITY.BULK);
+    }
+
+    public void testTheHeaderIsReadWithoutDecoding() {
+        ObservationPayload read = ParcelTestUtils.roundTrip(payload(), ObservationPayload.CREATOR);
+
+        assertEquals("dev", read.getDeviceID());
+        assertEquals("da", read.getDaId());
+        assertEquals(PAAndroidConstants.PRIORITY.BULK, read.getPriority());
+        assertEquals(2, read.getCount());
+        assertEquals(DeviceRegistry.NO_HANDLE, read.getHandle());
+        assertEquals(payload().getPayloadSize(), read.getPayloadSize());
+    }
+
+    public void testThePayloadIsDecodedOnDemand() {
+        ObservationPayload read = ParcelTestUtils.roundTrip(payload(), ObservationPayload.CREATOR);
+
+        List<Observation> observations = read.getObservations();
+        assertEquals(2, observations.size());
+        assertEquals(Arrays.asList("70.5"), observations.get(0).getValues());
+        assertTrue(observations.get(1) instanceof WaveformObservation);
+        assertEquals(Arrays.asList("1", "2", "3"), observations.get(1).getValues());
+        assertEquals("Scale", read.getDevice().getModelName());
+        assertSame(observations, read.getObservations());
+    }
+
+    public void testTheHandleSurvivesForwarding() {
+        ObservationPayload payload = payload();
+        payload.setHandle(12);
+
+        ObservationPayload forwarded = ParcelTestUtils.roundTrip(
+                ParcelTestUtils.roundTrip(payload, ObservationPayload.CREATOR), ObservationPayload.CREATOR);
+        assertEquals(12, forwarded.getHandle());
+        assertEquals(2, forwarded.getObservations().size());
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class contains the helpers shared by the tests of the Parcelable objects
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+final class ParcelTestUtils {
+
+    private ParcelTestUtils() {}
+
+    /**
+     * Write an object to a Parcel and read it back, as Binder does
+     *
+     * @param object
+     *      The object to write
+     *
+     * @param creator
+     *      The CREATOR of the class of the object
+     *
+     * @return
+     *      The object read from the Parcel
+     */
+    static <T> T roundTrip(Parcelable object, Parcelable.Creator<T> creator) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            object.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
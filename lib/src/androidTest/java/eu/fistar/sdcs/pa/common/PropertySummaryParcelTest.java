@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the Parcel form of the summaries of the properties
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class PropertySummaryParcelTest extends TestCase {
+
+    private static final double[] QUANTILES = {0.01, 0.25, 0.5, 0.75, 0.99};
+
+    private static void assertSameSummary(PropertySummary expected, PropertySummary actual) {
+        assertEquals(expected.getDeviceID(), actual.getDeviceID());
+        assertEquals(expected.getPropertyName(), actual.getPropertyName());
+        assertEquals(expected.getStartTime(), actual.getStartTime());
+        assertEquals(expected.getEndTime(), actual.getEndTime());
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin(), 0);
+        assertEquals(expected.getMax(), actual.getMax(), 0);
+        assertEquals(expected.getMean(), actual.getMean(), 0);
+        assertEquals(expected.getVariance(), actual.getVariance(), 0);
+        for (double q : QUANTILES) {
+            assertEquals(expected.getQuantile(q), actual.getQuantile(q), 0);
+        }
+    }
+
+    public void testRoundTrip() {
+        PropertySummary summary = new PropertySummary("dev1", "temperature", 1000, 2000);
+        for (int i = 0; i < 500; i++) {
+            summary.getSketch().add(20 + (i % 50) / 10.0);
+        }
+        PropertySummary read = ParcelTestUtils.roundTrip(summary, PropertySummary.CREATOR);
+
+        assertSameSummary(summary, read);
+    }
+
+    public void testRoundTripOfNegativeAndZeroValues() {
+        ValueSketch sketch = new ValueSketch();
+        for (int i = -100; i <= 100; i++) {
+            sketch.add(i);
+        }
+        PropertySummary summary = new PropertySummary(null, "acceleration", 0, 5000, sketch);
+        PropertySummary read = ParcelTestUtils.roundTrip(summary, PropertySummary.CREATOR);
+
+        assertNull(read.getDeviceID());
+        assertSameSummary(summary, read);
+        assertEquals(0, read.getQuantile(0.5), 0);
+    }
+
+    public void testRoundTripOfEmptySummary() {
+        PropertySummary read = ParcelTestUtils.roundTrip(new PropertySummary("dev1", "temperature", 0, 0),
+                PropertySummary.CREATOR);
+
+        assertEquals(0, read.getCount());
+        assertTrue(Double.isNaN(read.getMean()));
+        assertTrue(Double.isNaN(read.getQuantile(0.5)));
+    }
+
+    public void testReadSummaryKeepsMerging() {
+        PropertySummary first = new PropertySummary("dev1", "temperature", 1000, 2000);
+        first.getSketch().add(10);
+        PropertySummary second = new PropertySummary("dev2", "temperature", 2000, 3000);
+        second.getSketch().add(30);
+
+        PropertySummary read = ParcelTestUtils.roundTrip(first, PropertySummary.CREATOR);
+        read.merge(ParcelTestUtils.roundTrip(second, PropertySummary.CREATOR));
+
+        assertNull(read.getDeviceID());
+        assertEquals(1000, read.getStartTime());
+        assertEquals(3000, read.getEndTime());
+        assertEquals(2, read.getCount());
+        assertEquals(20, read.getMean(), 1e-9);
+    }
+
+}
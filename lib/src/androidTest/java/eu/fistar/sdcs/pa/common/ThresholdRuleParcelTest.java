@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests of the Parcel form of the threshold rules, and of the validation of the rules received
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ThresholdRuleParcelTest extends TestCase {
+
+    private static final RuleEngine.Listener LISTENER = new RuleEngine.Listener() {
+        @Override
+        public void onRuleMatched(ThresholdRule rule, List<Observation> observations, DeviceDescription devDesc) {}
+    };
+
+    // A rule as written by writeToParcel, with arbitrary fields
+    private static ThresholdRule readRule(int kind, int operator, int valueIndex, long cooldown) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeLong(ThresholdRule.NO_ID);
+            parcel.writeString("temperature");
+            parcel.writeInt(kind);
+            parcel.writeInt(operator);
+            parcel.writeDouble(30);
+            parcel.writeInt(valueIndex);
+            parcel.writeString(null);
+            parcel.writeString(null);
+            parcel.writeLong(cooldown);
+            parcel.setDataPosition(0);
+            return ThresholdRule.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertRejected(ThresholdRule rule) {
+        try {
+            new RuleEngine().addRule(rule, LISTENER);
+            fail("Invalid rule accepted: " + rule);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRoundTrip() {
+        ThresholdRule rule = new ThresholdRule("pressure", ThresholdRule.KIND_RATE,
+                ThresholdRule.OPERATOR_LESS_OR_EQUAL, -2.5);
+        rule.setValueIndex(1);
+        rule.setDeviceID("dev1");
+        rule.setModelName("Model");
+        rule.setCooldown(60000);
+        ThresholdRule read = ParcelTestUtils.roundTrip(rule, ThresholdRule.CREATOR);
+
+        assertEquals(ThresholdRule.NO_ID, read.getId());
+        assertEquals("pressure", read.getPropertyName());
+        assertEquals(ThresholdRule.KIND_RATE, read.getKind());
+        assertEquals(ThresholdRule.OPERATOR_LESS_OR_EQUAL, read.getOperator());
+        assertEquals(-2.5, read.getThreshold(), 0);
+        assertEquals(1, read.getValueIndex());
+        assertEquals("dev1", read.getDeviceID());
+        assertEquals("Model", read.getModelName());
+        assertEquals(60000, read.getCooldown());
+    }
+
+    public void testRoundTripKeepsTheIdAndTheDefaults() {
+        ThresholdRule rule = new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30);
+        rule.setId(42);
+        ThresholdRule read = ParcelTestUtils.roundTrip(rule, ThresholdRule.CREATOR);
+
+        assertEquals(42, read.getId());
+        assertEquals(0, read.getValueIndex());
+        assertNull(read.getDeviceID());
+        assertNull(read.getModelName());
+        assertEquals(0, read.getCooldown());
+    }
+
+    public void testInvalidRulesReadFromParcelAreRejected() {
+        assertTrue(new RuleEngine().addRule(readRule(ThresholdRule.KIND_RATE, ThresholdRule.OPERATOR_LESS, 2, 0),
+                LISTENER) > 0);
+
+        assertRejected(readRule(7, ThresholdRule.OPERATOR_GREATER, 0, 0));
+        assertRejected(readRule(ThresholdRule.KIND_VALUE, -1, 0, 0));
+        assertRejected(readRule(ThresholdRule.KIND_VALUE, ThresholdRule.OPERATOR_LESS_OR_EQUAL + 1, 0, 0));
+        assertRejected(readRule(ThresholdRule.KIND_VALUE, ThresholdRule.OPERATOR_GREATER, -1, 0));
+        assertRejected(readRule(ThresholdRule.KIND_VALUE, ThresholdRule.OPERATOR_GREATER, 0, -1000));
+    }
+
+}
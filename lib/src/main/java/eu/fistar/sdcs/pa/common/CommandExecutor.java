@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class implements the asynchronous execution of commands, used by Protocol Adapter and
+ * Device Adapters to serve execCommands.<br>
+ * Every request gets an ID that is returned immediately. Commands addressed to different devices
+ * run concurrently on a thread pool, while commands addressed to the same device run one at a time
+ * in the order they were submitted, even across different requests. Results are delivered through
+ * an {@link ICommandCallback}.<br>
+ * The queue of a device only exists while the device has commands pending, so devices that come
+ * and go don't accumulate. Once the executor has been shut down, every command that didn't start
+ * is failed with {@link CommandResult#STATUS_ERROR}.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CommandExecutor {
+
+    // The default number of threads executing commands
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * The object actually executing the commands, usually the Device Adapter itself
+     */
+    public interface Handler {
+
+        /**
+         * Execute a command on a device. This method may block.
+         *
+         * @param command The command to execute on the device
+         * @param parameter The optional parameter to pass to the device together with the command
+         * @param devId The Device ID
+         * @return The result of the command, may be null
+         *
+         * @throws UnsupportedOperationException if the commands are not supported
+         * @throws IllegalArgumentException if the command is not supported
+         */
+        String execute(String command, String parameter, String devId) throws Exception;
+    }
+
+    private final Handler handler;
+    private final ExecutorService pool;
+    private final String daId;
+    private final DeviceRegistry registry;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final ConcurrentMap<String, DeviceQueue> queues = new ConcurrentHashMap<String, DeviceQueue>();
+
+    /**
+     * Create an executor with the default number of threads
+     *
+     * @param mHandler
+     *      The object executing the commands
+     */
+    public CommandExecutor(Handler mHandler) {
+        this(mHandler, newPool(), null, null);
+    }
+
+    /**
+     * Create an executor for a Device Adapter, with the default number of threads
+     *
+     * @param mHandler
+     *      The object executing the commands
+     *
+     * @param mDaId
+     *      The ID of the Device Adapter, used to record the metrics of the commands
+     */
+    public CommandExecutor(Handler mHandler, String mDaId) {
+        this(mHandler, newPool(), mDaId, null);
+    }
+
+    /**
+     * Create an executor for a Protocol Adapter, with the default number of threads
+     *
+     * @param mHandler
+     *      The object executing the commands
+     *
+     * @param mRegistry
+     *      The registry of the devices, used to find the Device Adapter handling a device when
+     *      recording the metrics of the commands
+     */
+    public CommandExecutor(Handler mHandler, DeviceRegistry mRegistry) {
+        this(mHandler, newPool(), null, mRegistry);
+    }
+
+    /**
+     * Create an executor running the commands on the specified thread pool
+     *
+     * @param mHandler
+     *      The object executing the commands
+     *
+     * @param mPool
+     *      The thread pool
+     */
+    public CommandExecutor(Handler mHandler, ExecutorService mPool) {
+        this(mHandler, mPool, null, null);
+    }
+
+    /**
+     * Create an executor running the commands on the specified thread pool
+     *
+     * @param mHandler
+     *      The object executing the commands
+     *
+     * @param mPool
+     *      The thread pool
+     *
+     * @param mDaId
+     *      The ID of the Device Adapter executing all the commands, may be null
+     *
+     * @param mRegistry
+     *      The registry used to find the Device Adapter handling a device when mDaId is null, may
+     *      be null
+     */
+    public CommandExecutor(Handler mHandler, ExecutorService mPool, String mDaId, DeviceRegistry mRegistry) {
+        if (mHandler == null || mPool == null) {
+            throw new IllegalArgumentException("Handler and pool cannot be null");
+        }
+        handler = mHandler;
+        pool = mPool;
+        daId = mDaId;
+        registry = mRegistry;
+    }
+
+    private static ExecutorService newPool() {
+        return Executors.newFixedThreadPool(DEFAULT_POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CommandExecutor-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Submit a batch of commands, possibly addressed to different devices. This method returns
+     * immediately.
+     *
+     * @param commands
+     *      The commands to execute. Null elements are failed with
+     *      {@link CommandResult#STATUS_INVALID}, without affecting the other commands
+     *
+     * @param callback
+     *      The callback receiving the results, may be null if the caller is not interested
+     *
+     * @return
+     *      The ID of the request, carried by all the results
+     */
+    public long submit(List<CommandRequest> commands, ICommandCallback callback) {
+        long requestId = nextRequestId.getAndIncrement();
+
+        if (commands == null || commands.isEmpty()) {
+            completed(requestId, callback);
+            return requestId;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            CommandRequest cmd = commands.get(i);
+            Task task = new Task(requestId, i, cmd, callback, remaining);
+            if (cmd == null) {
+                task.fail(CommandResult.STATUS_INVALID, NULL_COMMAND_MESSAGE);
+                continue;
+            }
+            if (pool.isShutdown()) {
+                task.fail(CommandResult.STATUS_ERROR, SHUTDOWN_MESSAGE);
+                continue;
+            }
+            // A queue that just went idle is retired, so retry on the one replacing it
+            while (!queueFor(cmd.getDevId()).enqueue(task)) { }
+        }
+
+        return requestId;
+    }
+
+    /**
+     * Stop the threads of the pool. Commands not yet started, and the ones submitted afterwards,
+     * are failed through their callback.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        for (DeviceQueue queue : queues.values()) {
+            queue.abort();
+        }
+    }
+
+    /**
+     * Returns the number of devices that currently have commands pending
+     *
+     * @return
+     *      The number of device queues
+     */
+    int getQueueCount() {
+        return queues.size();
+    }
+
+    private DeviceQueue queueFor(String devId) {
+        String key = (devId != null ? devId : "");
+        DeviceQueue queue = queues.get(key);
+        if (queue == null) {
+            DeviceQueue newQueue = new DeviceQueue(key);
+            queue = queues.putIfAbsent(key, newQueue);
+            if (queue == null) queue = newQueue;
+        }
+        return queue;
+    }
+
+    private String daIdOf(String devId) {
+        if (daId != null || registry == null || devId == null) return daId;
+        return registry.getDaId(devId);
+    }
+
+    private static final String SHUTDOWN_MESSAGE = "The command executor has been shut down";
+    private static final String NULL_COMMAND_MESSAGE = "The command cannot be null";
+
+    private static void completed(long requestId, ICommandCallback callback) {
+        if (callback == null) return;
+
+        try {
+            callback.onRequestCompleted(requestId);
+        } catch (RemoteException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot notify completion of request " + requestId, e);
+        }
+    }
+
+    /**
+     * The execution of a single command
+     */
+    private final class Task implements Runnable {
+        private final long requestId;
+        private final int index;
+        private final CommandRequest cmd;
+        private final ICommandCallback callback;
+        private final AtomicInteger remaining;
+
+        Task(long requestId, int index, CommandRequest cmd, ICommandCallback callback, AtomicInteger remaining) {
+            this.requestId = requestId;
+            this.index = index;
+            this.cmd = cmd;
+            this.callback = callback;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            int status;
+            String message;
+            long start = System.nanoTime();
+
+            try {
+                message = handler.execute(cmd.getCommand(), cmd.getParameter(), cmd.getDevId());
+                status = CommandResult.STATUS_OK;
+            } catch (UnsupportedOperationException e) {
+                status = CommandResult.STATUS_UNSUPPORTED;
+                message = e.getMessage();
+            } catch (IllegalArgumentException e) {
+                status = CommandResult.STATUS_INVALID;
+                message = e.getMessage();
+            } catch (Exception e) {
+                status = CommandResult.STATUS_ERROR;
+                message = e.toString();
+            }
+            MetricsRegistry.getDefault().recordCommand(daIdOf(cmd.getDevId()), cmd.getDevId(),
+                    System.nanoTime() - start, status == CommandResult.STATUS_OK);
+            deliver(status, message);
+        }
+
+        /**
+         * Report the command as failed without running it
+         */
+        void fail(int status, String message) {
+            deliver(status, message);
+        }
+
+        private void deliver(int status, String message) {
+            if (callback != null) {
+                try {
+                    callback.onCommandResult(new CommandResult(requestId, index,
+                            cmd != null ? cmd.getDevId() : null, cmd != null ? cmd.getCommand() : null,
+                            status, message));
+                } catch (RemoteException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot deliver result of request " + requestId, e);
+                }
+            }
+
+            if (remaining.decrementAndGet() == 0) completed(requestId, callback);
+        }
+    }
+
+    /**
+     * The queue of the commands of a device. At most one command of the queue is running at a
+     * time, on whatever thread of the pool is available. When the queue runs out of commands it's
+     * retired and removed from the map, and the next command of the device creates a new one.
+     */
+    private final class DeviceQueue implements Runnable {
+        private final String key;
+        private final Queue<Task> tasks = new ArrayDeque<Task>();
+        private boolean running = false;
+        private boolean retired = false;
+
+        DeviceQueue(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Add a command to the queue, returning false if the queue has been retired
+         */
+        boolean enqueue(Task task) {
+            synchronized (this) {
+                if (retired) return false;
+                tasks.add(task);
+                if (running) return true;
+                running = true;
+            }
+            schedule();
+            return true;
+        }
+
+        /**
+         * Fail all the commands not yet started and retire the queue
+         */
+        void abort() {
+            List<Task> pending;
+            synchronized (this) {
+                pending = new ArrayList<Task>(tasks);
+                tasks.clear();
+                retire();
+            }
+            for (Task task : pending) {
+                task.fail(CommandResult.STATUS_ERROR, SHUTDOWN_MESSAGE);
+            }
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    retire();
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } finally {
+                // Give the other devices a chance before running the next command of this one
+                boolean more;
+                synchronized (this) {
+                    more = !tasks.isEmpty();
+                    if (!more) retire();
+                }
+                if (more) schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                abort();
+            }
+        }
+
+        // Called holding the lock, so that enqueue never adds to a queue no longer in the map
+        private void retire() {
+            running = false;
+            retired = true;
+            queues.remove(key, this);
+        }
+    }
+
+}
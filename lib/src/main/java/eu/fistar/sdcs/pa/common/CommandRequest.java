@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class describes a command to execute on a device, as submitted to the asynchronous
+ * command execution.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CommandRequest implements Parcelable {
+
+    private String command;         // The command to execute on the device
+    private String parameter;       // The optional parameter of the command
+    private String devId;           // The ID of the device
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<CommandRequest> CREATOR
+            = new Parcelable.Creator<CommandRequest>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public CommandRequest createFromParcel(Parcel in) {
+            return new CommandRequest(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public CommandRequest[] newArray(int size) {
+            return new CommandRequest[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        command = in.readString();
+        parameter = in.readString();
+        devId = in.readString();
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(command);
+        out.writeString(parameter);
+        out.writeString(devId);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public CommandRequest(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * The Constructor normally used to pass all the parameters
+     *
+     * @param mCommand The command to execute on the device
+     * @param mParameter The optional parameter to pass to the device together with the command
+     * @param mDevId The Device ID
+     */
+    public CommandRequest(String mCommand, String mParameter, String mDevId) {
+        command = mCommand;
+        parameter = mParameter;
+        devId = mDevId;
+    }
+
+    /**
+     * Returns the command to execute on the device
+     *
+     * @return
+     *      The command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the optional parameter of the command
+     *
+     * @return
+     *      The parameter, or null if the command has no parameter
+     */
+    public String getParameter() {
+        return parameter;
+    }
+
+    /**
+     * Returns the ID of the device the command is addressed to
+     *
+     * @return
+     *      The Device ID
+     */
+    public String getDevId() {
+        return devId;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Command: "+command+"\nParameter: "+parameter+"\nDevice ID: "+devId+"\n";
+    }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class describes the outcome of a command executed asynchronously.<br>
+ * The result carries the ID of the request the command was submitted with and the position of the
+ * command within the request, so that the caller can correlate it.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CommandResult implements Parcelable {
+
+    // Status related constants
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_UNSUPPORTED = 2;     // The DA does not support commands
+    public static final int STATUS_INVALID = 3;         // The command is not supported by the DA
+
+    private long requestId;         // The ID of the request the command belongs to
+    private int index;              // The position of the command within the request
+    private String devId;           // The ID of the device
+    private String command;         // The command executed
+    private int status;             // One of the STATUS constants
+    private String message;         // The result of the command or the error message
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<CommandResult> CREATOR
+            = new Parcelable.Creator<CommandResult>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public CommandResult createFromParcel(Parcel in) {
+            return new CommandResult(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public CommandResult[] newArray(int size) {
+            return new CommandResult[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        requestId = in.readLong();
+        index = in.readInt();
+        devId = in.readString();
+        command = in.readString();
+        status = in.readInt();
+        message = in.readString();
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(requestId);
+        out.writeInt(index);
+        out.writeString(devId);
+        out.writeString(command);
+        out.writeInt(status);
+        out.writeString(message);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public CommandResult(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * The Constructor normally used to pass all the parameters
+     *
+     * @param mRequestId The ID of the request the command belongs to
+     * @param mIndex The position of the command within the request
+     * @param mDevId The Device ID
+     * @param mCommand The command executed
+     * @param mStatus One of the STATUS constants
+     * @param mMessage The result of the command or the error message, may be null
+     */
+    public CommandResult(long mRequestId, int mIndex, String mDevId, String mCommand, int mStatus, String mMessage) {
+        requestId = mRequestId;
+        index = mIndex;
+        devId = mDevId;
+        command = mCommand;
+        status = mStatus;
+        message = mMessage;
+    }
+
+    /**
+     * Returns the ID of the request the command belongs to
+     *
+     * @return
+     *      The ID of the request
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Returns the position of the command within the request
+     *
+     * @return
+     *      The index of the command
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the ID of the device the command was addressed to
+     *
+     * @return
+     *      The Device ID
+     */
+    public String getDevId() {
+        return devId;
+    }
+
+    /**
+     * Returns the command executed
+     *
+     * @return
+     *      The command
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the outcome of the command
+     *
+     * @return
+     *      One of the STATUS constants
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * States whether the command was executed successfully
+     *
+     * @return
+     *      True if the status is STATUS_OK, false otherwise
+     */
+    public boolean isSuccessful() {
+        return status == STATUS_OK;
+    }
+
+    /**
+     * Returns the result of the command if it was successful, or the error message otherwise
+     *
+     * @return
+     *      The result or the error message, may be null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Request ID: "+requestId+"\nIndex: "+index+"\nDevice ID: "+devId+"\nCommand: "+
+                command+"\nStatus: "+status+"\nMessage: "+message+"\n";
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+
+/**
+ * This Class implements the Protocol Adapter side of the flow control between Device Adapter and
+ * Protocol Adapter.<br>
+ * The Protocol Adapter tells how much data it consumed from its queues, and credit is granted back
+ * to the Device Adapter in chunks of half window, so that the Device Adapter never waits for credit
+ * as long as the Protocol Adapter keeps up, while limiting the number of calls.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CreditGranter {
+
+    private final IDeviceAdapter da;
+    private final int windowObservations;
+    private final long windowBytes;
+
+    // Credit consumed but not yet granted back, guarded by this
+    private int pendingObservations = 0;
+    private long pendingBytes = 0;
+
+    /**
+     * Create a granter for a Device Adapter
+     *
+     * @param mDa
+     *      The Device Adapter to grant credit to
+     *
+     * @param options
+     *      The options sent to the Device Adapter upon registration, holding the window
+     */
+    public CreditGranter(IDeviceAdapter mDa, ListenerOptions options) {
+        da = mDa;
+        windowObservations = options.getCreditObservations();
+        windowBytes = options.getCreditBytes();
+    }
+
+    /**
+     * Notify that some data received from the Device Adapter has been consumed, i.e. delivered
+     * to the Applications. Credit is granted back when enough data has been consumed.
+     *
+     * @param observations
+     *      The number of observations consumed
+     *
+     * @param bytes
+     *      The number of bytes consumed, as estimated by {@link Observation#estimateParcelSize(java.util.List)}
+     */
+    public void onConsumed(int observations, long bytes) {
+        if (windowObservations <= 0) return;
+
+        int grantObservations;
+        long grantBytes;
+        synchronized (this) {
+            pendingObservations += observations;
+            pendingBytes += bytes;
+
+            if (pendingObservations < windowObservations / 2 &&
+                    (windowBytes <= 0 || pendingBytes < windowBytes / 2)) return;
+
+            grantObservations = pendingObservations;
+            grantBytes = pendingBytes;
+            pendingObservations = 0;
+            pendingBytes = 0;
+        }
+
+        grant(grantObservations, grantBytes);
+    }
+
+    /**
+     * Grant back immediately all the credit consumed, i.e. when the queues of the Protocol
+     * Adapter are empty.
+     */
+    public void flush() {
+        int grantObservations;
+        long grantBytes;
+        synchronized (this) {
+            if (pendingObservations == 0 && pendingBytes == 0) return;
+
+            grantObservations = pendingObservations;
+            grantBytes = pendingBytes;
+            pendingObservations = 0;
+            pendingBytes = 0;
+        }
+
+        grant(grantObservations, grantBytes);
+    }
+
+    private void grant(int observations, long bytes) {
+        try {
+            da.grantCredit(observations, bytes);
+        } catch (RemoteException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot grant credit to the Device Adapter", e);
+        }
+    }
+
+}
@@ -0,0 +1,510 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This Class implements the Device Adapter side of the flow control between Device Adapter and
+ * Protocol Adapter.<br>
+ * The Protocol Adapter grants upon registration a credit expressed in observations and,
+ * optionally, bytes (see {@link ListenerOptions}). Every push consumes credit and, once it runs out,
+ * pushes are buffered until the Protocol Adapter grants more credit with grantCredit. When the
+ * buffer is full, data is degraded according to the overflow policy: either the oldest batches are
+ * dropped, or the buffered batches are decimated keeping every other observation. Batches of a
+ * single observation are decimated together, dropping every other batch of the same device.<br>
+ * A buffered batch whose delivery fails is put back at the head of the buffer, and its credit is
+ * given back, so it's delivered again by the next push or grant of credit. The failure is only
+ * reported to the caller that pushed that batch: a push draining batches of other callers logs
+ * their failures instead.<br>
+ * Pushes are delivered in the order they were made, except for alarms that are never subject to
+ * flow control and are delivered straight away, overtaking the buffered data. If the Protocol
+ * Adapter did not request flow control, all pushes are delivered straight away.<br>
+ * Buffered data is charged to the default {@link MemoryBudget}: when it's exceeded, buffered bulk
+ * data and then normal data are decimated.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CreditedSender {
+
+    // Overflow policy related constants
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    public static final int OVERFLOW_DECIMATE = 1;
+
+    // The default maximum number of observations buffered while waiting for credit
+    public static final int DEFAULT_MAX_BUFFERED = 2048;
+
+    /**
+     * The destination of the pushes
+     */
+    public interface Sink {
+
+        /**
+         * Push new measurements data coming from a device
+         *
+         * @param observations
+         *      The data to push
+         *
+         * @param devDesc
+         *      The device who supplies the data
+         *
+         * @param priority
+         *      The priority of the data
+         */
+        void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException;
+    }
+
+    private final Sink sink;
+    private final boolean flowControl;
+    private final boolean byteLimit;
+    private final int maxBuffered;
+    private final int overflowPolicy;
+
+    // State of the flow control, guarded by this
+    private long creditObservations;
+    private long creditBytes;
+    private final ArrayDeque<Batch> buffer = new ArrayDeque<Batch>();
+    private int bufferedObservations = 0;
+    private boolean draining = false;
+
+    // Metrics, guarded by this
+    private long throttledSince = -1;
+    private long throttledTime = 0;
+    private long throttleCount = 0;
+    private long droppedObservations = 0;
+
+    // Frees memory decimating the buffered data
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            if (level == MemoryBudget.SHED_BULK) return decimate(PAAndroidConstants.PRIORITY.BULK, bytes);
+            if (level == MemoryBudget.SHED_NORMAL) return decimate(PAAndroidConstants.PRIORITY.NORMAL, bytes);
+            return 0;
+        }
+    };
+    private final MemoryBudget.Account account = MemoryBudget.getDefault().register("CreditedSender", shedder);
+
+    /**
+     * Create a sender with the default buffer size, dropping the oldest batches on overflow
+     *
+     * @param mSink
+     *      The destination of the pushes
+     *
+     * @param options
+     *      The options received upon registration
+     */
+    public CreditedSender(Sink mSink, ListenerOptions options) {
+        this(mSink, options, DEFAULT_MAX_BUFFERED, OVERFLOW_DROP_OLDEST);
+    }
+
+    /**
+     * Create a sender
+     *
+     * @param mSink
+     *      The destination of the pushes
+     *
+     * @param options
+     *      The options received upon registration
+     *
+     * @param mMaxBuffered
+     *      The maximum number of observations buffered while waiting for credit
+     *
+     * @param mOverflowPolicy
+     *      What to do when the buffer is full, one of the OVERFLOW constants
+     */
+    public CreditedSender(Sink mSink, ListenerOptions options, int mMaxBuffered, int mOverflowPolicy) {
+        if (mSink == null) throw new IllegalArgumentException("Sink cannot be null");
+
+        sink = mSink;
+        flowControl = options != null && options.getCreditObservations() > 0;
+        byteLimit = flowControl && options.getCreditBytes() > 0;
+        creditObservations = (flowControl ? options.getCreditObservations() : 0);
+        creditBytes = (byteLimit ? options.getCreditBytes() : 0);
+        maxBuffered = mMaxBuffered;
+        overflowPolicy = mOverflowPolicy;
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to a Protocol Adapter that registered without options,
+     * i.e. one running a version of the library before 3.5.0
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(IDeviceAdapterListener listener) {
+        return sinkFor(listener, null, null);
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to a Protocol Adapter. Waveforms and traces are only
+     * delivered if the Protocol Adapter accepts extended observations, otherwise the observations
+     * are converted with {@link Observation#withoutExtensions(List)}. Without options the Protocol
+     * Adapter may not implement pushDataWithPriority, so the data is delivered with pushData and
+     * the priority is not transferred.
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter pushing the data, used to record the metrics
+     *
+     * @param options
+     *      The options received upon registration, may be null
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(final IDeviceAdapterListener listener, final String daId, ListenerOptions options) {
+        final boolean legacy = (options == null);
+        final boolean extended = options != null && options.acceptsExtendedObservations();
+        return new Sink() {
+            @Override
+            public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+                Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.DA_SENT);
+                long start = System.nanoTime();
+                List<Observation> delivered = (extended ? observations : Observation.withoutExtensions(observations));
+                if (legacy) listener.pushData(delivered, devDesc);
+                else listener.pushDataWithPriority(delivered, devDesc, priority);
+                MetricsRegistry.getDefault().recordPush(daId, observations, devDesc, System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Push new measurements data coming from a device with normal priority. If there's enough
+     * credit, the data is delivered on the calling thread, otherwise it's buffered and this method
+     * returns immediately.
+     *
+     * @param observations
+     *      The data to push
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     */
+    public void pushData(List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+        pushData(observations, devDesc, PAAndroidConstants.PRIORITY.NORMAL);
+    }
+
+    /**
+     * Push new measurements data coming from a device. Alarms and data pushed when there's enough
+     * credit are delivered on the calling thread, otherwise data is buffered and this method
+     * returns immediately.
+     *
+     * @param observations
+     *      The data to push
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     *
+     * @param priority
+     *      The priority of the data, one of the values defined in {@link PAAndroidConstants.PRIORITY}
+     *
+     * @throws RemoteException if the delivery of this data on the calling thread failed, in which
+     *      case it remains buffered
+     */
+    public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+        if (!flowControl || priority >= PAAndroidConstants.PRIORITY.ALARM) {
+            sink.pushData(observations, devDesc, priority);
+            return;
+        }
+
+        Batch batch = new Batch(observations, devDesc, priority);
+        synchronized (this) {
+            buffer.add(batch);
+            bufferedObservations += batch.size();
+            account.add(batch.bytes);
+            enforceLimit();
+
+            if (draining) return;
+            draining = true;
+        }
+        drain(batch);
+    }
+
+    /**
+     * Add credit, as granted by the Protocol Adapter, and deliver the buffered data it allows
+     *
+     * @param observations
+     *      The number of observations granted
+     *
+     * @param bytes
+     *      The number of bytes granted
+     */
+    public void grantCredit(int observations, long bytes) {
+        synchronized (this) {
+            creditObservations += observations;
+            creditBytes += bytes;
+
+            if (draining) return;
+            draining = true;
+        }
+
+        try {
+            drain(null);
+        } catch (RemoteException e) {
+            // Not thrown without a batch of the caller
+        }
+    }
+
+    /**
+     * Deliver the buffered batches while there's credit. Only one thread at a time drains the
+     * buffer, so that batches are delivered in order without holding the lock during the calls.
+     * A failed delivery stops the draining: it's thrown if the batch is the one of the caller,
+     * and logged otherwise.
+     *
+     * @param own
+     *      The batch pushed by the caller, or null
+     */
+    private void drain(Batch own) throws RemoteException {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                batch = buffer.peek();
+                if (batch == null || !hasCredit()) {
+                    if (batch != null) startThrottling();
+                    draining = false;
+                    return;
+                }
+
+                buffer.poll();
+                bufferedObservations -= batch.size();
+                account.release(batch.bytes);
+                creditObservations -= batch.size();
+                creditBytes -= batch.bytes;
+                stopThrottling();
+            }
+
+            try {
+                sink.pushData(batch.observations, batch.devDesc, batch.priority);
+            } catch (RemoteException e) {
+                synchronized (this) {
+                    buffer.addFirst(batch);
+                    bufferedObservations += batch.size();
+                    account.add(batch.bytes);
+                    creditObservations += batch.size();
+                    creditBytes += batch.bytes;
+                    enforceLimit();
+                    draining = false;
+                }
+                if (batch == own) throw e;
+                Log.w(PAAndroidConstants.DA_LOGTAG, "Cannot deliver buffered data", e);
+                return;
+            }
+        }
+    }
+
+    // Must be called holding the lock. The last batch is allowed to exceed the remaining credit.
+    private boolean hasCredit() {
+        return creditObservations > 0 && (!byteLimit || creditBytes > 0);
+    }
+
+    // Must be called holding the lock
+    private void enforceLimit() {
+        if (bufferedObservations <= maxBuffered) return;
+
+        if (overflowPolicy == OVERFLOW_DECIMATE) {
+            decimatePass(-1, Long.MAX_VALUE, bufferedObservations - maxBuffered);
+        }
+
+        // Drop the oldest batches if decimation wasn't enough
+        while (bufferedObservations > maxBuffered && !buffer.isEmpty()) {
+            Batch batch = buffer.poll();
+            bufferedObservations -= batch.size();
+            droppedObservations += batch.size();
+            account.release(batch.bytes);
+        }
+    }
+
+    /**
+     * Decimate the buffered batches of a priority until enough memory is freed, or until they
+     * can't be decimated any further
+     */
+    private synchronized long decimate(int priority, long bytes) {
+        long freed = 0;
+        while (freed < bytes) {
+            long passFreed = decimatePass(priority, bytes - freed, Integer.MAX_VALUE);
+            if (passFreed == 0) break;
+            freed += passFreed;
+        }
+        return freed;
+    }
+
+    /**
+     * Decimate once the buffered batches of a priority, or of all the priorities if negative,
+     * stopping as soon as enough bytes or observations have been removed. Batches of a single
+     * observation can't be decimated by themselves, so every other one of the same device is
+     * dropped instead. Must be called holding the lock.
+     *
+     * @return
+     *      The number of bytes freed
+     */
+    private long decimatePass(int priority, long bytesWanted, int observationsWanted) {
+        long freed = 0;
+        int removed = 0;
+        Set<String> keptSingle = new HashSet<String>();
+
+        Iterator<Batch> it = buffer.iterator();
+        while (it.hasNext() && freed < bytesWanted && removed < observationsWanted) {
+            Batch batch = it.next();
+            if (priority >= 0 && batch.priority != priority) continue;
+
+            if (batch.size() == 1) {
+                // Keep the first single observation batch of every device, drop the next one
+                if (keptSingle.add(batch.devId())) continue;
+                keptSingle.remove(batch.devId());
+                it.remove();
+                removed++;
+                freed += batch.bytes;
+            } else {
+                long before = batch.bytes;
+                removed += batch.decimate();
+                freed += before - batch.bytes;
+            }
+        }
+
+        bufferedObservations -= removed;
+        droppedObservations += removed;
+        account.release(freed);
+        return freed;
+    }
+
+    // Must be called holding the lock
+    private void startThrottling() {
+        if (throttledSince < 0) {
+            throttledSince = System.nanoTime();
+            throttleCount++;
+        }
+    }
+
+    // Must be called holding the lock
+    private void stopThrottling() {
+        if (throttledSince >= 0) {
+            throttledTime += System.nanoTime() - throttledSince;
+            throttledSince = -1;
+        }
+    }
+
+    /**
+     * Returns the total time spent waiting for credit with data buffered
+     *
+     * @return
+     *      The time spent throttled, in milliseconds
+     */
+    public synchronized long getThrottledTime() {
+        long total = throttledTime;
+        if (throttledSince >= 0) total += System.nanoTime() - throttledSince;
+        return total / 1000000;
+    }
+
+    /**
+     * Returns the number of times the sender ran out of credit with data to deliver
+     *
+     * @return
+     *      The number of throttling episodes
+     */
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+
+    /**
+     * Returns the number of observations dropped or decimated because the buffer was full
+     *
+     * @return
+     *      The number of observations dropped
+     */
+    public synchronized long getDroppedObservations() {
+        return droppedObservations;
+    }
+
+    /**
+     * Returns the number of observations waiting for credit
+     *
+     * @return
+     *      The number of observations buffered
+     */
+    public synchronized int getBufferedObservations() {
+        return bufferedObservations;
+    }
+
+    /**
+     * Returns the credit left, in observations
+     *
+     * @return
+     *      The credit left, may be negative if the last batch exceeded it
+     */
+    public synchronized long getCreditObservations() {
+        return creditObservations;
+    }
+
+    /**
+     * A push waiting for credit
+     */
+    private static final class Batch {
+        List<Observation> observations;
+        final DeviceDescription devDesc;
+        final int priority;
+        long bytes;
+
+        Batch(List<Observation> observations, DeviceDescription devDesc, int priority) {
+            this.observations = observations;
+            this.devDesc = devDesc;
+            this.priority = priority;
+            this.bytes = Observation.estimateParcelSize(observations);
+        }
+
+        int size() {
+            return observations.size();
+        }
+
+        String devId() {
+            return (devDesc != null ? devDesc.getDeviceID() : null);
+        }
+
+        // Keep every other observation, returning the number of observations removed
+        int decimate() {
+            int size = observations.size();
+            if (size < 2) return 0;
+
+            List<Observation> kept = new ArrayList<Observation>((size + 1) / 2);
+            for (int i = 0; i < size; i += 2) {
+                kept.add(observations.get(i));
+            }
+            observations = kept;
+            bytes = Observation.estimateParcelSize(kept);
+            return size - kept.size();
+        }
+    }
+
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This Class contains the configuration of a device, made of typed key/value entries.<br>
+ * Unlike the Map used by setDeviceConfig, numeric and boolean values are stored and marshaled as
+ * primitives, so Device Adapters don't need to parse them, and the whole configuration is written
+ * to the Parcel as a few flat arrays. The same configuration can be applied to many devices with a
+ * single call to setDevicesConfig.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceConfig implements Parcelable {
+
+    // Type related constants
+    public static final byte TYPE_NONE = 0;
+    public static final byte TYPE_BOOLEAN = 1;
+    public static final byte TYPE_INT = 2;
+    public static final byte TYPE_LONG = 3;
+    public static final byte TYPE_DOUBLE = 4;
+    public static final byte TYPE_STRING = 5;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int size = 0;               // The number of entries
+    private String[] keys;              // The keys of the entries
+    private byte[] types;               // The types of the entries
+    private long[] primitives;          // The values of primitive entries (doubles as raw bits)
+    private String[] strings;           // The values of String entries, null for the others
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<DeviceConfig> CREATOR
+            = new Parcelable.Creator<DeviceConfig>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public DeviceConfig createFromParcel(Parcel in) {
+            return new DeviceConfig(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public DeviceConfig[] newArray(int size) {
+            return new DeviceConfig[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     *
+     * @throws BadParcelableException if the arrays are missing, of different lengths or contain an
+     *      unknown type
+     */
+    public void readFromParcel(Parcel in) {
+        String[] newKeys = in.createStringArray();
+        byte[] newTypes = in.createByteArray();
+        long[] newPrimitives = in.createLongArray();
+        String[] newStrings = in.createStringArray();
+
+        if (newKeys == null || newTypes == null || newPrimitives == null || newStrings == null) {
+            throw new BadParcelableException("Missing device configuration arrays");
+        }
+        if (newTypes.length != newKeys.length || newPrimitives.length != newKeys.length
+                || newStrings.length != newKeys.length) {
+            throw new BadParcelableException("Device configuration arrays of different lengths");
+        }
+        for (byte type : newTypes) {
+            if (type < TYPE_BOOLEAN || type > TYPE_STRING) {
+                throw new BadParcelableException("Unknown device configuration type " + type);
+            }
+        }
+
+        keys = newKeys;
+        types = newTypes;
+        primitives = newPrimitives;
+        strings = newStrings;
+        size = keys.length;
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeStringArray(Arrays.copyOf(keys, size));
+        out.writeByteArray(types, 0, size);
+        out.writeLongArray(Arrays.copyOf(primitives, size));
+        out.writeStringArray(Arrays.copyOf(strings, size));
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public DeviceConfig(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Default constructor, creates an empty configuration
+     */
+    public DeviceConfig() {
+        keys = new String[INITIAL_CAPACITY];
+        types = new byte[INITIAL_CAPACITY];
+        primitives = new long[INITIAL_CAPACITY];
+        strings = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Create a configuration from the key/value set used by setDeviceConfig. All the values are
+     * stored as Strings.
+     *
+     * @param config
+     *      The configuration in the form of a key/value set (String/String)
+     *
+     * @return
+     *      The resulting configuration
+     */
+    public static DeviceConfig fromMap(Map<?, ?> config) {
+        DeviceConfig result = new DeviceConfig();
+        if (config == null) return result;
+
+        for (Map.Entry<?, ?> entry : config.entrySet()) {
+            if (entry.getKey() == null) continue;
+            result.putString(entry.getKey().toString(), entry.getValue() != null ? entry.getValue().toString() : null);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the configuration as the key/value set used by setDeviceConfig, in order to forward
+     * it to Device Adapters not supporting setDevicesConfig.
+     *
+     * @return
+     *      The configuration in the form of a key/value set (String/String)
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> result = new HashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            result.put(keys[i], getAsString(i));
+        }
+        return result;
+    }
+
+    /**
+     * States whether this configuration can be applied to a Device Adapter, according to the kind
+     * of configuration it declares in its Capabilities.
+     *
+     * @param caps
+     *      The Capabilities of the Device Adapter
+     *
+     * @param daRunning
+     *      True if the configuration would be applied to a running Device Adapter, false if it
+     *      would be applied before starting it
+     *
+     * @return
+     *      True if the configuration can be applied, false otherwise
+     */
+    public static boolean isApplicable(Capabilities caps, boolean daRunning) {
+        switch (caps.getDeviceConfigurationType()) {
+            case Capabilities.CONFIG_RUNTIME_ONLY:
+                return daRunning;
+            case Capabilities.CONFIG_STARTUP_ONLY:
+                return !daRunning;
+            case Capabilities.CONFIG_STARTUP_AND_RUNTIME:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Set an entry to a boolean value, replacing any entry with the same key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param value
+     *      The value of the entry
+     */
+    public void putBoolean(String key, boolean value) {
+        put(key, TYPE_BOOLEAN, value ? 1 : 0, null);
+    }
+
+    /**
+     * Set an entry to an int value, replacing any entry with the same key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param value
+     *      The value of the entry
+     */
+    public void putInt(String key, int value) {
+        put(key, TYPE_INT, value, null);
+    }
+
+    /**
+     * Set an entry to a long value, replacing any entry with the same key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param value
+     *      The value of the entry
+     */
+    public void putLong(String key, long value) {
+        put(key, TYPE_LONG, value, null);
+    }
+
+    /**
+     * Set an entry to a double value, replacing any entry with the same key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param value
+     *      The value of the entry
+     */
+    public void putDouble(String key, double value) {
+        put(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    /**
+     * Set an entry to a String value, replacing any entry with the same key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param value
+     *      The value of the entry
+     */
+    public void putString(String key, String value) {
+        put(key, TYPE_STRING, 0, value);
+    }
+
+    /**
+     * Returns the number of entries of the configuration
+     *
+     * @return
+     *      The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the key of an entry
+     *
+     * @param i
+     *      The index of the entry
+     *
+     * @return
+     *      The key of the entry
+     */
+    public String keyAt(int i) {
+        checkIndex(i);
+        return keys[i];
+    }
+
+    /**
+     * Returns the type of the entry with the specified key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @return
+     *      One of the TYPE constants, TYPE_NONE if there's no such entry
+     */
+    public byte getType(String key) {
+        int i = indexOf(key);
+        return i >= 0 ? types[i] : TYPE_NONE;
+    }
+
+    /**
+     * States whether the configuration contains an entry with the specified key
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @return
+     *      True if the entry exists, false otherwise
+     */
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value of an entry as a boolean. Numbers are true when not zero, Strings must be
+     * "true" or "false", ignoring case.
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param defaultValue
+     *      The value returned if there's no such entry or it cannot be converted
+     *
+     * @return
+     *      The value of the entry
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        int i = indexOf(key);
+        if (i < 0) return defaultValue;
+        if (types[i] == TYPE_STRING) {
+            String value = (strings[i] != null ? strings[i].trim() : null);
+            if ("true".equalsIgnoreCase(value)) return true;
+            if ("false".equalsIgnoreCase(value)) return false;
+            return defaultValue;
+        }
+        return types[i] == TYPE_DOUBLE ? Double.longBitsToDouble(primitives[i]) != 0 : primitives[i] != 0;
+    }
+
+    /**
+     * Returns the value of an entry as an int. Doubles are truncated, Strings are parsed.
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param defaultValue
+     *      The value returned if there's no such entry or it cannot be converted, also when the
+     *      value is outside the range of an int
+     *
+     * @return
+     *      The value of the entry
+     */
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return defaultValue;
+        return (int) value;
+    }
+
+    /**
+     * Returns the value of an entry as a long. Doubles are truncated, Strings are parsed.
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param defaultValue
+     *      The value returned if there's no such entry or it cannot be converted
+     *
+     * @return
+     *      The value of the entry
+     */
+    public long getLong(String key, long defaultValue) {
+        int i = indexOf(key);
+        if (i < 0) return defaultValue;
+
+        switch (types[i]) {
+            case TYPE_DOUBLE:
+                return (long) Double.longBitsToDouble(primitives[i]);
+            case TYPE_STRING:
+                try {
+                    return strings[i] != null ? Long.parseLong(strings[i].trim()) : defaultValue;
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return primitives[i];
+        }
+    }
+
+    /**
+     * Returns the value of an entry as a double. Strings are parsed.
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param defaultValue
+     *      The value returned if there's no such entry or it cannot be converted
+     *
+     * @return
+     *      The value of the entry
+     */
+    public double getDouble(String key, double defaultValue) {
+        int i = indexOf(key);
+        if (i < 0) return defaultValue;
+
+        switch (types[i]) {
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(primitives[i]);
+            case TYPE_STRING:
+                try {
+                    return strings[i] != null ? Double.parseDouble(strings[i].trim()) : defaultValue;
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return primitives[i];
+        }
+    }
+
+    /**
+     * Returns the value of an entry as a String. Primitive values are converted to their String form.
+     *
+     * @param key
+     *      The key of the entry
+     *
+     * @param defaultValue
+     *      The value returned if there's no such entry or it cannot be converted
+     *
+     * @return
+     *      The value of the entry
+     */
+    public String getString(String key, String defaultValue) {
+        int i = indexOf(key);
+        return i >= 0 ? getAsString(i) : defaultValue;
+    }
+
+    private String getAsString(int i) {
+        switch (types[i]) {
+            case TYPE_BOOLEAN:
+                return Boolean.toString(primitives[i] != 0);
+            case TYPE_INT:
+            case TYPE_LONG:
+                return Long.toString(primitives[i]);
+            case TYPE_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(primitives[i]));
+            default:
+                return strings[i];
+        }
+    }
+
+    private void put(String key, byte type, long primitive, String string) {
+        if (key == null) throw new IllegalArgumentException("Key cannot be null");
+
+        int i = indexOf(key);
+        if (i < 0) {
+            if (size == keys.length) grow();
+            i = size++;
+            keys[i] = key;
+        }
+
+        types[i] = type;
+        primitives[i] = primitive;
+        strings[i] = string;
+    }
+
+    // Configurations are small, a linear scan is faster than hashing
+    private int indexOf(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, keys.length * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        types = Arrays.copyOf(types, capacity);
+        primitives = Arrays.copyOf(primitives, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        String entriesStr = "\n";
+        for (int i = 0; i < size; i++) {
+            entriesStr += keys[i] + " = " + getAsString(i) + "\n";
+        }
+        return "Configuration: "+entriesStr;
+    }
+
+}
@@ -26,7 +26,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -47,7 +47,7 @@ public class DeviceDescription implements Parcelable {
     private String serialNumber; // The device's serial number, empty if not automatically provided by the device
     private String modelName; // The model name
     private String manufacturerName; // The manufacturer name
-    private List<SensorDescription> sensorList = new ArrayList<SensorDescription>(); // The list of the properties
+    private List<SensorDescription> sensorList = Collections.emptyList(); // The immutable list of the properties, shared among devices of the same model
     private String address; // The MAC Address of the device
     private boolean registered;
 
@@ -92,11 +92,13 @@ public class DeviceDescription implements Parcelable {
         serialNumber = in.readString();
         modelName = in.readString();
         manufacturerName = in.readString();
+        List<SensorDescription> tmpList;
         try {
-            in.readTypedList(sensorList, SensorDescription.CREATOR);
+            tmpList = in.createTypedArrayList(SensorDescription.CREATOR);
         } catch (NullPointerException e) {
-            sensorList = new ArrayList<SensorDescription>();
+            tmpList = null;
         }
+        sensorList = SensorListCache.intern(manufacturerName, modelName, tmpList);
         address = in.readString();
         registered = in.readByte() == 1;
     }
@@ -115,11 +117,31 @@ public class DeviceDescription implements Parcelable {
         out.writeString(serialNumber != null ? serialNumber : "");
         out.writeString(modelName != null ?  modelName : "");
         out.writeString(manufacturerName != null ? manufacturerName : "");
-        out.writeTypedList(sensorList != null ? sensorList : new ArrayList<SensorDescription>());
+        out.writeTypedList(sensorList);
         out.writeString(address != null ? address : "");
         out.writeByte((byte) (registered ? 1 : 0));
     }
 
+    /**
+     * Returns an estimate of the number of bytes this description takes when written to a Parcel
+     *
+     * @return
+     *      The estimated size in bytes
+     */
+    public int estimateParcelSize() {
+        int size = Observation.stringSize(deviceID) + Observation.stringSize(serialNumber)
+                + Observation.stringSize(modelName) + Observation.stringSize(manufacturerName)
+                + Observation.stringSize(address) + 4 + 4;
+        if (sensorList != null) {
+            for (SensorDescription sensor : sensorList) {
+                size += 4 + Observation.stringSize(sensor.getSensorName())
+                        + Observation.stringSize(sensor.getMeasurementUnit())
+                        + Observation.stringSize(sensor.getPropertyName());
+            }
+        }
+        return size;
+    }
+
     /**
      * The describe content method required by Parcelable
      *
@@ -148,7 +170,8 @@ public class DeviceDescription implements Parcelable {
     }
 
     /**
-     * Constructor used to create a new object from a derivated object of the same type
+     * Constructor used to create a new object from a derivated object of the same type. The sensor
+     * list is shared with the original object instead of being copied.
      *
      * @param derivObj
      */
@@ -157,12 +180,7 @@ public class DeviceDescription implements Parcelable {
         serialNumber = derivObj.getSerialNumber();
         modelName = derivObj.getModelName();
         manufacturerName = derivObj.getManufacturerName();
-        sensorList = new ArrayList<SensorDescription>();
-        if (derivObj.getSensorList() != null && !derivObj.getSensorList().isEmpty()) {
-            for (SensorDescription tmpSens : derivObj.getSensorList()) {
-                sensorList.add(new SensorDescription(tmpSens));
-            }
-        }
+        sensorList = SensorListCache.intern(manufacturerName, modelName, derivObj.getSensorList());
         address = derivObj.getAddress();
         registered = derivObj.isRegistered();
     }
@@ -184,7 +202,8 @@ public class DeviceDescription implements Parcelable {
      *      The manufacturer name
      *
      * @param mSensorList
-     *      The list of the sensor associated with the device
+     *      The list of the sensor associated with the device. The list is copied in the canonical
+     *      immutable list for the model, so later changes to it are not reflected in the device
      *
      * @param mAddress
      *      The physical address of the device
@@ -194,7 +213,7 @@ public class DeviceDescription implements Parcelable {
         serialNumber = mSerialNumber;
         modelName = mModelName;
         manufacturerName = mManufacturerName;
-        sensorList = mSensorList;
+        sensorList = SensorListCache.intern(mManufacturerName, mModelName, mSensorList);
         address = mAddress;
         registered = false;
     }
@@ -240,7 +259,8 @@ public class DeviceDescription implements Parcelable {
     }
 
     /**
-     * Returns the list of sensors belonging to the device
+     * Returns the list of sensors belonging to the device. The list is immutable and may be shared
+     * with other devices of the same model.
      *
      * @return
      *      The list of sensors belonging to the device
@@ -279,6 +299,48 @@ public class DeviceDescription implements Parcelable {
         return registered;
     }
 
+    /**
+     * Two devices are equal when all their attributes, except the registration flag, are equal
+     *
+     * @param o
+     *      The object to compare
+     *
+     * @return
+     *      True if the object represents the same device, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DeviceDescription)) return false;
+
+        DeviceDescription other = (DeviceDescription) o;
+        return eq(deviceID, other.deviceID) &&
+                eq(address, other.address) &&
+                eq(serialNumber, other.serialNumber) &&
+                eq(modelName, other.modelName) &&
+                eq(manufacturerName, other.manufacturerName) &&
+                sensorList.equals(other.sensorList);
+    }
+
+    /**
+     * Returns an hash code consistent with {@link #equals(Object)}. Only the device ID and the
+     * address are used, since they are enough to tell two devices apart.
+     *
+     * @return
+     *      The hash code of the object
+     */
+    @Override
+    public int hashCode() {
+        int result = deviceID != null ? deviceID.hashCode() : 0;
+        result = 31 * result + (address != null ? address.hashCode() : 0);
+        return result;
+    }
+
+    // Null and empty Strings are the same, since null values are written as empty ones in Parcels
+    private static boolean eq(String a, String b) {
+        return (a != null ? a : "").equals(b != null ? b : "");
+    }
+
     /**
      * Returns a read-friendly String representing the object
      *
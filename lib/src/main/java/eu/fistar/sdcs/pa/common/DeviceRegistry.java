@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe registry of the devices known to a Protocol Adapter, an Application or a Device
+ * Adapter.<br>
+ * Devices can be looked up in constant time by device ID, by address and by the handle assigned
+ * upon registration. Secondary indexes allow to retrieve all the devices exposing a property,
+ * made by a manufacturer or handled by a Device Adapter.<br>
+ * Lookups never block: they are served by concurrent maps, while writers are serialized through
+ * a set of locks striped by device ID. A reader concurrent with a writer may see the primary
+ * indexes updated before the secondary ones.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceRegistry {
+
+    // The value returned when a device has no handle
+    public static final int NO_HANDLE = -1;
+
+    private static final int STRIPES = 16;
+
+    private final ConcurrentMap<String, Entry> byId = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Entry> byAddress = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<Integer, Entry> byHandle = new ConcurrentHashMap<Integer, Entry>();
+
+    private final ConcurrentMap<String, Set<String>> byProperty = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Set<String>> byManufacturer = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Set<String>> byDaId = new ConcurrentHashMap<String, Set<String>>();
+
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicInteger nextHandle = new AtomicInteger(0);
+
+    /**
+     * Default constructor
+     */
+    public DeviceRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Register a device, or update it if a device with the same ID is already registered. An
+     * updated device keeps the handle it was given upon its first registration.
+     *
+     * @param devDesc
+     *      The device to register
+     *
+     * @param daId
+     *      The ID of the Device Adapter that is handling the device, may be null
+     *
+     * @return
+     *      The handle of the device
+     */
+    public int register(DeviceDescription devDesc, String daId) {
+        String devId = checkId(devDesc);
+        MetricsRegistry.getDefault().recordRegistration(daId, devId);
+
+        synchronized (lockFor(devId)) {
+            Entry old = byId.get(devId);
+            int handle = (old != null ? old.handle : nextHandle.getAndIncrement());
+
+            return put(new Entry(devDesc, daId, handle), old);
+        }
+    }
+
+    /**
+     * Register a device using a specific handle, typically one that was assigned before a restart
+     * of the process. If the handle is already taken by another device, a new one is assigned.
+     *
+     * @param devDesc
+     *      The device to register
+     *
+     * @param daId
+     *      The ID of the Device Adapter that is handling the device, may be null
+     *
+     * @param handle
+     *      The handle to assign to the device
+     *
+     * @return
+     *      The handle actually assigned to the device
+     */
+    public int register(DeviceDescription devDesc, String daId, int handle) {
+        String devId = checkId(devDesc);
+        MetricsRegistry.getDefault().recordRegistration(daId, devId);
+
+        synchronized (lockFor(devId)) {
+            // Make sure that handles assigned from now on do not collide with this one
+            int next;
+            while ((next = nextHandle.get()) <= handle) {
+                if (nextHandle.compareAndSet(next, handle + 1)) break;
+            }
+
+            Entry taken = (handle >= 0 ? byHandle.get(handle) : null);
+            if (handle < 0 || (taken != null && !devId.equals(taken.devDesc.getDeviceID()))) {
+                handle = nextHandle.getAndIncrement();
+            }
+
+            return put(new Entry(devDesc, daId, handle), byId.get(devId));
+        }
+    }
+
+    /**
+     * Remove a device from the registry, forgetting its statistics in the default
+     * {@link MetricsRegistry}.
+     *
+     * @param devId
+     *      The ID of the device to remove
+     *
+     * @return
+     *      The device removed, or null if the device was not registered
+     */
+    public DeviceDescription unregister(String devId) {
+        if (devId == null) return null;
+
+        synchronized (lockFor(devId)) {
+            Entry old = byId.remove(devId);
+            if (old == null) return null;
+
+            removeIndexes(old);
+            MetricsRegistry.getDefault().removeDevice(devId);
+            return old.devDesc;
+        }
+    }
+
+    /**
+     * Remove all the devices from the registry
+     */
+    public void clear() {
+        for (String devId : new ArrayList<String>(byId.keySet())) {
+            unregister(devId);
+        }
+    }
+
+    /**
+     * Returns the device with the specified ID
+     *
+     * @param devId
+     *      The ID of the device
+     *
+     * @return
+     *      The device, or null if it's not registered
+     */
+    public DeviceDescription getByDeviceId(String devId) {
+        Entry entry = (devId != null ? byId.get(devId) : null);
+        return entry != null ? entry.devDesc : null;
+    }
+
+    /**
+     * Returns the device with the specified physical address
+     *
+     * @param address
+     *      The address of the device
+     *
+     * @return
+     *      The device, or null if it's not registered
+     */
+    public DeviceDescription getByAddress(String address) {
+        Entry entry = (address != null ? byAddress.get(address) : null);
+        return entry != null ? entry.devDesc : null;
+    }
+
+    /**
+     * Returns the device with the specified handle
+     *
+     * @param handle
+     *      The handle of the device
+     *
+     * @return
+     *      The device, or null if no device has that handle
+     */
+    public DeviceDescription getByHandle(int handle) {
+        Entry entry = byHandle.get(handle);
+        return entry != null ? entry.devDesc : null;
+    }
+
+    /**
+     * Returns the handle assigned to the device with the specified ID
+     *
+     * @param devId
+     *      The ID of the device
+     *
+     * @return
+     *      The handle of the device, or {@link #NO_HANDLE} if it's not registered
+     */
+    public int getHandle(String devId) {
+        Entry entry = (devId != null ? byId.get(devId) : null);
+        return entry != null ? entry.handle : NO_HANDLE;
+    }
+
+    /**
+     * Returns the ID of the Device Adapter handling the device with the specified ID
+     *
+     * @param devId
+     *      The ID of the device
+     *
+     * @return
+     *      The ID of the Device Adapter, or null if unknown
+     */
+    public String getDaId(String devId) {
+        Entry entry = (devId != null ? byId.get(devId) : null);
+        return entry != null ? entry.daId : null;
+    }
+
+    /**
+     * Returns all the devices having a sensor that provides the specified property
+     *
+     * @param propertyName
+     *      The name of the property
+     *
+     * @return
+     *      A list of devices, empty if there's none
+     */
+    public List<DeviceDescription> getByPropertyName(String propertyName) {
+        return resolve(byProperty, propertyName);
+    }
+
+    /**
+     * Returns all the devices made by the specified manufacturer
+     *
+     * @param manufacturerName
+     *      The name of the manufacturer
+     *
+     * @return
+     *      A list of devices, empty if there's none
+     */
+    public List<DeviceDescription> getByManufacturer(String manufacturerName) {
+        return resolve(byManufacturer, manufacturerName);
+    }
+
+    /**
+     * Returns all the devices handled by the specified Device Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter
+     *
+     * @return
+     *      A list of devices, empty if there's none
+     */
+    public List<DeviceDescription> getByDaId(String daId) {
+        return resolve(byDaId, daId);
+    }
+
+    /**
+     * Returns all the registered devices
+     *
+     * @return
+     *      A snapshot of all the registered devices
+     */
+    public List<DeviceDescription> getAll() {
+        List<DeviceDescription> result = new ArrayList<DeviceDescription>(byId.size());
+        for (Entry entry : byId.values()) {
+            result.add(entry.devDesc);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of registered devices
+     *
+     * @return
+     *      The number of registered devices
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Store the entry and update all the indexes. Must be called holding the device lock.
+     */
+    private int put(Entry entry, Entry old) {
+        if (old != null) removeIndexes(old);
+
+        DeviceDescription devDesc = entry.devDesc;
+        byId.put(devDesc.getDeviceID(), entry);
+        byHandle.put(entry.handle, entry);
+        if (devDesc.getAddress() != null) byAddress.put(devDesc.getAddress(), entry);
+
+        String devId = devDesc.getDeviceID();
+        for (SensorDescription sensor : devDesc.getSensorList()) {
+            addToIndex(byProperty, sensor.getPropertyName(), devId);
+        }
+        addToIndex(byManufacturer, devDesc.getManufacturerName(), devId);
+        addToIndex(byDaId, entry.daId, devId);
+
+        return entry.handle;
+    }
+
+    /**
+     * Remove the entry from all the indexes but the device ID one. Must be called holding the
+     * device lock.
+     */
+    private void removeIndexes(Entry entry) {
+        DeviceDescription devDesc = entry.devDesc;
+        String devId = devDesc.getDeviceID();
+
+        byHandle.remove(entry.handle, entry);
+        if (devDesc.getAddress() != null) byAddress.remove(devDesc.getAddress(), entry);
+
+        for (SensorDescription sensor : devDesc.getSensorList()) {
+            removeFromIndex(byProperty, sensor.getPropertyName(), devId);
+        }
+        removeFromIndex(byManufacturer, devDesc.getManufacturerName(), devId);
+        removeFromIndex(byDaId, entry.daId, devId);
+    }
+
+    private List<DeviceDescription> resolve(ConcurrentMap<String, Set<String>> index, String key) {
+        Set<String> ids = (key != null ? index.get(key) : null);
+        if (ids == null) return new ArrayList<DeviceDescription>();
+
+        List<DeviceDescription> result = new ArrayList<DeviceDescription>(ids.size());
+        for (String devId : ids) {
+            DeviceDescription devDesc = getByDeviceId(devId);
+            if (devDesc != null) result.add(devDesc);
+        }
+        return result;
+    }
+
+    // Empty sets are left in place: keys are a small bounded set (properties, manufacturers, DAs)
+    // and removing them would race with writers holding a different stripe
+    private static void addToIndex(ConcurrentMap<String, Set<String>> index, String key, String devId) {
+        if (key == null) return;
+
+        Set<String> ids = index.get(key);
+        if (ids == null) {
+            Set<String> newIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ids = index.putIfAbsent(key, newIds);
+            if (ids == null) ids = newIds;
+        }
+        ids.add(devId);
+    }
+
+    private static void removeFromIndex(ConcurrentMap<String, Set<String>> index, String key, String devId) {
+        if (key == null) return;
+
+        Set<String> ids = index.get(key);
+        if (ids != null) ids.remove(devId);
+    }
+
+    private Object lockFor(String devId) {
+        return locks[(devId.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static String checkId(DeviceDescription devDesc) {
+        if (devDesc == null || devDesc.getDeviceID() == null) {
+            throw new IllegalArgumentException("The device must have a device ID");
+        }
+        return devDesc.getDeviceID();
+    }
+
+    /**
+     * A registered device together with its Device Adapter and handle
+     */
+    private static final class Entry {
+        final DeviceDescription devDesc;
+        final String daId;
+        final int handle;
+
+        Entry(DeviceDescription devDesc, String daId, int handle) {
+            this.devDesc = devDesc;
+            this.daId = daId;
+            this.handle = handle;
+        }
+    }
+
+}
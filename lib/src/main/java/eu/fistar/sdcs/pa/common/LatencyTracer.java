@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This Class traces the latency of a sample of the observations through the stages defined in
+ * {@link PAAndroidConstants.TRACE_STAGE}.<br>
+ * The Device Adapter calls {@link #begin(Observation)} when data is captured: one observation out
+ * of every sample interval starts being traced, the others are left alone. Every component
+ * stamps the observations it handles with {@link Observation#stamp(List, int)}, which costs
+ * nothing for the observations that are not traced. The last component calls
+ * {@link #record(String, List)}, which aggregates the time spent in every stage in histograms
+ * kept by Device Adapter and property.<br>
+ * Stamps are taken from the monotonic clock shared by the processes of the device, so stages
+ * spanning different processes are measured correctly.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LatencyTracer {
+
+    public static final int DEFAULT_SAMPLE_INTERVAL = 100;
+
+    private final ConcurrentMap<Key, LatencyHistogram[]> histograms = new ConcurrentHashMap<Key, LatencyHistogram[]>();
+    private volatile int sampleInterval;
+
+    // Updated without synchronization: a lost update only shifts the sample slightly
+    private int counter = 0;
+
+    /**
+     * Create a tracer sampling one observation out of {@link #DEFAULT_SAMPLE_INTERVAL}
+     */
+    public LatencyTracer() {
+        this(DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Create a tracer.
+     *
+     * @param mSampleInterval
+     *      Trace one observation out of this many, 1 to trace all of them, 0 to disable tracing
+     */
+    public LatencyTracer(int mSampleInterval) {
+        setSampleInterval(mSampleInterval);
+    }
+
+    public void setSampleInterval(int mSampleInterval) {
+        if (mSampleInterval < 0) throw new IllegalArgumentException("Sample interval cannot be negative");
+        sampleInterval = mSampleInterval;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Start tracing the observation if it falls in the sample
+     *
+     * @param obs
+     *      The observation just captured
+     *
+     * @return
+     *      True if the observation is traced, false otherwise
+     */
+    public boolean begin(Observation obs) {
+        int interval = sampleInterval;
+        if (interval == 0) return false;
+
+        if (++counter >= interval) {
+            counter = 0;
+            obs.startTrace();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start tracing the observations of a list that fall in the sample
+     *
+     * @param observations
+     *      The observations just captured
+     */
+    public void begin(List<Observation> observations) {
+        for (int i = 0; i < observations.size(); i++) {
+            begin(observations.get(i));
+        }
+    }
+
+    /**
+     * Aggregate the stamps of a traced observation. Observations not traced are ignored.
+     *
+     * @param daId
+     *      The ID of the Device Adapter that produced the observation, may be null
+     *
+     * @param obs
+     *      The observation, after the last stage has been stamped
+     */
+    public void record(String daId, Observation obs) {
+        if (!obs.isTraced()) return;
+
+        LatencyHistogram[] stages = histogramsFor(daId, obs.getPropertyName());
+        long first = obs.getTraceStamp(PAAndroidConstants.TRACE_STAGE.CAPTURED);
+        long previous = first;
+        long last = 0;
+
+        for (int stage = 1; stage < PAAndroidConstants.TRACE_STAGE.COUNT; stage++) {
+            long stamp = obs.getTraceStamp(stage);
+            if (stamp == 0) continue;
+
+            if (previous != 0) stages[stage].recordNanos(stamp - previous);
+            previous = stamp;
+            last = stamp;
+        }
+
+        if (first != 0 && last != 0) stages[PAAndroidConstants.TRACE_STAGE.CAPTURED].recordNanos(last - first);
+    }
+
+    /**
+     * Aggregate the stamps of the traced observations of a list
+     *
+     * @param daId
+     *      The ID of the Device Adapter that produced the observations, may be null
+     *
+     * @param observations
+     *      The observations, after the last stage has been stamped
+     */
+    public void record(String daId, List<Observation> observations) {
+        for (int i = 0; i < observations.size(); i++) {
+            record(daId, observations.get(i));
+        }
+    }
+
+    /**
+     * Returns the histogram of the time spent to reach a stage from the previous stamped one. For
+     * {@link PAAndroidConstants.TRACE_STAGE#CAPTURED}, returns the histogram of the time spent
+     * from capture to the last stamped stage.
+     *
+     * @param daId
+     *      The ID of the Device Adapter, may be null
+     *
+     * @param propertyName
+     *      The property name of the observations
+     *
+     * @param stage
+     *      One of the values defined in {@link PAAndroidConstants.TRACE_STAGE}
+     *
+     * @return
+     *      The histogram, or null if no traced observation was recorded for the DA and property
+     */
+    public LatencyHistogram getHistogram(String daId, String propertyName, int stage) {
+        LatencyHistogram[] stages = histograms.get(new Key(daId, propertyName));
+        return stages != null ? stages[stage] : null;
+    }
+
+    /**
+     * Returns the histogram of a stage merging all the Device Adapters and properties
+     *
+     * @param stage
+     *      One of the values defined in {@link PAAndroidConstants.TRACE_STAGE}
+     *
+     * @return
+     *      A new histogram with all the values recorded so far
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram[] stages : histograms.values()) {
+            merged.merge(stages[stage]);
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the IDs of the Device Adapters with traced observations
+     *
+     * @return
+     *      The IDs of the Device Adapters, with null for the unknown ones
+     */
+    public List<String> getDaIds() {
+        List<String> result = new ArrayList<String>();
+        for (Key key : histograms.keySet()) {
+            if (!result.contains(key.daId)) result.add(key.daId);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the properties with traced observations produced by a Device Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter, may be null
+     *
+     * @return
+     *      The property names
+     */
+    public List<String> getPropertyNames(String daId) {
+        List<String> result = new ArrayList<String>();
+        for (Key key : histograms.keySet()) {
+            if (daId != null ? daId.equals(key.daId) : key.daId == null) result.add(key.propertyName);
+        }
+        return result;
+    }
+
+    /**
+     * Forget all the latencies recorded so far
+     */
+    public void reset() {
+        histograms.clear();
+    }
+
+    private LatencyHistogram[] histogramsFor(String daId, String propertyName) {
+        Key key = new Key(daId, propertyName);
+        LatencyHistogram[] stages = histograms.get(key);
+        if (stages == null) {
+            LatencyHistogram[] newStages = new LatencyHistogram[PAAndroidConstants.TRACE_STAGE.COUNT];
+            for (int i = 0; i < newStages.length; i++) {
+                newStages[i] = new LatencyHistogram();
+            }
+            stages = histograms.putIfAbsent(key, newStages);
+            if (stages == null) stages = newStages;
+        }
+        return stages;
+    }
+
+    /**
+     * The key of the histograms, made of Device Adapter ID and property name
+     */
+    private static final class Key {
+        private final String daId;
+        private final String propertyName;
+
+        Key(String daId, String propertyName) {
+            this.daId = daId;
+            this.propertyName = propertyName != null ? propertyName : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return (daId != null ? daId.equals(other.daId) : other.daId == null) &&
+                    propertyName.equals(other.propertyName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (daId != null ? daId.hashCode() : 0) + propertyName.hashCode();
+        }
+    }
+
+}
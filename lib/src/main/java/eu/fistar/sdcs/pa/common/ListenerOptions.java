@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class contains the options negotiated when a listener is registered, either by the
+ * Protocol Adapter within a Device Adapter or by an Application within the Protocol Adapter.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ListenerOptions implements Parcelable {
+
+    private int minLogLevel = PAAndroidConstants.LOG_LEVEL.VERBOSE;   // Messages below this level are not delivered
+    private int creditObservations = 0;     // Initial credit in observations, 0 for no flow control
+    private long creditBytes = 0;           // Initial credit in bytes, 0 for no limit on bytes
+    private boolean rawData = false;        // True if the listener accepts pushRawData
+    private boolean extendedObservations = false;   // True if the listener reads waveforms and traces
+    private boolean rulesOnly = false;      // True if the listener only wants the matches of its rules
+    private boolean multiData = false;      // True if the listener accepts pushMultiData
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<ListenerOptions> CREATOR
+            = new Parcelable.Creator<ListenerOptions>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public ListenerOptions createFromParcel(Parcel in) {
+            return new ListenerOptions(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public ListenerOptions[] newArray(int size) {
+            return new ListenerOptions[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     *
+     * @throws BadParcelableException if the length of the options is not valid
+     */
+    public void readFromParcel(Parcel in) {
+        // The options are preceded by their length, so the ones added by later versions are skipped
+        int length = in.readInt();
+        if (length < 0 || length > in.dataAvail()) {
+            throw new BadParcelableException("Listener options of invalid length " + length);
+        }
+        int start = in.dataPosition();
+
+        minLogLevel = in.readInt();
+        creditObservations = in.readInt();
+        creditBytes = in.readLong();
+        rawData = in.readByte() == 1;
+        extendedObservations = in.readByte() == 1;
+        rulesOnly = in.readByte() == 1;
+        multiData = in.readByte() == 1;
+
+        in.setDataPosition(start + length);
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        int lengthPosition = out.dataPosition();
+        out.writeInt(0);
+        int start = out.dataPosition();
+
+        out.writeInt(minLogLevel);
+        out.writeInt(creditObservations);
+        out.writeLong(creditBytes);
+        out.writeByte((byte) (rawData ? 1 : 0));
+        out.writeByte((byte) (extendedObservations ? 1 : 0));
+        out.writeByte((byte) (rulesOnly ? 1 : 0));
+        out.writeByte((byte) (multiData ? 1 : 0));
+
+        int end = out.dataPosition();
+        out.setDataPosition(lengthPosition);
+        out.writeInt(end - start);
+        out.setDataPosition(end);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public ListenerOptions(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Default constructor, the resulting options are the ones used by legacy registrations
+     */
+    public ListenerOptions() {}
+
+    /**
+     * Returns the minimum level of the log messages the listener is interested in. Messages with a
+     * lower level should be discarded by the sender without even transferring them.
+     *
+     * @return
+     *      One of the values defined in {@link PAAndroidConstants.LOG_LEVEL}
+     */
+    public int getMinLogLevel() {
+        return minLogLevel;
+    }
+
+    public void setMinLogLevel(int mMinLogLevel) {
+        minLogLevel = mMinLogLevel;
+    }
+
+    /**
+     * Returns the number of observations the Device Adapter can push before waiting for more
+     * credit to be granted through grantCredit. If 0, the flow control is disabled.
+     *
+     * @return
+     *      The initial credit in observations
+     */
+    public int getCreditObservations() {
+        return creditObservations;
+    }
+
+    /**
+     * Returns the number of bytes the Device Adapter can push before waiting for more credit to be
+     * granted through grantCredit. If 0, only the number of observations is limited.
+     *
+     * @return
+     *      The initial credit in bytes
+     */
+    public long getCreditBytes() {
+        return creditBytes;
+    }
+
+    public void setCredit(int mCreditObservations, long mCreditBytes) {
+        creditObservations = mCreditObservations;
+        creditBytes = mCreditBytes;
+    }
+
+    /**
+     * States whether the listener accepts data in marshaled form through pushRawData. If so, the
+     * Protocol Adapter can forward data received in that form without decoding it.
+     *
+     * @return
+     *      True if the listener accepts pushRawData, false otherwise
+     */
+    public boolean acceptsRawData() {
+        return rawData;
+    }
+
+    public void setAcceptsRawData(boolean mRawData) {
+        rawData = mRawData;
+    }
+
+    /**
+     * States whether the listener accepts the data of many devices in a single call through
+     * pushMultiData. If not, the sender must deliver every device group with its own call, as done
+     * by {@link MultiDeviceBatch#sendTo(IProtocolAdapterListener, DeviceRegistry, ListenerOptions)}.
+     *
+     * @return
+     *      True if the listener accepts pushMultiData, false otherwise
+     */
+    public boolean acceptsMultiData() {
+        return multiData;
+    }
+
+    public void setAcceptsMultiData(boolean mMultiData) {
+        multiData = mMultiData;
+    }
+
+    /**
+     * States whether the listener can read extended observations from a Parcel, i.e. waveforms
+     * and traced observations. Listeners built with the versions of the library before 3.5.0
+     * cannot, so the sender must deliver them the observations returned by
+     * {@link Observation#withoutExtensions(java.util.List)}.
+     *
+     * @return
+     *      True if the listener accepts extended observations, false otherwise
+     */
+    public boolean acceptsExtendedObservations() {
+        return extendedObservations;
+    }
+
+    public void setAcceptsExtendedObservations(boolean mExtendedObservations) {
+        extendedObservations = mExtendedObservations;
+    }
+
+    /**
+     * States whether the Application only wants the matches of the threshold rules it added. If
+     * so, the Protocol Adapter delivers it onRuleMatched, the device events and the log messages,
+     * but none of the data pushed by the devices.
+     *
+     * @return
+     *      True if the listener only receives the matches of its rules, false otherwise
+     */
+    public boolean isRulesOnly() {
+        return rulesOnly;
+    }
+
+    public void setRulesOnly(boolean mRulesOnly) {
+        rulesOnly = mRulesOnly;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Min Log Level: "+minLogLevel+"\nCredit Observations: "+creditObservations+
+                "\nCredit Bytes: "+creditBytes+"\nRaw Data: "+rawData+
+                "\nExtended Observations: "+extendedObservations+"\nRules Only: "+rulesOnly+
+                "\nMulti Data: "+multiData+"\n";
+    }
+
+}
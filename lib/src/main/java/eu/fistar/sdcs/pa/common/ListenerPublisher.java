@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.List;
+
+/**
+ * This Class implements IProtocolAdapterListener exposing the calls of the Protocol Adapter as
+ * four demand-driven streams: data, device lifecycle events, log records and rule matches.<br>
+ * Register it with the Protocol Adapter like any other listener and subscribe to the streams
+ * through {@link ReactiveFlow.Subscriber}s. Data and device events are never dropped: when a
+ * Subscriber falls behind, the Binder thread delivering the call waits, and the flow control of
+ * the Protocol Adapter slows down the Device Adapters. Rule matches are delivered through oneway
+ * calls, that the Protocol Adapter never waits for, so waiting would only fill the Binder buffer
+ * of the Application: like log records, that are less important, the oldest ones are dropped
+ * instead.<br>
+ * Traced observations are stamped with the {@link PAAndroidConstants.TRACE_STAGE#APP_DELIVERED}
+ * stage as soon as they are received, except for the ones received in marshaled form through
+ * pushRawData, that are only decoded on demand.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ListenerPublisher extends IProtocolAdapterListener.Stub {
+
+    private final StreamPublisher<DataEvent> data;
+    private final StreamPublisher<DeviceEvent> deviceEvents;
+    private final StreamPublisher<LogRecord> logRecords;
+    private final StreamPublisher<RuleMatch> ruleMatches;
+
+    // Estimate the size of the items charged to the MemoryBudget
+    private static final StreamPublisher.Sizer<DataEvent> DATA_SIZER = new StreamPublisher.Sizer<DataEvent>() {
+        @Override
+        public long sizeOf(DataEvent item) {
+            return item.payload != null ? item.payload.getPayloadSize() : Observation.estimateParcelSize(item.observations);
+        }
+    };
+    private static final StreamPublisher.Sizer<LogRecord> LOG_SIZER = new StreamPublisher.Sizer<LogRecord>() {
+        @Override
+        public long sizeOf(LogRecord item) {
+            return 4 + 8 + Observation.stringSize(item.daId) + Observation.stringSize(item.message);
+        }
+    };
+    private static final StreamPublisher.Sizer<RuleMatch> RULE_MATCH_SIZER = new StreamPublisher.Sizer<RuleMatch>() {
+        @Override
+        public long sizeOf(RuleMatch item) {
+            return 8 + Observation.estimateParcelSize(item.observations);
+        }
+    };
+
+    /**
+     * Default constructor, every stream buffers up to {@link StreamPublisher#DEFAULT_BUFFER_SIZE}
+     * items for every Subscriber. Buffered data, log records and rule matches are charged to the
+     * default {@link MemoryBudget}, that can shed the log records and the rule matches.
+     */
+    public ListenerPublisher() {
+        data = new StreamPublisher<DataEvent>(StreamPublisher.OVERFLOW_BLOCK, "ListenerPublisher", DATA_SIZER,
+                MemoryBudget.SHED_NORMAL);
+        // Device events are few and small, and bounded by the buffer size
+        deviceEvents = new StreamPublisher<DeviceEvent>(StreamPublisher.OVERFLOW_BLOCK);
+        logRecords = new StreamPublisher<LogRecord>(StreamPublisher.OVERFLOW_DROP_OLDEST, "ListenerPublisher", LOG_SIZER,
+                MemoryBudget.SHED_LOGS);
+        ruleMatches = new StreamPublisher<RuleMatch>(StreamPublisher.OVERFLOW_DROP_OLDEST,
+                "ListenerPublisher", RULE_MATCH_SIZER, MemoryBudget.SHED_NORMAL);
+    }
+
+    /**
+     * Returns the stream of the data pushed by the Protocol Adapter, one item per push
+     *
+     * @return
+     *      The stream of data
+     */
+    public ReactiveFlow.Publisher<DataEvent> getData() {
+        return data;
+    }
+
+    /**
+     * Returns the stream of device lifecycle events and Device Adapter connections
+     *
+     * @return
+     *      The stream of events
+     */
+    public ReactiveFlow.Publisher<DeviceEvent> getDeviceEvents() {
+        return deviceEvents;
+    }
+
+    /**
+     * Returns the stream of log messages, batches are split in single records
+     *
+     * @return
+     *      The stream of log records
+     */
+    public ReactiveFlow.Publisher<LogRecord> getLogRecords() {
+        return logRecords;
+    }
+
+    /**
+     * Returns the stream of the matches of the threshold rules added to the Protocol Adapter
+     *
+     * @return
+     *      The stream of rule matches
+     */
+    public ReactiveFlow.Publisher<RuleMatch> getRuleMatches() {
+        return ruleMatches;
+    }
+
+    /**
+     * Complete all the streams, i.e. because the Application is unbinding from the Protocol
+     * Adapter
+     */
+    public void close() {
+        data.close();
+        deviceEvents.close();
+        logRecords.close();
+        ruleMatches.close();
+    }
+
+    @Override
+    public void registerDevice(DeviceDescription devDesc, String daId) {
+        deviceEvents.submit(new DeviceEvent(DeviceEvent.TYPE_REGISTERED, devDesc, daId));
+    }
+
+    @Override
+    public void pushData(List<Observation> observations, DeviceDescription devDesc) {
+        Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.APP_DELIVERED);
+        data.submit(new DataEvent(observations, devDesc, PAAndroidConstants.PRIORITY.NORMAL, null));
+    }
+
+    @Override
+    public void deregisterDevice(DeviceDescription devDesc) {
+        deviceEvents.submit(new DeviceEvent(DeviceEvent.TYPE_DEREGISTERED, devDesc, null));
+    }
+
+    @Override
+    public void registerDeviceProperties(DeviceDescription devDesc) {
+        deviceEvents.submit(new DeviceEvent(DeviceEvent.TYPE_PROPERTIES_REGISTERED, devDesc, null));
+    }
+
+    @Override
+    public void deviceDisconnected(DeviceDescription devDesc) {
+        deviceEvents.submit(new DeviceEvent(DeviceEvent.TYPE_DISCONNECTED, devDesc, null));
+    }
+
+    @Override
+    public void log(int logLevel, String daId, String message) {
+        logRecords.submit(new LogRecord(logLevel, System.currentTimeMillis(), daId, message));
+    }
+
+    @Override
+    public void onDAConnected(String daId) {
+        deviceEvents.submit(new DeviceEvent(DeviceEvent.TYPE_DA_CONNECTED, null, daId));
+    }
+
+    @Override
+    public void logBatch(LogBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            logRecords.submit(new LogRecord(batch.getLevel(i), batch.getTimestamp(i), batch.getDaId(i),
+                    batch.getMessage(i)));
+        }
+    }
+
+    @Override
+    public void pushDataWithPriority(List<Observation> observations, DeviceDescription devDesc, int priority) {
+        Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.APP_DELIVERED);
+        data.submit(new DataEvent(observations, devDesc, priority, null));
+    }
+
+    @Override
+    public void pushRawData(ObservationPayload payload) {
+        data.submit(new DataEvent(null, null, payload.getPriority(), payload));
+    }
+
+    /**
+     * Split the batch by device into one data event per group. The devices whose description is
+     * not included in the batch are passed as placeholders with the device ID only, see
+     * {@link MultiDeviceBatch#resolveDevice(int, DeviceRegistry)}
+     */
+    @Override
+    public void pushMultiData(MultiDeviceBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Observation.stamp(batch.getObservations(i), PAAndroidConstants.TRACE_STAGE.APP_DELIVERED);
+            data.submit(new DataEvent(batch.getObservations(i), batch.resolveDevice(i, null), batch.getPriority(), null));
+        }
+    }
+
+    @Override
+    public void onRuleMatched(long ruleId, List<Observation> observations, DeviceDescription devDesc) {
+        Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.APP_DELIVERED);
+        ruleMatches.submit(new RuleMatch(ruleId, observations, devDesc));
+    }
+
+    /**
+     * The data of a push. Data received in marshaled form is only decoded when it's accessed.
+     */
+    public static final class DataEvent {
+        private final List<Observation> observations;
+        private final DeviceDescription devDesc;
+        private final int priority;
+        private final ObservationPayload payload;
+
+        DataEvent(List<Observation> observations, DeviceDescription devDesc, int priority, ObservationPayload payload) {
+            this.observations = observations;
+            this.devDesc = devDesc;
+            this.priority = priority;
+            this.payload = payload;
+        }
+
+        /**
+         * Returns the observations pushed, decoding them if they were received in marshaled form
+         *
+         * @return
+         *      The observations
+         */
+        public List<Observation> getObservations() {
+            return payload != null ? payload.getObservations() : observations;
+        }
+
+        /**
+         * Returns the device who supplied the data
+         *
+         * @return
+         *      The device, a placeholder with the device ID only for the devices of a
+         *      {@link MultiDeviceBatch} whose description was not included
+         */
+        public DeviceDescription getDevice() {
+            return payload != null ? payload.getDevice() : devDesc;
+        }
+
+        /**
+         * Returns the priority of the data
+         *
+         * @return
+         *      One of the values defined in {@link PAAndroidConstants.PRIORITY}, NORMAL for pushData
+         */
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * A change in the lifecycle of a device or the connection of a Device Adapter
+     */
+    public static final class DeviceEvent {
+        public static final int TYPE_REGISTERED = 0;
+        public static final int TYPE_PROPERTIES_REGISTERED = 1;
+        public static final int TYPE_DISCONNECTED = 2;
+        public static final int TYPE_DEREGISTERED = 3;
+        public static final int TYPE_DA_CONNECTED = 4;
+
+        private final int type;
+        private final DeviceDescription devDesc;
+        private final String daId;
+
+        DeviceEvent(int type, DeviceDescription devDesc, String daId) {
+            this.type = type;
+            this.devDesc = devDesc;
+            this.daId = daId;
+        }
+
+        /**
+         * Returns the type of the event
+         *
+         * @return
+         *      One of the TYPE constants
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * Returns the device the event is about
+         *
+         * @return
+         *      The device, null for {@link #TYPE_DA_CONNECTED}
+         */
+        public DeviceDescription getDevice() {
+            return devDesc;
+        }
+
+        /**
+         * Returns the ID of the Device Adapter
+         *
+         * @return
+         *      The ID of the Device Adapter, only available for {@link #TYPE_REGISTERED} and
+         *      {@link #TYPE_DA_CONNECTED}
+         */
+        public String getDaId() {
+            return daId;
+        }
+    }
+
+    /**
+     * A log message
+     */
+    public static final class LogRecord {
+        private final int level;
+        private final long timestamp;
+        private final String daId;
+        private final String message;
+
+        LogRecord(int level, long timestamp, String daId, String message) {
+            this.level = level;
+            this.timestamp = timestamp;
+            this.daId = daId;
+            this.message = message;
+        }
+
+        /**
+         * Returns the level of the message
+         *
+         * @return
+         *      One of the values defined in {@link PAAndroidConstants.LOG_LEVEL}
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Returns the time the message was logged, or received for the messages not sent in a batch
+         *
+         * @return
+         *      The time in milliseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the ID of the Device Adapter who logged the message
+         *
+         * @return
+         *      The ID of the Device Adapter, may be null for the messages of the Protocol Adapter
+         */
+        public String getDaId() {
+            return daId;
+        }
+
+        /**
+         * Returns the text of the message
+         *
+         * @return
+         *      The message
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * The observations of a device that matched a threshold rule
+     */
+    public static final class RuleMatch {
+        private final long ruleId;
+        private final List<Observation> observations;
+        private final DeviceDescription devDesc;
+
+        RuleMatch(long ruleId, List<Observation> observations, DeviceDescription devDesc) {
+            this.ruleId = ruleId;
+            this.observations = observations;
+            this.devDesc = devDesc;
+        }
+
+        /**
+         * Returns the ID of the rule, as returned by addThresholdRule
+         *
+         * @return
+         *      The ID of the rule
+         */
+        public long getRuleId() {
+            return ruleId;
+        }
+
+        /**
+         * Returns the observations of the push that matched the rule
+         *
+         * @return
+         *      The observations, in the order they were pushed
+         */
+        public List<Observation> getObservations() {
+            return observations;
+        }
+
+        /**
+         * Returns the device who supplied the observations
+         *
+         * @return
+         *      The device
+         */
+        public DeviceDescription getDevice() {
+            return devDesc;
+        }
+    }
+
+}
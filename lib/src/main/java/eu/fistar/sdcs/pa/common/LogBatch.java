@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class contains a batch of log messages transferred with a single call, together with the
+ * number of messages dropped by the rate limiter of each Device Adapter since the previous batch.
+ * Messages are stored in parallel arrays to keep the marshaling cheap.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LogBatch implements Parcelable {
+
+    private int[] levels;               // The log levels of the messages
+    private long[] timestamps;          // The time the messages were generated
+    private String[] daIds;             // The IDs of the Device Adapters that generated the messages
+    private String[] messages;          // The content of the messages
+    private String[] droppedDaIds;      // The IDs of the Device Adapters that had messages dropped
+    private int[] droppedCounts;        // The number of messages dropped for each Device Adapter
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<LogBatch> CREATOR
+            = new Parcelable.Creator<LogBatch>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public LogBatch createFromParcel(Parcel in) {
+            return new LogBatch(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public LogBatch[] newArray(int size) {
+            return new LogBatch[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        levels = in.createIntArray();
+        timestamps = in.createLongArray();
+        daIds = in.createStringArray();
+        messages = in.createStringArray();
+        droppedDaIds = in.createStringArray();
+        droppedCounts = in.createIntArray();
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeIntArray(levels);
+        out.writeLongArray(timestamps);
+        out.writeStringArray(daIds);
+        out.writeStringArray(messages);
+        out.writeStringArray(droppedDaIds);
+        out.writeIntArray(droppedCounts);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public LogBatch(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Default constructor, creates an empty batch
+     */
+    public LogBatch() {
+        this(new int[0], new long[0], new String[0], new String[0], new String[0], new int[0]);
+    }
+
+    /**
+     * The Constructor normally used to pass all the parameters. The arrays are not copied.
+     *
+     * @param mLevels The log levels of the messages
+     * @param mTimestamps The time the messages were generated
+     * @param mDaIds The IDs of the Device Adapters that generated the messages
+     * @param mMessages The content of the messages
+     * @param mDroppedDaIds The IDs of the Device Adapters that had messages dropped
+     * @param mDroppedCounts The number of messages dropped for each Device Adapter
+     */
+    public LogBatch(int[] mLevels, long[] mTimestamps, String[] mDaIds, String[] mMessages,
+                    String[] mDroppedDaIds, int[] mDroppedCounts) {
+        if (mLevels.length != mTimestamps.length || mLevels.length != mDaIds.length ||
+                mLevels.length != mMessages.length || mDroppedDaIds.length != mDroppedCounts.length) {
+            throw new IllegalArgumentException("Arrays must have the same length");
+        }
+
+        levels = mLevels;
+        timestamps = mTimestamps;
+        daIds = mDaIds;
+        messages = mMessages;
+        droppedDaIds = mDroppedDaIds;
+        droppedCounts = mDroppedCounts;
+    }
+
+    /**
+     * Returns the number of messages in the batch
+     *
+     * @return
+     *      The number of messages
+     */
+    public int size() {
+        return levels != null ? levels.length : 0;
+    }
+
+    /**
+     * Returns the log level of a message
+     *
+     * @param i
+     *      The index of the message
+     *
+     * @return
+     *      The log level of the message
+     */
+    public int getLevel(int i) {
+        return levels[i];
+    }
+
+    /**
+     * Returns the time a message was generated
+     *
+     * @param i
+     *      The index of the message
+     *
+     * @return
+     *      The timestamp of the message, in milliseconds
+     */
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * Returns the ID of the Device Adapter that generated a message
+     *
+     * @param i
+     *      The index of the message
+     *
+     * @return
+     *      The ID of the Device Adapter
+     */
+    public String getDaId(int i) {
+        return daIds[i];
+    }
+
+    /**
+     * Returns the content of a message
+     *
+     * @param i
+     *      The index of the message
+     *
+     * @return
+     *      The content of the message
+     */
+    public String getMessage(int i) {
+        return messages[i];
+    }
+
+    /**
+     * Returns the IDs of the Device Adapters that had messages dropped since the previous batch
+     *
+     * @return
+     *      The IDs of the Device Adapters, parallel to {@link #getDroppedCounts()}
+     */
+    public String[] getDroppedDaIds() {
+        return droppedDaIds != null ? droppedDaIds : new String[0];
+    }
+
+    /**
+     * Returns the number of messages dropped for each Device Adapter since the previous batch
+     *
+     * @return
+     *      The number of messages dropped, parallel to {@link #getDroppedDaIds()}
+     */
+    public int[] getDroppedCounts() {
+        return droppedCounts != null ? droppedCounts : new int[0];
+    }
+
+    /**
+     * Returns the total number of messages dropped since the previous batch
+     *
+     * @return
+     *      The number of messages dropped
+     */
+    public int getTotalDropped() {
+        int total = 0;
+        for (int count : getDroppedCounts()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Messages: "+size()+"\nDropped: "+getTotalDropped()+"\n";
+    }
+
+}
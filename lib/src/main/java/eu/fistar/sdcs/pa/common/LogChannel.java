@@ -0,0 +1,490 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This Class implements the sender side of the log channel between Device Adapters, Protocol
+ * Adapter and Applications.<br>
+ * Messages below the minimum level negotiated upon registration (see {@link ListenerOptions}) are
+ * discarded immediately. The others are buffered and transferred in batches with a single oneway
+ * call, either when the buffer is full or when the flush interval expires. Every Device Adapter
+ * can send at most a fixed number of messages per second: the exceeding ones are dropped and
+ * reported in the next batch. Error messages are never rate limited.<br>
+ * Buffered messages are charged to the default {@link MemoryBudget}: when it's exceeded, verbose and
+ * info messages are discarded before any data is shed.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LogChannel {
+
+    // Default values
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_FLUSH_INTERVAL = 500;     // Milliseconds
+    public static final int DEFAULT_MAX_RATE = 50;             // Messages per second per DA
+
+    // Maximum number of batches waiting to be sent before new messages are dropped
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    // Maximum time close() waits for the batches already handed over to the sender thread
+    private static final long CLOSE_TIMEOUT = 5000;            // Milliseconds
+
+    /**
+     * The destination of the batches
+     */
+    public interface Sink {
+
+        /**
+         * Send a batch of log messages
+         *
+         * @param batch
+         *      The batch to send
+         */
+        void sendLogBatch(LogBatch batch) throws RemoteException;
+    }
+
+    private final Sink sink;
+    private final int maxBatchSize;
+    private final int maxRate;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+    private final AtomicInteger pendingBatches = new AtomicInteger(0);
+    private final Runnable sendBuffered = new Runnable() {
+        @Override
+        public void run() {
+            sendBuffered();
+        }
+    };
+    private volatile int minLevel;
+    private volatile boolean closed = false;
+
+    // Buffer of the messages not yet sent, guarded by this
+    private int count = 0;
+    private int[] levels;
+    private long[] timestamps;
+    private String[] daIds;
+    private String[] messages;
+    private final Map<String, Integer> dropped = new HashMap<String, Integer>();
+
+    // Frees memory discarding the least important messages
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            if (level != MemoryBudget.SHED_LOGS) return 0;
+
+            long before = account.getUsage();
+            discardBuffered(PAAndroidConstants.LOG_LEVEL.INFO);
+            return before - account.getUsage();
+        }
+    };
+    private final MemoryBudget.Account account = MemoryBudget.getDefault().register("LogChannel", shedder);
+
+    /**
+     * Create a log channel with default batch size, flush interval and rate.
+     *
+     * @param mSink
+     *      The destination of the batches
+     *
+     * @param mMinLevel
+     *      The minimum log level of the messages to transfer
+     */
+    public LogChannel(Sink mSink, int mMinLevel) {
+        this(mSink, mMinLevel, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * Create a log channel.
+     *
+     * @param mSink
+     *      The destination of the batches
+     *
+     * @param mMinLevel
+     *      The minimum log level of the messages to transfer
+     *
+     * @param mMaxBatchSize
+     *      The maximum number of messages in a batch
+     *
+     * @param flushInterval
+     *      The maximum time a message waits in the buffer, in milliseconds
+     *
+     * @param mMaxRate
+     *      The maximum number of messages per second accepted from every Device Adapter
+     */
+    public LogChannel(Sink mSink, int mMinLevel, int mMaxBatchSize, long flushInterval, int mMaxRate) {
+        if (mSink == null) throw new IllegalArgumentException("Sink cannot be null");
+        if (mMaxBatchSize <= 0 || flushInterval <= 0 || mMaxRate <= 0) {
+            throw new IllegalArgumentException("Batch size, flush interval and rate must be positive");
+        }
+
+        sink = mSink;
+        minLevel = mMinLevel;
+        maxBatchSize = mMaxBatchSize;
+        maxRate = mMaxRate;
+        allocateBuffer();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LogChannel");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(sendBuffered, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a Sink delivering the batches to a Protocol Adapter
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(final IDeviceAdapterListener listener) {
+        return new Sink() {
+            @Override
+            public void sendLogBatch(LogBatch batch) throws RemoteException {
+                listener.logBatch(batch);
+            }
+        };
+    }
+
+    /**
+     * Returns a Sink delivering the batches to an Application
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(final IProtocolAdapterListener listener) {
+        return new Sink() {
+            @Override
+            public void sendLogBatch(LogBatch batch) throws RemoteException {
+                listener.logBatch(batch);
+            }
+        };
+    }
+
+    /**
+     * Enqueue a log message. This method never blocks on the remote side.
+     *
+     * @param logLevel The log level of the message
+     * @param daId The ID of the Device Adapter that generated the message
+     * @param message The content of the message
+     */
+    public void log(int logLevel, String daId, String message) {
+        // Filter at the source, before doing anything else
+        if (logLevel < minLevel || closed) return;
+
+        if (logLevel < PAAndroidConstants.LOG_LEVEL.ERROR && !limiterFor(daId).tryAcquire()) {
+            synchronized (this) {
+                addDropped(daId, 1);
+            }
+            return;
+        }
+
+        LogBatch full = null;
+        synchronized (this) {
+            levels[count] = logLevel;
+            timestamps[count] = System.currentTimeMillis();
+            daIds[count] = daId;
+            messages[count] = message;
+            count++;
+            account.add(messageSize(daId, message));
+
+            if (count == maxBatchSize) full = cutBatch();
+        }
+
+        if (full != null) submit(full);
+    }
+
+    /**
+     * Send immediately all the buffered messages. The batch is sent by the sender thread, after the
+     * ones already waiting, and this method returns when it has been delivered.
+     */
+    public void flush() {
+        if (closed) return;
+
+        Future<?> sent;
+        try {
+            sent = scheduler.submit(sendBuffered);
+        } catch (RejectedExecutionException e) {
+            // The channel is being closed, close() sends the buffered messages
+            return;
+        }
+
+        try {
+            sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot flush the log messages", e.getCause());
+        }
+    }
+
+    /**
+     * Discard the buffered messages up to a log level, i.e. to free memory. The messages discarded
+     * are reported as dropped in the next batch.
+     *
+     * @param maxLevel
+     *      The highest log level of the messages to discard
+     *
+     * @return
+     *      The number of messages discarded
+     */
+    public int discardBuffered(int maxLevel) {
+        long freed = 0;
+        int kept = 0;
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                if (levels[i] <= maxLevel) {
+                    addDropped(daIds[i], 1);
+                    freed += messageSize(daIds[i], messages[i]);
+                    continue;
+                }
+
+                levels[kept] = levels[i];
+                timestamps[kept] = timestamps[i];
+                daIds[kept] = daIds[i];
+                messages[kept] = messages[i];
+                kept++;
+            }
+
+            for (int i = kept; i < count; i++) {
+                daIds[i] = null;
+                messages[i] = null;
+            }
+            int discarded = count - kept;
+            count = kept;
+
+            account.release(freed);
+            return discarded;
+        }
+    }
+
+    /**
+     * Change the minimum log level, i.e. because the listener has been registered again
+     *
+     * @param mMinLevel
+     *      The minimum log level of the messages to transfer
+     */
+    public void setMinLevel(int mMinLevel) {
+        minLevel = mMinLevel;
+    }
+
+    /**
+     * Returns the minimum log level of the messages transferred
+     *
+     * @return
+     *      The minimum log level
+     */
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    /**
+     * Send the buffered messages and release the sender thread. The batches already handed over to
+     * the sender thread are sent first, waiting for them at most five seconds.
+     * Messages logged after this call are discarded.
+     */
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "The log channel is still sending after " + CLOSE_TIMEOUT + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // No other thread is sending now
+        sendBuffered();
+        account.close();
+    }
+
+    /**
+     * Hand the batch over to the sender thread, dropping it if too many are already waiting
+     */
+    private void submit(final LogBatch batch) {
+        if (pendingBatches.incrementAndGet() > MAX_PENDING_BATCHES || scheduler.isShutdown()) {
+            pendingBatches.decrementAndGet();
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    addDropped(batch.getDaId(i), 1);
+                }
+            }
+            account.release(batchSize(batch));
+            return;
+        }
+
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                pendingBatches.decrementAndGet();
+                send(batch);
+            }
+        });
+    }
+
+    /**
+     * Send the buffered messages, if any, on the calling thread
+     */
+    private void sendBuffered() {
+        LogBatch batch;
+        synchronized (this) {
+            if (count == 0 && dropped.isEmpty()) return;
+            batch = cutBatch();
+        }
+        send(batch);
+    }
+
+    private void send(LogBatch batch) {
+        try {
+            sink.sendLogBatch(batch);
+        } catch (RemoteException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot deliver " + batch.size() + " log messages", e);
+        } finally {
+            account.release(batchSize(batch));
+        }
+    }
+
+    /**
+     * Build a batch with the buffered messages and the dropped counters. Must be called holding
+     * the lock.
+     */
+    private LogBatch cutBatch() {
+        int[] batchLevels = new int[count];
+        long[] batchTimestamps = new long[count];
+        String[] batchDaIds = new String[count];
+        String[] batchMessages = new String[count];
+        System.arraycopy(levels, 0, batchLevels, 0, count);
+        System.arraycopy(timestamps, 0, batchTimestamps, 0, count);
+        System.arraycopy(daIds, 0, batchDaIds, 0, count);
+        System.arraycopy(messages, 0, batchMessages, 0, count);
+
+        String[] droppedDaIds = new String[dropped.size()];
+        int[] droppedCounts = new int[dropped.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : dropped.entrySet()) {
+            droppedDaIds[i] = entry.getKey();
+            droppedCounts[i] = entry.getValue();
+            i++;
+        }
+        dropped.clear();
+
+        // Release the references to the messages already copied
+        for (int j = 0; j < count; j++) {
+            daIds[j] = null;
+            messages[j] = null;
+        }
+        count = 0;
+
+        return new LogBatch(batchLevels, batchTimestamps, batchDaIds, batchMessages, droppedDaIds, droppedCounts);
+    }
+
+    private void allocateBuffer() {
+        count = 0;
+        levels = new int[maxBatchSize];
+        timestamps = new long[maxBatchSize];
+        daIds = new String[maxBatchSize];
+        messages = new String[maxBatchSize];
+    }
+
+    // The memory taken by a buffered message, as charged to the budget
+    private static long messageSize(String daId, String message) {
+        return 4 + 8 + Observation.stringSize(daId) + Observation.stringSize(message);
+    }
+
+    private static long batchSize(LogBatch batch) {
+        long size = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            size += messageSize(batch.getDaId(i), batch.getMessage(i));
+        }
+        return size;
+    }
+
+    // Must be called holding the lock
+    private void addDropped(String daId, int n) {
+        String key = (daId != null ? daId : "");
+        Integer old = dropped.get(key);
+        dropped.put(key, old != null ? old + n : n);
+    }
+
+    private RateLimiter limiterFor(String daId) {
+        String key = (daId != null ? daId : "");
+        RateLimiter limiter = limiters.get(key);
+        if (limiter == null) {
+            RateLimiter newLimiter = new RateLimiter(maxRate);
+            limiter = limiters.putIfAbsent(key, newLimiter);
+            if (limiter == null) limiter = newLimiter;
+        }
+        return limiter;
+    }
+
+    /**
+     * Token bucket refilled with a fixed number of tokens per second
+     */
+    private static final class RateLimiter {
+        private final int rate;
+        private double tokens;
+        private long lastRefill;
+
+        RateLimiter(int rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class keeps track of the memory taken by the data buffered in the process and enforces a
+ * budget on it.<br>
+ * Every buffering component of the library (log channels, dispatch lanes, flow control and resend
+ * buffers, ordered listener queues and stream buffers) registers an {@link Account} with the
+ * process-wide instance returned by {@link #getDefault()}, and charges it with the estimated
+ * marshaled size of the data it buffers.
+ * When the total goes over the budget, a background thread asks the components to shed data,
+ * in order of importance: first the verbose and info log messages, then bulk data, then normal
+ * data, until the usage falls below the low watermark. Alarms are never shed.<br>
+ * Charging an account never blocks and never sheds on the calling thread, so a component can do it
+ * while holding its own locks.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class MemoryBudget {
+
+    // Shedding levels, in the order they are applied
+    public static final int SHED_LOGS = 0;
+    public static final int SHED_BULK = 1;
+    public static final int SHED_NORMAL = 2;
+    private static final int SHED_LEVELS = 3;
+
+    // Shedding stops when the usage falls below this fraction of the budget
+    public static final double LOW_WATERMARK = 0.9;
+
+    private static final MemoryBudget DEFAULT = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Frees memory on request of the budget
+     */
+    public interface Shedder {
+
+        /**
+         * Drop or degrade buffered data of a shedding level, releasing the memory from the account
+         *
+         * @param level
+         *      The kind of data to shed, one of the SHED constants
+         *
+         * @param bytes
+         *      The number of bytes the budget would like to free
+         *
+         * @return
+         *      The number of bytes actually freed
+         */
+        long shed(int level, long bytes);
+    }
+
+    private final AtomicLong usage = new AtomicLong(0);
+    private final AtomicLong peakUsage = new AtomicLong(0);
+    private final AtomicLong[] shedBytes = new AtomicLong[SHED_LEVELS];
+    private final CopyOnWriteArrayList<Account> accounts = new CopyOnWriteArrayList<Account>();
+    private volatile long budget;
+
+    // State of the shedding thread, guarded by this
+    private Thread shedder;
+    private boolean shedRequested = false;
+
+    /**
+     * Returns the process-wide budget, initially a quarter of the maximum heap size
+     *
+     * @return
+     *      The default budget
+     */
+    public static MemoryBudget getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Create a budget
+     *
+     * @param mBudget
+     *      The maximum number of bytes of buffered data
+     */
+    public MemoryBudget(long mBudget) {
+        setBudget(mBudget);
+        for (int i = 0; i < SHED_LEVELS; i++) {
+            shedBytes[i] = new AtomicLong(0);
+        }
+    }
+
+    /**
+     * Register a buffering component. The budget only keeps a weak reference to the Shedder, so
+     * the component must keep a strong one: if the component is garbage collected without closing
+     * its account, the account is closed automatically.
+     *
+     * @param name
+     *      The name of the component, used for statistics
+     *
+     * @param shedder
+     *      Frees the memory of the component on request
+     *
+     * @return
+     *      The account to charge with the data buffered by the component
+     */
+    public Account register(String name, Shedder shedder) {
+        // Close the accounts of the components collected in the meantime
+        for (Account account : accounts) {
+            if (account.shedder.get() == null) account.close();
+        }
+
+        Account account = new Account(name, shedder);
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * Change the budget. If the usage is already over it, shedding starts immediately.
+     *
+     * @param mBudget
+     *      The maximum number of bytes of buffered data
+     */
+    public void setBudget(long mBudget) {
+        if (mBudget <= 0) throw new IllegalArgumentException("Budget must be positive");
+        budget = mBudget;
+        if (usage.get() > mBudget) requestShedding();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the estimated number of bytes of buffered data
+     *
+     * @return
+     *      The current usage, in bytes
+     */
+    public long getUsage() {
+        return usage.get();
+    }
+
+    /**
+     * Returns the maximum usage since the budget was created
+     *
+     * @return
+     *      The peak usage, in bytes
+     */
+    public long getPeakUsage() {
+        return peakUsage.get();
+    }
+
+    /**
+     * Returns the number of bytes freed at a shedding level
+     *
+     * @param level
+     *      One of the SHED constants
+     *
+     * @return
+     *      The number of bytes shed
+     */
+    public long getShedBytes(int level) {
+        return shedBytes[level].get();
+    }
+
+    /**
+     * Returns the usage of every registered component
+     *
+     * @return
+     *      The usage in bytes, by name of the component
+     */
+    public Map<String, Long> getUsageByAccount() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Account account : accounts) {
+            Long old = result.get(account.name);
+            result.put(account.name, account.getUsage() + (old != null ? old : 0));
+        }
+        return result;
+    }
+
+    private void charge(long bytes) {
+        long total = usage.addAndGet(bytes);
+        if (bytes <= 0) return;
+
+        long peak;
+        while ((peak = peakUsage.get()) < total) {
+            if (peakUsage.compareAndSet(peak, total)) break;
+        }
+        if (total > budget) requestShedding();
+    }
+
+    private synchronized void requestShedding() {
+        shedRequested = true;
+        if (shedder == null) {
+            shedder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    shedLoop();
+                }
+            }, "MemoryBudget");
+            shedder.setDaemon(true);
+            shedder.start();
+        }
+        notifyAll();
+    }
+
+    private void shedLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!shedRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        shedder = null;
+                        return;
+                    }
+                }
+                shedRequested = false;
+            }
+            shed();
+        }
+    }
+
+    private void shed() {
+        long target = (long) (budget * LOW_WATERMARK);
+        long before = usage.get();
+
+        for (int level = 0; level < SHED_LEVELS && usage.get() > target; level++) {
+            for (Account account : accounts) {
+                long excess = usage.get() - target;
+                if (excess <= 0) break;
+
+                Shedder shedder = account.shedder.get();
+                if (shedder == null) {
+                    account.close();
+                    continue;
+                }
+
+                try {
+                    long freed = shedder.shed(level, excess);
+                    if (freed > 0) shedBytes[level].addAndGet(freed);
+                } catch (RuntimeException e) {
+                    Log.e(PAAndroidConstants.PA_LOGTAG, "Error shedding data of " + account.name, e);
+                }
+            }
+        }
+
+        long after = usage.get();
+        if (after < before) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Memory budget exceeded, shed " + (before - after) +
+                    " bytes of buffered data");
+        }
+        if (after > budget) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Memory budget still exceeded after shedding: " + after +
+                    " bytes, only alarms left");
+        }
+    }
+
+    /**
+     * The memory taken by a component. Components charge their account when they buffer data and
+     * release it when the data leaves the buffer.
+     */
+    public final class Account {
+        private final String name;
+        private final WeakReference<Shedder> shedder;
+        private final AtomicLong accountUsage = new AtomicLong(0);
+        private volatile boolean closed = false;
+
+        Account(String name, Shedder shedder) {
+            this.name = name;
+            this.shedder = new WeakReference<Shedder>(shedder);
+        }
+
+        /**
+         * Charge the account with data entering a buffer
+         *
+         * @param bytes
+         *      The estimated size of the data, in bytes
+         */
+        public void add(long bytes) {
+            if (closed || bytes == 0) return;
+            accountUsage.addAndGet(bytes);
+            charge(bytes);
+
+            // A close racing with the charge may have drained the account before it, drain it again
+            if (closed) drain();
+        }
+
+        /**
+         * Release data leaving a buffer
+         *
+         * @param bytes
+         *      The estimated size of the data, in bytes, as charged by {@link #add(long)}
+         */
+        public void release(long bytes) {
+            add(-bytes);
+        }
+
+        public long getUsage() {
+            return accountUsage.get();
+        }
+
+        /**
+         * Release all the memory charged and unregister the component
+         */
+        public void close() {
+            if (closed) return;
+            closed = true;
+            accounts.remove(this);
+            drain();
+        }
+
+        private void drain() {
+            usage.addAndGet(-accountUsage.getAndSet(0));
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class collects the runtime statistics of a Protocol Adapter or a Device Adapter.<br>
+ * Metrics are recorded without locks on the hot paths (pushData, device registration, command
+ * execution) and aggregated only when {@link #getStatistics()} is called, so collecting them has
+ * a negligible cost. The components of this library record into the process-wide instance
+ * returned by {@link #getDefault()}.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Metrics total = new Metrics();
+    private final ConcurrentMap<String, Metrics> byDaId = new ConcurrentHashMap<String, Metrics>();
+    private final ConcurrentMap<String, Metrics> byDeviceId = new ConcurrentHashMap<String, Metrics>();
+    private final ConcurrentMap<String, AtomicLong> queueDepths = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile long startTime = System.currentTimeMillis();
+
+    /**
+     * Returns the process-wide registry
+     *
+     * @return
+     *      The default registry
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Record a batch of observations pushed to a listener
+     *
+     * @param daId
+     *      The ID of the Device Adapter that produced the observations, null if unknown
+     *
+     * @param devId
+     *      The ID of the device the observations come from, null if unknown
+     *
+     * @param observations
+     *      The number of observations in the batch
+     *
+     * @param bytes
+     *      The estimated size of the batch, in bytes
+     *
+     * @param latencyNanos
+     *      The time spent to deliver the batch, in nanoseconds
+     */
+    public void recordPush(String daId, String devId, int observations, long bytes, long latencyNanos) {
+        total.recordPush(observations, bytes, latencyNanos);
+        if (daId != null) metricsFor(byDaId, daId).recordPush(observations, bytes, latencyNanos);
+        if (devId != null) metricsFor(byDeviceId, devId).recordPush(observations, bytes, latencyNanos);
+    }
+
+    /**
+     * Record a batch of observations pushed to a listener, estimating its size
+     *
+     * @param daId
+     *      The ID of the Device Adapter that produced the observations, null if unknown
+     *
+     * @param observations
+     *      The observations pushed
+     *
+     * @param devDesc
+     *      The device the observations come from, may be null
+     *
+     * @param latencyNanos
+     *      The time spent to deliver the batch, in nanoseconds
+     */
+    public void recordPush(String daId, List<Observation> observations, DeviceDescription devDesc, long latencyNanos) {
+        if (observations == null) return;
+
+        recordPush(daId, devDesc != null ? devDesc.getDeviceID() : null, observations.size(),
+                Observation.estimateParcelSize(observations), latencyNanos);
+    }
+
+    /**
+     * Record the registration of a device
+     *
+     * @param daId
+     *      The ID of the Device Adapter handling the device, null if unknown
+     *
+     * @param devId
+     *      The ID of the device
+     */
+    public void recordRegistration(String daId, String devId) {
+        total.registrations.increment();
+        if (daId != null) metricsFor(byDaId, daId).registrations.increment();
+        if (devId != null) metricsFor(byDeviceId, devId).registrations.increment();
+    }
+
+    /**
+     * Record the execution of a command
+     *
+     * @param daId
+     *      The ID of the Device Adapter that executed the command, null if unknown
+     *
+     * @param devId
+     *      The ID of the device the command was sent to, null if unknown
+     *
+     * @param latencyNanos
+     *      The time spent to execute the command, in nanoseconds
+     *
+     * @param successful
+     *      True if the command was executed successfully, false otherwise
+     */
+    public void recordCommand(String daId, String devId, long latencyNanos, boolean successful) {
+        total.recordCommand(latencyNanos, successful);
+        if (daId != null) metricsFor(byDaId, daId).recordCommand(latencyNanos, successful);
+        if (devId != null) metricsFor(byDeviceId, devId).recordCommand(latencyNanos, successful);
+    }
+
+    /**
+     * Set the number of elements waiting in a queue. Queues are identified by name, so components
+     * sharing a name report into the same gauge.
+     *
+     * @param queueName
+     *      The name of the queue
+     *
+     * @param depth
+     *      The number of elements in the queue
+     */
+    public void setQueueDepth(String queueName, long depth) {
+        AtomicLong gauge = queueDepths.get(queueName);
+        if (gauge == null) {
+            AtomicLong newGauge = new AtomicLong();
+            gauge = queueDepths.putIfAbsent(queueName, newGauge);
+            if (gauge == null) gauge = newGauge;
+        }
+        gauge.set(depth);
+    }
+
+    /**
+     * Forget a queue, i.e. because the component owning it has been shut down
+     *
+     * @param queueName
+     *      The name of the queue
+     */
+    public void removeQueue(String queueName) {
+        if (queueName != null) queueDepths.remove(queueName);
+    }
+
+    /**
+     * Forget the statistics of a device, i.e. because it has been disconnected for good
+     *
+     * @param devId
+     *      The ID of the device
+     */
+    public void removeDevice(String devId) {
+        if (devId != null) byDeviceId.remove(devId);
+    }
+
+    /**
+     * Forget all the statistics collected so far
+     */
+    public void reset() {
+        total.reset();
+        byDaId.clear();
+        byDeviceId.clear();
+        queueDepths.clear();
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a snapshot of the statistics collected so far
+     *
+     * @return
+     *      The statistics
+     */
+    public Statistics getStatistics() {
+        List<String> names = new ArrayList<String>();
+        List<Long> depths = new ArrayList<Long>();
+        for (Map.Entry<String, AtomicLong> entry : queueDepths.entrySet()) {
+            names.add(entry.getKey());
+            depths.add(entry.getValue().get());
+        }
+
+        long[] depthArray = new long[depths.size()];
+        for (int i = 0; i < depthArray.length; i++) {
+            depthArray[i] = depths.get(i);
+        }
+
+        return new Statistics(startTime, System.currentTimeMillis(), total.snapshot(null),
+                snapshot(byDaId), snapshot(byDeviceId), names.toArray(new String[names.size()]),
+                depthArray);
+    }
+
+    private static Statistics.Entry[] snapshot(ConcurrentMap<String, Metrics> map) {
+        List<Statistics.Entry> entries = new ArrayList<Statistics.Entry>(map.size());
+        for (Map.Entry<String, Metrics> entry : map.entrySet()) {
+            entries.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        return entries.toArray(new Statistics.Entry[entries.size()]);
+    }
+
+    private static Metrics metricsFor(ConcurrentMap<String, Metrics> map, String key) {
+        Metrics metrics = map.get(key);
+        if (metrics == null) {
+            Metrics newMetrics = new Metrics();
+            metrics = map.putIfAbsent(key, newMetrics);
+            if (metrics == null) metrics = newMetrics;
+        }
+        return metrics;
+    }
+
+    /**
+     * The metrics of the whole process, of a Device Adapter or of a device
+     */
+    private static final class Metrics {
+        final StripedCounter observations = new StripedCounter();
+        final StripedCounter batches = new StripedCounter();
+        final StripedCounter bytes = new StripedCounter();
+        final StripedCounter registrations = new StripedCounter();
+        final StripedCounter commands = new StripedCounter();
+        final StripedCounter commandErrors = new StripedCounter();
+        final LatencyHistogram pushLatency = new LatencyHistogram();
+        final LatencyHistogram commandLatency = new LatencyHistogram();
+
+        void recordPush(int n, long size, long latencyNanos) {
+            observations.add(n);
+            batches.increment();
+            bytes.add(size);
+            pushLatency.recordNanos(latencyNanos);
+        }
+
+        void recordCommand(long latencyNanos, boolean successful) {
+            commands.increment();
+            if (!successful) commandErrors.increment();
+            commandLatency.recordNanos(latencyNanos);
+        }
+
+        void reset() {
+            observations.reset();
+            batches.reset();
+            bytes.reset();
+            registrations.reset();
+            commands.reset();
+            commandErrors.reset();
+            pushLatency.reset();
+            commandLatency.reset();
+        }
+
+        Statistics.Entry snapshot(String key) {
+            return new Statistics.Entry(key, observations.sum(), batches.sum(), bytes.sum(),
+                    registrations.sum(), commands.sum(), commandErrors.sum(),
+                    latencies(pushLatency), latencies(commandLatency));
+        }
+
+        private static long[] latencies(LatencyHistogram histogram) {
+            return new long[] { histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax() };
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.BadParcelableException;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This Class contains the observations of many devices, transferred with a single pushMultiData
+ * call instead of one pushData call per device.<br>
+ * Devices are referenced by ID: the receiver already knows their description from registerDevice,
+ * so the full DeviceDescription is only included when the sender asks for it. All the
+ * observations are stored in a single list and every device group is a view of a range of it, so
+ * demultiplexing the batch doesn't copy anything.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class MultiDeviceBatch implements Parcelable {
+
+    private int priority = PAAndroidConstants.PRIORITY.NORMAL;        // The priority of the data
+    private List<String> deviceIds = new ArrayList<String>();          // The IDs of the devices
+    private List<DeviceDescription> devices = new ArrayList<DeviceDescription>();   // Included descriptions, or null
+    private int[] groupEnds = new int[8];                              // The end of every group in the list
+    private List<Observation> observations = new ArrayList<Observation>();   // The observations of all the groups
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<MultiDeviceBatch> CREATOR
+            = new Parcelable.Creator<MultiDeviceBatch>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public MultiDeviceBatch createFromParcel(Parcel in) {
+            return new MultiDeviceBatch(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public MultiDeviceBatch[] newArray(int size) {
+            return new MultiDeviceBatch[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     *
+     * @throws BadParcelableException if the groups don't match the devices and the observations
+     */
+    public void readFromParcel(Parcel in) {
+        priority = in.readInt();
+        List<String> newDeviceIds = in.createStringArrayList();
+        int[] newGroupEnds = in.createIntArray();
+        if (newDeviceIds == null || newGroupEnds == null || newGroupEnds.length != newDeviceIds.size()) {
+            throw new BadParcelableException("The groups of the batch don't match its devices");
+        }
+
+        List<DeviceDescription> newDevices =
+                new ArrayList<DeviceDescription>(Collections.<DeviceDescription>nCopies(newDeviceIds.size(), null));
+        int included = in.readInt();
+        if (included < 0 || included > newDeviceIds.size()) {
+            throw new BadParcelableException("Invalid number of included devices " + included);
+        }
+        for (int i = 0; i < included; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= newDeviceIds.size()) {
+                throw new BadParcelableException("Invalid index of included device " + index);
+            }
+            newDevices.set(index, DeviceDescription.CREATOR.createFromParcel(in));
+        }
+
+        List<Observation> newObservations = in.createTypedArrayList(Observation.CREATOR);
+        if (newObservations == null) throw new BadParcelableException("Missing observations");
+        int previous = 0;
+        for (int end : newGroupEnds) {
+            if (end < previous || end > newObservations.size()) {
+                throw new BadParcelableException("Invalid end of group " + end);
+            }
+            previous = end;
+        }
+
+        deviceIds = newDeviceIds;
+        groupEnds = newGroupEnds;
+        devices = newDevices;
+        observations = newObservations;
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(priority);
+        out.writeStringList(deviceIds);
+
+        int[] ends = new int[deviceIds.size()];
+        System.arraycopy(groupEnds, 0, ends, 0, ends.length);
+        out.writeIntArray(ends);
+
+        int included = 0;
+        for (DeviceDescription devDesc : devices) {
+            if (devDesc != null) included++;
+        }
+        out.writeInt(included);
+        for (int i = 0; i < devices.size(); i++) {
+            if (devices.get(i) == null) continue;
+            out.writeInt(i);
+            devices.get(i).writeToParcel(out, flags);
+        }
+
+        out.writeTypedList(observations);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public MultiDeviceBatch(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Default constructor, creates an empty batch with normal priority
+     */
+    public MultiDeviceBatch() {}
+
+    /**
+     * Create an empty batch.
+     *
+     * @param mPriority
+     *      The priority of the data, one of the values defined in {@link PAAndroidConstants.PRIORITY}
+     */
+    public MultiDeviceBatch(int mPriority) {
+        priority = mPriority;
+    }
+
+    /**
+     * Add the observations of a device, referencing the device by ID only. The receiver must
+     * already know the device through registerDevice.
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     *
+     * @param mObservations
+     *      The observations of the device
+     */
+    public void add(DeviceDescription devDesc, List<Observation> mObservations) {
+        add(devDesc, mObservations, false);
+    }
+
+    /**
+     * Add the observations of a device.
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     *
+     * @param mObservations
+     *      The observations of the device
+     *
+     * @param includeDescription
+     *      True to transfer the whole description of the device, i.e. because it has changed
+     */
+    public void add(DeviceDescription devDesc, List<Observation> mObservations, boolean includeDescription) {
+        if (devDesc == null || devDesc.getDeviceID() == null) {
+            throw new IllegalArgumentException("The device must have a device ID");
+        }
+
+        int group = deviceIds.size();
+        if (group == groupEnds.length) {
+            // A batch read from a Parcel may have no room at all
+            int[] newEnds = new int[Math.max(8, groupEnds.length * 2)];
+            System.arraycopy(groupEnds, 0, newEnds, 0, group);
+            groupEnds = newEnds;
+        }
+
+        deviceIds.add(devDesc.getDeviceID());
+        devices.add(includeDescription ? devDesc : null);
+        observations.addAll(mObservations);
+        groupEnds[group] = observations.size();
+    }
+
+    /**
+     * Returns the number of device groups in the batch
+     *
+     * @return
+     *      The number of groups
+     */
+    public int size() {
+        return deviceIds.size();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the ID of the device of a group
+     *
+     * @param group
+     *      The index of the group
+     *
+     * @return
+     *      The ID of the device
+     */
+    public String getDeviceID(int group) {
+        return deviceIds.get(group);
+    }
+
+    /**
+     * Returns the description of the device of a group, if the sender included it
+     *
+     * @param group
+     *      The index of the group
+     *
+     * @return
+     *      The description of the device, or null if it was not included
+     */
+    public DeviceDescription getDevice(int group) {
+        return devices.get(group);
+    }
+
+    /**
+     * Returns the description of the device of a group, looking it up in a registry if the sender
+     * didn't include it.<br>
+     * If the description was not included and the device is not in the registry, or no registry
+     * is given, a placeholder description is returned: it only has the device ID, with empty
+     * serial number, model, manufacturer and address, no sensors, and is not registered. Receivers
+     * needing the full description must pass the registry filled through registerDevice.
+     *
+     * @param group
+     *      The index of the group
+     *
+     * @param registry
+     *      The registry of the devices known to the receiver, may be null
+     *
+     * @return
+     *      The description of the device
+     */
+    public DeviceDescription resolveDevice(int group, DeviceRegistry registry) {
+        DeviceDescription devDesc = devices.get(group);
+        if (devDesc == null && registry != null) devDesc = registry.getByDeviceId(deviceIds.get(group));
+        if (devDesc == null) devDesc = new DeviceDescription(deviceIds.get(group), null, null, null, null, null);
+        return devDesc;
+    }
+
+    /**
+     * Returns the observations of a group. The list is a view of the batch and must not be
+     * modified.
+     *
+     * @param group
+     *      The index of the group
+     *
+     * @return
+     *      The observations of the device of the group
+     */
+    public List<Observation> getObservations(int group) {
+        int start = (group > 0 ? groupEnds[group - 1] : 0);
+        return observations.subList(start, groupEnds[group]);
+    }
+
+    /**
+     * Returns the observations of all the groups
+     *
+     * @return
+     *      All the observations of the batch
+     */
+    public List<Observation> getObservations() {
+        return observations;
+    }
+
+    /**
+     * Hand the observations of every group over to a per-device handler, typically the same used
+     * for pushData. Groups are not copied.
+     *
+     * @param registry
+     *      The registry used to resolve the devices not included in the batch, may be null
+     *
+     * @param sink
+     *      The handler receiving the groups, see {@link PriorityDispatcher#sinkFor(IProtocolAdapterListener)}
+     */
+    public void demultiplex(DeviceRegistry registry, PriorityDispatcher.Sink sink) throws RemoteException {
+        for (int group = 0; group < size(); group++) {
+            sink.deliver(getObservations(group), resolveDevice(group, registry), priority);
+        }
+    }
+
+    /**
+     * Deliver the batch to a Protocol Adapter, with a single pushMultiData call if it accepts it,
+     * otherwise with a call for every group through the sink of
+     * {@link PriorityDispatcher#sinkFor(IDeviceAdapterListener, String, ListenerOptions)}
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter pushing the data, used to record the metrics
+     *
+     * @param options
+     *      The options received upon registration, may be null
+     */
+    public void sendTo(IDeviceAdapterListener listener, String daId, ListenerOptions options) throws RemoteException {
+        if (options != null && options.acceptsMultiData()) listener.pushMultiData(this);
+        else demultiplex(null, PriorityDispatcher.sinkFor(listener, daId, options));
+    }
+
+    /**
+     * Deliver the batch to an Application, with a single pushMultiData call if it accepts it,
+     * otherwise with a call for every group through the sink of
+     * {@link PriorityDispatcher#sinkFor(IProtocolAdapterListener, DeviceRegistry, ListenerOptions)}
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @param registry
+     *      The registry of the Protocol Adapter, used to resolve the devices not included in the
+     *      batch, may be null
+     *
+     * @param options
+     *      The options the Application registered with, may be null
+     */
+    public void sendTo(IProtocolAdapterListener listener, DeviceRegistry registry, ListenerOptions options) throws RemoteException {
+        if (options != null && options.isRulesOnly()) return;
+        if (options != null && options.acceptsMultiData()) listener.pushMultiData(this);
+        else demultiplex(registry, PriorityDispatcher.sinkFor(listener, registry, options));
+    }
+
+    /**
+     * Returns an estimate of the number of bytes the batch takes when written to a Parcel
+     *
+     * @return
+     *      The estimated size in bytes
+     */
+    public long estimateParcelSize() {
+        long size = 4 + 4 + 4 + 4 * deviceIds.size() + 4 + Observation.estimateParcelSize(observations);
+        for (int i = 0; i < deviceIds.size(); i++) {
+            size += Observation.stringSize(deviceIds.get(i));
+            if (devices.get(i) != null) size += 4 + devices.get(i).estimateParcelSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Devices: "+size()+"\nObservations: "+observations.size()+"\nPriority: "+priority+"\n";
+    }
+
+}
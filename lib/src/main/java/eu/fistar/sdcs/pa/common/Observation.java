@@ -22,6 +22,7 @@
 
 package eu.fistar.sdcs.pa.common;
 
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -46,6 +47,26 @@ public class Observation implements Parcelable {
     private long phenomenonTime = 0;    // Timestamp associated with the measurement
     private long duration = 0;          // Duration of the measurement
 
+    // Values parsed as numbers, lazily created and invalidated when the values change
+    private volatile double[] doubleValues;
+    private volatile long[] longValues;
+
+    // Monotonic time each stage was passed, in nanoseconds, null if the observation is not traced
+    private long[] traceStamps;
+
+    // Header of the optional blocks following the base fields in the Parcel. The blocks are only
+    // written when there's something to carry, so plain observations keep the format of the
+    // versions before 3.5.0 and can be read by them. Every block is written as tag, length and
+    // content, so readers can skip the blocks they don't know.
+    static final int EXTENSIONS_MAGIC = 0x5041584f;     // "PAXO"
+    static final int EXTENSIONS_VERSION = 1;
+    static final int TAG_END = 0;
+    static final int TAG_WAVEFORM = 1;
+    static final int TAG_TRACE = 2;
+
+    // Position of the waveform block in the Parcel last read, -1 if there was none
+    int waveformPosition = -1;
+
     // The static field CREATOR required by Parcelable
     public static final Creator<Observation> CREATOR
             = new Creator<Observation>() {
@@ -60,7 +81,15 @@ public class Observation implements Parcelable {
          *      The resulting object
          */
         public Observation createFromParcel(Parcel in) {
-            return new Observation(in);
+            Observation obs = new Observation(in);
+            if (obs.waveformPosition < 0) return obs;
+
+            // The Parcel contains a waveform, recreate the right object reading its block
+            int end = in.dataPosition();
+            in.setDataPosition(obs.waveformPosition);
+            WaveformObservation waveform = new WaveformObservation(obs, in);
+            in.setDataPosition(end);
+            return waveform;
         }
 
         /**
@@ -82,6 +111,8 @@ public class Observation implements Parcelable {
      *
      * @param in
      *      The input Parcel
+     *
+     * @throws BadParcelableException if an optional block overruns the Parcel
      */
     public void readFromParcel(Parcel in) {
         propertyName = in.readString();
@@ -91,8 +122,34 @@ public class Observation implements Parcelable {
         } catch (NullPointerException e) {
             values = new ArrayList<String>();
         }
+        invalidateParsedValues();
         phenomenonTime = in.readLong();
         duration = in.readLong();
+
+        waveformPosition = -1;
+        traceStamps = null;
+        if (in.dataAvail() < 8) return;
+
+        // Parcels written by the previous versions have no blocks, and what follows is not ours
+        int position = in.dataPosition();
+        if (in.readInt() != EXTENSIONS_MAGIC) {
+            in.setDataPosition(position);
+            return;
+        }
+
+        // Blocks added by later versions are tagged, so the version is only informative
+        in.readInt();
+        int tag;
+        while ((tag = in.readInt()) != TAG_END) {
+            int length = in.readInt();
+            if (length < 0 || length > in.dataAvail()) {
+                throw new BadParcelableException("Block " + tag + " of invalid length " + length);
+            }
+            int start = in.dataPosition();
+            if (tag == TAG_WAVEFORM) waveformPosition = start;
+            else if (tag == TAG_TRACE) traceStamps = in.createLongArray();
+            in.setDataPosition(start + length);
+        }
     }
 
     /**
@@ -110,6 +167,66 @@ public class Observation implements Parcelable {
         out.writeStringList(values != null ? values : new ArrayList<String>());
         out.writeLong(phenomenonTime);
         out.writeLong(duration);
+        if (!hasBlocks()) return;
+
+        out.writeInt(EXTENSIONS_MAGIC);
+        out.writeInt(EXTENSIONS_VERSION);
+        if (traceStamps != null) {
+            int start = beginBlock(out, TAG_TRACE);
+            out.writeLongArray(traceStamps);
+            endBlock(out, start);
+        }
+        writeBlocks(out, flags);
+        out.writeInt(TAG_END);
+    }
+
+    /**
+     * Write the optional blocks following the base fields, using {@link #beginBlock(Parcel, int)}
+     * and {@link #endBlock(Parcel, int)}. Subclasses carrying additional data override this.
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    void writeBlocks(Parcel out, int flags) {}
+
+    /**
+     * States whether the observation carries data written as optional blocks, which can only be
+     * read by the recipients that accept extended observations (see {@link ListenerOptions}).
+     * Subclasses carrying additional data override this.
+     *
+     * @return
+     *      True if there are blocks to write, false otherwise
+     */
+    boolean hasBlocks() {
+        return traceStamps != null;
+    }
+
+    /**
+     * Write the header of a block, with a placeholder for its length
+     *
+     * @return
+     *      The position of the content of the block, to pass to endBlock
+     */
+    static int beginBlock(Parcel out, int tag) {
+        out.writeInt(tag);
+        out.writeInt(0);
+        return out.dataPosition();
+    }
+
+    /**
+     * Fill in the length of a block once its content has been written
+     *
+     * @param start
+     *      The position returned by beginBlock
+     */
+    static void endBlock(Parcel out, int start) {
+        int end = out.dataPosition();
+        out.setDataPosition(start - 4);
+        out.writeInt(end - start);
+        out.setDataPosition(end);
     }
 
     /**
@@ -143,8 +260,11 @@ public class Observation implements Parcelable {
         propertyName = derivObj.getPropertyName();
         measurementUnit = derivObj.getMeasurementUnit();
         values = (derivObj.getValues() != null ? derivObj.getValues() : new ArrayList<String>());
+        doubleValues = derivObj.doubleValues;
+        longValues = derivObj.longValues;
         phenomenonTime = derivObj.getPhenomenonTime();
         duration = derivObj.getDuration();
+        traceStamps = (derivObj.traceStamps != null ? derivObj.traceStamps.clone() : null);
     }
 
     public Observation(SensorDescription mSensor, String[] mValues) {
@@ -166,7 +286,9 @@ public class Observation implements Parcelable {
     }
 
     /**
-     * Returns the values observed for the property
+     * Returns the values observed for the property. If the values are changed through the returned
+     * list, the numeric accessors keep returning the values parsed before the change: use
+     * {@link #setValues(String[])} instead.
      *
      * @return
      *      The values observed for the property
@@ -175,6 +297,244 @@ public class Observation implements Parcelable {
         return values;
     }
 
+    /**
+     * Returns a value observed for the property as a double. All the values are parsed the first
+     * time a numeric accessor is called and then cached.
+     *
+     * @param i
+     *      The index of the value
+     *
+     * @return
+     *      The value, or NaN if it's not a number
+     */
+    public double getDouble(int i) {
+        return valuesAsDoubleArray()[i];
+    }
+
+    /**
+     * Returns a value observed for the property as a long. All the values are parsed the first
+     * time this method is called and then cached. Decimal values are truncated.
+     *
+     * @param i
+     *      The index of the value
+     *
+     * @return
+     *      The value, or 0 if it's not a number
+     */
+    public long getLong(int i) {
+        long[] parsed = longValues;
+        if (parsed == null) {
+            double[] doubles = valuesAsDoubleArray();
+            parsed = new long[doubles.length];
+            for (int j = 0; j < doubles.length; j++) {
+                parsed[j] = parseLong(values.get(j), doubles[j]);
+            }
+            longValues = parsed;
+        }
+        return parsed[i];
+    }
+
+    /**
+     * Returns all the values observed for the property as doubles. Values are parsed the first
+     * time a numeric accessor is called and then cached: the returned array is the cache itself
+     * and must not be modified.
+     *
+     * @return
+     *      The values, with NaN for the ones that are not numbers
+     */
+    public double[] valuesAsDoubleArray() {
+        double[] parsed = doubleValues;
+        if (parsed == null) {
+            int size = (values != null ? values.size() : 0);
+            parsed = new double[size];
+            for (int j = 0; j < size; j++) {
+                parsed[j] = parseDouble(values.get(j));
+            }
+            doubleValues = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the value at the specified index of every observation of a batch as doubles, i.e.
+     * the systolic pressures of a batch of blood pressure observations. The parsed values of
+     * every observation are cached, so later accessors won't parse them again.
+     *
+     * @param observations
+     *      The batch of observations
+     *
+     * @param index
+     *      The index of the value within every observation
+     *
+     * @return
+     *      The values, with NaN for observations that have no such value or not a number
+     */
+    public static double[] valuesAsDoubleArray(List<Observation> observations, int index) {
+        double[] result = new double[observations.size()];
+        for (int j = 0; j < result.length; j++) {
+            double[] parsed = observations.get(j).valuesAsDoubleArray();
+            result[j] = (index < parsed.length ? parsed[index] : Double.NaN);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes this observation takes when written to a Parcel,
+     * used to account for memory and transfer costs without actually marshaling it.
+     *
+     * @return
+     *      The estimated size in bytes
+     */
+    public int estimateParcelSize() {
+        int size = stringSize(propertyName) + stringSize(measurementUnit) + 4 + 8 + 8;
+        if (values != null) {
+            for (int i = 0; i < values.size(); i++) {
+                size += stringSize(values.get(i));
+            }
+        }
+        if (hasBlocks()) size += 4 + 4 + 4;
+        if (traceStamps != null) size += 4 + 4 + 4 + traceStamps.length * 8;
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes a list of observations takes when written to a
+     * Parcel.
+     *
+     * @param observations
+     *      The observations
+     *
+     * @return
+     *      The estimated size in bytes
+     */
+    public static long estimateParcelSize(List<Observation> observations) {
+        long size = 4;
+        for (int i = 0; i < observations.size(); i++) {
+            size += 4 + observations.get(i).estimateParcelSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the observations of a list in the form readable by the recipients that don't accept
+     * extended observations (see {@link ListenerOptions#acceptsExtendedObservations()}), i.e. the
+     * ones built with the versions of the library before 3.5.0. Traced observations lose their
+     * trace and waveforms are converted to plain observations, with the samples as String values.
+     *
+     * @param observations
+     *      The observations
+     *
+     * @return
+     *      The same list if no observation needs to be converted, a new list otherwise
+     */
+    public static List<Observation> withoutExtensions(List<Observation> observations) {
+        List<Observation> result = null;
+        for (int i = 0; i < observations.size(); i++) {
+            Observation obs = observations.get(i);
+            if (!obs.hasBlocks()) continue;
+
+            if (result == null) result = new ArrayList<Observation>(observations);
+            Observation plain = new Observation(obs);
+            plain.traceStamps = null;
+            result.set(i, plain);
+        }
+        return (result != null ? result : observations);
+    }
+
+    /**
+     * Start tracing the observation, stamping the current time as the
+     * {@link PAAndroidConstants.TRACE_STAGE#CAPTURED} stage. Traced observations carry the time
+     * they passed every stage, see {@link #stamp(int)}. Usually called through
+     * {@link LatencyTracer#begin(Observation)}, which only traces a sample of the observations.
+     */
+    public void startTrace() {
+        traceStamps = new long[PAAndroidConstants.TRACE_STAGE.COUNT];
+        traceStamps[PAAndroidConstants.TRACE_STAGE.CAPTURED] = System.nanoTime();
+    }
+
+    /**
+     * States whether the observation is being traced
+     *
+     * @return
+     *      True if the observation is traced, false otherwise
+     */
+    public boolean isTraced() {
+        return traceStamps != null;
+    }
+
+    /**
+     * Stamp the current time as the time the observation passed a stage. Does nothing if the
+     * observation is not traced, so it can be called on every observation at a negligible cost.
+     *
+     * @param stage
+     *      One of the values defined in {@link PAAndroidConstants.TRACE_STAGE}
+     */
+    public void stamp(int stage) {
+        long[] stamps = traceStamps;
+        if (stamps != null && stage >= 0 && stage < stamps.length) stamps[stage] = System.nanoTime();
+    }
+
+    /**
+     * Stamp the current time on all the traced observations of a list
+     *
+     * @param observations
+     *      The observations
+     *
+     * @param stage
+     *      One of the values defined in {@link PAAndroidConstants.TRACE_STAGE}
+     */
+    public static void stamp(List<Observation> observations, int stage) {
+        for (int i = 0; i < observations.size(); i++) {
+            observations.get(i).stamp(stage);
+        }
+    }
+
+    /**
+     * Returns the time the observation passed a stage. Stamps are taken from System.nanoTime(),
+     * the monotonic clock shared by all the processes of the device, so they are only comparable
+     * with each other.
+     *
+     * @param stage
+     *      One of the values defined in {@link PAAndroidConstants.TRACE_STAGE}
+     *
+     * @return
+     *      The stamp in nanoseconds, or 0 if the stage was not stamped
+     */
+    public long getTraceStamp(int stage) {
+        long[] stamps = traceStamps;
+        return (stamps != null && stage >= 0 && stage < stamps.length ? stamps[stage] : 0);
+    }
+
+    // Strings are written as length and UTF-16 chars with terminator, padded to 4 bytes
+    static int stringSize(String str) {
+        return 4 + ((((str != null ? str.length() : 0) + 1) * 2 + 3) & ~3);
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null) return Double.NaN;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Avoid the precision loss of doubles for integer values bigger than 2^53
+    private static long parseLong(String value, double parsed) {
+        if (Double.isNaN(parsed)) return 0;
+        if (Math.abs(parsed) < (1L << 53)) return (long) parsed;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return (long) parsed;
+        }
+    }
+
+    private void invalidateParsedValues() {
+        doubleValues = null;
+        longValues = null;
+    }
+
     /**
      * Returns the timestamp associated with the measurement
      *
@@ -219,6 +579,7 @@ public class Observation implements Parcelable {
 
     public void setValues(String[] mValues) {
         values = Arrays.asList(mValues);
+        invalidateParsedValues();
     }
 
     public void setPhenomenonTime(long mPhenomenonTime) {
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.List;
+
+/**
+ * This Class contains a push of observations in marshaled form, preceded by a small routing
+ * header.<br>
+ * The Protocol Adapter can read the header, i.e. to find out which Applications are interested
+ * in the device, and forward the payload to them as it is, without recreating and marshaling again
+ * every Observation. Observations are recreated only by the processes that actually read them,
+ * the first time {@link #getObservations()} or {@link #getDevice()} is called.<br>
+ * Since the payload is a marshaled Parcel, it must be decoded by a process using the same version
+ * of the library and must never be persisted.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationPayload implements Parcelable {
+
+    private String deviceID;            // The ID of the device who supplies the data
+    private String daId;                // The ID of the Device Adapter handling the device
+    private int handle;                 // The handle of the device, see DeviceRegistry
+    private int priority;               // The priority of the data
+    private int count;                  // The number of observations in the payload
+    private byte[] payload;             // The marshaled observations and device
+
+    // Decoded content, lazily created
+    private List<Observation> observations;
+    private DeviceDescription devDesc;
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<ObservationPayload> CREATOR
+            = new Parcelable.Creator<ObservationPayload>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public ObservationPayload createFromParcel(Parcel in) {
+            return new ObservationPayload(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public ObservationPayload[] newArray(int size) {
+            return new ObservationPayload[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        deviceID = in.readString();
+        daId = in.readString();
+        handle = in.readInt();
+        priority = in.readInt();
+        count = in.readInt();
+        payload = in.createByteArray();
+        observations = null;
+        devDesc = null;
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(deviceID);
+        out.writeString(daId);
+        out.writeInt(handle);
+        out.writeInt(priority);
+        out.writeInt(count);
+        out.writeByteArray(payload);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public ObservationPayload(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Create a payload marshaling a push of observations
+     *
+     * @param mObservations
+     *      The data to push
+     *
+     * @param mDevDesc
+     *      The device who supplies the data
+     *
+     * @param mDaId
+     *      The ID of the Device Adapter handling the device
+     *
+     * @param mPriority
+     *      The priority of the data, one of the values defined in {@link PAAndroidConstants.PRIORITY}
+     */
+    public ObservationPayload(List<Observation> mObservations, DeviceDescription mDevDesc, String mDaId, int mPriority) {
+        deviceID = mDevDesc.getDeviceID();
+        daId = mDaId;
+        handle = DeviceRegistry.NO_HANDLE;
+        priority = mPriority;
+        count = mObservations.size();
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(mObservations);
+            mDevDesc.writeToParcel(parcel, 0);
+            payload = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        // The sender already has the objects, no need to decode them again
+        observations = mObservations;
+        devDesc = mDevDesc;
+    }
+
+    /**
+     * Returns the ID of the device who supplies the data, without decoding the payload
+     *
+     * @return
+     *      The Device ID
+     */
+    public String getDeviceID() {
+        return deviceID;
+    }
+
+    /**
+     * Returns the ID of the Device Adapter handling the device, without decoding the payload
+     *
+     * @return
+     *      The ID of the Device Adapter
+     */
+    public String getDaId() {
+        return daId;
+    }
+
+    /**
+     * Returns the handle of the device in the {@link DeviceRegistry} of the Protocol Adapter, if
+     * the Protocol Adapter set it while routing the payload
+     *
+     * @return
+     *      The handle of the device, or {@link DeviceRegistry#NO_HANDLE}
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int mHandle) {
+        handle = mHandle;
+    }
+
+    /**
+     * Returns the priority of the data, without decoding the payload
+     *
+     * @return
+     *      One of the values defined in {@link PAAndroidConstants.PRIORITY}
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the number of observations in the payload, without decoding it
+     *
+     * @return
+     *      The number of observations
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the size of the marshaled payload
+     *
+     * @return
+     *      The size in bytes
+     */
+    public int getPayloadSize() {
+        return payload != null ? payload.length : 0;
+    }
+
+    /**
+     * Returns the observations, decoding the payload the first time it's called
+     *
+     * @return
+     *      The observations
+     */
+    public synchronized List<Observation> getObservations() {
+        if (observations == null) decode();
+        return observations;
+    }
+
+    /**
+     * Returns the device who supplies the data, decoding the payload the first time it's called
+     *
+     * @return
+     *      The device
+     */
+    public synchronized DeviceDescription getDevice() {
+        if (devDesc == null) decode();
+        return devDesc;
+    }
+
+    // Must be called holding the lock
+    private void decode() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(payload, 0, payload.length);
+            parcel.setDataPosition(0);
+            observations = parcel.createTypedArrayList(Observation.CREATOR);
+            devDesc = DeviceDescription.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Device ID: "+deviceID+"\nDA ID: "+daId+"\nHandle: "+handle+"\nPriority: "+priority+
+                "\nObservations: "+count+"\nPayload Size: "+getPayloadSize()+"\n";
+    }
+
+}
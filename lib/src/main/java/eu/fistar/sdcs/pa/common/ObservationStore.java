@@ -0,0 +1,890 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * This Class persists the observations received on the storage of the device, keeping their
+ * history in bounded space through tiered retention.<br>
+ * Observations are appended to raw segments. A segment is sealed when it gets too old or too big,
+ * and a background thread rolls every sealed segment up into per-minute aggregates of the values
+ * of every property of every device, deleting the segment once the aggregates are written.
+ * Per-minute aggregates older than the minute retention are rolled up in turn into per-hour
+ * aggregates, kept for the hour retention.<br>
+ * Aggregates are kept in a file per hour (minute tier) or per day (hour tier), replaced
+ * atomically, and every file records the segments and files merged into it: if the process dies
+ * while compacting, the compaction resumes without counting any value twice. The compaction runs
+ * at background priority, one file at a time with pauses in between, and never touches the
+ * segment being appended to, so it doesn't slow down the ingest.<br>
+ * Like {@link SummaryRegistry}, only the first value of every observation is stored, and waveforms
+ * are skipped. Values can be queried once their segment has been rolled up. A directory must be
+ * used by a single store at a time.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationStore {
+
+    // Tiers of aggregates
+    public static final int TIER_MINUTE = 0;
+    public static final int TIER_HOUR = 1;
+
+    // Default values
+    public static final long DEFAULT_SEGMENT_LENGTH = 10 * 60 * 1000;               // Milliseconds
+    public static final long DEFAULT_MINUTE_RETENTION = 7L * 24 * 60 * 60 * 1000;   // Milliseconds
+    public static final long DEFAULT_HOUR_RETENTION = 365L * 24 * 60 * 60 * 1000;   // Milliseconds
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    // The length of an aggregate and the period covered by a file, by tier
+    private static final long[] TIER_LENGTH = {MINUTE, HOUR};
+    private static final long[] TIER_FILE_PERIOD = {HOUR, DAY};
+    private static final String[] TIER_PREFIX = {"minute-", "hour-"};
+
+    private static final String SEGMENT_PREFIX = "raw-";
+    private static final String SUFFIX = ".seg";
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;    // Bytes
+
+    // The compactor pauses 4 times the time it worked, and checks for work every minute when idle
+    private static final int PAUSE_RATIO = 4;
+    private static final long MIN_PAUSE = 100;
+    private static final long IDLE_PAUSE = 60 * 1000;
+
+    private static final int SEGMENT_MAGIC = 0x5041524f;   // "PARO"
+    private static final int ROLLUP_MAGIC = 0x50415255;    // "PARU"
+    private static final int VERSION = 1;
+
+    private final File directory;
+    private final long segmentLength;
+    private final long minuteRetention;
+    private final long hourRetention;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    private final Object compactorLock = new Object();
+    private final Thread compactor;
+    private volatile boolean closed = false;
+
+    // The segment being appended to, guarded by writeLock
+    private final Object writeLock = new Object();
+    private FileOutputStream segmentFile;
+    private DataOutputStream segment;
+    private Map<String, Integer> segmentStrings;
+    private long segmentSeq;
+    private long segmentStart;
+    private final TreeSet<Long> unsealed = new TreeSet<Long>();    // The segment appended to and the ones being synced
+
+    /**
+     * An aggregate of the values of a property over a minute or an hour
+     */
+    public static final class Rollup {
+        private final String deviceID;
+        private final String propertyName;
+        private final long startTime;
+        private final long length;
+        private long count = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double mean = 0;
+        private double m2 = 0;
+
+        Rollup(String mDeviceID, String mPropertyName, long mStartTime, long mLength) {
+            deviceID = mDeviceID;
+            propertyName = mPropertyName;
+            startTime = mStartTime;
+            length = mLength;
+        }
+
+        void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+
+        void merge(Rollup other) {
+            if (other.count == 0) return;
+            if (count == 0) {
+                count = other.count;
+                min = other.min;
+                max = other.max;
+                mean = other.mean;
+                m2 = other.m2;
+                return;
+            }
+
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+            if (other.min < min) min = other.min;
+            if (other.max > max) max = other.max;
+        }
+
+        /**
+         * Returns the device the aggregate is about
+         *
+         * @return
+         *      The ID of the device, or null if the aggregate covers all the devices
+         */
+        public String getDeviceID() {
+            return deviceID;
+        }
+
+        public String getPropertyName() {
+            return propertyName;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getEndTime() {
+            return startTime + length;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return count > 0 ? min : Double.NaN;
+        }
+
+        public double getMax() {
+            return count > 0 ? max : Double.NaN;
+        }
+
+        public double getMean() {
+            return count > 0 ? mean : Double.NaN;
+        }
+
+        /**
+         * Returns the variance of the values
+         *
+         * @return
+         *      The population variance, or NaN if the aggregate is empty
+         */
+        public double getVariance() {
+            return count > 0 ? m2 / count : Double.NaN;
+        }
+
+        /**
+         * Returns a read-friendly String representing the object
+         *
+         * @return
+         *      The String representing the object
+         */
+        public String toString() {
+            return "Device ID: "+deviceID+"\nProperty Name: "+propertyName+"\nStart Time: "+startTime+
+                    "\nEnd Time: "+getEndTime()+"\nCount: "+count+"\nMin: "+getMin()+"\nMax: "+getMax()+
+                    "\nMean: "+getMean()+"\n";
+        }
+    }
+
+    /**
+     * The aggregates of a file of a tier, with the IDs of the segments or files merged into it
+     */
+    private static final class RollupFile {
+        final int tier;
+        final long id;
+        final long periodStart;
+        final List<Long> sources = new ArrayList<Long>();
+        final Map<String, Rollup> rollups = new LinkedHashMap<String, Rollup>();
+
+        RollupFile(int mTier, long mId, long mPeriodStart) {
+            tier = mTier;
+            id = mId;
+            periodStart = mPeriodStart;
+        }
+    }
+
+    /**
+     * Create a store with the default segment length and retention periods
+     *
+     * @param mDirectory
+     *      The directory of the store, created if it doesn't exist
+     */
+    public ObservationStore(File mDirectory) {
+        this(mDirectory, DEFAULT_SEGMENT_LENGTH, DEFAULT_MINUTE_RETENTION, DEFAULT_HOUR_RETENTION);
+    }
+
+    /**
+     * Create a store
+     *
+     * @param mDirectory
+     *      The directory of the store, created if it doesn't exist
+     *
+     * @param mSegmentLength
+     *      The maximum time a segment is appended to before it's sealed, in milliseconds
+     *
+     * @param mMinuteRetention
+     *      How long the per-minute aggregates are kept before they are rolled up in per-hour ones,
+     *      in milliseconds
+     *
+     * @param mHourRetention
+     *      How long the per-hour aggregates are kept, in milliseconds, 0 to keep them forever
+     */
+    public ObservationStore(File mDirectory, long mSegmentLength, long mMinuteRetention, long mHourRetention) {
+        if (mSegmentLength <= 0 || mMinuteRetention < 0 || mHourRetention < 0) {
+            throw new IllegalArgumentException("Invalid segment length or retention");
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create the directory " + mDirectory);
+        }
+
+        directory = mDirectory;
+        segmentLength = mSegmentLength;
+        minuteRetention = mMinuteRetention;
+        hourRetention = mHourRetention;
+        recover();
+
+        compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compactLoop();
+            }
+        }, "ObservationStore");
+        compactor.setDaemon(true);
+        compactor.setPriority(Thread.MIN_PRIORITY);
+        compactor.start();
+    }
+
+    /**
+     * Append the observations of a push, typically from the pushData of the Protocol Adapter.
+     * The observations are written to the operating system before returning, but the segment is
+     * only synced to the storage when it's sealed. The segment is replaced holding the lock, but
+     * synced and closed after releasing it, so the other pushes never wait for the storage.
+     *
+     * @param observations
+     *      The observations received
+     *
+     * @param devDesc
+     *      The device who supplied the data
+     *
+     * @return
+     *      The number of observations stored
+     */
+    public int append(List<Observation> observations, DeviceDescription devDesc) {
+        if (devDesc == null || devDesc.getDeviceID() == null || observations == null) return 0;
+
+        long now = System.currentTimeMillis();
+        int stored = 0;
+        SealedSegment sealed = null;
+        SealedSegment failed = null;
+        synchronized (writeLock) {
+            if (closed) return 0;
+
+            try {
+                if (segment != null && (now - segmentStart >= segmentLength || segment.size() >= MAX_SEGMENT_SIZE)) {
+                    sealed = detachSegment();
+                }
+
+                for (int i = 0; i < observations.size(); i++) {
+                    Observation obs = observations.get(i);
+                    if (obs instanceof WaveformObservation || obs.getPropertyName() == null) continue;
+
+                    double[] values = obs.valuesAsDoubleArray();
+                    if (values.length == 0 || Double.isNaN(values[0])) continue;
+
+                    if (segment == null) openSegment(now);
+                    long time = obs.getPhenomenonTime();
+                    SessionSnapshot.writeString(segment, segmentStrings, devDesc.getDeviceID());
+                    SessionSnapshot.writeString(segment, segmentStrings, obs.getPropertyName());
+                    segment.writeLong(time > 0 ? time : now);
+                    segment.writeDouble(values[0]);
+                    stored++;
+                }
+
+                if (segment != null) segment.flush();
+            } catch (IOException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot store the observations of " + devDesc.getDeviceID(), e);
+                failed = detachSegment();
+            }
+        }
+
+        if (sealed != null) {
+            try {
+                sealed.seal();
+            } catch (IOException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot seal a segment of the observation store", e);
+            }
+        }
+        if (failed != null) failed.abandon();
+        return stored;
+    }
+
+    /**
+     * Returns the aggregates of a property in a time interval
+     *
+     * @param tier
+     *      The tier, {@link #TIER_MINUTE} or {@link #TIER_HOUR}
+     *
+     * @param devId
+     *      The ID of the device, null to aggregate all the devices providing the property
+     *
+     * @param propertyName
+     *      The name of the property
+     *
+     * @param from
+     *      The beginning of the interval, in milliseconds
+     *
+     * @param to
+     *      The end of the interval, in milliseconds
+     *
+     * @return
+     *      The aggregates overlapping the interval, in chronological order
+     */
+    public List<Rollup> query(int tier, String devId, String propertyName, long from, long to) {
+        if (tier != TIER_MINUTE && tier != TIER_HOUR) throw new IllegalArgumentException("Unknown tier " + tier);
+
+        TreeMap<Long, Rollup> result = new TreeMap<Long, Rollup>();
+        String[] names = directory.list();
+        if (names == null || propertyName == null) return new ArrayList<Rollup>();
+
+        for (String name : names) {
+            long periodStart = parseName(name, TIER_PREFIX[tier]);
+            if (periodStart == -1 || periodStart + TIER_FILE_PERIOD[tier] <= from || periodStart >= to) continue;
+
+            RollupFile file;
+            try {
+                file = readRollups(new File(directory, name));
+            } catch (IOException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot read the aggregates " + name, e);
+                continue;
+            }
+            if (file == null) continue;
+
+            for (Rollup rollup : file.rollups.values()) {
+                if (!propertyName.equals(rollup.propertyName) || (devId != null && !devId.equals(rollup.deviceID))) continue;
+                if (rollup.getEndTime() <= from || rollup.startTime >= to) continue;
+
+                Rollup aggregate = result.get(rollup.startTime);
+                if (aggregate == null) {
+                    aggregate = new Rollup(devId, propertyName, rollup.startTime, rollup.length);
+                    result.put(rollup.startTime, aggregate);
+                }
+                aggregate.merge(rollup);
+            }
+        }
+        return new ArrayList<Rollup>(result.values());
+    }
+
+    /**
+     * Seal the segment being appended to and stop the compaction. The segments not yet rolled up
+     * are rolled up by the next store created on the same directory.
+     */
+    public void close() {
+        SealedSegment sealed;
+        synchronized (writeLock) {
+            closed = true;
+            sealed = detachSegment();
+        }
+
+        if (sealed != null) {
+            try {
+                sealed.seal();
+            } catch (IOException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot seal the last segment of the observation store", e);
+            }
+        }
+
+        synchronized (compactorLock) {
+            compactorLock.notifyAll();
+        }
+    }
+
+    /**
+     * Delete the temporary files left by a compaction interrupted by the death of the process,
+     * and find the first ID not used by the existing files. A file of aggregates that cannot be
+     * read makes the store fail, since the IDs it records could otherwise be reused.
+     */
+    private void recover() {
+        String[] names = directory.list();
+        if (names == null) return;
+
+        long maxId = 0;
+        for (String name : names) {
+            if (name.endsWith(".tmp")) {
+                new File(directory, name).delete();
+                continue;
+            }
+
+            long seq = parseName(name, SEGMENT_PREFIX);
+            if (seq != -1) {
+                maxId = Math.max(maxId, seq);
+                continue;
+            }
+
+            for (int tier = TIER_MINUTE; tier <= TIER_HOUR; tier++) {
+                if (parseName(name, TIER_PREFIX[tier]) == -1) continue;
+
+                RollupFile file;
+                try {
+                    file = readRollups(new File(directory, name));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot read the aggregates " + name, e);
+                }
+                if (file == null) continue;
+                maxId = Math.max(maxId, file.id);
+                for (Long source : file.sources) {
+                    maxId = Math.max(maxId, source);
+                }
+            }
+        }
+        nextSeq.set(maxId + 1);
+    }
+
+    /**
+     * Open a new segment, must be called holding the write lock
+     */
+    private void openSegment(long now) throws IOException {
+        long seq = nextSeq.getAndIncrement();
+        segmentFile = new FileOutputStream(new File(directory, SEGMENT_PREFIX + seq + SUFFIX));
+        segment = new DataOutputStream(new BufferedOutputStream(segmentFile, 8192));
+        segmentStrings = new HashMap<String, Integer>();
+        segmentSeq = seq;
+        segmentStart = now;
+        unsealed.add(seq);
+        segment.writeInt(SEGMENT_MAGIC);
+        segment.writeInt(VERSION);
+    }
+
+    /**
+     * Stop appending to the current segment, must be called holding the write lock. The segment
+     * is not rolled up until it's sealed or abandoned through the returned object, that must be
+     * done without holding the lock.
+     *
+     * @return
+     *      The segment detached, or null if no segment was open
+     */
+    private SealedSegment detachSegment() {
+        if (segment == null) return null;
+
+        SealedSegment result = new SealedSegment(segmentSeq, segmentFile, segment);
+        segment = null;
+        segmentFile = null;
+        segmentStrings = null;
+        return result;
+    }
+
+    /**
+     * Returns the sequence number of the oldest segment not yet sealed
+     *
+     * @return
+     *      The sequence number, segments before it can be rolled up
+     */
+    private long sealedBefore() {
+        synchronized (writeLock) {
+            return unsealed.isEmpty() ? Long.MAX_VALUE : unsealed.first();
+        }
+    }
+
+    /**
+     * A segment no longer appended to, waiting to be synced and closed
+     */
+    private final class SealedSegment {
+        private final long seq;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+
+        SealedSegment(long mSeq, FileOutputStream mFile, DataOutputStream mOut) {
+            seq = mSeq;
+            file = mFile;
+            out = mOut;
+        }
+
+        /**
+         * Sync the segment to the storage and close it
+         */
+        void seal() throws IOException {
+            try {
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                abandon();
+            }
+        }
+
+        /**
+         * Close the segment without syncing it, i.e. after a write error. The part written is
+         * still rolled up.
+         */
+        void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing left to do with this segment
+            }
+            synchronized (writeLock) {
+                unsealed.remove(seq);
+            }
+        }
+    }
+
+    private void compactLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (!closed) {
+            long start = System.nanoTime();
+            boolean worked = false;
+            try {
+                worked = compactStep(System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot compact the observation store", e);
+            }
+
+            long pause = IDLE_PAUSE;
+            if (worked) pause = Math.max(MIN_PAUSE, (System.nanoTime() - start) / 1000000 * PAUSE_RATIO);
+
+            synchronized (compactorLock) {
+                if (closed) return;
+                try {
+                    compactorLock.wait(pause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Do a single step of the compaction: roll up a segment or a file of the minute tier, or
+     * delete an expired file of the hour tier
+     *
+     * @return
+     *      True if there was something to do
+     */
+    private boolean compactStep(long now) throws IOException {
+        // Seal the segment even if nothing else is appended, so that its data gets rolled up
+        SealedSegment sealed = null;
+        synchronized (writeLock) {
+            if (segment != null && now - segmentStart >= segmentLength) sealed = detachSegment();
+        }
+        if (sealed != null) sealed.seal();
+
+        String[] names = directory.list();
+        if (names == null) return false;
+        long sealedBefore = sealedBefore();
+
+        long oldestSegment = Long.MAX_VALUE;
+        long oldestMinutes = Long.MAX_VALUE;
+        long oldestHours = Long.MAX_VALUE;
+        for (String name : names) {
+            long seq = parseName(name, SEGMENT_PREFIX);
+            if (seq != -1 && seq < sealedBefore) oldestSegment = Math.min(oldestSegment, seq);
+
+            long periodStart = parseName(name, TIER_PREFIX[TIER_MINUTE]);
+            if (periodStart != -1) oldestMinutes = Math.min(oldestMinutes, periodStart);
+
+            periodStart = parseName(name, TIER_PREFIX[TIER_HOUR]);
+            if (periodStart != -1) oldestHours = Math.min(oldestHours, periodStart);
+        }
+
+        if (oldestSegment != Long.MAX_VALUE) {
+            rollUpSegment(oldestSegment);
+            return true;
+        }
+        if (oldestMinutes != Long.MAX_VALUE && oldestMinutes + HOUR <= now - minuteRetention) {
+            rollUpMinutes(oldestMinutes);
+            return true;
+        }
+        if (hourRetention > 0 && oldestHours != Long.MAX_VALUE && oldestHours + DAY <= now - hourRetention) {
+            delete(tierFile(TIER_HOUR, oldestHours));
+            return true;
+        }
+        return false;
+    }
+
+    private void rollUpSegment(long seq) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + seq + SUFFIX);
+        Map<Long, Map<String, Rollup>> byPeriod = new HashMap<Long, Map<String, Rollup>>();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+        try {
+            if (in.readInt() != SEGMENT_MAGIC || in.readInt() != VERSION) throw new IOException("Not a segment");
+
+            List<String> strings = new ArrayList<String>();
+            while (true) {
+                String devId = SessionSnapshot.readString(in, strings);
+                String propertyName = SessionSnapshot.readString(in, strings);
+                long time = in.readLong();
+                double value = in.readDouble();
+
+                long start = time - time % MINUTE;
+                rollupOf(byPeriod, start - start % HOUR, devId, propertyName, start, MINUTE).add(value);
+            }
+        } catch (EOFException e) {
+            // End of the segment, possibly truncated by the death of the process while appending
+        } catch (IOException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Rolling up the valid part of the corrupted segment " + file, e);
+        } finally {
+            in.close();
+        }
+
+        for (Map.Entry<Long, Map<String, Rollup>> period : byPeriod.entrySet()) {
+            mergeInto(TIER_MINUTE, period.getKey(), seq, period.getValue().values());
+        }
+        delete(file);
+    }
+
+    private void rollUpMinutes(long periodStart) throws IOException {
+        File file = tierFile(TIER_MINUTE, periodStart);
+        RollupFile minutes = readRollups(file);
+        if (minutes == null) {
+            delete(file);
+            return;
+        }
+
+        Map<Long, Map<String, Rollup>> byPeriod = new HashMap<Long, Map<String, Rollup>>();
+        for (Rollup rollup : minutes.rollups.values()) {
+            long start = rollup.startTime - rollup.startTime % HOUR;
+            rollupOf(byPeriod, start - start % DAY, rollup.deviceID, rollup.propertyName, start, HOUR).merge(rollup);
+        }
+
+        for (Map.Entry<Long, Map<String, Rollup>> period : byPeriod.entrySet()) {
+            mergeInto(TIER_HOUR, period.getKey(), minutes.id, period.getValue().values());
+        }
+        delete(file);
+    }
+
+    /**
+     * Merge aggregates into a file of a tier, unless they were already merged before the death of
+     * the process. If the file exists but cannot be read the step is aborted, rather than
+     * replacing the file and losing the aggregates it holds.
+     */
+    private void mergeInto(int tier, long periodStart, long sourceId, Collection<Rollup> rollups) throws IOException {
+        File file = tierFile(tier, periodStart);
+        RollupFile target = readRollups(file);
+        if (target == null) {
+            target = new RollupFile(tier, nextSeq.getAndIncrement(), periodStart);
+        } else if (target.sources.contains(sourceId)) {
+            return;
+        }
+
+        for (Rollup rollup : rollups) {
+            String key = keyOf(rollup.deviceID, rollup.propertyName, rollup.startTime);
+            Rollup existing = target.rollups.get(key);
+            if (existing == null) {
+                existing = new Rollup(rollup.deviceID, rollup.propertyName, rollup.startTime, rollup.length);
+                target.rollups.put(key, existing);
+            }
+            existing.merge(rollup);
+        }
+        target.sources.add(sourceId);
+        writeRollups(file, target);
+    }
+
+    private static Rollup rollupOf(Map<Long, Map<String, Rollup>> byPeriod, long periodStart, String devId,
+                                   String propertyName, long start, long length) {
+        Map<String, Rollup> rollups = byPeriod.get(periodStart);
+        if (rollups == null) {
+            rollups = new LinkedHashMap<String, Rollup>();
+            byPeriod.put(periodStart, rollups);
+        }
+
+        String key = keyOf(devId, propertyName, start);
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            rollup = new Rollup(devId, propertyName, start, length);
+            rollups.put(key, rollup);
+        }
+        return rollup;
+    }
+
+    private static String keyOf(String devId, String propertyName, long start) {
+        return devId + '\u0000' + propertyName + '\u0000' + start;
+    }
+
+    private File tierFile(int tier, long periodStart) {
+        return new File(directory, TIER_PREFIX[tier] + periodStart + SUFFIX);
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete() && file.exists()) throw new IOException("Cannot delete " + file);
+    }
+
+    /**
+     * Returns the number in the name of a file of the store
+     *
+     * @return
+     *      The number, or -1 if the name doesn't have the prefix
+     */
+    private static long parseName(String name, String prefix) {
+        if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write a file of a tier, replacing it atomically. The file ends with a CRC-32 of the content.
+     */
+    private static void writeRollups(File file, RollupFile rollups) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        out.writeInt(ROLLUP_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rollups.tier);
+        out.writeLong(rollups.id);
+        out.writeLong(rollups.periodStart);
+
+        SessionSnapshot.writeVarInt(out, rollups.sources.size());
+        for (Long source : rollups.sources) {
+            out.writeLong(source);
+        }
+
+        SessionSnapshot.writeVarInt(out, rollups.rollups.size());
+        for (Rollup rollup : rollups.rollups.values()) {
+            SessionSnapshot.writeString(out, strings, rollup.deviceID);
+            SessionSnapshot.writeString(out, strings, rollup.propertyName);
+            out.writeLong(rollup.startTime);
+            out.writeLong(rollup.count);
+            out.writeDouble(rollup.min);
+            out.writeDouble(rollup.max);
+            out.writeDouble(rollup.mean);
+            out.writeDouble(rollup.m2);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Read a file of a tier. A file that is read but not valid, i.e. because the storage damaged
+     * it, is discarded like a missing one.
+     *
+     * @return
+     *      The content of the file, or null if the file doesn't exist or is not valid
+     *
+     * @throws IOException
+     *      If the file exists but cannot be read
+     */
+    private static RollupFile readRollups(File file) throws IOException {
+        byte[] data;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                data = new byte[(int) file.length()];
+                new DataInputStream(in).readFully(data);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Also thrown when the file exists but cannot be opened
+            if (file.exists()) throw e;
+            return null;
+        }
+
+        try {
+            if (data.length < 36) throw new EOFException("Truncated aggregates");
+
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 4);
+            int expected = ((data[data.length - 4] & 0xff) << 24) | ((data[data.length - 3] & 0xff) << 16) |
+                    ((data[data.length - 2] & 0xff) << 8) | (data[data.length - 1] & 0xff);
+            if ((int) crc.getValue() != expected) throw new IOException("Checksum mismatch");
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+            if (in.readInt() != ROLLUP_MAGIC) throw new IOException("Not a file of aggregates");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unknown aggregates version " + version);
+
+            int tier = in.readInt();
+            if (tier != TIER_MINUTE && tier != TIER_HOUR) throw new IOException("Unknown tier " + tier);
+            RollupFile result = new RollupFile(tier, in.readLong(), in.readLong());
+
+            int sourceCount = SessionSnapshot.readVarInt(in);
+            for (int i = 0; i < sourceCount; i++) {
+                result.sources.add(in.readLong());
+            }
+
+            List<String> strings = new ArrayList<String>();
+            int count = SessionSnapshot.readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                Rollup rollup = new Rollup(SessionSnapshot.readString(in, strings), SessionSnapshot.readString(in, strings),
+                        in.readLong(), TIER_LENGTH[tier]);
+                rollup.count = in.readLong();
+                rollup.min = in.readDouble();
+                rollup.max = in.readDouble();
+                rollup.mean = in.readDouble();
+                rollup.m2 = in.readDouble();
+                result.rollups.put(keyOf(rollup.deviceID, rollup.propertyName, rollup.startTime), rollup);
+            }
+            return result;
+        } catch (IOException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Discarding the invalid aggregates " + file, e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class receives the calls made by Device Adapters and hands them over to a delegate
+ * through a {@link StripedExecutor}, so that the Protocol Adapter processes them in parallel on several
+ * threads rather than on whatever Binder thread delivered them.<br>
+ * Calls about the same device are always delivered to the delegate one at a time and in the order
+ * they were received, while calls about different devices are delivered in parallel. Log messages
+ * and the other calls not related to a device are ordered by Device Adapter ID. Every call returns
+ * as soon as it has been queued, so errors thrown by the delegate are only logged, and calls
+ * received after the executor has been shut down are logged and dropped.<br>
+ * When the queue of a device is full, the regular calls wait for room, slowing down the sender.
+ * The oneway calls (logBatch) never wait, since that would hold back all the
+ * following oneway calls to the listener: they are dropped instead, and counted by
+ * {@link #getDroppedCalls()}.<br>
+ * The data waiting in the queues is charged to the default {@link MemoryBudget}, but never shed,
+ * since dropping it would break the order of the calls.<br>
+ * Traced observations are stamped with the {@link PAAndroidConstants.TRACE_STAGE#PA_RECEIVED}
+ * stage as soon as they are received.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class OrderedDeviceAdapterListener extends IDeviceAdapterListener.Stub {
+
+    private final IDeviceAdapterListener delegate;
+    private final StripedExecutor executor;
+    private final AtomicLong droppedCalls = new AtomicLong(0);
+
+    // The queued data is only accounted, never shed
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            return 0;
+        }
+    };
+    private final MemoryBudget.Account account = MemoryBudget.getDefault().register("OrderedDeviceAdapterListener", shedder);
+
+    /**
+     * Create a listener delivering the calls on a new executor with one stripe for every available
+     * processor.
+     *
+     * @param mDelegate
+     *      The listener processing the calls
+     */
+    public OrderedDeviceAdapterListener(IDeviceAdapterListener mDelegate) {
+        this(mDelegate, new StripedExecutor("OrderedDeviceAdapterListener"));
+    }
+
+    /**
+     * Create a listener delivering the calls on the specified executor.
+     *
+     * @param mDelegate
+     *      The listener processing the calls
+     *
+     * @param mExecutor
+     *      The executor the calls are delivered on, may be shared with other listeners
+     */
+    public OrderedDeviceAdapterListener(IDeviceAdapterListener mDelegate, StripedExecutor mExecutor) {
+        if (mDelegate == null || mExecutor == null) {
+            throw new IllegalArgumentException("Delegate and executor cannot be null");
+        }
+        delegate = mDelegate;
+        executor = mExecutor;
+    }
+
+    /**
+     * Returns the executor the calls are delivered on
+     *
+     * @return
+     *      The executor
+     */
+    public StripedExecutor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void registerDevice(final DeviceDescription devDesc, final String daId) {
+        submit(keyOf(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.registerDevice(devDesc, daId);
+            }
+        });
+    }
+
+    @Override
+    public void pushData(final List<Observation> observations, final DeviceDescription devDesc) {
+        Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.PA_RECEIVED);
+        submit(keyOf(devDesc), Observation.estimateParcelSize(observations), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.pushData(observations, devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void deregisterDevice(final DeviceDescription devDesc) {
+        submit(keyOf(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.deregisterDevice(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void registerDeviceProperties(final DeviceDescription devDesc) {
+        submit(keyOf(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.registerDeviceProperties(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void deviceDisconnected(final DeviceDescription devDesc) {
+        submit(keyOf(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.deviceDisconnected(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void log(final int logLevel, final String daId, final String message) {
+        submit(daId, new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.log(logLevel, daId, message);
+            }
+        });
+    }
+
+    @Override
+    public void logBatch(final LogBatch batch) {
+        submitOneway(batch.size() > 0 ? batch.getDaId(0) : null, 0, new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.logBatch(batch);
+            }
+        });
+    }
+
+    @Override
+    public void pushDataWithPriority(final List<Observation> observations, final DeviceDescription devDesc,
+                                     final int priority) {
+        Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.PA_RECEIVED);
+        submit(keyOf(devDesc), Observation.estimateParcelSize(observations), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.pushDataWithPriority(observations, devDesc, priority);
+            }
+        });
+    }
+
+    @Override
+    public void pushRawData(final ObservationPayload payload) {
+        submit(payload.getDeviceID(), payload.getPayloadSize(), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                delegate.pushRawData(payload);
+            }
+        });
+    }
+
+    /**
+     * Split the batch by device, so that the data of every device is delivered in order with the
+     * data it pushed through the other calls. The devices whose description is not included in the
+     * batch are passed as placeholders with the device ID only, see
+     * {@link MultiDeviceBatch#resolveDevice(int, DeviceRegistry)}
+     */
+    @Override
+    public void pushMultiData(MultiDeviceBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            pushDataWithPriority(batch.getObservations(i), batch.resolveDevice(i, null), batch.getPriority());
+        }
+    }
+
+    /**
+     * Returns the number of oneway calls dropped because the queue of their device was full
+     *
+     * @return
+     *      The number of calls dropped
+     */
+    public long getDroppedCalls() {
+        return droppedCalls.get();
+    }
+
+    private void submit(String key, Call call) {
+        submit(key, 0, call);
+    }
+
+    // Queue a call, waiting for room in the queue of the device
+    private void submit(String key, long bytes, Call call) {
+        account.add(bytes);
+        try {
+            executor.execute(key, task(bytes, call));
+        } catch (RejectedExecutionException e) {
+            account.release(bytes);
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Dropping a call to the listener", e);
+        }
+    }
+
+    // Queue a oneway call, dropping it if the queue of the device is full
+    private void submitOneway(String key, long bytes, Call call) {
+        account.add(bytes);
+        try {
+            if (executor.tryExecute(key, task(bytes, call))) return;
+            droppedCalls.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Dropping a call to the listener", e);
+        }
+        account.release(bytes);
+    }
+
+    private Runnable task(final long bytes, final Call call) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                account.release(bytes);
+                try {
+                    call.run();
+                } catch (RemoteException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot deliver a call to the listener", e);
+                }
+            }
+        };
+    }
+
+    private static String keyOf(DeviceDescription devDesc) {
+        return devDesc != null ? devDesc.getDeviceID() : null;
+    }
+
+    /**
+     * A call to the delegate
+     */
+    private interface Call {
+        void run() throws RemoteException;
+    }
+
+}
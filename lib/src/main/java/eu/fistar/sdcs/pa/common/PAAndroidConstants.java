@@ -31,7 +31,7 @@ package eu.fistar.sdcs.pa.common;
 public class PAAndroidConstants {
 
     // The version of the library
-    public static final String PA_LIB_VERSION = "3.3.1";
+    public static final String PA_LIB_VERSION = "3.5.0";
 
     // Intent related constants
     public static final String PA_PACKAGE = "eu.fistar.sdcs.pa";
@@ -71,6 +71,24 @@ public class PAAndroidConstants {
         public static final String JSON_NAME_SEARCH_STRINGS = "searchStrings";
         public static final String JSON_NAME_APP_ID = "appId";
         public static final String JSON_NAME_APPLICATION = "application";
+
+        // Field names of the data forwarded to the SDCS, see SdcsJsonEncoder
+        public static final String JSON_NAME_TYPE = "type";
+        public static final String JSON_NAME_DEVICE = "device";
+        public static final String JSON_NAME_SERIAL_NUMBER = "serialNumber";
+        public static final String JSON_NAME_MODEL_NAME = "modelName";
+        public static final String JSON_NAME_MANUFACTURER_NAME = "manufacturerName";
+        public static final String JSON_NAME_ADDRESS = "address";
+        public static final String JSON_NAME_SENSORS = "sensors";
+        public static final String JSON_NAME_SENSOR_NAME = "sensorName";
+        public static final String JSON_NAME_PROPERTY_NAME = "propertyName";
+        public static final String JSON_NAME_MEASUREMENT_UNIT = "measurementUnit";
+        public static final String JSON_NAME_OBSERVATIONS = "observations";
+        public static final String JSON_NAME_VALUES = "values";
+        public static final String JSON_NAME_PHENOMENON_TIME = "phenomenonTime";
+        public static final String JSON_NAME_DURATION = "duration";
+        public static final String JSON_NAME_SAMPLE_RATE = "sampleRate";
+        public static final String JSON_NAME_SAMPLES = "samples";
     }
 
     public static class DA_DISCOVERY {
@@ -92,4 +110,19 @@ public class PAAndroidConstants {
         public static final int ERROR = 3;
     }
 
+    public static class PRIORITY {
+        public static final int BULK = 0;
+        public static final int NORMAL = 1;
+        public static final int ALARM = 2;
+    }
+
+    public static class TRACE_STAGE {
+        public static final int CAPTURED = 0;
+        public static final int DA_SENT = 1;
+        public static final int PA_RECEIVED = 2;
+        public static final int PA_DISPATCHED = 3;
+        public static final int APP_DELIVERED = 4;
+        public static final int COUNT = 5;
+    }
+
 }
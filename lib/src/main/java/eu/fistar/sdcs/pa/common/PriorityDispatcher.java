@@ -0,0 +1,493 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class dispatches pushes of observations through separate lanes, one for every priority
+ * defined in {@link PAAndroidConstants.PRIORITY}.<br>
+ * Every lane has its own queue and its own thread, so an alarm never waits behind a backlog of
+ * bulk data. Pushes of the same lane are delivered in the order they were dispatched, while pushes
+ * of higher priority lanes may overtake the ones of lower priority lanes. Every lane has a latency
+ * budget and keeps track of queue depth, delivered pushes and pushes delivered over budget. The
+ * bulk and normal lanes are bounded and drop their oldest pushes when full, the alarm lane never
+ * drops. Queued pushes are charged to the default {@link MemoryBudget}: when it's exceeded, the
+ * oldest pushes of the bulk lane and then of the normal lane are dropped.<br>
+ * The dispatcher can be used both on the sender side, to deliver pushes to a listener, and on the
+ * receiver side, to process the pushes received. The depth of every lane is reported to the
+ * default {@link MetricsRegistry} as a queue named after the dispatcher and the priority.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class PriorityDispatcher {
+
+    // Default values
+    public static final int DEFAULT_CAPACITY = 1024;                       // Pushes per lane
+    public static final long[] DEFAULT_LATENCY_BUDGETS = {5000, 500, 50};  // Milliseconds, by priority
+
+    private static final int LANES = PAAndroidConstants.PRIORITY.ALARM + 1;
+
+    // Used to name the dispatchers created without a name
+    private static final AtomicInteger instances = new AtomicInteger(0);
+
+    /**
+     * The destination of the pushes
+     */
+    public interface Sink {
+
+        /**
+         * Deliver a push
+         *
+         * @param observations
+         *      The data to deliver
+         *
+         * @param devDesc
+         *      The device who supplies the data
+         *
+         * @param priority
+         *      The priority of the data
+         */
+        void deliver(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException;
+    }
+
+    private final String name;
+    private final Lane[] lanes = new Lane[LANES];
+
+    // Frees memory dropping the oldest pushes of the lower priority lanes
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            if (level == MemoryBudget.SHED_BULK) return lanes[PAAndroidConstants.PRIORITY.BULK].shed(bytes);
+            if (level == MemoryBudget.SHED_NORMAL) return lanes[PAAndroidConstants.PRIORITY.NORMAL].shed(bytes);
+            return 0;
+        }
+    };
+    private final MemoryBudget.Account account = MemoryBudget.getDefault().register("PriorityDispatcher", shedder);
+
+    /**
+     * Create a dispatcher with default capacity and latency budgets
+     *
+     * @param sink
+     *      The destination of the pushes
+     */
+    public PriorityDispatcher(Sink sink) {
+        this(sink, DEFAULT_CAPACITY, DEFAULT_LATENCY_BUDGETS);
+    }
+
+    /**
+     * Create a dispatcher
+     *
+     * @param sink
+     *      The destination of the pushes
+     *
+     * @param capacity
+     *      The maximum number of pushes waiting in the bulk and normal lanes
+     *
+     * @param latencyBudgets
+     *      The latency budget of every lane in milliseconds, indexed by priority
+     */
+    public PriorityDispatcher(Sink sink, int capacity, long[] latencyBudgets) {
+        this("PriorityDispatcher-" + instances.incrementAndGet(), sink, capacity, latencyBudgets);
+    }
+
+    /**
+     * Create a dispatcher with a name, used to name its threads and the queues reported to the
+     * {@link MetricsRegistry}
+     *
+     * @param mName
+     *      The name of the dispatcher
+     *
+     * @param sink
+     *      The destination of the pushes
+     *
+     * @param capacity
+     *      The maximum number of pushes waiting in the bulk and normal lanes
+     *
+     * @param latencyBudgets
+     *      The latency budget of every lane in milliseconds, indexed by priority
+     */
+    public PriorityDispatcher(String mName, Sink sink, int capacity, long[] latencyBudgets) {
+        if (mName == null) throw new IllegalArgumentException("Name cannot be null");
+        if (sink == null) throw new IllegalArgumentException("Sink cannot be null");
+        if (latencyBudgets.length != LANES) throw new IllegalArgumentException("A budget is needed for every lane");
+
+        name = mName;
+        for (int i = 0; i < LANES; i++) {
+            int laneCapacity = (i == PAAndroidConstants.PRIORITY.ALARM ? Integer.MAX_VALUE : capacity);
+            lanes[i] = new Lane(name + "-" + i, sink, i, laneCapacity, latencyBudgets[i], account);
+        }
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to a Protocol Adapter that registered without options,
+     * i.e. one running a version of the library before 3.5.0
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(IDeviceAdapterListener listener) {
+        return sinkFor(listener, null, null);
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to a Protocol Adapter. Waveforms and traces are only
+     * delivered if the Protocol Adapter accepts extended observations, otherwise the observations
+     * are converted with {@link Observation#withoutExtensions(List)}. Without options the Protocol
+     * Adapter may not implement pushDataWithPriority, so the data is delivered with pushData and
+     * the priority is not transferred.
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter pushing the data, used to record the metrics
+     *
+     * @param options
+     *      The options received upon registration, may be null
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(final IDeviceAdapterListener listener, final String daId, ListenerOptions options) {
+        final boolean legacy = (options == null);
+        final boolean extended = options != null && options.acceptsExtendedObservations();
+        return new Sink() {
+            @Override
+            public void deliver(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+                Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.DA_SENT);
+                long start = System.nanoTime();
+                List<Observation> delivered = (extended ? observations : Observation.withoutExtensions(observations));
+                if (legacy) listener.pushData(delivered, devDesc);
+                else listener.pushDataWithPriority(delivered, devDesc, priority);
+                MetricsRegistry.getDefault().recordPush(daId, observations, devDesc, System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to an Application that registered without options,
+     * i.e. one running a version of the library before 3.5.0
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(IProtocolAdapterListener listener) {
+        return sinkFor(listener, null, null);
+    }
+
+    /**
+     * Returns a Sink delivering the pushes to an Application. Waveforms and traces are only
+     * delivered if the Application accepts extended observations, otherwise the observations are
+     * converted with {@link Observation#withoutExtensions(List)}. Nothing is delivered to the
+     * Applications that only want the matches of their rules. Without options the Application may
+     * not implement pushDataWithPriority, so the data is delivered with pushData and the priority
+     * is not transferred.
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @param registry
+     *      The registry of the Protocol Adapter, used to find the Device Adapter handling the
+     *      device when recording the metrics, may be null
+     *
+     * @param options
+     *      The options the Application registered with, may be null
+     *
+     * @return
+     *      The Sink
+     */
+    public static Sink sinkFor(final IProtocolAdapterListener listener, final DeviceRegistry registry,
+                               ListenerOptions options) {
+        final boolean legacy = (options == null);
+        final boolean extended = options != null && options.acceptsExtendedObservations();
+        final boolean rulesOnly = options != null && options.isRulesOnly();
+        return new Sink() {
+            @Override
+            public void deliver(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+                if (rulesOnly) return;
+                Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.PA_DISPATCHED);
+                long start = System.nanoTime();
+                List<Observation> delivered = (extended ? observations : Observation.withoutExtensions(observations));
+                if (legacy) listener.pushData(delivered, devDesc);
+                else listener.pushDataWithPriority(delivered, devDesc, priority);
+                String daId = (registry != null && devDesc != null ? registry.getDaId(devDesc.getDeviceID()) : null);
+                MetricsRegistry.getDefault().recordPush(daId, observations, devDesc, System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Enqueue a push in the lane of its priority. This method returns immediately.
+     *
+     * @param observations
+     *      The data to deliver
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     *
+     * @param priority
+     *      The priority of the data, one of the values defined in {@link PAAndroidConstants.PRIORITY}
+     */
+    public void dispatch(List<Observation> observations, DeviceDescription devDesc, int priority) {
+        laneFor(priority).enqueue(new Push(observations, devDesc));
+    }
+
+    /**
+     * Stop the threads of all the lanes. Pushes still queued are discarded.
+     */
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+            MetricsRegistry.getDefault().removeQueue(lane.getName());
+        }
+        account.close();
+    }
+
+    /**
+     * Returns the name of the dispatcher
+     *
+     * @return
+     *      The name, also used by the threads and the queues of the lanes
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of pushes waiting in a lane
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The number of pushes waiting
+     */
+    public int getQueueDepth(int priority) {
+        return laneFor(priority).queue.size();
+    }
+
+    /**
+     * Returns the maximum number of pushes that have been waiting in a lane at the same time
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The maximum queue depth
+     */
+    public long getMaxQueueDepth(int priority) {
+        return laneFor(priority).maxDepth.get();
+    }
+
+    /**
+     * Returns the number of pushes delivered by a lane
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The number of pushes delivered
+     */
+    public long getDelivered(int priority) {
+        return laneFor(priority).delivered.get();
+    }
+
+    /**
+     * Returns the number of pushes of a lane delivered after their latency budget expired
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The number of pushes over budget
+     */
+    public long getOverBudget(int priority) {
+        return laneFor(priority).overBudget.get();
+    }
+
+    /**
+     * Returns the number of pushes of a lane dropped because the lane was full
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The number of pushes dropped
+     */
+    public long getDropped(int priority) {
+        return laneFor(priority).dropped.get();
+    }
+
+    /**
+     * Returns the maximum time a push of a lane waited before being delivered
+     *
+     * @param priority
+     *      The priority of the lane
+     *
+     * @return
+     *      The maximum latency, in milliseconds
+     */
+    public long getMaxLatency(int priority) {
+        return TimeUnit.NANOSECONDS.toMillis(laneFor(priority).maxLatency.get());
+    }
+
+    private Lane laneFor(int priority) {
+        if (priority < 0) return lanes[PAAndroidConstants.PRIORITY.BULK];
+        if (priority >= LANES) return lanes[PAAndroidConstants.PRIORITY.ALARM];
+        return lanes[priority];
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    /**
+     * A push waiting in a lane
+     */
+    private static final class Push {
+        final List<Observation> observations;
+        final DeviceDescription devDesc;
+        final long bytes;
+        final long enqueueTime = System.nanoTime();
+
+        Push(List<Observation> observations, DeviceDescription devDesc) {
+            this.observations = observations;
+            this.devDesc = devDesc;
+            this.bytes = Observation.estimateParcelSize(observations);
+        }
+    }
+
+    /**
+     * A lane, made of a queue and the thread delivering its pushes
+     */
+    private static final class Lane extends Thread {
+        final Sink sink;
+        final int priority;
+        final long budget;
+        final LinkedBlockingDeque<Push> queue;
+        final MemoryBudget.Account account;
+
+        final AtomicLong maxDepth = new AtomicLong(0);
+        final AtomicLong delivered = new AtomicLong(0);
+        final AtomicLong overBudget = new AtomicLong(0);
+        final AtomicLong dropped = new AtomicLong(0);
+        final AtomicLong maxLatency = new AtomicLong(0);
+
+        Lane(String name, Sink sink, int priority, int capacity, long budgetMillis, MemoryBudget.Account account) {
+            super(name);
+            this.sink = sink;
+            this.account = account;
+            this.priority = priority;
+            this.budget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+            this.queue = new LinkedBlockingDeque<Push>(capacity);
+
+            setDaemon(true);
+            setPriority(priority == PAAndroidConstants.PRIORITY.ALARM ? Thread.MAX_PRIORITY :
+                    priority == PAAndroidConstants.PRIORITY.BULK ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+            start();
+        }
+
+        void enqueue(Push push) {
+            account.add(push.bytes);
+            while (!queue.offerLast(push)) {
+                Push old = queue.pollFirst();
+                if (old != null) {
+                    dropped.incrementAndGet();
+                    account.release(old.bytes);
+                }
+            }
+            int depth = queue.size();
+            updateMax(maxDepth, depth);
+            MetricsRegistry.getDefault().setQueueDepth(getName(), depth);
+        }
+
+        // Drop the oldest pushes until enough memory is freed
+        long shed(long bytes) {
+            long freed = 0;
+            Push old;
+            while (freed < bytes && (old = queue.pollFirst()) != null) {
+                dropped.incrementAndGet();
+                account.release(old.bytes);
+                freed += old.bytes;
+            }
+            MetricsRegistry.getDefault().setQueueDepth(getName(), queue.size());
+            return freed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                deliverPushes();
+            } finally {
+                // The depth may have been set again since shutdown() removed it
+                MetricsRegistry.getDefault().removeQueue(getName());
+            }
+        }
+
+        private void deliverPushes() {
+            while (!isInterrupted()) {
+                Push push;
+                try {
+                    push = queue.takeFirst();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                MetricsRegistry.getDefault().setQueueDepth(getName(), queue.size());
+                account.release(push.bytes);
+
+                long latency = System.nanoTime() - push.enqueueTime;
+                updateMax(maxLatency, latency);
+                if (latency > budget) overBudget.incrementAndGet();
+
+                try {
+                    sink.deliver(push.observations, push.devDesc, priority);
+                    delivered.incrementAndGet();
+                } catch (RemoteException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot deliver data with priority " + priority, e);
+                } catch (RuntimeException e) {
+                    Log.e(PAAndroidConstants.PA_LOGTAG, "Error delivering data with priority " + priority, e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class contains the summary of the values of a property over a time interval, for a single
+ * device or for many devices: count, minimum, maximum, mean, variance and approximate quantiles
+ * (see {@link ValueSketch}).<br>
+ * Only the buckets of the sketch in use are transferred, and summaries can be merged, i.e. to
+ * combine the summaries of different devices or different intervals obtained separately.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class PropertySummary implements Parcelable {
+
+    private String deviceID;            // The device, null if the summary covers many devices
+    private String propertyName;
+    private long startTime;             // The beginning of the interval, in milliseconds
+    private long endTime;               // The end of the interval, in milliseconds
+    private ValueSketch sketch;
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<PropertySummary> CREATOR
+            = new Parcelable.Creator<PropertySummary>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public PropertySummary createFromParcel(Parcel in) {
+            return new PropertySummary(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public PropertySummary[] newArray(int size) {
+            return new PropertySummary[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        deviceID = in.readString();
+        propertyName = in.readString();
+        startTime = in.readLong();
+        endTime = in.readLong();
+        sketch = ValueSketch.readFromParcel(in);
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(deviceID);
+        out.writeString(propertyName);
+        out.writeLong(startTime);
+        out.writeLong(endTime);
+        sketch.writeToParcel(out);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public PropertySummary(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Create an empty summary
+     *
+     * @param mDeviceID
+     *      The ID of the device, null if the summary covers many devices
+     *
+     * @param mPropertyName
+     *      The name of the property
+     *
+     * @param mStartTime
+     *      The beginning of the interval, in milliseconds
+     *
+     * @param mEndTime
+     *      The end of the interval, in milliseconds
+     */
+    public PropertySummary(String mDeviceID, String mPropertyName, long mStartTime, long mEndTime) {
+        this(mDeviceID, mPropertyName, mStartTime, mEndTime, new ValueSketch());
+    }
+
+    /**
+     * Create a summary of the values of a sketch
+     *
+     * @param mDeviceID
+     *      The ID of the device, null if the summary covers many devices
+     *
+     * @param mPropertyName
+     *      The name of the property
+     *
+     * @param mStartTime
+     *      The beginning of the interval, in milliseconds
+     *
+     * @param mEndTime
+     *      The end of the interval, in milliseconds
+     *
+     * @param mSketch
+     *      The values of the property, not copied
+     */
+    public PropertySummary(String mDeviceID, String mPropertyName, long mStartTime, long mEndTime, ValueSketch mSketch) {
+        deviceID = mDeviceID;
+        propertyName = mPropertyName;
+        startTime = mStartTime;
+        endTime = mEndTime;
+        sketch = mSketch;
+    }
+
+    /**
+     * Add the values of another summary of the same property to this one. The interval becomes the
+     * smallest one containing both, and if the devices differ the summary covers many devices.
+     *
+     * @param other
+     *      The summary to merge
+     */
+    public void merge(PropertySummary other) {
+        if (deviceID != null && !deviceID.equals(other.deviceID)) deviceID = null;
+        if (other.getCount() > 0 || getCount() == 0) {
+            startTime = (getCount() > 0 ? Math.min(startTime, other.startTime) : other.startTime);
+            endTime = (getCount() > 0 ? Math.max(endTime, other.endTime) : other.endTime);
+        }
+        sketch.merge(other.sketch);
+    }
+
+    /**
+     * Returns the ID of the device
+     *
+     * @return
+     *      The ID of the device, or null if the summary covers many devices
+     */
+    public String getDeviceID() {
+        return deviceID;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Returns the sketch holding the values of the summary
+     *
+     * @return
+     *      The sketch, shared with the summary
+     */
+    public ValueSketch getSketch() {
+        return sketch;
+    }
+
+    public long getCount() {
+        return sketch.getCount();
+    }
+
+    public double getMin() {
+        return sketch.getMin();
+    }
+
+    public double getMax() {
+        return sketch.getMax();
+    }
+
+    public double getMean() {
+        return sketch.getMean();
+    }
+
+    public double getVariance() {
+        return sketch.getVariance();
+    }
+
+    public double getStandardDeviation() {
+        return sketch.getStandardDeviation();
+    }
+
+    /**
+     * Returns an approximation of a quantile of the values
+     *
+     * @param quantile
+     *      The quantile, between 0 and 1 (i.e. 0.5 for the median)
+     *
+     * @return
+     *      The approximate value of the quantile, or NaN if there are no values
+     */
+    public double getQuantile(double quantile) {
+        return sketch.getQuantile(quantile);
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Device ID: "+deviceID+"\nProperty Name: "+propertyName+"\nStart Time: "+startTime+
+                "\nEnd Time: "+endTime+"\nCount: "+getCount()+"\nMin: "+getMin()+"\nMax: "+getMax()+
+                "\nMean: "+getMean()+"\nMedian: "+getQuantile(0.5)+"\n";
+    }
+
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This Class contains the interfaces of demand-driven streams used by {@link ListenerPublisher},
+ * together with some operators.<br>
+ * The interfaces have the same methods and contract as the ones in java.util.concurrent.Flow,
+ * which is only available on recent versions of Android: a Subscriber receives items only after
+ * requesting them through its Subscription, so a slow consumer is never flooded. Adapting them to
+ * other reactive libraries only takes a thin wrapper.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public final class ReactiveFlow {
+
+    // The default maximum number of items of a window
+    public static final int DEFAULT_MAX_WINDOW_ITEMS = 1024;
+
+    private static ScheduledExecutorService timer;     // Lazily created, guarded by the class
+
+    private ReactiveFlow() {}
+
+    /**
+     * A producer of items that are received by Subscribers upon demand
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Add a Subscriber, that receives onSubscribe and then items as it requests them
+         *
+         * @param subscriber
+         *      The Subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. The methods of a Subscriber are never called concurrently.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called before any other method, with the Subscription used to request items
+         *
+         * @param subscription
+         *      The Subscription
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item, only if it has been requested
+         *
+         * @param item
+         *      The item
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the stream fails. No other method is called afterwards.
+         *
+         * @param throwable
+         *      The cause of the failure
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when the stream ends. No other method is called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and a Subscriber
+     */
+    public interface Subscription {
+
+        /**
+         * Request more items. Items are delivered as soon as they're available.
+         *
+         * @param n
+         *      The number of items, must be positive
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items. Some items may still be delivered while the cancellation is
+         * processed.
+         */
+        void cancel();
+    }
+
+    /**
+     * A component that is both a Subscriber and a Publisher, typically transforming the items
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {}
+
+    /**
+     * Group the items of a stream in lists of a maximum size. A list is emitted as soon as it's
+     * full, or when the maximum delay has elapsed since the previous one and it's not empty.
+     * Items are requested from the source one list at a time, so no more than the maximum size of
+     * items is ever buffered, even when lists are emitted before being full.
+     *
+     * @param source
+     *      The stream of items
+     *
+     * @param maxSize
+     *      The maximum number of items of every list
+     *
+     * @param maxDelayMillis
+     *      The maximum time an item waits before being emitted, 0 to only emit full lists
+     *
+     * @return
+     *      The stream of lists, accepting a single Subscriber
+     */
+    public static <T> Publisher<List<T>> batch(Publisher<T> source, int maxSize, long maxDelayMillis) {
+        if (maxSize <= 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Size must be positive and delay cannot be negative");
+        }
+        BatchingProcessor<T> processor = new BatchingProcessor<T>(maxSize, maxDelayMillis);
+        source.subscribe(processor);
+        return processor;
+    }
+
+    /**
+     * Group the items of a stream in tumbling time windows of at most
+     * {@link #DEFAULT_MAX_WINDOW_ITEMS} items, see {@link #window(Publisher, long, int)}
+     *
+     * @param source
+     *      The stream of items
+     *
+     * @param windowMillis
+     *      The length of the windows, in milliseconds
+     *
+     * @return
+     *      The stream of windows, accepting a single Subscriber
+     */
+    public static <T> Publisher<List<T>> window(Publisher<T> source, long windowMillis) {
+        return window(source, windowMillis, DEFAULT_MAX_WINDOW_ITEMS);
+    }
+
+    /**
+     * Group the items of a stream in tumbling time windows. Empty windows are not emitted, and a
+     * window reaching the maximum number of items is emitted straight away, so no more than that
+     * number of items is ever requested from the source or buffered.
+     *
+     * @param source
+     *      The stream of items
+     *
+     * @param windowMillis
+     *      The length of the windows, in milliseconds
+     *
+     * @param maxItems
+     *      The maximum number of items of every window
+     *
+     * @return
+     *      The stream of windows, accepting a single Subscriber
+     */
+    public static <T> Publisher<List<T>> window(Publisher<T> source, long windowMillis, int maxItems) {
+        if (windowMillis <= 0) throw new IllegalArgumentException("Window length must be positive");
+        return batch(source, maxItems, windowMillis);
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ReactiveFlow-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    // Add two non negative amounts of demand, capping at Long.MAX_VALUE as unbounded
+    static long addDemand(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * The operator grouping items in lists, see {@link #batch(Publisher, int, long)}
+     */
+    private static final class BatchingProcessor<T> implements Processor<T, List<T>>, Subscription {
+        private final int maxSize;
+        private final long maxDelayMillis;
+
+        // Guarded by this
+        private Subscription upstream;
+        private Subscriber<? super List<T>> downstream;
+        private long upstreamRequested = 0;    // Requested from the source and not yet received
+        private long requested = 0;
+        private List<T> current = new ArrayList<T>();
+        private ScheduledFuture<?> flushTask;
+        private boolean upstreamDone = false;
+        private Throwable error = null;
+        private boolean terminated = false;
+        private boolean cancelled = false;
+
+        // Serializes the signals to the downstream Subscriber
+        private final Object emitLock = new Object();
+
+        BatchingProcessor(int maxSize, long maxDelayMillis) {
+            this.maxSize = maxSize;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super List<T>> subscriber) {
+            if (subscriber == null) throw new NullPointerException("Subscriber cannot be null");
+
+            synchronized (this) {
+                if (downstream != null) {
+                    subscriber.onSubscribe(new Subscription() {
+                        @Override
+                        public void request(long n) {}
+
+                        @Override
+                        public void cancel() {}
+                    });
+                    subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+                    return;
+                }
+                downstream = subscriber;
+            }
+
+            synchronized (emitLock) {
+                subscriber.onSubscribe(this);
+            }
+
+            if (maxDelayMillis > 0) {
+                ScheduledFuture<?> task = timer().scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    if (upstreamDone || cancelled) task.cancel(false);
+                    else flushTask = task;
+                }
+            }
+
+            // The source may have completed before the subscription
+            completeIfDone();
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            long missing;
+            synchronized (this) {
+                if (upstream != null) {
+                    subscription.cancel();
+                    return;
+                }
+                upstream = subscription;
+                missing = missingItems();
+            }
+            if (missing > 0) subscription.request(missing);
+        }
+
+        @Override
+        public void onNext(T item) {
+            boolean full;
+            synchronized (this) {
+                if (upstreamDone || cancelled) return;
+                // Items the source sent without being asked for are dropped
+                if (current.size() >= maxSize) return;
+                current.add(item);
+                if (upstreamRequested > 0) upstreamRequested--;
+                full = current.size() >= maxSize;
+            }
+            if (full) flush();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            terminate(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            terminate(null);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                synchronized (emitLock) {
+                    downstream.onError(new IllegalArgumentException("Requested items must be positive"));
+                }
+                return;
+            }
+
+            synchronized (this) {
+                requested = addDemand(requested, n);
+            }
+            requestMissingItems();
+
+            // Lists may have been held back for lack of demand
+            completeIfDone();
+        }
+
+        @Override
+        public void cancel() {
+            Subscription source;
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                current = new ArrayList<T>();
+                source = upstream;
+                if (flushTask != null) flushTask.cancel(false);
+            }
+            if (source != null) source.cancel();
+        }
+
+        /**
+         * Returns the number of items to request from the source to fill the current list, and
+         * counts them as requested. Called holding the lock.
+         */
+        private long missingItems() {
+            if (upstream == null || upstreamDone || cancelled || requested == 0) return 0;
+
+            long missing = maxSize - current.size() - upstreamRequested;
+            if (missing <= 0) return 0;
+            upstreamRequested += missing;
+            return missing;
+        }
+
+        /**
+         * Request from the source the items needed to fill the current list
+         */
+        private void requestMissingItems() {
+            Subscription source;
+            long missing;
+            synchronized (this) {
+                source = upstream;
+                missing = missingItems();
+            }
+            if (missing > 0) source.request(missing);
+        }
+
+        /**
+         * Emit the current list, if it's not empty and there's demand for it, then request the
+         * items of the next one
+         */
+        private void flush() {
+            if (emit()) requestMissingItems();
+        }
+
+        /**
+         * Emit the current list, if it's not empty and there's demand for it
+         *
+         * @return
+         *      True if a list has been emitted
+         */
+        private boolean emit() {
+            synchronized (emitLock) {
+                List<T> batch;
+                Subscriber<? super List<T>> subscriber;
+                synchronized (this) {
+                    if (cancelled || terminated || current.isEmpty() || requested == 0 || downstream == null) {
+                        return false;
+                    }
+                    batch = current;
+                    current = new ArrayList<T>();
+                    if (requested != Long.MAX_VALUE) requested--;
+                    subscriber = downstream;
+                }
+
+                try {
+                    subscriber.onNext(batch);
+                } catch (RuntimeException e) {
+                    Log.e(PAAndroidConstants.PA_LOGTAG, "Error delivering a batch, cancelling", e);
+                    cancel();
+                    return false;
+                }
+                return true;
+            }
+        }
+
+        private void terminate(Throwable throwable) {
+            synchronized (this) {
+                if (upstreamDone || cancelled) return;
+                upstreamDone = true;
+                error = throwable;
+                if (flushTask != null) flushTask.cancel(false);
+            }
+            completeIfDone();
+        }
+
+        /**
+         * Emit the current list and, once the source has ended, the terminal signal. After a
+         * normal completion the last list waits to be requested, while errors are signaled
+         * immediately.
+         */
+        private void completeIfDone() {
+            flush();
+
+            synchronized (emitLock) {
+                Subscriber<? super List<T>> subscriber;
+                Throwable cause;
+                synchronized (this) {
+                    if (!upstreamDone || terminated || cancelled || downstream == null) return;
+                    if (!current.isEmpty() && error == null) return;
+
+                    terminated = true;
+                    subscriber = downstream;
+                    cause = error;
+                }
+
+                if (cause != null) subscriber.onError(cause);
+                else subscriber.onComplete();
+            }
+        }
+    }
+
+}
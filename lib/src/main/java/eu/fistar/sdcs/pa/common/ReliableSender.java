@@ -0,0 +1,633 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This Class implements a sender that survives the death of the process it's pushing data to,
+ * either the Protocol Adapter or an Application.<br>
+ * Pushes are numbered with a sequence number and kept in a bounded resend buffer until the peer
+ * acknowledges them, that is until the call delivering them returns. A single sender thread
+ * delivers them in order, so the thread pushing the data never waits for the peer. The death of
+ * the peer is detected through linkToDeath or by a failed call: the sender then asks the
+ * {@link Connector} for a new peer, waiting an exponentially growing interval between attempts,
+ * and resumes from the first push not acknowledged. A push whose call failed because of the death
+ * of the peer is sent again, so the peer may receive it twice if it died after processing it.<br>
+ * When the buffer is full, the oldest pushes are dropped, alarms last. Buffered pushes are also
+ * charged to the default {@link MemoryBudget}, that can shed bulk and normal pushes but never
+ * alarms.<br>
+ * Pushes made before {@link #start()} are buffered, and delivered once the sender thread has
+ * been started.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ReliableSender implements CreditedSender.Sink {
+
+    // Default values
+    public static final int DEFAULT_MAX_BUFFERED = 4096;       // Observations
+    public static final long DEFAULT_INITIAL_BACKOFF = 250;    // Milliseconds
+    public static final long DEFAULT_MAX_BACKOFF = 30000;      // Milliseconds
+
+    /**
+     * The process receiving the pushes
+     */
+    public interface Peer {
+
+        /**
+         * Returns the Binder used to detect the death of the peer
+         *
+         * @return
+         *      The Binder, or null if the peer is in the same process
+         */
+        IBinder asBinder();
+
+        /**
+         * Push new measurements data coming from a device
+         *
+         * @param observations
+         *      The data to push
+         *
+         * @param devDesc
+         *      The device who supplies the data
+         *
+         * @param priority
+         *      The priority of the data
+         */
+        void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException;
+    }
+
+    /**
+     * Reaches the peer again after its death, i.e. binding its service again
+     */
+    public interface Connector {
+
+        /**
+         * Try to reach the peer. Called on the sender thread, so it may block for a while.
+         *
+         * @return
+         *      The new peer, or null if it's not available yet
+         */
+        Peer connect() throws RemoteException;
+    }
+
+    private final Connector connector;
+    private final int maxBuffered;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Thread thread;
+
+    // State of the sender, guarded by this
+    private final ArrayDeque<Entry> buffer = new ArrayDeque<Entry>();
+    private int bufferedObservations = 0;
+    private long nextSequence = 0;
+    private long lastAcknowledged = -1;
+    private Entry inFlight;
+    private Peer peer;
+    private IBinder.DeathRecipient recipient;
+    private long backoff;
+    private boolean closed = false;
+
+    private boolean started = false;
+    private MemoryBudget.Account account;   // Registered by start()
+
+    // Metrics, guarded by this
+    private long droppedObservations = 0;
+    private long reconnections = 0;
+    private boolean connectedOnce = false;
+
+    // Frees memory dropping the pushes of the lower priorities
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            if (level == MemoryBudget.SHED_BULK) return drop(PAAndroidConstants.PRIORITY.BULK, bytes);
+            if (level == MemoryBudget.SHED_NORMAL) return drop(PAAndroidConstants.PRIORITY.NORMAL, bytes);
+            return 0;
+        }
+    };
+
+    /**
+     * Create a sender with the default buffer size and backoff. The sender doesn't deliver
+     * anything until {@link #start()} is called.
+     *
+     * @param mConnector
+     *      Used to reach the peer after its death, null to wait for {@link #setPeer(Peer)}
+     */
+    public ReliableSender(Connector mConnector) {
+        this(mConnector, DEFAULT_MAX_BUFFERED, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Create a sender. The sender doesn't deliver anything until {@link #start()} is called.
+     *
+     * @param mConnector
+     *      Used to reach the peer after its death, null to wait for {@link #setPeer(Peer)}
+     *
+     * @param mMaxBuffered
+     *      The maximum number of observations waiting to be acknowledged
+     *
+     * @param mInitialBackoff
+     *      The interval before the first attempt to reach the peer, in milliseconds
+     *
+     * @param mMaxBackoff
+     *      The maximum interval between two attempts to reach the peer, in milliseconds
+     */
+    public ReliableSender(Connector mConnector, int mMaxBuffered, long mInitialBackoff, long mMaxBackoff) {
+        if (mMaxBuffered <= 0 || mInitialBackoff <= 0 || mMaxBackoff < mInitialBackoff) {
+            throw new IllegalArgumentException("Invalid buffer size or backoff");
+        }
+
+        connector = mConnector;
+        maxBuffered = mMaxBuffered;
+        initialBackoff = mInitialBackoff;
+        maxBackoff = mMaxBackoff;
+        backoff = mInitialBackoff;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "ReliableSender");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Register the sender with the default {@link MemoryBudget} and start the sender thread
+     *
+     * @throws IllegalStateException
+     *      If the sender has already been started or has been closed
+     */
+    public void start() {
+        synchronized (this) {
+            if (started || closed) throw new IllegalStateException("The sender has already been started or closed");
+            started = true;
+
+            account = MemoryBudget.getDefault().register("ReliableSender", shedder);
+            long bytes = 0;
+            for (Entry entry : buffer) {
+                bytes += entry.bytes;
+            }
+            account.add(bytes);
+        }
+        thread.start();
+    }
+
+    /**
+     * Returns a Peer delivering the pushes to a Protocol Adapter that registered without options.
+     * The pushes are delivered with pushData, the only push a legacy Protocol Adapter handles, so
+     * a push is acknowledged only if it was actually received.
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @return
+     *      The Peer
+     */
+    public static Peer peerFor(IDeviceAdapterListener listener) {
+        return peerFor(listener, null, null);
+    }
+
+    /**
+     * Returns a Peer delivering the pushes to a Protocol Adapter through the sink of
+     * {@link CreditedSender#sinkFor(IDeviceAdapterListener, String, ListenerOptions)}
+     *
+     * @param listener
+     *      The listener of the Protocol Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter pushing the data, used to record the metrics
+     *
+     * @param options
+     *      The options received upon registration, may be null
+     *
+     * @return
+     *      The Peer
+     */
+    public static Peer peerFor(final IDeviceAdapterListener listener, String daId, ListenerOptions options) {
+        final CreditedSender.Sink sink = CreditedSender.sinkFor(listener, daId, options);
+        return new Peer() {
+            @Override
+            public IBinder asBinder() {
+                return listener.asBinder();
+            }
+
+            @Override
+            public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+                sink.pushData(observations, devDesc, priority);
+            }
+        };
+    }
+
+    /**
+     * Returns a Peer delivering the pushes to an Application that registered without options.
+     * The pushes are delivered with pushData, the only push a legacy Application handles, so a
+     * push is acknowledged only if it was actually received.
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @return
+     *      The Peer
+     */
+    public static Peer peerFor(IProtocolAdapterListener listener) {
+        return peerFor(listener, null, null);
+    }
+
+    /**
+     * Returns a Peer delivering the pushes to an Application through the sink of
+     * {@link PriorityDispatcher#sinkFor(IProtocolAdapterListener, DeviceRegistry, ListenerOptions)}
+     *
+     * @param listener
+     *      The listener of the Application
+     *
+     * @param registry
+     *      The registry of the Protocol Adapter, used to find the Device Adapter handling the
+     *      device when recording the metrics, may be null
+     *
+     * @param options
+     *      The options the Application registered with, may be null
+     *
+     * @return
+     *      The Peer
+     */
+    public static Peer peerFor(final IProtocolAdapterListener listener, DeviceRegistry registry,
+                               ListenerOptions options) {
+        final PriorityDispatcher.Sink sink = PriorityDispatcher.sinkFor(listener, registry, options);
+        return new Peer() {
+            @Override
+            public IBinder asBinder() {
+                return listener.asBinder();
+            }
+
+            @Override
+            public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+                sink.deliver(observations, devDesc, priority);
+            }
+        };
+    }
+
+    /**
+     * Set the peer, i.e. because it registered its listener again after a restart. Delivery resumes
+     * from the first push not acknowledged.
+     *
+     * @param mPeer
+     *      The new peer
+     *
+     * @return
+     *      True if the peer is alive, false if it already died
+     */
+    public boolean setPeer(final Peer mPeer) {
+        IBinder.DeathRecipient newRecipient = null;
+        IBinder binder = mPeer.asBinder();
+        if (binder != null) {
+            newRecipient = new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    peerLost(mPeer);
+                }
+            };
+            try {
+                binder.linkToDeath(newRecipient, 0);
+            } catch (RemoteException e) {
+                return false;
+            }
+        }
+
+        synchronized (this) {
+            if (closed) {
+                if (binder != null) binder.unlinkToDeath(newRecipient, 0);
+                return false;
+            }
+
+            unlink();
+            peer = mPeer;
+            recipient = newRecipient;
+            backoff = initialBackoff;
+            if (connectedOnce) reconnections++;
+            connectedOnce = true;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Enqueue a push. This method never blocks on the peer, even if it's dead.
+     *
+     * @param observations
+     *      The data to push
+     *
+     * @param devDesc
+     *      The device who supplies the data
+     *
+     * @param priority
+     *      The priority of the data, one of the values defined in {@link PAAndroidConstants.PRIORITY}
+     */
+    @Override
+    public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) {
+        synchronized (this) {
+            if (closed) return;
+
+            Entry entry = new Entry(nextSequence++, observations, devDesc, priority);
+            buffer.add(entry);
+            bufferedObservations += entry.size();
+            charge(entry.bytes);
+            enforceLimit();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop the sender thread. Pushes not yet acknowledged are discarded.
+     */
+    public synchronized void close() {
+        closed = true;
+        unlink();
+        peer = null;
+        if (account != null) account.close();
+        notifyAll();
+    }
+
+    /**
+     * Wait until all the pushes have been acknowledged
+     *
+     * @param timeout
+     *      The maximum time to wait, in milliseconds
+     *
+     * @return
+     *      True if all the pushes have been acknowledged, false if the time elapsed
+     */
+    public synchronized boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!buffer.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || closed) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized boolean isConnected() {
+        return peer != null;
+    }
+
+    /**
+     * Returns the sequence number of the last push acknowledged by the peer. Pushes are numbered
+     * from 0 in the order they are made.
+     *
+     * @return
+     *      The last sequence number acknowledged, -1 if none
+     */
+    public synchronized long getLastAcknowledged() {
+        return lastAcknowledged;
+    }
+
+    /**
+     * Returns the number of observations waiting to be acknowledged
+     *
+     * @return
+     *      The number of observations buffered
+     */
+    public synchronized int getBufferedObservations() {
+        return bufferedObservations;
+    }
+
+    /**
+     * Returns the number of observations dropped because the buffer was full or because a push
+     * was too large to be delivered
+     *
+     * @return
+     *      The number of observations dropped
+     */
+    public synchronized long getDroppedObservations() {
+        return droppedObservations;
+    }
+
+    /**
+     * Returns the number of times a new peer replaced a dead one
+     *
+     * @return
+     *      The number of reconnections
+     */
+    public synchronized long getReconnections() {
+        return reconnections;
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Entry entry;
+            Peer target;
+            synchronized (this) {
+                while (!closed && (peer != null ? buffer.isEmpty() : connector == null)) {
+                    waitQuietly(0);
+                }
+                if (closed) return;
+
+                target = peer;
+                entry = (target != null ? buffer.peek() : null);
+                inFlight = entry;
+            }
+
+            if (target == null) {
+                reconnect();
+                continue;
+            }
+
+            try {
+                target.pushData(entry.observations, entry.devDesc, entry.priority);
+                acknowledge(entry, false);
+            } catch (TransactionTooLargeException e) {
+                // Sending it again would fail again
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Dropping push " + entry.sequence + ", too large to be delivered", e);
+                acknowledge(entry, true);
+            } catch (RemoteException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot deliver push " + entry.sequence + ", it will be sent again", e);
+                retryLater(target);
+            } catch (RuntimeException e) {
+                Log.e(PAAndroidConstants.PA_LOGTAG, "Dropping push " + entry.sequence + ", rejected by the peer", e);
+                acknowledge(entry, true);
+            }
+        }
+    }
+
+    private synchronized void acknowledge(Entry entry, boolean dropped) {
+        inFlight = null;
+        backoff = initialBackoff;
+        if (buffer.peek() == entry) {
+            buffer.poll();
+            bufferedObservations -= entry.size();
+            charge(-entry.bytes);
+        }
+        if (dropped) droppedObservations += entry.size();
+        lastAcknowledged = entry.sequence;
+        notifyAll();
+    }
+
+    /**
+     * Called when a call fails. If the peer is still alive the same push is sent again after the
+     * backoff interval, otherwise the peer is replaced.
+     */
+    private void retryLater(Peer target) {
+        IBinder binder = target.asBinder();
+        if (binder != null && !binder.pingBinder()) {
+            synchronized (this) {
+                inFlight = null;
+            }
+            peerLost(target);
+            return;
+        }
+
+        synchronized (this) {
+            inFlight = null;
+            long deadline = System.currentTimeMillis() + backoff;
+            long left;
+            while (!closed && peer == target && (left = deadline - System.currentTimeMillis()) > 0) {
+                waitQuietly(left);
+            }
+            backoff = Math.min(backoff * 2, maxBackoff);
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + backoff;
+            long left;
+            while (!closed && peer == null && (left = deadline - System.currentTimeMillis()) > 0) {
+                waitQuietly(left);
+            }
+            if (closed || peer != null) return;
+            backoff = Math.min(backoff * 2, maxBackoff);
+        }
+
+        Peer newPeer = null;
+        try {
+            newPeer = connector.connect();
+        } catch (RemoteException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot reach the peer", e);
+        } catch (RuntimeException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot reach the peer", e);
+        }
+
+        if (newPeer != null) setPeer(newPeer);
+    }
+
+    private synchronized void peerLost(Peer lost) {
+        if (peer != lost) return;
+
+        unlink();
+        peer = null;
+        notifyAll();
+    }
+
+    // Must be called holding the lock
+    private void unlink() {
+        if (peer != null && recipient != null) {
+            IBinder binder = peer.asBinder();
+            if (binder != null) binder.unlinkToDeath(recipient, 0);
+        }
+        recipient = null;
+    }
+
+    // Must be called holding the lock. The push being delivered is never dropped.
+    private void enforceLimit() {
+        for (int pass = 0; pass < 2 && bufferedObservations > maxBuffered; pass++) {
+            Iterator<Entry> it = buffer.iterator();
+            while (bufferedObservations > maxBuffered && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry == inFlight || (pass == 0 && entry.priority >= PAAndroidConstants.PRIORITY.ALARM)) continue;
+
+                it.remove();
+                bufferedObservations -= entry.size();
+                droppedObservations += entry.size();
+                charge(-entry.bytes);
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest pushes of a priority until enough memory is freed
+     */
+    private synchronized long drop(int priority, long bytes) {
+        long freed = 0;
+        Iterator<Entry> it = buffer.iterator();
+        while (freed < bytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == inFlight || entry.priority != priority) continue;
+
+            it.remove();
+            bufferedObservations -= entry.size();
+            droppedObservations += entry.size();
+            freed += entry.bytes;
+        }
+
+        charge(-freed);
+        return freed;
+    }
+
+    // Must be called holding the lock. Pushes made before start() are charged by start().
+    private void charge(long bytes) {
+        if (account != null) account.add(bytes);
+    }
+
+    // Must be called holding the lock. An interrupted sender thread closes the sender.
+    private void waitQuietly(long timeout) {
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+    }
+
+    /**
+     * A push waiting to be acknowledged
+     */
+    private static final class Entry {
+        final long sequence;
+        final List<Observation> observations;
+        final DeviceDescription devDesc;
+        final int priority;
+        final long bytes;
+
+        Entry(long sequence, List<Observation> observations, DeviceDescription devDesc, int priority) {
+            this.sequence = sequence;
+            this.observations = observations;
+            this.devDesc = devDesc;
+            this.priority = priority;
+            this.bytes = Observation.estimateParcelSize(observations);
+        }
+
+        int size() {
+            return observations.size();
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This Class evaluates the {@link ThresholdRule}s added by the Applications on the observations
+ * received by the Protocol Adapter, reporting only the observations that match.<br>
+ * Rules are compiled into an index by property name, replaced as a whole every time a rule is
+ * added or removed, so that {@link #evaluate} can run inline on the path of every push without
+ * locking: an observation is only compared with the rules of its property, and no memory is
+ * allocated unless a rule matches. The last value of every device is kept for the rules on the
+ * rate of change, as well as the time of the last match for the rules with a cooldown.<br>
+ * Only the value at the index of the rule is compared, and waveforms are skipped.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class RuleEngine {
+
+    /**
+     * The recipient of the matches of a rule
+     */
+    public interface Listener {
+
+        /**
+         * Report the observations of a push that matched a rule
+         *
+         * @param rule
+         *      The rule matched
+         *
+         * @param observations
+         *      The observations that matched the rule, in the order they were pushed
+         *
+         * @param devDesc
+         *      The device who supplied the data
+         */
+        void onRuleMatched(ThresholdRule rule, List<Observation> observations, DeviceDescription devDesc) throws RemoteException;
+    }
+
+    private final Object lock = new Object();
+    private final Map<Long, CompiledRule> rules = new HashMap<Long, CompiledRule>();
+    private volatile Map<String, CompiledRule[]> index = Collections.emptyMap();
+    private long nextId = 1;
+
+    /**
+     * Returns a Listener reporting the matches to an Application. Listeners returned for the same
+     * Application are equal, so they can be used to remove the rules it added.
+     *
+     * @param listener
+     *      The listener registered by the Application
+     *
+     * @return
+     *      The Listener
+     */
+    public static Listener listenerFor(IProtocolAdapterListener listener) {
+        return new ApplicationListener(listener);
+    }
+
+    /**
+     * Add a rule. The rule is copied, so changing it afterwards has no effect. Since rules received
+     * from a Parcel skip the checks of the constructor, all the fields are validated again.
+     *
+     * @param rule
+     *      The rule
+     *
+     * @param listener
+     *      The recipient of the matches of the rule
+     *
+     * @return
+     *      The ID assigned to the rule
+     *
+     * @throws IllegalArgumentException
+     *      If the rule is not valid
+     */
+    public long addRule(ThresholdRule rule, Listener listener) {
+        if (rule == null || rule.getPropertyName() == null) throw new IllegalArgumentException("Rule must have a property name");
+        if (listener == null) throw new IllegalArgumentException("Listener cannot be null");
+        if (rule.getKind() != ThresholdRule.KIND_VALUE && rule.getKind() != ThresholdRule.KIND_RATE) {
+            throw new IllegalArgumentException("Unknown kind " + rule.getKind());
+        }
+        if (rule.getOperator() < ThresholdRule.OPERATOR_GREATER ||
+                rule.getOperator() > ThresholdRule.OPERATOR_LESS_OR_EQUAL) {
+            throw new IllegalArgumentException("Unknown operator " + rule.getOperator());
+        }
+        if (rule.getValueIndex() < 0) throw new IllegalArgumentException("Value index cannot be negative");
+        if (rule.getCooldown() < 0) throw new IllegalArgumentException("Cooldown cannot be negative");
+
+        synchronized (lock) {
+            ThresholdRule copy = new ThresholdRule(rule);
+            copy.setId(nextId++);
+            rules.put(copy.getId(), new CompiledRule(copy, listener));
+            compile();
+            return copy.getId();
+        }
+    }
+
+    /**
+     * Remove a rule. Only the rules reporting to the specified listener can be removed, so an
+     * Application can't remove the rules of the others.
+     *
+     * @param ruleId
+     *      The ID returned by {@link #addRule}
+     *
+     * @param listener
+     *      The listener the rule was added with
+     *
+     * @return
+     *      True if the rule was removed, false if the listener had no rule with that ID
+     */
+    public boolean removeRule(long ruleId, Listener listener) {
+        synchronized (lock) {
+            CompiledRule compiled = rules.get(ruleId);
+            if (compiled == null || !compiled.listener.equals(listener)) return false;
+
+            rules.remove(ruleId);
+            compile();
+            return true;
+        }
+    }
+
+    /**
+     * Remove all the rules reporting to a listener, i.e. because the Application unregistered
+     *
+     * @param listener
+     *      The listener
+     *
+     * @return
+     *      The number of rules removed
+     */
+    public int removeRules(Listener listener) {
+        synchronized (lock) {
+            int removed = 0;
+            for (Iterator<CompiledRule> it = rules.values().iterator(); it.hasNext(); ) {
+                if (it.next().listener.equals(listener)) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            if (removed > 0) compile();
+            return removed;
+        }
+    }
+
+    /**
+     * Returns the rules reporting to a listener, i.e. the ones added by an Application
+     *
+     * @param listener
+     *      The listener
+     *
+     * @return
+     *      A copy of the rules, with their IDs
+     */
+    public List<ThresholdRule> getRules(Listener listener) {
+        synchronized (lock) {
+            List<ThresholdRule> result = new ArrayList<ThresholdRule>();
+            for (CompiledRule compiled : rules.values()) {
+                if (compiled.listener.equals(listener)) result.add(new ThresholdRule(compiled.rule));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Forget the last values and matches of a device, i.e. because it was deregistered
+     *
+     * @param devId
+     *      The ID of the device
+     */
+    public void removeDevice(String devId) {
+        if (devId == null) return;
+        for (CompiledRule[] compiled : index.values()) {
+            for (CompiledRule rule : compiled) {
+                rule.states.remove(devId);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the rules on the observations of a push, reporting the matches to the listeners
+     * of the rules before returning
+     *
+     * @param observations
+     *      The observations received
+     *
+     * @param devDesc
+     *      The device who supplied the data
+     *
+     * @return
+     *      The number of observations that matched a rule
+     */
+    public int evaluate(List<Observation> observations, DeviceDescription devDesc) {
+        Map<String, CompiledRule[]> current = index;
+        if (current.isEmpty() || observations == null || devDesc == null || devDesc.getDeviceID() == null) return 0;
+
+        // Matches grouped by rule, only created if a rule matches
+        Map<CompiledRule, List<Observation>> matches = null;
+        int count = 0;
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < observations.size(); i++) {
+            Observation obs = observations.get(i);
+            if (obs instanceof WaveformObservation || obs.getPropertyName() == null) continue;
+
+            CompiledRule[] candidates = current.get(obs.getPropertyName());
+            if (candidates == null) continue;
+
+            double[] values = null;
+            for (CompiledRule rule : candidates) {
+                if (!rule.appliesTo(devDesc)) continue;
+                if (values == null) values = obs.valuesAsDoubleArray();
+                if (rule.valueIndex >= values.length || Double.isNaN(values[rule.valueIndex])) continue;
+
+                long time = obs.getPhenomenonTime();
+                if (!rule.evaluate(devDesc.getDeviceID(), values[rule.valueIndex], time > 0 ? time : now, now)) continue;
+
+                if (matches == null) matches = new IdentityHashMap<CompiledRule, List<Observation>>();
+                List<Observation> matched = matches.get(rule);
+                if (matched == null) {
+                    matched = new ArrayList<Observation>(1);
+                    matches.put(rule, matched);
+                }
+                matched.add(obs);
+                count++;
+            }
+        }
+
+        if (matches != null) {
+            for (Map.Entry<CompiledRule, List<Observation>> match : matches.entrySet()) {
+                CompiledRule rule = match.getKey();
+                try {
+                    rule.listener.onRuleMatched(rule.rule, match.getValue(), devDesc);
+                } catch (RemoteException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot report the match of rule " + rule.rule.getId(), e);
+                } catch (RuntimeException e) {
+                    Log.e(PAAndroidConstants.PA_LOGTAG, "Error reporting the match of rule " + rule.rule.getId(), e);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rebuild the index of the rules by property name, must be called holding the lock
+     */
+    private void compile() {
+        Map<String, List<CompiledRule>> byProperty = new HashMap<String, List<CompiledRule>>();
+        for (CompiledRule rule : rules.values()) {
+            List<CompiledRule> list = byProperty.get(rule.propertyName);
+            if (list == null) {
+                list = new ArrayList<CompiledRule>();
+                byProperty.put(rule.propertyName, list);
+            }
+            list.add(rule);
+        }
+
+        Map<String, CompiledRule[]> result = new HashMap<String, CompiledRule[]>(byProperty.size() * 2);
+        for (Map.Entry<String, List<CompiledRule>> entry : byProperty.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray(new CompiledRule[entry.getValue().size()]));
+        }
+        index = Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * A rule with its fields unpacked for evaluation, and the state of every device. The same
+     * object is kept across compilations, so the state survives when other rules change.
+     */
+    private static final class CompiledRule {
+        final ThresholdRule rule;
+        final Listener listener;
+        final String propertyName;
+        final String deviceID;
+        final String modelName;
+        final int valueIndex;
+        final boolean rate;
+        final long cooldown;
+        final ConcurrentMap<String, DeviceState> states = new ConcurrentHashMap<String, DeviceState>();
+
+        CompiledRule(ThresholdRule mRule, Listener mListener) {
+            rule = mRule;
+            listener = mListener;
+            propertyName = mRule.getPropertyName();
+            deviceID = mRule.getDeviceID();
+            modelName = mRule.getModelName();
+            valueIndex = mRule.getValueIndex();
+            rate = mRule.getKind() == ThresholdRule.KIND_RATE;
+            cooldown = mRule.getCooldown();
+        }
+
+        boolean appliesTo(DeviceDescription devDesc) {
+            return (deviceID == null || deviceID.equals(devDesc.getDeviceID())) &&
+                    (modelName == null || modelName.equals(devDesc.getModelName()));
+        }
+
+        /**
+         * Evaluate the rule on a value of a device
+         *
+         * @return
+         *      True if the value matches and the match has to be reported
+         */
+        boolean evaluate(String devId, double value, long time, long now) {
+            // State is only needed for rates and cooldowns
+            if (!rate && cooldown <= 0) return rule.matches(value);
+
+            DeviceState state = states.get(devId);
+            if (state == null) {
+                DeviceState created = new DeviceState();
+                state = states.putIfAbsent(devId, created);
+                if (state == null) state = created;
+            }
+
+            synchronized (state) {
+                boolean matched;
+                if (rate) {
+                    boolean known = state.lastTime != Long.MIN_VALUE && time > state.lastTime;
+                    matched = known && rule.matches((value - state.lastValue) * 1000 / (time - state.lastTime));
+                    if (time >= state.lastTime) {
+                        state.lastValue = value;
+                        state.lastTime = time;
+                    }
+                } else {
+                    matched = rule.matches(value);
+                }
+
+                if (!matched) return false;
+                if (cooldown > 0) {
+                    if (now - state.lastMatch < cooldown) return false;
+                    state.lastMatch = now;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A Listener reporting to an Application, equal to the others reporting to the same one
+     */
+    private static final class ApplicationListener implements Listener {
+        private final IProtocolAdapterListener listener;
+
+        ApplicationListener(IProtocolAdapterListener mListener) {
+            listener = mListener;
+        }
+
+        @Override
+        public void onRuleMatched(ThresholdRule rule, List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+            listener.onRuleMatched(rule.getId(), observations, devDesc);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ApplicationListener && ((ApplicationListener) o).listener.asBinder().equals(listener.asBinder());
+        }
+
+        @Override
+        public int hashCode() {
+            return listener.asBinder().hashCode();
+        }
+    }
+
+    /**
+     * The state of a rule for a device
+     */
+    private static final class DeviceState {
+        double lastValue;
+        long lastTime = Long.MIN_VALUE;
+        long lastMatch = Long.MIN_VALUE / 2;
+    }
+
+}
@@ -0,0 +1,543 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static eu.fistar.sdcs.pa.common.PAAndroidConstants.SDCS_MESSAGES.*;
+
+/**
+ * This Class encodes the messages forwarded to the SDCS as JSON, without building intermediate
+ * Strings or object trees.<br>
+ * The encoder writes either into its own byte buffer, as UTF-8, or into an Appendable supplied by
+ * the caller. The byte buffer is reused across messages: call {@link #reset()} before encoding the
+ * next one. The content of the buffer can be written to a stream as it is or compressed with gzip,
+ * reusing the same Deflater every time.<br>
+ * An encoder is not thread safe, every sender thread should use its own.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SdcsJsonEncoder {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // The gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Appendable appendable;    // The destination, null to use the byte buffer
+    private byte[] buffer;
+    private int length = 0;
+    private final char[] digits = new char[20];
+
+    // Used to compress the buffer, lazily created
+    private Deflater deflater;
+    private CRC32 crc;
+    private byte[] deflateBuffer;
+
+    /**
+     * Create an encoder writing into its own byte buffer, with the default initial size
+     */
+    public SdcsJsonEncoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an encoder writing into its own byte buffer. The buffer grows when needed.
+     *
+     * @param bufferSize
+     *      The initial size of the buffer, in bytes
+     */
+    public SdcsJsonEncoder(int bufferSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size must be positive");
+        appendable = null;
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Create an encoder writing into an Appendable, i.e. a StringBuilder or a Writer
+     *
+     * @param mAppendable
+     *      The destination of the messages
+     */
+    public SdcsJsonEncoder(Appendable mAppendable) {
+        if (mAppendable == null) throw new IllegalArgumentException("Appendable cannot be null");
+        appendable = mAppendable;
+    }
+
+    /**
+     * Encode a data push message, carrying the observations of a device
+     *
+     * @param devDesc
+     *      The device who supplied the data
+     *
+     * @param observations
+     *      The observations to forward
+     *
+     * @return
+     *      This encoder
+     */
+    public SdcsJsonEncoder encodeDataPush(DeviceDescription devDesc, List<Observation> observations) throws IOException {
+        beginMessage(MSG_TYPE_DATA_PUSH, devDesc);
+        put(',');
+        writeObservations(observations);
+        put('}');
+        return this;
+    }
+
+    /**
+     * Encode the data push messages of all the devices of a batch, as an array
+     *
+     * @param batch
+     *      The batch to forward
+     *
+     * @param registry
+     *      The registry used to resolve the devices not included in the batch, may be null
+     *
+     * @return
+     *      This encoder
+     */
+    public SdcsJsonEncoder encodeDataPush(MultiDeviceBatch batch, DeviceRegistry registry) throws IOException {
+        put('[');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) put(',');
+            encodeDataPush(batch.resolveDevice(i, registry), batch.getObservations(i));
+        }
+        put(']');
+        return this;
+    }
+
+    /**
+     * Encode a device registration message, carrying the whole description of the device
+     *
+     * @param devDesc
+     *      The device registered
+     *
+     * @return
+     *      This encoder
+     */
+    public SdcsJsonEncoder encodeDeviceRegistration(DeviceDescription devDesc) throws IOException {
+        return encodeDeviceMessage(MSG_TYPE_DEV_REGISTRATION, devDesc);
+    }
+
+    /**
+     * Encode a device properties registration message, carrying the whole description of the device
+     *
+     * @param devDesc
+     *      The device whose properties have been registered
+     *
+     * @return
+     *      This encoder
+     */
+    public SdcsJsonEncoder encodeDevicePropertiesRegistration(DeviceDescription devDesc) throws IOException {
+        return encodeDeviceMessage(MSG_TYPE_DEV_PROPERTIES_REGISTRATION, devDesc);
+    }
+
+    /**
+     * Encode a device deregistration message, carrying only the ID of the device
+     *
+     * @param devDesc
+     *      The device deregistered
+     *
+     * @return
+     *      This encoder
+     */
+    public SdcsJsonEncoder encodeDeviceDeregistration(DeviceDescription devDesc) throws IOException {
+        beginMessage(MSG_TYPE_DEV_DEREGISTRATION, devDesc);
+        put('}');
+        return this;
+    }
+
+    /**
+     * Write the description of a device as a JSON object, for integrators building their own
+     * messages
+     *
+     * @param devDesc
+     *      The device to write
+     */
+    public void writeDevice(DeviceDescription devDesc) throws IOException {
+        put('{');
+        writeName(JSON_NAME_ID, true);
+        writeString(devDesc.getDeviceID());
+        writeName(JSON_NAME_SERIAL_NUMBER, false);
+        writeString(devDesc.getSerialNumber());
+        writeName(JSON_NAME_MODEL_NAME, false);
+        writeString(devDesc.getModelName());
+        writeName(JSON_NAME_MANUFACTURER_NAME, false);
+        writeString(devDesc.getManufacturerName());
+        writeName(JSON_NAME_ADDRESS, false);
+        writeString(devDesc.getAddress());
+
+        writeName(JSON_NAME_SENSORS, false);
+        put('[');
+        List<SensorDescription> sensors = devDesc.getSensorList();
+        if (sensors != null) {
+            for (int i = 0; i < sensors.size(); i++) {
+                SensorDescription sensor = sensors.get(i);
+                if (i > 0) put(',');
+                put('{');
+                writeName(JSON_NAME_SENSOR_NAME, true);
+                writeString(sensor.getSensorName());
+                writeName(JSON_NAME_MEASUREMENT_UNIT, false);
+                writeString(sensor.getMeasurementUnit());
+                writeName(JSON_NAME_PROPERTY_NAME, false);
+                writeString(sensor.getPropertyName());
+                put('}');
+            }
+        }
+        put(']');
+        put('}');
+    }
+
+    /**
+     * Write a list of observations as a JSON field named after
+     * {@link PAAndroidConstants.SDCS_MESSAGES#JSON_NAME_OBSERVATIONS}, for integrators building
+     * their own messages
+     *
+     * @param observations
+     *      The observations to write
+     */
+    public void writeObservations(List<Observation> observations) throws IOException {
+        writeName(JSON_NAME_OBSERVATIONS, true);
+        put('[');
+        for (int i = 0; i < observations.size(); i++) {
+            if (i > 0) put(',');
+            writeObservation(observations.get(i));
+        }
+        put(']');
+    }
+
+    /**
+     * Write an observation as a JSON object. The samples of a waveform are written as numbers,
+     * without converting them to Strings.
+     *
+     * @param obs
+     *      The observation to write
+     */
+    public void writeObservation(Observation obs) throws IOException {
+        put('{');
+        writeName(JSON_NAME_PROPERTY_NAME, true);
+        writeString(obs.getPropertyName());
+        writeName(JSON_NAME_MEASUREMENT_UNIT, false);
+        writeString(obs.getMeasurementUnit());
+        writeName(JSON_NAME_PHENOMENON_TIME, false);
+        writeLong(obs.getPhenomenonTime());
+        writeName(JSON_NAME_DURATION, false);
+        writeLong(obs.getDuration());
+
+        if (obs instanceof WaveformObservation) {
+            WaveformObservation waveform = (WaveformObservation) obs;
+            writeName(JSON_NAME_SAMPLE_RATE, false);
+            putAscii(Double.toString(waveform.getSampleRate()));
+            writeName(JSON_NAME_SAMPLES, false);
+            put('[');
+            short[] shortSamples = waveform.getShortSamples();
+            float[] floatSamples = waveform.getFloatSamples();
+            int count = waveform.getSampleCount();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) put(',');
+                if (shortSamples != null) {
+                    writeLong(shortSamples[i]);
+                } else {
+                    writeFloat(floatSamples[i]);
+                }
+            }
+            put(']');
+        } else {
+            writeName(JSON_NAME_VALUES, false);
+            put('[');
+            List<String> values = obs.getValues();
+            if (values != null) {
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) put(',');
+                    writeString(values.get(i));
+                }
+            }
+            put(']');
+        }
+        put('}');
+    }
+
+    /**
+     * Discard the content of the byte buffer, keeping the memory for the next message
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Returns the number of bytes in the buffer
+     *
+     * @return
+     *      The size of the encoded messages, in bytes
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Returns the byte buffer. Only the first {@link #size()} bytes are valid, and the buffer is
+     * overwritten after {@link #reset()}.
+     *
+     * @return
+     *      The buffer, or null if the encoder writes into an Appendable
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns a copy of the content of the byte buffer
+     *
+     * @return
+     *      The encoded messages as UTF-8
+     */
+    public byte[] toByteArray() {
+        checkBuffer();
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Write the content of the byte buffer to a stream
+     *
+     * @param out
+     *      The destination stream
+     *
+     * @param gzip
+     *      True to compress the content with gzip
+     */
+    public void writeTo(OutputStream out, boolean gzip) throws IOException {
+        checkBuffer();
+        if (!gzip) {
+            out.write(buffer, 0, length);
+            return;
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            crc = new CRC32();
+            deflateBuffer = new byte[4096];
+        }
+        deflater.reset();
+        crc.reset();
+        crc.update(buffer, 0, length);
+
+        out.write(GZIP_HEADER);
+        deflater.setInput(buffer, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+            out.write(deflateBuffer, 0, n);
+        }
+
+        // The trailer: CRC-32 and size of the uncompressed data, little endian
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, length);
+    }
+
+    /**
+     * Release the native memory of the Deflater used by {@link #writeTo(OutputStream, boolean)}
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    private SdcsJsonEncoder encodeDeviceMessage(short type, DeviceDescription devDesc) throws IOException {
+        beginMessage(type, devDesc);
+        writeName(JSON_NAME_DEVICE, false);
+        writeDevice(devDesc);
+        put('}');
+        return this;
+    }
+
+    private void beginMessage(short type, DeviceDescription devDesc) throws IOException {
+        put('{');
+        writeName(JSON_NAME_TYPE, true);
+        writeLong(type);
+        writeName(JSON_NAME_ID, false);
+        writeString(devDesc.getDeviceID());
+    }
+
+    private void writeName(String name, boolean first) throws IOException {
+        if (!first) put(',');
+        put('"');
+        putAscii(name);
+        put('"');
+        put(':');
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            putAscii("null");
+            return;
+        }
+
+        put('"');
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c < 0x80) continue;
+
+            putRange(s, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"': put('\\'); put('"'); break;
+                case '\\': put('\\'); put('\\'); break;
+                case '\n': put('\\'); put('n'); break;
+                case '\r': put('\\'); put('r'); break;
+                case '\t': put('\\'); put('t'); break;
+                default:
+                    if (c < 0x20) {
+                        put('\\'); put('u'); put('0'); put('0');
+                        put(HEX[c >> 4]);
+                        put(HEX[c & 0xf]);
+                    } else if (appendable != null) {
+                        appendable.append(c);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        putCodePoint(Character.toCodePoint(c, s.charAt(i + 1)));
+                        i++;
+                        start = i + 1;
+                    } else {
+                        putCodePoint(c);
+                    }
+            }
+        }
+        putRange(s, start, len);
+        put('"');
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            putAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        for (int i = pos; i < digits.length; i++) {
+            put(digits[i]);
+        }
+    }
+
+    private void writeFloat(float value) throws IOException {
+        if (value == (long) value && Math.abs(value) < 1e15f) {
+            writeLong((long) value);
+        } else if (Float.isNaN(value) || Float.isInfinite(value)) {
+            // Not representable in JSON
+            putAscii("null");
+        } else {
+            putAscii(Float.toString(value));
+        }
+    }
+
+    // Write a range of a String made of ASCII characters only
+    private void putRange(String s, int start, int end) throws IOException {
+        if (start >= end) return;
+        if (appendable != null) {
+            appendable.append(s, start, end);
+            return;
+        }
+
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void putAscii(String s) throws IOException {
+        putRange(s, 0, s.length());
+    }
+
+    private void put(char c) throws IOException {
+        if (appendable != null) {
+            appendable.append(c);
+            return;
+        }
+
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    // Write a character as UTF-8, only used with the byte buffer
+    private void putCodePoint(int cp) {
+        ensureCapacity(4);
+        if (cp < 0x800) {
+            buffer[length++] = (byte) (0xc0 | (cp >> 6));
+            buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            // Lone surrogates are replaced, as done by String.getBytes()
+            if (cp >= 0xd800 && cp <= 0xdfff) {
+                buffer[length++] = '?';
+                return;
+            }
+            buffer[length++] = (byte) (0xe0 | (cp >> 12));
+            buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            buffer[length++] = (byte) (0xf0 | (cp >> 18));
+            buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (length + n <= buffer.length) return;
+
+        byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + n)];
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        buffer = newBuffer;
+    }
+
+    private void checkBuffer() {
+        if (buffer == null) throw new IllegalStateException("The encoder writes into an Appendable");
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+}
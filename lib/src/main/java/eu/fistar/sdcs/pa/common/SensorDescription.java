@@ -27,16 +27,18 @@ import android.os.Parcelable;
 
 /**
  * This Class defines sensors.<br>
- * A sensor definition is used to represent a sensor of a device and its characteristics.
+ * A sensor definition is used to represent a sensor of a device and its characteristics.<br>
+ * Instances are immutable, so they can be safely shared among all the devices of the same model
+ * (see {@link SensorListCache}).
  *
  * @author Marcello Morena
  * @author Alexandru Serbanati
  */
 public class SensorDescription implements Parcelable {
 
-    private String sensorName;          // The sensor name (i.e. pulsimeter)
-    private String measurementUnit;     // The measurement unit of the property (i.e. bpm)
-    private String propertyName;        // The name of the property (i.e. pulse)
+    private final String sensorName;          // The sensor name (i.e. pulsimeter)
+    private final String measurementUnit;     // The measurement unit of the property (i.e. bpm)
+    private final String propertyName;        // The name of the property (i.e. pulse)
 
     // The static field CREATOR required by Parcelable
     public static final Parcelable.Creator<SensorDescription> CREATOR
@@ -69,18 +71,6 @@ public class SensorDescription implements Parcelable {
         }
     };
 
-    /**
-     * The method to recreate the object from a Parcel
-     *
-     * @param in
-     *      The input Parcel
-     */
-    public void readFromParcel(Parcel in) {
-        sensorName = in.readString();
-        measurementUnit = in.readString();
-        propertyName = in.readString();
-    }
-
     /**
      * The method to serialize the object as a Parcel
      *
@@ -110,13 +100,17 @@ public class SensorDescription implements Parcelable {
      * The Constructor required by Parcelable
      */
     public SensorDescription(Parcel in) {
-        readFromParcel(in);
+        sensorName = in.readString();
+        measurementUnit = in.readString();
+        propertyName = in.readString();
     }
 
     /**
      * Default constructor
      */
-    public SensorDescription() {}
+    public SensorDescription() {
+        this(null, null, null);
+    }
 
     /**
      * The Constructor normally used to pass al the parameters
@@ -172,6 +166,45 @@ public class SensorDescription implements Parcelable {
         return propertyName;
     }
 
+    /**
+     * Two sensors are equal when their name, measurement unit and property name are equal
+     *
+     * @param o
+     *      The object to compare
+     *
+     * @return
+     *      True if the object represents the same sensor, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SensorDescription)) return false;
+
+        SensorDescription other = (SensorDescription) o;
+        return eq(sensorName, other.sensorName) &&
+                eq(measurementUnit, other.measurementUnit) &&
+                eq(propertyName, other.propertyName);
+    }
+
+    /**
+     * Returns an hash code consistent with {@link #equals(Object)}
+     *
+     * @return
+     *      The hash code of the object
+     */
+    @Override
+    public int hashCode() {
+        int result = sensorName != null ? sensorName.hashCode() : 0;
+        result = 31 * result + (measurementUnit != null ? measurementUnit.hashCode() : 0);
+        result = 31 * result + (propertyName != null ? propertyName.hashCode() : 0);
+        return result;
+    }
+
+    // Null and empty Strings are the same, since null values are written as empty ones in Parcels
+    private static boolean eq(String a, String b) {
+        return (a != null ? a : "").equals(b != null ? b : "");
+    }
+
     /**
      * Returns a read-friendly String representing the object
      *
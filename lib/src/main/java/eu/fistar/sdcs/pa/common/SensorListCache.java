@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This Class keeps the canonical, immutable sensor lists shared by all the devices of the same
+ * model.<br>
+ * Lists are keyed by manufacturer and model name. Devices of the same model may have different
+ * sensors (i.e. firmware variants), so every model keeps a canonical list for each variant in use
+ * rather than a single one. Lists are only weakly referenced by the cache, so a list is discarded
+ * as soon as no DeviceDescription uses it anymore.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public final class SensorListCache {
+
+    private static final List<SensorDescription> EMPTY_LIST = Collections.emptyList();
+
+    private static final Map<Key, List<ListRef>> cache = new HashMap<Key, List<ListRef>>();
+    private static final ReferenceQueue<List<SensorDescription>> queue =
+            new ReferenceQueue<List<SensorDescription>>();
+
+    private SensorListCache() {}
+
+    /**
+     * Returns the canonical immutable instance of the sensor list for the specified model. If none
+     * of the cached lists of the model equals the one passed as an argument (i.e. a firmware
+     * variant with different sensors), the new list becomes the canonical one for its variant.
+     *
+     * @param manufacturerName
+     *      The manufacturer name of the device
+     *
+     * @param modelName
+     *      The model name of the device
+     *
+     * @param sensorList
+     *      The sensor list of the device, it's never modified
+     *
+     * @return
+     *      The canonical immutable sensor list, equal to the one passed as an argument
+     */
+    public static List<SensorDescription> intern(String manufacturerName, String modelName, List<SensorDescription> sensorList) {
+        if (sensorList == null || sensorList.isEmpty()) return EMPTY_LIST;
+
+        Key key = new Key(manufacturerName, modelName);
+
+        synchronized (cache) {
+            purge();
+
+            List<ListRef> variants = cache.get(key);
+            if (variants == null) {
+                variants = new ArrayList<ListRef>(1);
+                cache.put(key, variants);
+            }
+
+            for (int i = 0; i < variants.size(); i++) {
+                List<SensorDescription> canonical = variants.get(i).get();
+                if (canonical != null && (canonical == sensorList || canonical.equals(sensorList))) {
+                    return canonical;
+                }
+            }
+
+            List<SensorDescription> canonical = Collections.unmodifiableList(new ArrayList<SensorDescription>(sensorList));
+            variants.add(new ListRef(key, canonical, queue));
+            return canonical;
+        }
+    }
+
+    /**
+     * Returns the number of sensor lists currently held in the cache, counting every variant of a
+     * model
+     *
+     * @return
+     *      The number of cached sensor lists
+     */
+    public static int size() {
+        synchronized (cache) {
+            purge();
+            int size = 0;
+            for (List<ListRef> variants : cache.values()) {
+                size += variants.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Remove the entries whose list has been garbage collected. Must be called holding the lock.
+     */
+    private static void purge() {
+        ListRef ref;
+        while ((ref = (ListRef) queue.poll()) != null) {
+            List<ListRef> variants = cache.get(ref.key);
+            if (variants == null) continue;
+
+            variants.remove(ref);
+            if (variants.isEmpty()) cache.remove(ref.key);
+        }
+    }
+
+    /**
+     * The weak reference to a canonical list, remembering the key it's stored with
+     */
+    private static final class ListRef extends WeakReference<List<SensorDescription>> {
+        private final Key key;
+
+        ListRef(Key key, List<SensorDescription> list, ReferenceQueue<List<SensorDescription>> q) {
+            super(list, q);
+            this.key = key;
+        }
+    }
+
+    /**
+     * The key of the cache, made of manufacturer and model name
+     */
+    private static final class Key {
+        private final String manufacturerName;
+        private final String modelName;
+
+        Key(String manufacturerName, String modelName) {
+            this.manufacturerName = manufacturerName != null ? manufacturerName : "";
+            this.modelName = modelName != null ? modelName : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return manufacturerName.equals(other.manufacturerName) && modelName.equals(other.modelName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * manufacturerName.hashCode() + modelName.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,754 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+
+/**
+ * This Class contains the state of a session of the Protocol Adapter, persisted so that a restart
+ * of the process can resume from it instead of rediscovering everything.<br>
+ * A snapshot contains the registered devices together with their Device Adapter and handle, the
+ * whitelist and the blacklist, the Device Adapters bound and the Applications subscribed, with
+ * the options they were registered with. Listeners themselves can't be persisted: Device Adapters
+ * are bound again using the persisted package and action names, while Applications still have to
+ * register their listener again, but the Protocol Adapter already knows their options.<br>
+ * After a restart, the devices of the snapshot are put back in the registry with their old
+ * handles, and the only handshake left is {@link #validate(String, IDeviceAdapter, DeviceRegistry)}:
+ * a single getConnectedDevices call per Device Adapter, to find out which devices are gone and
+ * which must be registered from scratch.<br>
+ * The snapshot is written in a compact binary format, where every distinct String is written only
+ * once, and replaced atomically so that a crash while writing never leaves a truncated file.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SessionSnapshot {
+
+    private static final int MAGIC = 0x50415353;   // "PASS"
+    private static final int VERSION = 1;
+
+    // Codes of the String table: null, a new String follows, or a reference to String (code - 2)
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+
+    private long time = System.currentTimeMillis();
+    private final List<DeviceState> devices = new ArrayList<DeviceState>();
+    private final List<String> whitelist = new ArrayList<String>();
+    private final List<String> blacklist = new ArrayList<String>();
+    private final List<Binding> bindings = new ArrayList<Binding>();
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    /**
+     * A registered device, together with its Device Adapter and handle
+     */
+    public static final class DeviceState {
+        private final DeviceDescription devDesc;
+        private final String daId;
+        private final int handle;
+
+        DeviceState(DeviceDescription devDesc, String daId, int handle) {
+            this.devDesc = devDesc;
+            this.daId = daId;
+            this.handle = handle;
+        }
+
+        /**
+         * Returns the description of the device
+         *
+         * @return
+         *      The description of the device
+         */
+        public DeviceDescription getDevice() {
+            return devDesc;
+        }
+
+        /**
+         * Returns the ID of the Device Adapter that was handling the device
+         *
+         * @return
+         *      The ID of the Device Adapter, may be null
+         */
+        public String getDaId() {
+            return daId;
+        }
+
+        /**
+         * Returns the handle the device had in the registry
+         *
+         * @return
+         *      The handle of the device
+         */
+        public int getHandle() {
+            return handle;
+        }
+    }
+
+    /**
+     * A Device Adapter bound to the Protocol Adapter
+     */
+    public static final class Binding {
+        private final String daId;
+        private final String packageName;
+        private final String actionName;
+        private final ListenerOptions options;
+
+        Binding(String daId, String packageName, String actionName, ListenerOptions options) {
+            this.daId = daId;
+            this.packageName = packageName;
+            this.actionName = actionName;
+            this.options = options;
+        }
+
+        /**
+         * Returns the ID of the Device Adapter
+         *
+         * @return
+         *      The ID of the Device Adapter
+         */
+        public String getDaId() {
+            return daId;
+        }
+
+        /**
+         * Returns the package name used to bind the Device Adapter again
+         *
+         * @return
+         *      The package name of the Device Adapter
+         */
+        public String getPackageName() {
+            return packageName;
+        }
+
+        /**
+         * Returns the action name used to bind the Device Adapter again
+         *
+         * @return
+         *      The action name of the Device Adapter
+         */
+        public String getActionName() {
+            return actionName;
+        }
+
+        /**
+         * Returns the options the Protocol Adapter registered its listener with
+         *
+         * @return
+         *      The options, or null if the legacy registration was used
+         */
+        public ListenerOptions getOptions() {
+            return options;
+        }
+    }
+
+    /**
+     * An Application subscribed to the Protocol Adapter
+     */
+    public static final class Subscription {
+        private final String appId;
+        private final ListenerOptions options;
+
+        Subscription(String appId, ListenerOptions options) {
+            this.appId = appId;
+            this.options = options;
+        }
+
+        /**
+         * Returns the ID of the Application
+         *
+         * @return
+         *      The ID of the Application, i.e. its package name
+         */
+        public String getAppId() {
+            return appId;
+        }
+
+        /**
+         * Returns the options the Application registered its listener with
+         *
+         * @return
+         *      The options, or null if the legacy registration was used
+         */
+        public ListenerOptions getOptions() {
+            return options;
+        }
+    }
+
+    /**
+     * Default constructor, creates an empty snapshot
+     */
+    public SessionSnapshot() {}
+
+    /**
+     * Add all the devices of a registry to the snapshot
+     *
+     * @param registry
+     *      The registry of the devices known to the Protocol Adapter
+     */
+    public void captureDevices(DeviceRegistry registry) {
+        for (DeviceDescription devDesc : registry.getAll()) {
+            String devId = devDesc.getDeviceID();
+            int handle = registry.getHandle(devId);
+
+            // The device may have been removed in the meantime
+            if (handle != DeviceRegistry.NO_HANDLE) addDevice(devDesc, registry.getDaId(devId), handle);
+        }
+    }
+
+    /**
+     * Add a registered device to the snapshot
+     *
+     * @param devDesc
+     *      The device
+     *
+     * @param daId
+     *      The ID of the Device Adapter that is handling the device, may be null
+     *
+     * @param handle
+     *      The handle of the device
+     */
+    public void addDevice(DeviceDescription devDesc, String daId, int handle) {
+        if (devDesc == null || devDesc.getDeviceID() == null) {
+            throw new IllegalArgumentException("The device must have a device ID");
+        }
+        devices.add(new DeviceState(devDesc, daId, handle));
+    }
+
+    /**
+     * Add a Device Adapter bound to the Protocol Adapter to the snapshot
+     *
+     * @param daId
+     *      The ID of the Device Adapter
+     *
+     * @param capabilities
+     *      The capabilities of the Device Adapter, providing the names used to bind it again
+     *
+     * @param options
+     *      The options the Protocol Adapter registered its listener with, null for legacy registrations
+     */
+    public void addBinding(String daId, Capabilities capabilities, ListenerOptions options) {
+        bindings.add(new Binding(daId, capabilities.getPackageName(), capabilities.getActionName(), options));
+    }
+
+    /**
+     * Add an Application subscribed to the Protocol Adapter to the snapshot
+     *
+     * @param appId
+     *      An ID of the Application that survives its restarts, i.e. its package name
+     *
+     * @param options
+     *      The options the Application registered its listener with, null for legacy registrations
+     */
+    public void addSubscription(String appId, ListenerOptions options) {
+        subscriptions.add(new Subscription(appId, options));
+    }
+
+    /**
+     * Set the whitelist of the snapshot, replacing the previous one
+     *
+     * @param mWhitelist
+     *      The IDs of the whitelisted devices, may be null
+     */
+    public void setWhitelist(List<String> mWhitelist) {
+        whitelist.clear();
+        if (mWhitelist != null) whitelist.addAll(mWhitelist);
+    }
+
+    /**
+     * Set the blacklist of the snapshot, replacing the previous one
+     *
+     * @param mBlacklist
+     *      The IDs of the blacklisted devices, may be null
+     */
+    public void setBlacklist(List<String> mBlacklist) {
+        blacklist.clear();
+        if (mBlacklist != null) blacklist.addAll(mBlacklist);
+    }
+
+    /**
+     * Returns the time the snapshot was taken
+     *
+     * @return
+     *      The time the snapshot was taken, in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the registered devices of the snapshot
+     *
+     * @return
+     *      The unmodifiable list of the devices
+     */
+    public List<DeviceState> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * Returns the whitelist of the snapshot
+     *
+     * @return
+     *      The unmodifiable list of the IDs of the whitelisted devices
+     */
+    public List<String> getWhitelist() {
+        return Collections.unmodifiableList(whitelist);
+    }
+
+    /**
+     * Returns the blacklist of the snapshot
+     *
+     * @return
+     *      The unmodifiable list of the IDs of the blacklisted devices
+     */
+    public List<String> getBlacklist() {
+        return Collections.unmodifiableList(blacklist);
+    }
+
+    /**
+     * Returns the Device Adapters that were bound to the Protocol Adapter
+     *
+     * @return
+     *      The unmodifiable list of the bindings
+     */
+    public List<Binding> getBindings() {
+        return Collections.unmodifiableList(bindings);
+    }
+
+    /**
+     * Returns the Applications that were subscribed to the Protocol Adapter
+     *
+     * @return
+     *      The unmodifiable list of the subscriptions
+     */
+    public List<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(subscriptions);
+    }
+
+    /**
+     * Returns the options of a subscribed Application
+     *
+     * @param appId
+     *      The ID of the Application
+     *
+     * @return
+     *      The options, or null if the Application was not subscribed or used the legacy registration
+     */
+    public ListenerOptions getSubscriptionOptions(String appId) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.appId != null && subscription.appId.equals(appId)) return subscription.options;
+        }
+        return null;
+    }
+
+    /**
+     * Put the devices of the snapshot back in a registry, with the handles they had before. The
+     * devices should then be validated against their Device Adapters.
+     *
+     * @param registry
+     *      The registry of the devices known to the Protocol Adapter
+     *
+     * @return
+     *      The number of devices restored
+     */
+    public int restore(DeviceRegistry registry) {
+        for (DeviceState state : devices) {
+            registry.register(state.devDesc, state.daId, state.handle);
+        }
+        return devices.size();
+    }
+
+    /**
+     * Validate the restored devices of a Device Adapter against the devices it's actually
+     * connected to. Restored devices that are no longer connected are removed from the registry,
+     * while the devices returned must be registered from scratch because they are new or have
+     * changed.
+     *
+     * @param daId
+     *      The ID of the Device Adapter
+     *
+     * @param connected
+     *      The devices the Device Adapter is connected to
+     *
+     * @param registry
+     *      The registry the snapshot was restored into
+     *
+     * @return
+     *      The devices that must be registered from scratch
+     */
+    public List<DeviceDescription> validate(String daId, List<DeviceDescription> connected, DeviceRegistry registry) {
+        List<DeviceDescription> changed = new ArrayList<DeviceDescription>();
+        Set<String> present = new HashSet<String>();
+
+        if (connected != null) {
+            for (DeviceDescription devDesc : connected) {
+                if (devDesc == null || devDesc.getDeviceID() == null) continue;
+
+                present.add(devDesc.getDeviceID());
+                if (!devDesc.equals(registry.getByDeviceId(devDesc.getDeviceID()))) changed.add(devDesc);
+            }
+        }
+
+        for (DeviceState state : devices) {
+            String devId = state.devDesc.getDeviceID();
+            if (daId != null && daId.equals(state.daId) && !present.contains(devId)) {
+                registry.unregister(devId);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Validate the restored devices of a Device Adapter, asking it the devices it's connected to
+     *
+     * @param daId
+     *      The ID of the Device Adapter
+     *
+     * @param da
+     *      The Device Adapter, already bound again
+     *
+     * @param registry
+     *      The registry the snapshot was restored into
+     *
+     * @return
+     *      The devices that must be registered from scratch
+     */
+    public List<DeviceDescription> validate(String daId, IDeviceAdapter da, DeviceRegistry registry) throws RemoteException {
+        return validate(daId, da.getConnectedDevices(), registry);
+    }
+
+    /**
+     * Write the snapshot to a file. The file is replaced atomically: if the process dies while
+     * writing, the previous snapshot is left untouched.
+     *
+     * @param file
+     *      The destination file
+     */
+    public void write(File file) throws IOException {
+        byte[] data = toByteArray();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Read a snapshot from a file
+     *
+     * @param file
+     *      The file written by {@link #write(File)}
+     *
+     * @return
+     *      The snapshot, or null if the file doesn't exist or is not a valid snapshot
+     */
+    public static SessionSnapshot read(File file) {
+        byte[] data;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                data = new byte[(int) file.length()];
+                new DataInputStream(in).readFully(data);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Cannot read the session snapshot " + file, e);
+            return null;
+        }
+
+        try {
+            return fromByteArray(data);
+        } catch (IOException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Discarding the invalid session snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Serialize the snapshot. The result ends with a CRC-32 of the content.
+     *
+     * @return
+     *      The serialized snapshot
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(time);
+
+            writeVarInt(out, devices.size());
+            for (DeviceState state : devices) {
+                DeviceDescription devDesc = state.devDesc;
+                writeString(out, strings, devDesc.getDeviceID());
+                writeString(out, strings, devDesc.getSerialNumber());
+                writeString(out, strings, devDesc.getModelName());
+                writeString(out, strings, devDesc.getManufacturerName());
+                writeString(out, strings, devDesc.getAddress());
+                out.writeBoolean(devDesc.isRegistered());
+
+                List<SensorDescription> sensors = devDesc.getSensorList();
+                writeVarInt(out, sensors != null ? sensors.size() : 0);
+                if (sensors != null) {
+                    for (SensorDescription sensor : sensors) {
+                        writeString(out, strings, sensor.getSensorName());
+                        writeString(out, strings, sensor.getMeasurementUnit());
+                        writeString(out, strings, sensor.getPropertyName());
+                    }
+                }
+
+                writeString(out, strings, state.daId);
+                writeVarInt(out, state.handle + 1);
+            }
+
+            writeStringList(out, strings, whitelist);
+            writeStringList(out, strings, blacklist);
+
+            writeVarInt(out, bindings.size());
+            for (Binding binding : bindings) {
+                writeString(out, strings, binding.daId);
+                writeString(out, strings, binding.packageName);
+                writeString(out, strings, binding.actionName);
+                writeOptions(out, binding.options);
+            }
+
+            writeVarInt(out, subscriptions.size());
+            for (Subscription subscription : subscriptions) {
+                writeString(out, strings, subscription.appId);
+                writeOptions(out, subscription.options);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+        } catch (IOException e) {
+            // Never thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a snapshot
+     *
+     * @param data
+     *      The snapshot serialized by {@link #toByteArray()}
+     *
+     * @return
+     *      The snapshot
+     *
+     * @throws IOException
+     *      If the data is truncated, corrupted or written by an unknown version
+     */
+    public static SessionSnapshot fromByteArray(byte[] data) throws IOException {
+        if (data.length < 20) throw new EOFException("Truncated snapshot");
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        int expected = ((data[data.length - 4] & 0xff) << 24) | ((data[data.length - 3] & 0xff) << 16) |
+                ((data[data.length - 2] & 0xff) << 8) | (data[data.length - 1] & 0xff);
+        if ((int) crc.getValue() != expected) throw new IOException("Checksum mismatch");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        List<String> strings = new ArrayList<String>();
+
+        if (in.readInt() != MAGIC) throw new IOException("Not a session snapshot");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unknown snapshot version " + version);
+
+        SessionSnapshot snapshot = new SessionSnapshot();
+        snapshot.time = in.readLong();
+
+        int deviceCount = readVarInt(in);
+        for (int i = 0; i < deviceCount; i++) {
+            String deviceId = readString(in, strings);
+            String serialNumber = readString(in, strings);
+            String modelName = readString(in, strings);
+            String manufacturerName = readString(in, strings);
+            String address = readString(in, strings);
+            boolean registered = in.readBoolean();
+
+            int sensorCount = readVarInt(in);
+            List<SensorDescription> sensors = new ArrayList<SensorDescription>(sensorCount);
+            for (int j = 0; j < sensorCount; j++) {
+                String sensorName = readString(in, strings);
+                String measurementUnit = readString(in, strings);
+                sensors.add(new SensorDescription(sensorName, measurementUnit, readString(in, strings)));
+            }
+
+            DeviceDescription devDesc = new DeviceDescription(deviceId, serialNumber, modelName, manufacturerName, sensors, address);
+            devDesc.setRegistered(registered);
+
+            String daId = readString(in, strings);
+            snapshot.devices.add(new DeviceState(devDesc, daId, readVarInt(in) - 1));
+        }
+
+        readStringList(in, strings, snapshot.whitelist);
+        readStringList(in, strings, snapshot.blacklist);
+
+        int bindingCount = readVarInt(in);
+        for (int i = 0; i < bindingCount; i++) {
+            String daId = readString(in, strings);
+            String packageName = readString(in, strings);
+            String actionName = readString(in, strings);
+            snapshot.bindings.add(new Binding(daId, packageName, actionName, readOptions(in)));
+        }
+
+        int subscriptionCount = readVarInt(in);
+        for (int i = 0; i < subscriptionCount; i++) {
+            String appId = readString(in, strings);
+            snapshot.subscriptions.add(new Subscription(appId, readOptions(in)));
+        }
+
+        return snapshot;
+    }
+
+    private static void writeOptions(DataOutputStream out, ListenerOptions options) throws IOException {
+        out.writeBoolean(options != null);
+        if (options == null) return;
+
+        writeVarInt(out, options.getMinLogLevel());
+        writeVarInt(out, options.getCreditObservations());
+        out.writeLong(options.getCreditBytes());
+        out.writeBoolean(options.acceptsRawData());
+        out.writeBoolean(options.acceptsExtendedObservations());
+        out.writeBoolean(options.isRulesOnly());
+        out.writeBoolean(options.acceptsMultiData());
+    }
+
+    private static ListenerOptions readOptions(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+
+        ListenerOptions options = new ListenerOptions();
+        options.setMinLogLevel(readVarInt(in));
+        int creditObservations = readVarInt(in);
+        options.setCredit(creditObservations, in.readLong());
+        options.setAcceptsRawData(in.readBoolean());
+        options.setAcceptsExtendedObservations(in.readBoolean());
+        options.setRulesOnly(in.readBoolean());
+        options.setAcceptsMultiData(in.readBoolean());
+        return options;
+    }
+
+    private static void writeStringList(DataOutputStream out, Map<String, Integer> strings, List<String> list) throws IOException {
+        writeVarInt(out, list.size());
+        for (String s : list) {
+            writeString(out, strings, s);
+        }
+    }
+
+    private static void readStringList(DataInputStream in, List<String> strings, List<String> list) throws IOException {
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            list.add(readString(in, strings));
+        }
+    }
+
+    static void writeString(DataOutputStream out, Map<String, Integer> strings, String s) throws IOException {
+        if (s == null) {
+            writeVarInt(out, STRING_NULL);
+            return;
+        }
+
+        Integer index = strings.get(s);
+        if (index != null) {
+            writeVarInt(out, index + 2);
+        } else {
+            strings.put(s, strings.size());
+            writeVarInt(out, STRING_NEW);
+            out.writeUTF(s);
+        }
+    }
+
+    static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int code = readVarInt(in);
+        if (code == STRING_NULL) return null;
+        if (code == STRING_NEW) {
+            String s = in.readUTF();
+            strings.add(s);
+            return s;
+        }
+
+        if (code - 2 >= strings.size()) throw new IOException("Invalid String reference " + code);
+        return strings.get(code - 2);
+    }
+
+    // Unsigned LEB128, negative values take 5 bytes
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+
+}
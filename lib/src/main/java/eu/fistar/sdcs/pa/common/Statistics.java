@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This Class contains a snapshot of the runtime statistics collected by a Protocol Adapter or a
+ * Device Adapter, as returned by getStatistics.<br>
+ * Statistics are reported as a whole and broken down by Device Adapter and by device. Latencies
+ * are expressed in microseconds and approximated as described in {@link LatencyHistogram}.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class Statistics implements Parcelable {
+
+    private long startTime;             // The time the collection started, in milliseconds
+    private long snapshotTime;          // The time the snapshot was taken, in milliseconds
+    private Entry total;                // The statistics of the whole process
+    private Entry[] daEntries;          // The statistics of each Device Adapter
+    private Entry[] deviceEntries;      // The statistics of each device
+    private String[] queueNames;        // The names of the monitored queues
+    private long[] queueDepths;         // The depth of each queue
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<Statistics> CREATOR
+            = new Parcelable.Creator<Statistics>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public Statistics createFromParcel(Parcel in) {
+            return new Statistics(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public Statistics[] newArray(int size) {
+            return new Statistics[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        startTime = in.readLong();
+        snapshotTime = in.readLong();
+        total = new Entry(in);
+        daEntries = readEntries(in);
+        deviceEntries = readEntries(in);
+        queueNames = in.createStringArray();
+        queueDepths = in.createLongArray();
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(startTime);
+        out.writeLong(snapshotTime);
+        total.writeToParcel(out);
+        writeEntries(out, daEntries);
+        writeEntries(out, deviceEntries);
+        out.writeStringArray(queueNames);
+        out.writeLongArray(queueDepths);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public Statistics(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Default constructor, creates empty statistics
+     */
+    public Statistics() {
+        this(System.currentTimeMillis(), System.currentTimeMillis(), new Entry((String) null), new Entry[0],
+                new Entry[0], new String[0], new long[0]);
+    }
+
+    /**
+     * The Constructor normally used to pass all the parameters. The arrays are not copied.
+     *
+     * @param mStartTime The time the collection started, in milliseconds
+     * @param mSnapshotTime The time the snapshot was taken, in milliseconds
+     * @param mTotal The statistics of the whole process
+     * @param mDaEntries The statistics of each Device Adapter
+     * @param mDeviceEntries The statistics of each device
+     * @param mQueueNames The names of the monitored queues
+     * @param mQueueDepths The depth of each queue
+     */
+    public Statistics(long mStartTime, long mSnapshotTime, Entry mTotal, Entry[] mDaEntries,
+                      Entry[] mDeviceEntries, String[] mQueueNames, long[] mQueueDepths) {
+        if (mQueueNames.length != mQueueDepths.length) {
+            throw new IllegalArgumentException("Arrays must have the same length");
+        }
+
+        startTime = mStartTime;
+        snapshotTime = mSnapshotTime;
+        total = mTotal;
+        daEntries = mDaEntries;
+        deviceEntries = mDeviceEntries;
+        queueNames = mQueueNames;
+        queueDepths = mQueueDepths;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getSnapshotTime() {
+        return snapshotTime;
+    }
+
+    /**
+     * Returns the statistics of the whole process
+     *
+     * @return
+     *      The entry with the totals, its key is null
+     */
+    public Entry getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the statistics of each Device Adapter
+     *
+     * @return
+     *      A list of entries keyed by Device Adapter ID
+     */
+    public List<Entry> getDaEntries() {
+        return toList(daEntries);
+    }
+
+    /**
+     * Returns the statistics of each device
+     *
+     * @return
+     *      A list of entries keyed by device ID
+     */
+    public List<Entry> getDeviceEntries() {
+        return toList(deviceEntries);
+    }
+
+    /**
+     * Returns the statistics of a device
+     *
+     * @param devId
+     *      The ID of the device
+     *
+     * @return
+     *      The entry of the device, or null if there's no data for it
+     */
+    public Entry getDeviceEntry(String devId) {
+        return find(deviceEntries, devId);
+    }
+
+    /**
+     * Returns the statistics of a Device Adapter
+     *
+     * @param daId
+     *      The ID of the Device Adapter
+     *
+     * @return
+     *      The entry of the Device Adapter, or null if there's no data for it
+     */
+    public Entry getDaEntry(String daId) {
+        return find(daEntries, daId);
+    }
+
+    /**
+     * Returns the names of the monitored queues
+     *
+     * @return
+     *      The names of the queues, parallel to {@link #getQueueDepths()}
+     */
+    public String[] getQueueNames() {
+        return queueNames;
+    }
+
+    /**
+     * Returns the number of elements waiting in each monitored queue
+     *
+     * @return
+     *      The depth of the queues, parallel to {@link #getQueueNames()}
+     */
+    public long[] getQueueDepths() {
+        return queueDepths;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Uptime: "+(snapshotTime - startTime)+" ms\nTotal: "+total+"Device Adapters: "+
+                daEntries.length+"\nDevices: "+deviceEntries.length+"\n";
+    }
+
+    private static Entry[] readEntries(Parcel in) {
+        Entry[] entries = new Entry[in.readInt()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(in);
+        }
+        return entries;
+    }
+
+    private static void writeEntries(Parcel out, Entry[] entries) {
+        out.writeInt(entries.length);
+        for (Entry entry : entries) {
+            entry.writeToParcel(out);
+        }
+    }
+
+    private static List<Entry> toList(Entry[] entries) {
+        List<Entry> list = new ArrayList<Entry>(entries.length);
+        for (Entry entry : entries) {
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private static Entry find(Entry[] entries, String key) {
+        if (key == null) return null;
+
+        for (Entry entry : entries) {
+            if (key.equals(entry.key)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * The statistics of the whole process, of a Device Adapter or of a device
+     */
+    public static final class Entry {
+
+        // Number of values of each latency distribution
+        private static final int LATENCY_VALUES = 3;
+
+        private final String key;
+        private final long observations;
+        private final long batches;
+        private final long bytes;
+        private final long registrations;
+        private final long commands;
+        private final long commandErrors;
+        private final long[] pushLatency;       // p50, p99 and max
+        private final long[] commandLatency;    // p50, p99 and max
+
+        /**
+         * Create an entry without any data
+         *
+         * @param mKey
+         *      The ID of the Device Adapter or of the device, null for the totals
+         */
+        public Entry(String mKey) {
+            this(mKey, 0, 0, 0, 0, 0, 0, new long[LATENCY_VALUES], new long[LATENCY_VALUES]);
+        }
+
+        /**
+         * The Constructor normally used to pass all the parameters
+         *
+         * @param mKey The ID of the Device Adapter or of the device, null for the totals
+         * @param mObservations The number of observations pushed
+         * @param mBatches The number of pushData calls
+         * @param mBytes The estimated number of bytes pushed
+         * @param mRegistrations The number of device registrations
+         * @param mCommands The number of commands executed
+         * @param mCommandErrors The number of commands that failed
+         * @param mPushLatency The 50th and 99th percentile and the maximum latency of pushData
+         * @param mCommandLatency The 50th and 99th percentile and the maximum latency of commands
+         */
+        public Entry(String mKey, long mObservations, long mBatches, long mBytes, long mRegistrations,
+                     long mCommands, long mCommandErrors, long[] mPushLatency, long[] mCommandLatency) {
+            if (mPushLatency.length != LATENCY_VALUES || mCommandLatency.length != LATENCY_VALUES) {
+                throw new IllegalArgumentException("Latencies must have " + LATENCY_VALUES + " values");
+            }
+
+            key = mKey;
+            observations = mObservations;
+            batches = mBatches;
+            bytes = mBytes;
+            registrations = mRegistrations;
+            commands = mCommands;
+            commandErrors = mCommandErrors;
+            pushLatency = mPushLatency;
+            commandLatency = mCommandLatency;
+        }
+
+        Entry(Parcel in) {
+            key = in.readString();
+            observations = in.readLong();
+            batches = in.readLong();
+            bytes = in.readLong();
+            registrations = in.readLong();
+            commands = in.readLong();
+            commandErrors = in.readLong();
+            pushLatency = in.createLongArray();
+            commandLatency = in.createLongArray();
+        }
+
+        void writeToParcel(Parcel out) {
+            out.writeString(key);
+            out.writeLong(observations);
+            out.writeLong(batches);
+            out.writeLong(bytes);
+            out.writeLong(registrations);
+            out.writeLong(commands);
+            out.writeLong(commandErrors);
+            out.writeLongArray(pushLatency);
+            out.writeLongArray(commandLatency);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getObservations() {
+            return observations;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getRegistrations() {
+            return registrations;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getCommandErrors() {
+            return commandErrors;
+        }
+
+        public long getPushLatencyP50() {
+            return pushLatency[0];
+        }
+
+        public long getPushLatencyP99() {
+            return pushLatency[1];
+        }
+
+        public long getPushLatencyMax() {
+            return pushLatency[2];
+        }
+
+        public long getCommandLatencyP50() {
+            return commandLatency[0];
+        }
+
+        public long getCommandLatencyP99() {
+            return commandLatency[1];
+        }
+
+        public long getCommandLatencyMax() {
+            return commandLatency[2];
+        }
+
+        /**
+         * Returns a read-friendly String representing the object
+         *
+         * @return
+         *      The String representing the object
+         */
+        public String toString() {
+            return "Observations: "+observations+" Batches: "+batches+" Bytes: "+bytes+
+                    " Registrations: "+registrations+" Commands: "+commands+" Errors: "+commandErrors+
+                    " Push p99: "+pushLatency[1]+" us Command p99: "+commandLatency[1]+" us\n";
+        }
+    }
+
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class implements a {@link ReactiveFlow.Publisher} fed by a producer through
+ * {@link #submit(Object)}, delivering every item to all the current Subscribers.<br>
+ * Every Subscriber has a bounded buffer and receives items on an executor only as it requests
+ * them. When the buffer of a Subscriber is full, the producer either waits until the Subscriber
+ * catches up, propagating the backpressure up to the sender of the data, or the oldest item of
+ * the buffer is dropped, depending on the overflow policy.<br>
+ * When the publisher is given a {@link Sizer}, the buffered items are charged to the default
+ * {@link MemoryBudget}. When the budget is exceeded, a publisher dropping the oldest items sheds
+ * them at its shedding level, while a publisher making the producer wait never drops anything.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class StreamPublisher<T> implements ReactiveFlow.Publisher<T> {
+
+    // Overflow policies
+    public static final int OVERFLOW_BLOCK = 0;            // The producer waits
+    public static final int OVERFLOW_DROP_OLDEST = 1;      // The oldest buffered item is discarded
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * Estimates the memory taken by the items, to charge them to the {@link MemoryBudget}
+     */
+    public interface Sizer<T> {
+
+        /**
+         * Returns the estimated size of an item. Must return the same value every time it's
+         * called on the same item.
+         *
+         * @param item
+         *      The item
+         *
+         * @return
+         *      The estimated size, in bytes
+         */
+        long sizeOf(T item);
+    }
+
+    // Signals delivered to a Subscriber
+    private static final int SIGNAL_SUBSCRIBE = 0;
+    private static final int SIGNAL_NEXT = 1;
+    private static final int SIGNAL_COMPLETE = 2;
+    private static final int SIGNAL_ERROR = 3;
+
+    private static ExecutorService defaultExecutor;        // Lazily created, guarded by the class
+
+    private final Executor executor;
+    private final int bufferSize;
+    private final int overflowPolicy;
+    private final Sizer<? super T> sizer;
+    private final int shedLevel;
+    private final List<StreamSubscription> subscriptions = new CopyOnWriteArrayList<StreamSubscription>();
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    // Frees memory dropping the oldest buffered items, if the overflow policy allows it
+    private final MemoryBudget.Shedder shedder = new MemoryBudget.Shedder() {
+        @Override
+        public long shed(int level, long bytes) {
+            if (level != shedLevel || overflowPolicy != OVERFLOW_DROP_OLDEST) return 0;
+
+            long freed = 0;
+            for (StreamSubscription subscription : subscriptions) {
+                if (freed >= bytes) break;
+                freed += subscription.shed(bytes - freed);
+            }
+            return freed;
+        }
+    };
+    private final MemoryBudget.Account account;     // Null if the items are not charged
+
+    /**
+     * Create a publisher with the default buffer size, delivering items on the default executor.
+     *
+     * @param mOverflowPolicy
+     *      One of {@link #OVERFLOW_BLOCK} and {@link #OVERFLOW_DROP_OLDEST}
+     */
+    public StreamPublisher(int mOverflowPolicy) {
+        this(defaultExecutor(), DEFAULT_BUFFER_SIZE, mOverflowPolicy);
+    }
+
+    /**
+     * Create a publisher.
+     *
+     * @param mExecutor
+     *      The executor delivering items to the Subscribers
+     *
+     * @param mBufferSize
+     *      The maximum number of items buffered for every Subscriber
+     *
+     * @param mOverflowPolicy
+     *      One of {@link #OVERFLOW_BLOCK} and {@link #OVERFLOW_DROP_OLDEST}
+     */
+    public StreamPublisher(Executor mExecutor, int mBufferSize, int mOverflowPolicy) {
+        this(mExecutor, mBufferSize, mOverflowPolicy, null, null, MemoryBudget.SHED_LOGS);
+    }
+
+    /**
+     * Create a publisher with the default buffer size, delivering items on the default executor
+     * and charging the buffered items to the default {@link MemoryBudget}.
+     *
+     * @param mOverflowPolicy
+     *      One of {@link #OVERFLOW_BLOCK} and {@link #OVERFLOW_DROP_OLDEST}
+     *
+     * @param mName
+     *      The name of the account, used for statistics
+     *
+     * @param mSizer
+     *      Estimates the size of the items
+     *
+     * @param mShedLevel
+     *      The shedding level at which the oldest items are dropped, one of the SHED constants of
+     *      {@link MemoryBudget}. Only used with {@link #OVERFLOW_DROP_OLDEST}.
+     */
+    public StreamPublisher(int mOverflowPolicy, String mName, Sizer<? super T> mSizer, int mShedLevel) {
+        this(defaultExecutor(), DEFAULT_BUFFER_SIZE, mOverflowPolicy, mName, mSizer, mShedLevel);
+    }
+
+    /**
+     * Create a publisher.
+     *
+     * @param mExecutor
+     *      The executor delivering items to the Subscribers
+     *
+     * @param mBufferSize
+     *      The maximum number of items buffered for every Subscriber
+     *
+     * @param mOverflowPolicy
+     *      One of {@link #OVERFLOW_BLOCK} and {@link #OVERFLOW_DROP_OLDEST}
+     *
+     * @param mName
+     *      The name of the account, used for statistics
+     *
+     * @param mSizer
+     *      Estimates the size of the items, null not to charge them to the budget
+     *
+     * @param mShedLevel
+     *      The shedding level at which the oldest items are dropped, one of the SHED constants of
+     *      {@link MemoryBudget}. Only used with {@link #OVERFLOW_DROP_OLDEST}.
+     */
+    public StreamPublisher(Executor mExecutor, int mBufferSize, int mOverflowPolicy, String mName,
+                           Sizer<? super T> mSizer, int mShedLevel) {
+        if (mExecutor == null) throw new IllegalArgumentException("Executor cannot be null");
+        if (mBufferSize <= 0) throw new IllegalArgumentException("Buffer size must be positive");
+        if (mOverflowPolicy != OVERFLOW_BLOCK && mOverflowPolicy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("Unknown overflow policy " + mOverflowPolicy);
+        }
+
+        executor = mExecutor;
+        bufferSize = mBufferSize;
+        overflowPolicy = mOverflowPolicy;
+        sizer = mSizer;
+        shedLevel = mShedLevel;
+        account = (mSizer != null ? MemoryBudget.getDefault().register(mName != null ? mName : "StreamPublisher", shedder) : null);
+    }
+
+    @Override
+    public void subscribe(ReactiveFlow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) throw new NullPointerException("Subscriber cannot be null");
+
+        StreamSubscription subscription = new StreamSubscription(subscriber);
+        subscriptions.add(subscription);
+        if (closed) subscription.complete();
+        subscription.schedule();
+    }
+
+    /**
+     * Deliver an item to all the current Subscribers. Depending on the overflow policy, this method
+     * may block until every Subscriber has room for the item.
+     *
+     * @param item
+     *      The item, cannot be null
+     */
+    public void submit(T item) {
+        if (item == null) throw new NullPointerException("Item cannot be null");
+        if (closed) return;
+
+        for (StreamSubscription subscription : subscriptions) {
+            subscription.offer(item);
+        }
+    }
+
+    /**
+     * Complete the stream. Items already buffered are still delivered to the Subscribers, then
+     * they receive onComplete. Items submitted afterwards are ignored.
+     */
+    public void close() {
+        closed = true;
+        for (StreamSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Returns the number of current Subscribers
+     *
+     * @return
+     *      The number of Subscribers
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Returns the number of items dropped because the buffer of a Subscriber was full
+     *
+     * @return
+     *      The number of items dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger(0);
+            defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StreamPublisher-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * The subscription of a Subscriber, with its buffer and its outstanding demand. Items are
+     * delivered by a single drain task at a time, so the Subscriber is never called concurrently.
+     */
+    private final class StreamSubscription implements ReactiveFlow.Subscription, Runnable {
+        private final ReactiveFlow.Subscriber<? super T> subscriber;
+        private final AtomicInteger pendingDrains = new AtomicInteger(0);
+
+        // Guarded by this
+        private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+        private long bufferedBytes = 0;
+        private long requested = 0;
+        private boolean subscribed = false;
+        private boolean completed = false;
+        private boolean cancelled = false;
+        private boolean terminated = false;
+        private Throwable error = null;
+
+        StreamSubscription(ReactiveFlow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(T item) {
+            synchronized (this) {
+                while (buffer.size() >= bufferSize && !cancelled && !terminated) {
+                    if (overflowPolicy == OVERFLOW_DROP_OLDEST) {
+                        release(buffer.pollFirst());
+                        dropped.incrementAndGet();
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+                if (cancelled || terminated) return;
+                buffer.addLast(item);
+                if (sizer != null) {
+                    long bytes = sizer.sizeOf(item);
+                    bufferedBytes += bytes;
+                    account.add(bytes);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Drop the oldest buffered items until enough memory is freed
+         */
+        synchronized long shed(long bytes) {
+            long freed = 0;
+            while (freed < bytes && !buffer.isEmpty()) {
+                freed += release(buffer.pollFirst());
+                dropped.incrementAndGet();
+            }
+            notifyAll();
+            return freed;
+        }
+
+        // Must be called holding the lock, with an item just removed from the buffer
+        private long release(T item) {
+            if (sizer == null) return 0;
+
+            long bytes = sizer.sizeOf(item);
+            bufferedBytes -= bytes;
+            account.release(bytes);
+            return bytes;
+        }
+
+        // Must be called holding the lock
+        private void clear() {
+            buffer.clear();
+            if (account != null) account.release(bufferedBytes);
+            bufferedBytes = 0;
+        }
+
+        synchronized void complete() {
+            completed = true;
+            notifyAll();
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Requested items must be positive");
+                    clear();
+                    notifyAll();
+                } else {
+                    requested = ReactiveFlow.addDemand(requested, n);
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                clear();
+                notifyAll();
+            }
+            subscriptions.remove(this);
+        }
+
+        void schedule() {
+            if (pendingDrains.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            boolean first;
+            synchronized (this) {
+                first = !subscribed;
+                subscribed = true;
+            }
+            if (first && !deliver(SIGNAL_SUBSCRIBE, null)) return;
+
+            while (true) {
+                T item;
+                int signal;
+                Throwable cause = null;
+                synchronized (this) {
+                    if (cancelled || terminated) return;
+
+                    if (error != null) {
+                        signal = SIGNAL_ERROR;
+                        cause = error;
+                        terminated = true;
+                        item = null;
+                    } else if (!buffer.isEmpty() && requested > 0) {
+                        signal = SIGNAL_NEXT;
+                        item = buffer.pollFirst();
+                        release(item);
+                        if (requested != Long.MAX_VALUE) requested--;
+                        notifyAll();
+                    } else if (buffer.isEmpty() && completed) {
+                        signal = SIGNAL_COMPLETE;
+                        terminated = true;
+                        item = null;
+                    } else {
+                        return;
+                    }
+                }
+
+                if (signal == SIGNAL_ERROR) {
+                    subscriptions.remove(this);
+                    subscriber.onError(cause);
+                    return;
+                }
+                if (signal == SIGNAL_COMPLETE) {
+                    subscriptions.remove(this);
+                    deliver(SIGNAL_COMPLETE, null);
+                    return;
+                }
+                if (!deliver(SIGNAL_NEXT, item)) return;
+            }
+        }
+
+        /**
+         * Call the Subscriber, cancelling the subscription if it throws an exception
+         */
+        private boolean deliver(int signal, T item) {
+            try {
+                if (signal == SIGNAL_SUBSCRIBE) subscriber.onSubscribe(this);
+                else if (signal == SIGNAL_NEXT) subscriber.onNext(item);
+                else subscriber.onComplete();
+                return true;
+            } catch (RuntimeException e) {
+                Log.e(PAAndroidConstants.PA_LOGTAG, "Error in a Subscriber, cancelling its subscription", e);
+                cancel();
+                return false;
+            }
+        }
+    }
+
+}
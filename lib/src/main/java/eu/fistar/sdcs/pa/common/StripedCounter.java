@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be updated by many threads at the same time without contention.<br>
+ * Every thread updates one of several cells, chosen by thread ID, and cells are spaced so that
+ * they don't share a cache line. Reading the value sums all the cells, so it's slower than
+ * updating it.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public final class StripedCounter {
+
+    private static final int STRIPES = 8;      // Must be a power of 2
+    private static final int PADDING = 8;      // Longs per cache line
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Add a value to the counter
+     *
+     * @param x
+     *      The value to add
+     */
+    public void add(long x) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) (id ^ (id >>> 3)) & (STRIPES - 1);
+        cells.addAndGet(stripe * PADDING, x);
+    }
+
+    /**
+     * Add one to the counter
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Returns the value of the counter. Updates made while summing may or may not be included.
+     *
+     * @return
+     *      The value of the counter
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Set the counter to zero
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.util.Log;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This Class executes tasks on a fixed set of single-threaded stripes, choosing the stripe by
+ * hashing a key of the task, typically the ID of a device.<br>
+ * Tasks with the same key are executed one at a time and in the order they were submitted, while
+ * tasks with different keys are executed in parallel on different threads, with no global lock.
+ * A task failing with an exception is logged and doesn't affect the following ones.<br>
+ * The queue of every stripe is bounded: when it's full, {@link #execute(Object, Runnable)} blocks
+ * the caller until the stripe catches up, so a slow consumer slows down the producer instead of
+ * filling the heap, while {@link #tryExecute(Object, Runnable)} gives up straight away. Once the
+ * executor has been shut down, new tasks are rejected.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class StripedExecutor {
+
+    // The default maximum number of tasks waiting on every stripe
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final Stripe[] stripes;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create an executor with one stripe for every available processor.
+     *
+     * @param name
+     *      The name of the executor, used to name its threads
+     */
+    public StripedExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param name
+     *      The name of the executor, used to name its threads
+     *
+     * @param stripeCount
+     *      The number of stripes, i.e. the maximum number of tasks executed in parallel
+     */
+    public StripedExecutor(String name, int stripeCount) {
+        this(name, stripeCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param name
+     *      The name of the executor, used to name its threads
+     *
+     * @param stripeCount
+     *      The number of stripes, i.e. the maximum number of tasks executed in parallel
+     *
+     * @param queueCapacity
+     *      The maximum number of tasks waiting on every stripe
+     */
+    public StripedExecutor(String name, int stripeCount, int queueCapacity) {
+        if (stripeCount <= 0) throw new IllegalArgumentException("The number of stripes must be positive");
+        if (queueCapacity <= 0) throw new IllegalArgumentException("The queue capacity must be positive");
+
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(name + "-" + i, queueCapacity);
+            stripes[i].start();
+        }
+    }
+
+    /**
+     * Execute a task after all the tasks with the same key submitted before it. This method
+     * returns as soon as the task has been queued, blocking only while the queue of its stripe is
+     * full.
+     *
+     * @param key
+     *      The key of the task, i.e. the ID of a device, may be null
+     *
+     * @param task
+     *      The task to execute
+     *
+     * @throws RejectedExecutionException
+     *      If the executor has been shut down, or the caller was interrupted while waiting for room
+     *      in the queue
+     */
+    public void execute(Object key, Runnable task) {
+        if (task == null) throw new NullPointerException("Task cannot be null");
+        if (shutdown) throw new RejectedExecutionException("The executor has been shut down");
+
+        BlockingQueue<Runnable> queue = stripes[stripeFor(key)].queue;
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in the queue");
+        }
+
+        // Shut down in the meantime: take the task back, unless the stripe already picked it up
+        if (shutdown && queue.remove(task)) {
+            throw new RejectedExecutionException("The executor has been shut down");
+        }
+    }
+
+    /**
+     * Execute a task after all the tasks with the same key submitted before it, unless the queue of
+     * its stripe is full. This method never blocks.
+     *
+     * @param key
+     *      The key of the task, i.e. the ID of a device, may be null
+     *
+     * @param task
+     *      The task to execute
+     *
+     * @return
+     *      True if the task has been queued, false if the queue of its stripe is full
+     *
+     * @throws RejectedExecutionException
+     *      If the executor has been shut down
+     */
+    public boolean tryExecute(Object key, Runnable task) {
+        if (task == null) throw new NullPointerException("Task cannot be null");
+        if (shutdown) throw new RejectedExecutionException("The executor has been shut down");
+
+        BlockingQueue<Runnable> queue = stripes[stripeFor(key)].queue;
+        if (!queue.offer(task)) return false;
+
+        // Shut down in the meantime: take the task back, unless the stripe already picked it up
+        if (shutdown && queue.remove(task)) {
+            throw new RejectedExecutionException("The executor has been shut down");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the stripe the tasks with the specified key are executed on
+     *
+     * @param key
+     *      The key of the tasks, may be null
+     *
+     * @return
+     *      The index of the stripe
+     */
+    public int stripeFor(Object key) {
+        if (key == null) return 0;
+
+        // Spread the bits of the hash code, as keys often differ only in the last characters
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+     * Returns the number of stripes
+     *
+     * @return
+     *      The number of stripes
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed on a stripe
+     *
+     * @param stripe
+     *      The index of the stripe
+     *
+     * @return
+     *      The number of tasks waiting
+     */
+    public int getQueueDepth(int stripe) {
+        return stripes[stripe].queue.size();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed on all the stripes
+     *
+     * @return
+     *      The number of tasks waiting
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stripe stripe : stripes) {
+            depth += stripe.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns whether the executor has been shut down
+     *
+     * @return
+     *      True if new tasks are rejected
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Stop accepting tasks. The tasks already submitted are executed, then the threads terminate.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Stripe stripe : stripes) {
+            // Wake up an idle stripe. A full one is busy, and stops as soon as it has drained
+            stripe.queue.offer(POISON);
+        }
+    }
+
+    /**
+     * Wait for the threads to terminate after a shutdown
+     *
+     * @param timeoutMillis
+     *      The maximum time to wait, in milliseconds
+     *
+     * @return
+     *      True if all the threads terminated, false if the timeout expired
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Stripe stripe : stripes) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return !stripe.isAlive();
+            stripe.join(remaining);
+            if (stripe.isAlive()) return false;
+        }
+        return true;
+    }
+
+    // The task waking up a stripe after a shutdown
+    private static final Runnable POISON = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    /**
+     * A stripe, made of a queue and the thread executing its tasks
+     */
+    private final class Stripe extends Thread {
+
+        final BlockingQueue<Runnable> queue;
+
+        Stripe(String name, int capacity) {
+            super(name);
+            setDaemon(true);
+            queue = new LinkedBlockingQueue<Runnable>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (shutdown && queue.isEmpty()) return;
+
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == POISON) continue;
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(PAAndroidConstants.PA_LOGTAG, "Error executing a task on " + getName(), e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This Class keeps the summaries of the values received for every property of every device, in
+ * fixed memory.<br>
+ * For every (device, property) pair, values are summarized in a {@link ValueSketch} per time
+ * window, and only a fixed number of recent windows is kept: the sketch of a window that falls
+ * out of the retention period is reused for the next one, so recording values doesn't allocate
+ * memory once a pair is known. Summaries of any set of devices and windows are obtained merging
+ * the sketches.<br>
+ * Values are assigned to windows by their phenomenon time. Only the first value of every
+ * observation is summarized, and waveforms are skipped.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SummaryRegistry {
+
+    // Default values
+    public static final long DEFAULT_WINDOW = 5 * 60 * 1000;     // Milliseconds
+    public static final int DEFAULT_WINDOW_COUNT = 12;
+
+    private final long window;
+    private final int windowCount;
+    private final ConcurrentMap<String, ConcurrentMap<String, Series>> byDeviceId =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Series>>();
+
+    /**
+     * Create a registry keeping one hour of summaries, in windows of five minutes
+     */
+    public SummaryRegistry() {
+        this(DEFAULT_WINDOW, DEFAULT_WINDOW_COUNT);
+    }
+
+    /**
+     * Create a registry
+     *
+     * @param mWindow
+     *      The length of a window, in milliseconds
+     *
+     * @param mWindowCount
+     *      The number of windows kept for every property of every device
+     */
+    public SummaryRegistry(long mWindow, int mWindowCount) {
+        if (mWindow <= 0 || mWindowCount <= 0) throw new IllegalArgumentException("Window length and count must be positive");
+
+        window = mWindow;
+        windowCount = mWindowCount;
+    }
+
+    /**
+     * Record the observations of a push, typically from the pushData of the Protocol Adapter
+     *
+     * @param observations
+     *      The observations received
+     *
+     * @param devDesc
+     *      The device who supplied the data
+     */
+    public void record(List<Observation> observations, DeviceDescription devDesc) {
+        if (devDesc == null || devDesc.getDeviceID() == null || observations == null) return;
+
+        long now = System.currentTimeMillis();
+        ConcurrentMap<String, Series> properties = propertiesOf(devDesc.getDeviceID());
+        for (int i = 0; i < observations.size(); i++) {
+            Observation obs = observations.get(i);
+            if (obs instanceof WaveformObservation || obs.getPropertyName() == null) continue;
+
+            double[] values = obs.valuesAsDoubleArray();
+            if (values.length == 0 || Double.isNaN(values[0])) continue;
+
+            long time = obs.getPhenomenonTime();
+            seriesOf(properties, obs.getPropertyName()).record(values[0], time > 0 ? time : now);
+        }
+    }
+
+    /**
+     * Returns the summary of the values of a property
+     *
+     * @param devId
+     *      The ID of the device, null to summarize all the devices providing the property
+     *
+     * @param propertyName
+     *      The name of the property
+     *
+     * @param since
+     *      The beginning of the interval in milliseconds, 0 for all the windows kept. The summary
+     *      starts with the window containing this time.
+     *
+     * @return
+     *      The summary, empty if no value was recorded
+     */
+    public PropertySummary getSummary(String devId, String propertyName, long since) {
+        long now = System.currentTimeMillis();
+        long start = Math.max(since - since % window, startOf(now) - (windowCount - 1) * window);
+        PropertySummary result = new PropertySummary(devId, propertyName, start, startOf(now) + window);
+        if (propertyName == null) return result;
+
+        if (devId != null) {
+            ConcurrentMap<String, Series> properties = byDeviceId.get(devId);
+            Series series = (properties != null ? properties.get(propertyName) : null);
+            if (series != null) series.mergeInto(result.getSketch(), start);
+        } else {
+            for (ConcurrentMap<String, Series> properties : byDeviceId.values()) {
+                Series series = properties.get(propertyName);
+                if (series != null) series.mergeInto(result.getSketch(), start);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the IDs of the devices with summaries of a property
+     *
+     * @param propertyName
+     *      The name of the property
+     *
+     * @return
+     *      The IDs of the devices
+     */
+    public List<String> getDeviceIds(String propertyName) {
+        List<String> result = new ArrayList<String>();
+        for (String devId : byDeviceId.keySet()) {
+            ConcurrentMap<String, Series> properties = byDeviceId.get(devId);
+            if (properties != null && properties.containsKey(propertyName)) result.add(devId);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of the properties summarized for a device
+     *
+     * @param devId
+     *      The ID of the device
+     *
+     * @return
+     *      The names of the properties, empty if the device is unknown
+     */
+    public List<String> getPropertyNames(String devId) {
+        ConcurrentMap<String, Series> properties = (devId != null ? byDeviceId.get(devId) : null);
+        return properties != null ? new ArrayList<String>(properties.keySet()) : new ArrayList<String>();
+    }
+
+    /**
+     * Forget the summaries of a device, i.e. because it has been deregistered
+     *
+     * @param devId
+     *      The ID of the device
+     */
+    public void removeDevice(String devId) {
+        if (devId != null) byDeviceId.remove(devId);
+    }
+
+    /**
+     * Forget all the summaries
+     */
+    public void reset() {
+        byDeviceId.clear();
+    }
+
+    private long startOf(long time) {
+        return time - time % window;
+    }
+
+    private ConcurrentMap<String, Series> propertiesOf(String devId) {
+        ConcurrentMap<String, Series> properties = byDeviceId.get(devId);
+        if (properties == null) {
+            ConcurrentMap<String, Series> newProperties = new ConcurrentHashMap<String, Series>();
+            properties = byDeviceId.putIfAbsent(devId, newProperties);
+            if (properties == null) properties = newProperties;
+        }
+        return properties;
+    }
+
+    private Series seriesOf(ConcurrentMap<String, Series> properties, String propertyName) {
+        Series series = properties.get(propertyName);
+        if (series == null) {
+            Series newSeries = new Series(window, windowCount);
+            series = properties.putIfAbsent(propertyName, newSeries);
+            if (series == null) series = newSeries;
+        }
+        return series;
+    }
+
+    /**
+     * The windows of a property of a device, used as a ring
+     */
+    private static final class Series {
+        final long window;
+        final ValueSketch[] sketches;
+        final long[] starts;
+
+        Series(long window, int windowCount) {
+            this.window = window;
+            this.sketches = new ValueSketch[windowCount];
+            this.starts = new long[windowCount];
+            for (int i = 0; i < windowCount; i++) {
+                starts[i] = -1;
+            }
+        }
+
+        synchronized void record(double value, long time) {
+            long start = time - time % window;
+            int slot = (int) ((start / window) % sketches.length);
+
+            // Values older than the window kept in their slot are too old to be recorded
+            if (starts[slot] > start) return;
+            if (starts[slot] < start) {
+                if (sketches[slot] == null) {
+                    sketches[slot] = new ValueSketch();
+                } else {
+                    sketches[slot].reset();
+                }
+                starts[slot] = start;
+            }
+            sketches[slot].add(value);
+        }
+
+        synchronized void mergeInto(ValueSketch result, long since) {
+            for (int i = 0; i < sketches.length; i++) {
+                if (sketches[i] != null && starts[i] >= since) result.merge(sketches[i]);
+            }
+        }
+    }
+
+}
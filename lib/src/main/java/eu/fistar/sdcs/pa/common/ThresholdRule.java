@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This Class describes a rule evaluated by the Protocol Adapter on every observation it receives,
+ * so that Applications interested only in exceptional values don't need to receive all the data.<br>
+ * A rule compares either a value of the observations of a property, or its rate of change per
+ * second between two consecutive observations of the same device, with a threshold. A rule can be
+ * restricted to a device or to a model of device. To avoid flooding the Application, a rule can
+ * have a cooldown: after a match, further matches of the rule for the same device are ignored
+ * until the cooldown expires.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ThresholdRule implements Parcelable {
+
+    // The value a rule is evaluated on
+    public static final int KIND_VALUE = 0;
+    public static final int KIND_RATE = 1;
+
+    // The comparison with the threshold
+    public static final int OPERATOR_GREATER = 0;
+    public static final int OPERATOR_GREATER_OR_EQUAL = 1;
+    public static final int OPERATOR_LESS = 2;
+    public static final int OPERATOR_LESS_OR_EQUAL = 3;
+
+    // The ID of a rule not yet added
+    public static final long NO_ID = -1;
+
+    private long id = NO_ID;            // Assigned by the Protocol Adapter when the rule is added
+    private String propertyName;        // The property the rule applies to
+    private int kind = KIND_VALUE;
+    private int operator = OPERATOR_GREATER;
+    private double threshold;
+    private int valueIndex = 0;         // The index of the value within the observations
+    private String deviceID;            // The device the rule applies to, null for any device
+    private String modelName;           // The model the rule applies to, null for any model
+    private long cooldown = 0;          // Milliseconds, 0 to report every match
+
+    // The static field CREATOR required by Parcelable
+    public static final Parcelable.Creator<ThresholdRule> CREATOR
+            = new Parcelable.Creator<ThresholdRule>() {
+
+        /**
+         * The method to recreate the object from a Parcel using the private constructor
+         *
+         * @param in
+         *      The Parcel used to recreate the object
+         *
+         * @return
+         *      The resulting object
+         */
+        public ThresholdRule createFromParcel(Parcel in) {
+            return new ThresholdRule(in);
+        }
+
+        /**
+         * The method to create an array of objects
+         *
+         * @param size
+         *      The size of the array
+         *
+         * @return
+         *      The resulting array
+         */
+        public ThresholdRule[] newArray(int size) {
+            return new ThresholdRule[size];
+        }
+    };
+
+    /**
+     * The method to recreate the object from a Parcel
+     *
+     * @param in
+     *      The input Parcel
+     */
+    public void readFromParcel(Parcel in) {
+        id = in.readLong();
+        propertyName = in.readString();
+        kind = in.readInt();
+        operator = in.readInt();
+        threshold = in.readDouble();
+        valueIndex = in.readInt();
+        deviceID = in.readString();
+        modelName = in.readString();
+        cooldown = in.readLong();
+    }
+
+    /**
+     * The method to serialize the object as a Parcel
+     *
+     * @param out
+     *      The resulting Parcel
+     *
+     * @param flags
+     *      Some flags
+     */
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(id);
+        out.writeString(propertyName);
+        out.writeInt(kind);
+        out.writeInt(operator);
+        out.writeDouble(threshold);
+        out.writeInt(valueIndex);
+        out.writeString(deviceID);
+        out.writeString(modelName);
+        out.writeLong(cooldown);
+    }
+
+    /**
+     * The describe content method required by Parcelable
+     *
+     * @return
+     *      The contents description
+     */
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * The Constructor required by Parcelable
+     */
+    public ThresholdRule(Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Create a rule applying to all the devices providing a property
+     *
+     * @param mPropertyName
+     *      The name of the property
+     *
+     * @param mKind
+     *      What to compare with the threshold, one of the KIND constants
+     *
+     * @param mOperator
+     *      The comparison, one of the OPERATOR constants
+     *
+     * @param mThreshold
+     *      The threshold, per second for rules on the rate of change
+     */
+    public ThresholdRule(String mPropertyName, int mKind, int mOperator, double mThreshold) {
+        if (mPropertyName == null) throw new IllegalArgumentException("Property name cannot be null");
+        if (mKind != KIND_VALUE && mKind != KIND_RATE) throw new IllegalArgumentException("Unknown kind " + mKind);
+        if (mOperator < OPERATOR_GREATER || mOperator > OPERATOR_LESS_OR_EQUAL) {
+            throw new IllegalArgumentException("Unknown operator " + mOperator);
+        }
+
+        propertyName = mPropertyName;
+        kind = mKind;
+        operator = mOperator;
+        threshold = mThreshold;
+    }
+
+    /**
+     * Constructor used to create a new object from a derivated object of the same type
+     *
+     * @param derivObj
+     */
+    public ThresholdRule(ThresholdRule derivObj) {
+        id = derivObj.id;
+        propertyName = derivObj.propertyName;
+        kind = derivObj.kind;
+        operator = derivObj.operator;
+        threshold = derivObj.threshold;
+        valueIndex = derivObj.valueIndex;
+        deviceID = derivObj.deviceID;
+        modelName = derivObj.modelName;
+        cooldown = derivObj.cooldown;
+    }
+
+    /**
+     * Returns the ID of the rule, assigned by the Protocol Adapter when the rule is added
+     *
+     * @return
+     *      The ID, or {@link #NO_ID} if the rule was not added
+     */
+    public long getId() {
+        return id;
+    }
+
+    void setId(long mId) {
+        id = mId;
+    }
+
+    /**
+     * Returns the property the rule applies to
+     *
+     * @return
+     *      The name of the property
+     */
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    /**
+     * Returns what is compared with the threshold
+     *
+     * @return
+     *      {@link #KIND_VALUE} or {@link #KIND_RATE}
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the comparison with the threshold
+     *
+     * @return
+     *      One of the OPERATOR constants
+     */
+    public int getOperator() {
+        return operator;
+    }
+
+    /**
+     * Returns the threshold
+     *
+     * @return
+     *      The threshold, per second for rules on the rate of change
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the index of the value compared, i.e. 1 for the diastolic pressure of a blood
+     * pressure observation
+     *
+     * @return
+     *      The index of the value within the observations
+     */
+    public int getValueIndex() {
+        return valueIndex;
+    }
+
+    /**
+     * Set the index of the value compared, 0 by default
+     *
+     * @param mValueIndex
+     *      The index of the value within the observations
+     */
+    public void setValueIndex(int mValueIndex) {
+        if (mValueIndex < 0) throw new IllegalArgumentException("Value index cannot be negative");
+        valueIndex = mValueIndex;
+    }
+
+    /**
+     * Returns the device the rule applies to
+     *
+     * @return
+     *      The ID of the device, or null if the rule applies to any device
+     */
+    public String getDeviceID() {
+        return deviceID;
+    }
+
+    /**
+     * Restrict the rule to a device
+     *
+     * @param mDeviceID
+     *      The ID of the device, null to apply the rule to any device
+     */
+    public void setDeviceID(String mDeviceID) {
+        deviceID = mDeviceID;
+    }
+
+    /**
+     * Returns the model of the devices the rule applies to
+     *
+     * @return
+     *      The model name, or null if the rule applies to any model
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Restrict the rule to a model of device
+     *
+     * @param mModelName
+     *      The model name, null to apply the rule to any model
+     */
+    public void setModelName(String mModelName) {
+        modelName = mModelName;
+    }
+
+    /**
+     * Returns the minimum interval between two matches of the rule reported for the same device
+     *
+     * @return
+     *      The cooldown in milliseconds, 0 if every match is reported
+     */
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    /**
+     * Set the minimum interval between two matches of the rule reported for the same device
+     *
+     * @param mCooldown
+     *      The cooldown in milliseconds, 0 to report every match
+     */
+    public void setCooldown(long mCooldown) {
+        if (mCooldown < 0) throw new IllegalArgumentException("Cooldown cannot be negative");
+        cooldown = mCooldown;
+    }
+
+    /**
+     * Compare a value with the threshold
+     *
+     * @param value
+     *      The value, or the rate of change for rules on the rate of change
+     *
+     * @return
+     *      True if the value matches the rule
+     */
+    public boolean matches(double value) {
+        switch (operator) {
+            case OPERATOR_GREATER: return value > threshold;
+            case OPERATOR_GREATER_OR_EQUAL: return value >= threshold;
+            case OPERATOR_LESS: return value < threshold;
+            default: return value <= threshold;
+        }
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "ID: "+id+"\nProperty Name: "+propertyName+"\nKind: "+kind+"\nOperator: "+operator+
+                "\nThreshold: "+threshold+"\nValue Index: "+valueIndex+"\nDevice ID: "+deviceID+
+                "\nModel Name: "+modelName+"\nCooldown: "+cooldown+"\n";
+    }
+
+}
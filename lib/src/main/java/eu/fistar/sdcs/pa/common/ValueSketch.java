@@ -0,0 +1,405 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+
+/**
+ * A fixed-memory summary of a stream of values: count, minimum, maximum, mean, variance and
+ * approximate quantiles.<br>
+ * Quantiles are computed from logarithmic buckets, so they are reported with a relative error
+ * below {@link #RELATIVE_ACCURACY}. Every sign has a window of {@link #BUCKETS} contiguous buckets,
+ * covering values within a ratio of about 1:45; when a stream spans a wider range, the buckets
+ * closest to zero are collapsed, so the accuracy is preserved for the values farthest from zero.
+ * Values closer to zero than {@link #MIN_VALUE} are counted as zero.<br>
+ * Sketches can be merged, i.e. to summarize many devices or many time windows at once. Adding a
+ * value never allocates memory. A sketch is not thread safe.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public final class ValueSketch {
+
+    public static final double RELATIVE_ACCURACY = 0.015;
+    public static final int BUCKETS = 128;
+    public static final double MIN_VALUE = 1e-9;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double mean = 0;
+    private double m2 = 0;                  // Sum of the squared differences from the mean
+    private long zeroCount = 0;
+    private final Store positive = new Store();
+    private Store negative;                 // Lazily created, negative values are rare
+
+    /**
+     * Default constructor, creates an empty sketch
+     */
+    public ValueSketch() {}
+
+    /**
+     * Add a value to the sketch. Values that are not numbers are ignored.
+     *
+     * @param value
+     *      The value to add
+     */
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+
+        count++;
+        if (value < min) min = value;
+        if (value > max) max = value;
+
+        // Welford's algorithm
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+
+        if (value > MIN_VALUE) {
+            positive.add(keyOf(value), 1);
+        } else if (value < -MIN_VALUE) {
+            if (negative == null) negative = new Store();
+            negative.add(keyOf(-value), 1);
+        } else {
+            zeroCount++;
+        }
+    }
+
+    /**
+     * Add all the values of another sketch to this one
+     *
+     * @param other
+     *      The sketch to merge
+     */
+    public void merge(ValueSketch other) {
+        if (other.count == 0) return;
+        if (count == 0) {
+            mean = other.mean;
+            m2 = other.m2;
+        } else {
+            // Chan's parallel algorithm
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+        }
+
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        zeroCount += other.zeroCount;
+        positive.merge(other.positive);
+        if (other.negative != null) {
+            if (negative == null) negative = new Store();
+            negative.merge(other.negative);
+        }
+    }
+
+    /**
+     * Returns a copy of the sketch
+     *
+     * @return
+     *      The copy
+     */
+    public ValueSketch copy() {
+        ValueSketch result = new ValueSketch();
+        result.merge(this);
+        return result;
+    }
+
+    /**
+     * Forget all the values added, keeping the memory of the sketch
+     */
+    public void reset() {
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        mean = 0;
+        m2 = 0;
+        zeroCount = 0;
+        positive.clear();
+        if (negative != null) negative.clear();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value added
+     *
+     * @return
+     *      The minimum, or NaN if the sketch is empty
+     */
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * Returns the biggest value added
+     *
+     * @return
+     *      The maximum, or NaN if the sketch is empty
+     */
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Returns the mean of the values added
+     *
+     * @return
+     *      The mean, or NaN if the sketch is empty
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * Returns the variance of the values added
+     *
+     * @return
+     *      The population variance, or NaN if the sketch is empty
+     */
+    public double getVariance() {
+        return count > 0 ? m2 / count : Double.NaN;
+    }
+
+    /**
+     * Returns the standard deviation of the values added
+     *
+     * @return
+     *      The population standard deviation, or NaN if the sketch is empty
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * Returns an approximation of a quantile of the values added
+     *
+     * @param quantile
+     *      The quantile, between 0 and 1 (i.e. 0.5 for the median)
+     *
+     * @return
+     *      The approximate value of the quantile, or NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (count == 0) return Double.NaN;
+        if (quantile <= 0) return min;
+        if (quantile >= 1) return max;
+
+        long rank = (long) Math.ceil(quantile * count);
+        if (rank < 1) rank = 1;
+
+        // Negative values, from the biggest in absolute value
+        long seen = 0;
+        if (negative != null) {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                seen += negative.counts[i];
+                if (seen >= rank) return clamp(-valueOf(negative.offset + i));
+            }
+        }
+
+        seen += zeroCount;
+        if (seen >= rank) return 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += positive.counts[i];
+            if (seen >= rank) return clamp(valueOf(positive.offset + i));
+        }
+        return max;
+    }
+
+    /**
+     * Write the sketch to a Parcel, only the buckets in use are written
+     *
+     * @param out
+     *      The destination Parcel
+     */
+    void writeToParcel(Parcel out) {
+        out.writeLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(mean);
+        out.writeDouble(m2);
+        out.writeLong(zeroCount);
+        positive.writeToParcel(out);
+        if (negative != null) {
+            negative.writeToParcel(out);
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    /**
+     * Read a sketch written by {@link #writeToParcel(Parcel)}
+     *
+     * @param in
+     *      The source Parcel
+     *
+     * @return
+     *      The sketch
+     */
+    static ValueSketch readFromParcel(Parcel in) {
+        ValueSketch sketch = new ValueSketch();
+        sketch.count = in.readLong();
+        sketch.min = in.readDouble();
+        sketch.max = in.readDouble();
+        sketch.mean = in.readDouble();
+        sketch.m2 = in.readDouble();
+        sketch.zeroCount = in.readLong();
+        sketch.positive.readFromParcel(in);
+
+        Store negative = new Store();
+        if (negative.readFromParcel(in)) sketch.negative = negative;
+        return sketch;
+    }
+
+    // The quantile estimate can't be outside the range of the values added
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int keyOf(double absValue) {
+        return (int) Math.ceil(Math.log(absValue) / LOG_GAMMA);
+    }
+
+    // The value with the same relative distance from both the bounds of the bucket
+    private static double valueOf(int key) {
+        return 2 * Math.pow(GAMMA, key) / (GAMMA + 1);
+    }
+
+    /**
+     * A window of contiguous buckets, moving up when a bigger value arrives and collapsing the
+     * lowest buckets, and moving down when a smaller value arrives if the highest bucket in use
+     * still fits
+     */
+    private static final class Store {
+        final long[] counts = new long[BUCKETS];
+        int offset;                 // The key of the first bucket
+        boolean empty = true;
+
+        void add(int key, long n) {
+            if (empty) {
+                // Leave room for smaller and bigger values
+                offset = key - BUCKETS / 2;
+                empty = false;
+            }
+
+            int index = key - offset;
+            if (index >= BUCKETS) {
+                shift(index - BUCKETS + 1);
+                index = BUCKETS - 1;
+            } else if (index < 0) {
+                index = Math.max(0, index + shiftDown(-index));
+            }
+            counts[index] += n;
+        }
+
+        void merge(Store other) {
+            if (other.empty) return;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (other.counts[i] != 0) add(other.offset + i, other.counts[i]);
+            }
+        }
+
+        // Move the window up, collapsing the buckets left out into the new lowest one
+        void shift(int n) {
+            long collapsed = 0;
+            for (int i = 0; i < Math.min(n, BUCKETS); i++) {
+                collapsed += counts[i];
+            }
+
+            if (n < BUCKETS) {
+                System.arraycopy(counts, n, counts, 0, BUCKETS - n);
+                for (int i = BUCKETS - n; i < BUCKETS; i++) {
+                    counts[i] = 0;
+                }
+            } else {
+                clearCounts();
+            }
+            counts[0] += collapsed;
+            offset += n;
+        }
+
+        // Move the window down as far as the highest bucket in use allows, returning the shift
+        int shiftDown(int n) {
+            int top = BUCKETS - 1;
+            while (top > 0 && counts[top] == 0) top--;
+            n = Math.min(n, BUCKETS - 1 - top);
+            if (n <= 0) return 0;
+
+            System.arraycopy(counts, 0, counts, n, top + 1);
+            for (int i = 0; i < n; i++) {
+                counts[i] = 0;
+            }
+            offset -= n;
+            return n;
+        }
+
+        void clear() {
+            clearCounts();
+            empty = true;
+        }
+
+        private void clearCounts() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = 0;
+            }
+        }
+
+        void writeToParcel(Parcel out) {
+            int first = 0;
+            int last = BUCKETS - 1;
+            while (first <= last && counts[first] == 0) first++;
+            while (last >= first && counts[last] == 0) last--;
+
+            int length = last - first + 1;
+            out.writeInt(length);
+            if (length == 0) return;
+
+            out.writeInt(offset + first);
+            for (int i = first; i <= last; i++) {
+                out.writeLong(counts[i]);
+            }
+        }
+
+        boolean readFromParcel(Parcel in) {
+            int length = in.readInt();
+            if (length == 0) return false;
+            if (length > BUCKETS) throw new IllegalArgumentException("Invalid sketch length " + length);
+
+            int firstKey = in.readInt();
+            for (int i = 0; i < length; i++) {
+                add(firstKey + i, in.readLong());
+            }
+            return true;
+        }
+    }
+
+}
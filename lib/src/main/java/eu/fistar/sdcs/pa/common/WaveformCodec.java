@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import java.util.Arrays;
+
+/**
+ * This Class implements the lossless compression of the samples of a waveform.<br>
+ * Every sample is replaced by its difference from the previous one (delta encoding), which is
+ * small for physiological signals. Differences are zigzag encoded, so small negative numbers
+ * become small positive ones, and then packed in blocks of 64 using only as many bits per value as
+ * the largest value of the block needs.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public final class WaveformCodec {
+
+    // Number of samples packed with the same bit width
+    private static final int BLOCK_SIZE = 64;
+
+    private WaveformCodec() {}
+
+    /**
+     * Compress a sequence of samples
+     *
+     * @param samples
+     *      The samples to compress
+     *
+     * @return
+     *      The compressed samples. Their number is not included and must be stored separately.
+     */
+    public static byte[] encode(short[] samples) {
+        int n = samples.length;
+        int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        // Worst case: one byte for the width and one of padding per block, 17 bits per value
+        byte[] out = new byte[2 * blocks + (n * 17 + 7) / 8];
+        int[] zigzag = new int[BLOCK_SIZE];
+        int pos = 0;
+        int prev = 0;
+
+        for (int b = 0; b < n; b += BLOCK_SIZE) {
+            int len = Math.min(BLOCK_SIZE, n - b);
+
+            int bitsUsed = 0;
+            for (int i = 0; i < len; i++) {
+                int delta = samples[b + i] - prev;
+                prev = samples[b + i];
+                zigzag[i] = (delta << 1) ^ (delta >> 31);
+                bitsUsed |= zigzag[i];
+            }
+
+            int width = 32 - Integer.numberOfLeadingZeros(bitsUsed);
+            out[pos++] = (byte) width;
+
+            long acc = 0;
+            int bits = 0;
+            for (int i = 0; i < len; i++) {
+                acc |= ((long) zigzag[i]) << bits;
+                bits += width;
+                while (bits >= 8) {
+                    out[pos++] = (byte) acc;
+                    acc >>>= 8;
+                    bits -= 8;
+                }
+            }
+            if (bits > 0) out[pos++] = (byte) acc;
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Decompress a sequence of samples
+     *
+     * @param data
+     *      The compressed samples, as returned by {@link #encode(short[])}
+     *
+     * @param count
+     *      The number of samples
+     *
+     * @return
+     *      The samples
+     *
+     * @throws IllegalArgumentException if the data is not valid
+     */
+    public static short[] decode(byte[] data, int count) {
+        if (data == null) throw new IllegalArgumentException("Missing waveform data");
+        // Every block takes at least its bit width, so a larger count cannot be valid
+        if (count < 0 || (long) count > (long) data.length * BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid sample count " + count);
+        }
+
+        short[] out = new short[count];
+        int pos = 0;
+        int prev = 0;
+
+        try {
+            for (int b = 0; b < count; b += BLOCK_SIZE) {
+                int len = Math.min(BLOCK_SIZE, count - b);
+                int width = data[pos++] & 0xff;
+                if (width > 17) throw new IllegalArgumentException("Invalid bit width " + width);
+                int mask = (1 << width) - 1;
+
+                long acc = 0;
+                int bits = 0;
+                for (int i = 0; i < len; i++) {
+                    while (bits < width) {
+                        acc |= ((long) (data[pos++] & 0xff)) << bits;
+                        bits += 8;
+                    }
+                    int zigzag = (int) (acc & mask);
+                    acc >>>= width;
+                    bits -= width;
+
+                    prev += (zigzag >>> 1) ^ -(zigzag & 1);
+                    out[b + i] = (short) prev;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated waveform data");
+        }
+
+        return out;
+    }
+
+}
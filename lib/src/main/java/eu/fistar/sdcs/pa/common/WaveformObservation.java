@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This Class describes an observation made of a waveform, i.e. the samples of an ECG or PPG
+ * signal.<br>
+ * Instead of carrying one String value and one timestamp per sample, a waveform carries the time
+ * of the first sample, the sample rate and a packed array of samples, optionally compressed (see
+ * {@link WaveformCodec}). Waveforms flow through the same pushData calls as every other
+ * Observation: recipients that are not aware of waveforms can still read the samples through
+ * {@link #getValues()}, that converts them to Strings the first time it's called.<br>
+ * Recipients built with the versions of the library before 3.5.0 cannot read waveforms from a
+ * Parcel: unless they declared to accept extended observations in their {@link ListenerOptions},
+ * send them the list returned by {@link Observation#withoutExtensions(List)}.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class WaveformObservation extends Observation {
+
+    // Encoding related constants
+    public static final int ENCODING_FLOAT = 0;
+    public static final int ENCODING_SHORT = 1;
+    public static final int ENCODING_SHORT_PACKED = 2;
+
+    private double sampleRate;          // Samples per second
+    private float[] floatSamples;       // The samples, null if they are shorts
+    private short[] shortSamples;       // The samples, null if they are floats
+    private boolean compressed;         // True if short samples are compressed in the Parcel
+
+    // Samples converted for the legacy accessors, lazily created
+    private volatile List<String> stringValues;
+    private volatile double[] doubleSamples;
+
+    /**
+     * Create a waveform made of floating point samples
+     *
+     * @param mSensor The sensor providing the waveform
+     * @param mStartTime The timestamp of the first sample, in milliseconds
+     * @param mSampleRate The number of samples per second
+     * @param mSamples The samples, not copied
+     */
+    public WaveformObservation(SensorDescription mSensor, long mStartTime, double mSampleRate, float[] mSamples) {
+        init(mSensor, mStartTime, mSampleRate, mSamples.length);
+        floatSamples = mSamples;
+    }
+
+    /**
+     * Create a waveform made of integer samples, i.e. the raw output of an A/D converter
+     *
+     * @param mSensor The sensor providing the waveform
+     * @param mStartTime The timestamp of the first sample, in milliseconds
+     * @param mSampleRate The number of samples per second
+     * @param mSamples The samples, not copied
+     * @param mCompressed True to compress the samples when writing them to a Parcel
+     */
+    public WaveformObservation(SensorDescription mSensor, long mStartTime, double mSampleRate, short[] mSamples, boolean mCompressed) {
+        init(mSensor, mStartTime, mSampleRate, mSamples.length);
+        shortSamples = mSamples;
+        compressed = mCompressed;
+    }
+
+    /**
+     * Recreate a waveform from the base fields already read and the waveform block of a Parcel
+     */
+    WaveformObservation(Observation base, Parcel in) {
+        super(base);
+        readWaveform(in);
+    }
+
+    private void init(SensorDescription sensor, long startTime, double rate, int count) {
+        if (rate <= 0) throw new IllegalArgumentException("Sample rate must be positive");
+
+        setProperty(sensor.getPropertyName());
+        setMeasurementUnit(sensor.getMeasurementUnit());
+        setPhenomenonTime(startTime);
+        setDuration(Math.round(count * 1000.0 / rate));
+        sampleRate = rate;
+    }
+
+    @Override
+    public void readFromParcel(Parcel in) {
+        super.readFromParcel(in);
+        if (waveformPosition < 0) return;
+
+        int end = in.dataPosition();
+        in.setDataPosition(waveformPosition);
+        readWaveform(in);
+        in.setDataPosition(end);
+    }
+
+    private void readWaveform(Parcel in) {
+        sampleRate = in.readDouble();
+        int encoding = in.readInt();
+
+        floatSamples = null;
+        shortSamples = null;
+        compressed = false;
+        stringValues = null;
+        doubleSamples = null;
+
+        switch (encoding) {
+            case ENCODING_FLOAT:
+                floatSamples = in.createFloatArray();
+                break;
+            case ENCODING_SHORT:
+                shortSamples = toShorts(in.createByteArray());
+                break;
+            case ENCODING_SHORT_PACKED:
+                int count = in.readInt();
+                shortSamples = WaveformCodec.decode(in.createByteArray(), count);
+                compressed = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown waveform encoding " + encoding);
+        }
+    }
+
+    @Override
+    boolean hasBlocks() {
+        return true;
+    }
+
+    @Override
+    void writeBlocks(Parcel out, int flags) {
+        int start = beginBlock(out, TAG_WAVEFORM);
+        out.writeDouble(sampleRate);
+
+        if (floatSamples != null) {
+            out.writeInt(ENCODING_FLOAT);
+            out.writeFloatArray(floatSamples);
+        } else if (compressed) {
+            out.writeInt(ENCODING_SHORT_PACKED);
+            out.writeInt(shortSamples.length);
+            out.writeByteArray(WaveformCodec.encode(shortSamples));
+        } else {
+            out.writeInt(ENCODING_SHORT);
+            out.writeByteArray(toBytes(shortSamples));
+        }
+
+        endBlock(out, start);
+        super.writeBlocks(out, flags);
+    }
+
+    /**
+     * Returns the number of samples per second
+     *
+     * @return
+     *      The sample rate
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the number of samples of the waveform
+     *
+     * @return
+     *      The number of samples
+     */
+    public int getSampleCount() {
+        return floatSamples != null ? floatSamples.length : shortSamples.length;
+    }
+
+    /**
+     * Returns a sample of the waveform
+     *
+     * @param i
+     *      The index of the sample
+     *
+     * @return
+     *      The sample
+     */
+    public float getSample(int i) {
+        return floatSamples != null ? floatSamples[i] : shortSamples[i];
+    }
+
+    /**
+     * Returns the timestamp of a sample, computed from the time of the first one and the rate
+     *
+     * @param i
+     *      The index of the sample
+     *
+     * @return
+     *      The timestamp of the sample, in milliseconds
+     */
+    public long getSampleTime(int i) {
+        return getPhenomenonTime() + Math.round(i * 1000.0 / sampleRate);
+    }
+
+    /**
+     * Returns the samples of the waveform, if they are floating point samples
+     *
+     * @return
+     *      The samples, or null if the waveform is made of integer samples
+     */
+    public float[] getFloatSamples() {
+        return floatSamples;
+    }
+
+    /**
+     * Returns the samples of the waveform, if they are integer samples
+     *
+     * @return
+     *      The samples, or null if the waveform is made of floating point samples
+     */
+    public short[] getShortSamples() {
+        return shortSamples;
+    }
+
+    /**
+     * States whether the samples are compressed when written to a Parcel
+     *
+     * @return
+     *      True if the samples are compressed, false otherwise
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the samples converted to Strings, for recipients that are not aware of waveforms.
+     * The conversion is done the first time this method is called.
+     *
+     * @return
+     *      The samples as Strings
+     */
+    @Override
+    public List<String> getValues() {
+        List<String> result = stringValues;
+        if (result == null) {
+            int count = getSampleCount();
+            result = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(floatSamples != null ? Float.toString(floatSamples[i]) : Short.toString(shortSamples[i]));
+            }
+            result = Collections.unmodifiableList(result);
+            stringValues = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int estimateParcelSize() {
+        int samplesSize;
+        if (floatSamples != null) {
+            samplesSize = 4 + floatSamples.length * 4;
+        } else if (compressed) {
+            // Physiological signals usually compress to about half of their size
+            samplesSize = 8 + shortSamples.length;
+        } else {
+            samplesSize = 4 + ((shortSamples.length * 2 + 3) & ~3);
+        }
+        return super.estimateParcelSize() + 8 + 8 + 4 + samplesSize;
+    }
+
+    @Override
+    public double getDouble(int i) {
+        return getSample(i);
+    }
+
+    @Override
+    public long getLong(int i) {
+        return (long) getSample(i);
+    }
+
+    @Override
+    public double[] valuesAsDoubleArray() {
+        double[] result = doubleSamples;
+        if (result == null) {
+            int count = getSampleCount();
+            result = new double[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = getSample(i);
+            }
+            doubleSamples = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void setValues(String[] mValues) {
+        throw new UnsupportedOperationException("The values of a waveform are its samples");
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+
+    private static short[] toShorts(byte[] bytes) {
+        short[] samples = new short[bytes.length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+        }
+        return samples;
+    }
+
+    /**
+     * Returns a read-friendly String representing the object
+     *
+     * @return
+     *      The String representing the object
+     */
+    public String toString() {
+        return "Property Name: "+getPropertyName()+"\nMeasurement Unit: "+getMeasurementUnit()+
+                "\nTime: "+getPhenomenonTime()+"\nDuration: "+getDuration()+"\nSample Rate: "+
+                sampleRate+"\nSamples: "+getSampleCount()+"\n";
+    }
+
+}
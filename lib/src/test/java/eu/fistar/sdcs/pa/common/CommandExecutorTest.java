@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the ordering, cleanup and shutdown of the command executor
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CommandExecutorTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * A callback collecting the results and signalling the completion of the requests
+     */
+    private static class Collector implements ICommandCallback {
+        final List<CommandResult> results = Collections.synchronizedList(new ArrayList<CommandResult>());
+        final CountDownLatch completed;
+
+        Collector(int requests) {
+            completed = new CountDownLatch(requests);
+        }
+
+        @Override
+        public void onCommandResult(CommandResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onRequestCompleted(long requestId) {
+            completed.countDown();
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Requests not completed", completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static List<CommandRequest> commands(String devId, int count) {
+        List<CommandRequest> commands = new ArrayList<CommandRequest>();
+        for (int i = 0; i < count; i++) {
+            commands.add(new CommandRequest("cmd" + i, null, devId));
+        }
+        return commands;
+    }
+
+    @Test
+    public void commandsOfTheSameDeviceRunInOrderAcrossRequests() throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) throws Exception {
+                executed.add(command);
+                Thread.sleep(1);
+                return command;
+            }
+        });
+        Collector collector = new Collector(2);
+
+        executor.submit(commands("dev", 5), collector);
+        executor.submit(Arrays.asList(new CommandRequest("last", null, "dev")), collector);
+        collector.await();
+
+        assertEquals(Arrays.asList("cmd0", "cmd1", "cmd2", "cmd3", "cmd4", "last"), executed);
+        assertEquals(6, collector.results.size());
+        executor.shutdown();
+    }
+
+    @Test
+    public void commandsOfDifferentDevicesRunConcurrently() throws Exception {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) throws Exception {
+                bothRunning.countDown();
+                if (!bothRunning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Not concurrent");
+                }
+                return null;
+            }
+        });
+        Collector collector = new Collector(1);
+
+        executor.submit(Arrays.asList(new CommandRequest("a", null, "dev1"),
+                new CommandRequest("b", null, "dev2")), collector);
+        collector.await();
+
+        for (CommandResult result : collector.results) {
+            assertTrue(result.getMessage(), result.isSuccessful());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void handlerErrorsAreMappedToStatuses() throws Exception {
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) throws Exception {
+                if (command.equals("unsupported")) throw new UnsupportedOperationException();
+                if (command.equals("invalid")) throw new IllegalArgumentException();
+                throw new Exception("failed");
+            }
+        });
+        Collector collector = new Collector(1);
+
+        executor.submit(Arrays.asList(new CommandRequest("unsupported", null, "dev"),
+                new CommandRequest("invalid", null, "dev"), new CommandRequest("error", null, "dev")), collector);
+        collector.await();
+
+        CommandResult[] byIndex = new CommandResult[3];
+        for (CommandResult result : collector.results) {
+            byIndex[result.getIndex()] = result;
+        }
+        assertEquals(CommandResult.STATUS_UNSUPPORTED, byIndex[0].getStatus());
+        assertEquals(CommandResult.STATUS_INVALID, byIndex[1].getStatus());
+        assertEquals(CommandResult.STATUS_ERROR, byIndex[2].getStatus());
+        executor.shutdown();
+    }
+
+    @Test
+    public void nullCommandsAreInvalidWithoutAffectingTheOthers() throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) {
+                executed.add(command);
+                return null;
+            }
+        });
+        Collector collector = new Collector(1);
+
+        executor.submit(Arrays.asList(new CommandRequest("first", null, "dev"), null,
+                new CommandRequest("last", null, "dev")), collector);
+        collector.await();
+
+        CommandResult[] byIndex = new CommandResult[3];
+        for (CommandResult result : collector.results) {
+            byIndex[result.getIndex()] = result;
+        }
+        assertEquals(CommandResult.STATUS_OK, byIndex[0].getStatus());
+        assertEquals(CommandResult.STATUS_INVALID, byIndex[1].getStatus());
+        assertEquals(CommandResult.STATUS_OK, byIndex[2].getStatus());
+        assertEquals(Arrays.asList("first", "last"), executed);
+        executor.shutdown();
+    }
+
+    @Test
+    public void idleDeviceQueuesAreRemoved() throws Exception {
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) {
+                return null;
+            }
+        });
+        Collector collector = new Collector(50);
+
+        for (int i = 0; i < 50; i++) {
+            executor.submit(commands("dev" + i, 3), collector);
+        }
+        collector.await();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (executor.getQueueCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, executor.getQueueCount());
+        assertEquals(150, collector.results.size());
+        executor.shutdown();
+    }
+
+    @Test
+    public void pendingAndLateCommandsFailAfterShutdown() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CommandExecutor executor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        });
+        Collector collector = new Collector(2);
+
+        executor.submit(commands("dev", 3), collector);
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        executor.shutdown();
+        release.countDown();
+        executor.submit(commands("dev", 2), collector);
+        collector.await();
+
+        int failed = 0;
+        for (CommandResult result : collector.results) {
+            if (result.getStatus() == CommandResult.STATUS_ERROR) failed++;
+        }
+        assertEquals(5, collector.results.size());
+        assertTrue("Expected at least 4 failed commands, got " + failed, failed >= 4);
+    }
+
+    @Test
+    public void commandsAreRecordedByDeviceAdapter() throws Exception {
+        String daId = "metrics-da-" + System.nanoTime();
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.register(new DeviceDescription("metrics-dev", "1", "Model", "Maker",
+                new ArrayList<SensorDescription>(), "addr"), daId);
+        CommandExecutor.Handler handler = new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) {
+                return null;
+            }
+        };
+        CommandExecutor byId = new CommandExecutor(handler, daId);
+        CommandExecutor byRegistry = new CommandExecutor(handler, registry);
+        Collector collector = new Collector(2);
+
+        byId.submit(commands("other-dev", 2), collector);
+        byRegistry.submit(commands("metrics-dev", 3), collector);
+        collector.await();
+
+        assertEquals(5, MetricsRegistry.getDefault().getStatistics().getDaEntry(daId).getCommands());
+        byId.shutdown();
+        byRegistry.shutdown();
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the flow control, overflow policies and failure handling of the credited sender
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class CreditedSenderTest {
+
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "bpm", "Heart Rate");
+
+    /**
+     * A sink recording the values of the observations delivered, optionally failing
+     */
+    private static class RecordingSink implements CreditedSender.Sink {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean failing = false;
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+            if (failing) throw new RemoteException();
+            for (Observation obs : observations) {
+                delivered.add(obs.getValues().get(0));
+            }
+        }
+    }
+
+    private static ListenerOptions credit(int observations) {
+        ListenerOptions options = new ListenerOptions();
+        options.setCredit(observations, 0);
+        return options;
+    }
+
+    private static DeviceDescription device(String devId) {
+        return new DeviceDescription(devId, "1", "Model", "Maker", Arrays.asList(SENSOR), "addr-" + devId);
+    }
+
+    private static List<Observation> batch(String... values) {
+        List<Observation> batch = new ArrayList<Observation>();
+        for (String value : values) {
+            batch.add(new Observation(SENSOR, new String[]{value}));
+        }
+        return batch;
+    }
+
+    @Test
+    public void withoutFlowControlEverythingIsDeliveredStraightAway() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, null);
+
+        sender.pushData(batch("1", "2"), device("dev"));
+
+        assertEquals(Arrays.asList("1", "2"), sink.delivered);
+        assertEquals(0, sender.getBufferedObservations());
+    }
+
+    @Test
+    public void pushesWaitForCreditAndAlarmsOvertakeThem() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(2));
+
+        sender.pushData(batch("1", "2"), device("dev"));
+        sender.pushData(batch("3"), device("dev"));
+        sender.pushData(batch("4"), device("dev"));
+        sender.pushData(batch("alarm"), device("dev"), PAAndroidConstants.PRIORITY.ALARM);
+
+        assertEquals(Arrays.asList("1", "2", "alarm"), sink.delivered);
+        assertEquals(2, sender.getBufferedObservations());
+        assertEquals(1, sender.getThrottleCount());
+
+        sender.grantCredit(2, 0);
+        assertEquals(Arrays.asList("1", "2", "alarm", "3", "4"), sink.delivered);
+        assertEquals(0, sender.getBufferedObservations());
+    }
+
+    @Test
+    public void aFailedBatchIsDeliveredAgainWithItsCredit() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(1));
+        sender.pushData(batch("1"), device("dev"));
+        sender.pushData(batch("2"), device("dev"));
+
+        sink.failing = true;
+        sender.grantCredit(1, 0);
+        assertEquals(1, sender.getBufferedObservations());
+        assertEquals(1, sender.getCreditObservations());
+        assertEquals(0, sender.getDroppedObservations());
+
+        sink.failing = false;
+        sender.pushData(batch("3"), device("dev"));
+        assertEquals(Arrays.asList("1", "2"), sink.delivered);
+
+        sender.grantCredit(1, 0);
+        assertEquals(Arrays.asList("1", "2", "3"), sink.delivered);
+    }
+
+    @Test
+    public void aFailedPushIsReportedToTheCaller() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(1));
+        sink.failing = true;
+
+        try {
+            sender.pushData(batch("1"), device("dev"));
+            fail("The failure was not reported");
+        } catch (RemoteException e) {
+            assertEquals(1, sender.getBufferedObservations());
+        }
+    }
+
+    @Test
+    public void theFailureOfAnotherBatchIsNotReportedToTheCaller() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(1));
+        sender.pushData(batch("1"), device("dev"));
+        sender.pushData(batch("2"), device("dev"));
+
+        sink.failing = true;
+        sender.grantCredit(1, 0);
+
+        // The buffered batch fails again while the next push drains it
+        sender.pushData(batch("3"), device("dev"));
+        assertEquals(2, sender.getBufferedObservations());
+
+        sink.failing = false;
+        sender.grantCredit(1, 0);
+        assertEquals(Arrays.asList("1", "2", "3"), sink.delivered);
+    }
+
+    @Test
+    public void theOldestBatchesAreDroppedOnOverflow() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(1), 3, CreditedSender.OVERFLOW_DROP_OLDEST);
+        sender.pushData(batch("0"), device("dev"));
+
+        sender.pushData(batch("1", "2"), device("dev"));
+        sender.pushData(batch("3", "4"), device("dev"));
+
+        assertEquals(2, sender.getBufferedObservations());
+        assertEquals(2, sender.getDroppedObservations());
+        sender.grantCredit(10, 0);
+        assertEquals(Arrays.asList("0", "3", "4"), sink.delivered);
+    }
+
+    @Test
+    public void singleObservationBatchesAreDecimatedByDevice() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        CreditedSender sender = new CreditedSender(sink, credit(1), 4, CreditedSender.OVERFLOW_DECIMATE);
+        sender.pushData(batch("0"), device("dev"));
+
+        for (int i = 1; i <= 5; i++) {
+            sender.pushData(batch("a" + i), device("a"));
+            sender.pushData(batch("b" + i), device("b"));
+        }
+
+        assertTrue(sender.getBufferedObservations() <= 4);
+        assertEquals(10, sender.getBufferedObservations() + sender.getDroppedObservations());
+        sender.grantCredit(100, 0);
+        boolean deviceA = false;
+        boolean deviceB = false;
+        for (String value : sink.delivered) {
+            deviceA |= value.startsWith("a");
+            deviceB |= value.startsWith("b");
+        }
+        assertTrue("Both devices keep some data: " + sink.delivered, deviceA && deviceB);
+    }
+
+    @Test
+    public void concurrentPushesAndGrantsDeliverEverythingInOrder() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        final CreditedSender sender = new CreditedSender(sink, credit(5), 100000, CreditedSender.OVERFLOW_DROP_OLDEST);
+        final int threads = 4;
+        final int pushes = 500;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final String prefix = "t" + t + "-";
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < pushes; i++) {
+                            sender.pushData(batch(prefix + i), device(prefix));
+                        }
+                    } catch (RemoteException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        while (done.getCount() > 0 || sender.getBufferedObservations() > 0) {
+            sender.grantCredit(7, 0);
+            Thread.sleep(1);
+        }
+
+        assertEquals(threads * pushes, sink.delivered.size());
+        for (int t = 0; t < threads; t++) {
+            int expected = 0;
+            for (String value : sink.delivered) {
+                if (value.startsWith("t" + t + "-")) {
+                    assertEquals("t" + t + "-" + expected, value);
+                    expected++;
+                }
+            }
+            assertEquals(pushes, expected);
+        }
+    }
+
+    @Test
+    public void pushesAreRecordedByDeviceAdapter() throws Exception {
+        String daId = "metrics-da-" + System.nanoTime();
+        CreditedSender.Sink sink = CreditedSender.sinkFor(new LoadTest.ReferenceListener(), daId, null);
+
+        sink.pushData(batch("1", "2", "3"), device("dev"), PAAndroidConstants.PRIORITY.NORMAL);
+
+        Statistics.Entry entry = MetricsRegistry.getDefault().getStatistics().getDaEntry(daId);
+        assertEquals(3, entry.getObservations());
+        assertEquals(1, entry.getBatches());
+    }
+
+    @Test
+    public void legacyProtocolAdaptersReceiveThePushesWithPushData() throws Exception {
+        LegacyListeners.ProtocolAdapter listener = new LegacyListeners.ProtocolAdapter();
+        CreditedSender.Sink sink = CreditedSender.sinkFor(listener);
+
+        sink.pushData(batch("1", "2"), device("dev"), PAAndroidConstants.PRIORITY.ALARM);
+        sink.pushData(batch("3"), device("dev"), PAAndroidConstants.PRIORITY.BULK);
+
+        assertEquals(Arrays.asList("1", "2", "3"), listener.received);
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the typed entries of the device configuration
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceConfigTest {
+
+    @Test
+    public void typedValuesAreConvertedOnRead() {
+        DeviceConfig config = new DeviceConfig();
+        config.putBoolean("enabled", true);
+        config.putInt("rate", 50);
+        config.putLong("timeout", 1L << 40);
+        config.putDouble("gain", 2.75);
+        config.putString("count", " 12 ");
+
+        assertTrue(config.getBoolean("enabled", false));
+        assertEquals(1, config.getInt("enabled", 0));
+        assertEquals(50.0, config.getDouble("rate", 0), 0);
+        assertEquals(1L << 40, config.getLong("timeout", 0));
+        assertEquals(2, config.getInt("gain", 0));
+        assertTrue(config.getBoolean("gain", false));
+        assertEquals(12, config.getInt("count", 0));
+        assertEquals("2.75", config.getString("gain", null));
+        assertEquals(DeviceConfig.TYPE_DOUBLE, config.getType("gain"));
+    }
+
+    @Test
+    public void missingOrUnparsableEntriesReturnTheDefault() {
+        DeviceConfig config = new DeviceConfig();
+        config.putString("name", "abc");
+
+        assertEquals(7, config.getInt("name", 7));
+        assertEquals(1.5, config.getDouble("missing", 1.5), 0);
+        assertEquals("def", config.getString("missing", "def"));
+        assertFalse(config.contains("missing"));
+        assertEquals(DeviceConfig.TYPE_NONE, config.getType("missing"));
+    }
+
+    @Test
+    public void booleanStringsAreParsedStrictly() {
+        DeviceConfig config = new DeviceConfig();
+        config.putString("on", " TRUE ");
+        config.putString("off", "False");
+        config.putString("yes", "yes");
+
+        assertTrue(config.getBoolean("on", false));
+        assertFalse(config.getBoolean("off", true));
+        assertTrue(config.getBoolean("yes", true));
+        assertFalse(config.getBoolean("yes", false));
+    }
+
+    @Test
+    public void valuesOutsideTheRangeOfAnIntReturnTheDefault() {
+        DeviceConfig config = new DeviceConfig();
+        config.putLong("long", 1L << 40);
+        config.putDouble("double", -1e12);
+        config.putString("string", "3000000000");
+        config.putLong("max", Integer.MAX_VALUE);
+
+        assertEquals(-1, config.getInt("long", -1));
+        assertEquals(-1, config.getInt("double", -1));
+        assertEquals(-1, config.getInt("string", -1));
+        assertEquals(Integer.MAX_VALUE, config.getInt("max", -1));
+        assertEquals(1L << 40, config.getLong("long", -1));
+    }
+
+    @Test
+    public void putReplacesTheEntryWithTheSameKey() {
+        DeviceConfig config = new DeviceConfig();
+        config.putString("key", "text");
+        config.putInt("key", 3);
+
+        assertEquals(1, config.size());
+        assertEquals(DeviceConfig.TYPE_INT, config.getType("key"));
+        assertEquals(3, config.getInt("key", 0));
+    }
+
+    @Test
+    public void theConfigurationGrowsPastItsInitialCapacity() {
+        DeviceConfig config = new DeviceConfig();
+        for (int i = 0; i < 20; i++) {
+            config.putInt("key" + i, i);
+        }
+
+        assertEquals(20, config.size());
+        assertEquals("key19", config.keyAt(19));
+        assertEquals(19, config.getInt("key19", -1));
+    }
+
+    @Test
+    public void mapsAreConvertedBothWays() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("a", "1");
+        map.put("b", null);
+        DeviceConfig config = DeviceConfig.fromMap(map);
+        config.putBoolean("c", false);
+
+        Map<String, String> expected = new HashMap<String, String>(map);
+        expected.put("c", "false");
+        assertEquals(expected, config.toMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullKeysAreRejected() {
+        new DeviceConfig().putInt(null, 1);
+    }
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the indexes of the device registry
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class DeviceRegistryTest {
+
+    private static DeviceDescription device(String devId, String manufacturer, String propertyName) {
+        return new DeviceDescription(devId, "1", "Registry Model " + propertyName, manufacturer,
+                Arrays.asList(new SensorDescription("Sensor", "unit", propertyName)), "addr-" + devId);
+    }
+
+    @Test
+    public void devicesAreFoundByEveryKey() {
+        DeviceRegistry registry = new DeviceRegistry();
+        DeviceDescription dev = device("dev", "Maker", "Heart Rate");
+        int handle = registry.register(dev, "da");
+
+        assertSame(dev, registry.getByDeviceId("dev"));
+        assertSame(dev, registry.getByAddress("addr-dev"));
+        assertSame(dev, registry.getByHandle(handle));
+        assertEquals(handle, registry.getHandle("dev"));
+        assertEquals("da", registry.getDaId("dev"));
+        assertEquals(Arrays.asList(dev), registry.getByPropertyName("Heart Rate"));
+        assertEquals(Arrays.asList(dev), registry.getByManufacturer("Maker"));
+        assertEquals(Arrays.asList(dev), registry.getByDaId("da"));
+    }
+
+    @Test
+    public void anUpdatedDeviceKeepsItsHandleAndLeavesTheOldIndexes() {
+        DeviceRegistry registry = new DeviceRegistry();
+        int handle = registry.register(device("dev", "Maker", "Heart Rate"), "da");
+        DeviceDescription updated = device("dev", "Other Maker", "Body Weight");
+
+        assertEquals(handle, registry.register(updated, "da"));
+        assertEquals(1, registry.size());
+        assertTrue(registry.getByManufacturer("Maker").isEmpty());
+        assertTrue(registry.getByPropertyName("Heart Rate").isEmpty());
+        assertEquals(Arrays.asList(updated), registry.getByPropertyName("Body Weight"));
+    }
+
+    @Test
+    public void unregisteredDevicesAreRemovedFromEveryIndex() {
+        DeviceRegistry registry = new DeviceRegistry();
+        int handle = registry.register(device("dev", "Maker", "Heart Rate"), "da");
+        registry.unregister("dev");
+
+        assertNull(registry.getByDeviceId("dev"));
+        assertNull(registry.getByAddress("addr-dev"));
+        assertNull(registry.getByHandle(handle));
+        assertEquals(DeviceRegistry.NO_HANDLE, registry.getHandle("dev"));
+        assertTrue(registry.getByDaId("da").isEmpty());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void aTakenHandleIsNotReused() {
+        DeviceRegistry registry = new DeviceRegistry();
+        int handle = registry.register(device("first", "Maker", "Heart Rate"), "da");
+
+        assertNotEquals(handle, registry.register(device("second", "Maker", "Heart Rate"), "da", handle));
+        assertEquals(42, registry.register(device("third", "Maker", "Heart Rate"), "da", 42));
+    }
+
+    @Test
+    public void concurrentRegistrationsGetDistinctHandles() throws Exception {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 250;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 250; i++) {
+                        registry.register(device("dev" + (base + i), "Maker", "Heart Rate"), "da");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Integer> handles = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            handles.add(registry.getHandle("dev" + i));
+        }
+        assertEquals(1000, registry.size());
+        assertEquals(1000, handles.size());
+        assertEquals(1000, registry.getByPropertyName("Heart Rate").size());
+    }
+
+    @Test
+    public void registrationsAreRecordedAndForgottenWithTheDevice() {
+        DeviceRegistry registry = new DeviceRegistry();
+        String daId = "metrics-da-" + System.nanoTime();
+        String first = "metrics-dev-" + System.nanoTime();
+        String restored = first + "-restored";
+
+        registry.register(device(first, "Maker", "Heart Rate"), daId);
+        registry.register(device(restored, "Maker", "Heart Rate"), daId, 7);
+        Statistics statistics = MetricsRegistry.getDefault().getStatistics();
+        assertEquals(2, statistics.getDaEntry(daId).getRegistrations());
+        assertEquals(1, statistics.getDeviceEntry(restored).getRegistrations());
+
+        registry.unregister(first);
+        assertNull(MetricsRegistry.getDefault().getStatistics().getDeviceEntry(first));
+        assertEquals(1, MetricsRegistry.getDefault().getStatistics().getDeviceEntry(restored).getRegistrations());
+    }
+
+}
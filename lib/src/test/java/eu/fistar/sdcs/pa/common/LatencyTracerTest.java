@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the sampling of the traced observations and of the stamps taken along the data path
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LatencyTracerTest {
+
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "bpm", "Heart Rate");
+    private static final DeviceDescription DEVICE = new DeviceDescription("dev", "1", "Model", "Maker",
+            Arrays.asList(SENSOR), "addr");
+
+    @Test
+    public void oneObservationEverySampleIntervalIsTraced() {
+        LatencyTracer tracer = new LatencyTracer(3);
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < 9; i++) {
+            observations.add(new Observation(SENSOR, new String[]{"1"}));
+        }
+
+        tracer.begin(observations);
+
+        int traced = 0;
+        for (Observation obs : observations) {
+            if (obs.isTraced()) traced++;
+        }
+        assertEquals(3, traced);
+    }
+
+    @Test
+    public void everyStageIsStampedAlongTheDataPath() throws Exception {
+        Observation obs = new Observation(SENSOR, new String[]{"1"});
+        obs.startTrace();
+        List<Observation> batch = Arrays.asList(obs);
+        ListenerOptions options = new ListenerOptions();
+        options.setAcceptsExtendedObservations(true);
+
+        // Device Adapter to Protocol Adapter, then Protocol Adapter to Application
+        CreditedSender.sinkFor(new LoadTest.ReferenceListener(), "da", options)
+                .pushData(batch, DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        OrderedDeviceAdapterListener paListener = new OrderedDeviceAdapterListener(new LoadTest.ReferenceListener());
+        paListener.pushData(batch, DEVICE);
+        paListener.getExecutor().shutdown();
+        ListenerPublisher appListener = new ListenerPublisher();
+        PriorityDispatcher.sinkFor(appListener, null, options).deliver(batch, DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        appListener.close();
+
+        long previous = 0;
+        for (int stage = 0; stage < PAAndroidConstants.TRACE_STAGE.COUNT; stage++) {
+            long stamp = obs.getTraceStamp(stage);
+            assertTrue("Stage " + stage + " not stamped in order", stamp != 0 && stamp >= previous);
+            previous = stamp;
+        }
+
+        LatencyTracer tracer = new LatencyTracer(1);
+        tracer.record("da", obs);
+        for (int stage = 0; stage < PAAndroidConstants.TRACE_STAGE.COUNT; stage++) {
+            assertEquals(1, tracer.getHistogram("da", "Heart Rate", stage).getCount());
+        }
+    }
+
+    @Test
+    public void observationsNotTracedAreIgnored() {
+        LatencyTracer tracer = new LatencyTracer(1);
+        Observation obs = new Observation(SENSOR, new String[]{"1"});
+        obs.stamp(PAAndroidConstants.TRACE_STAGE.DA_SENT);
+
+        tracer.record("da", obs);
+
+        assertEquals(0, obs.getTraceStamp(PAAndroidConstants.TRACE_STAGE.DA_SENT));
+        assertTrue(tracer.getDaIds().isEmpty());
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This Class contains listeners behaving like the ones of the versions of the library before
+ * 3.5.0, used to test the compatibility with them.<br>
+ * Only the methods of the legacy interfaces record what they receive. The methods added later do
+ * nothing, as a legacy peer ignores the Binder calls it doesn't know and returns without error.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+final class LegacyListeners {
+
+    private LegacyListeners() {}
+
+    /**
+     * The listener of a legacy Protocol Adapter, receiving the pushes of a Device Adapter
+     */
+    static class ProtocolAdapter implements IDeviceAdapterListener {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void registerDevice(DeviceDescription devDesc, String daId) {}
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc) {
+            for (Observation obs : observations) {
+                received.add(obs.getValues().get(0));
+            }
+        }
+
+        @Override
+        public void deregisterDevice(DeviceDescription devDesc) {}
+
+        @Override
+        public void registerDeviceProperties(DeviceDescription devDesc) {}
+
+        @Override
+        public void deviceDisconnected(DeviceDescription devDesc) {}
+
+        @Override
+        public void log(int logLevel, String daId, String message) {}
+
+        @Override
+        public void logBatch(LogBatch batch) {}
+
+        @Override
+        public void pushDataWithPriority(List<Observation> observations, DeviceDescription devDesc, int priority) {}
+
+        @Override
+        public void pushRawData(ObservationPayload payload) {}
+
+        @Override
+        public void pushMultiData(MultiDeviceBatch batch) {}
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+    /**
+     * The listener of a legacy Application, receiving the pushes of a Protocol Adapter
+     */
+    static class Application implements IProtocolAdapterListener {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void registerDevice(DeviceDescription devDesc, String daId) {}
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc) {
+            for (Observation obs : observations) {
+                received.add(obs.getValues().get(0));
+            }
+        }
+
+        @Override
+        public void deregisterDevice(DeviceDescription devDesc) {}
+
+        @Override
+        public void registerDeviceProperties(DeviceDescription devDesc) {}
+
+        @Override
+        public void deviceDisconnected(DeviceDescription devDesc) {}
+
+        @Override
+        public void log(int logLevel, String daId, String message) {}
+
+        @Override
+        public void onDAConnected(String daId) {}
+
+        @Override
+        public void logBatch(LogBatch batch) {}
+
+        @Override
+        public void pushDataWithPriority(List<Observation> observations, DeviceDescription devDesc, int priority) {}
+
+        @Override
+        public void pushRawData(ObservationPayload payload) {}
+
+        @Override
+        public void pushMultiData(MultiDeviceBatch batch) {}
+
+        @Override
+        public void onRuleMatched(long ruleId, List<Observation> observations, DeviceDescription devDesc) {}
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This Class runs a soak test of a Protocol Adapter, feeding it with the data of a
+ * {@link SimulatedDeviceAdapter} through a {@link LocalDeviceAdapterListener}.<br>
+ * The test runs on the calling thread for the requested time, sampling the heap used by the
+ * process, and returns a {@link Report} with throughput, latency and memory ceilings. A sample of
+ * the observations is traced, so the report also includes the latency from capture to the
+ * return of the Protocol Adapter.<br>
+ * The test only uses the Android classes for exceptions and logging, so it also runs on the JVM
+ * with the unit tests classpath, where logging does nothing: {@link #main(String[])} load tests
+ * the {@link ReferenceListener}, made of the components of the library, and it's run by the
+ * loadTest task of Gradle.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LoadTest {
+
+    // Interval between two samples of the heap used, in milliseconds
+    private static final long HEAP_SAMPLE_INTERVAL = 100;
+
+    private final IDeviceAdapterListener target;
+    private final int deviceCount;
+    private final double rate;
+    private final int batchSize;
+    private int traceSampleInterval = LatencyTracer.DEFAULT_SAMPLE_INTERVAL;
+
+    /**
+     * Create a load test.
+     *
+     * @param mTarget
+     *      The listener of the Protocol Adapter under test
+     *
+     * @param mDeviceCount
+     *      The number of virtual devices
+     *
+     * @param mRate
+     *      The number of observations pushed every second for each device
+     *
+     * @param mBatchSize
+     *      The number of observations pushed with a single call
+     */
+    public LoadTest(IDeviceAdapterListener mTarget, int mDeviceCount, double mRate, int mBatchSize) {
+        target = mTarget;
+        deviceCount = mDeviceCount;
+        rate = mRate;
+        batchSize = mBatchSize;
+    }
+
+    /**
+     * Set how many observations are pushed for every one that is traced
+     *
+     * @param mTraceSampleInterval
+     *      The sample interval of the tracer, see {@link LatencyTracer}
+     */
+    public void setTraceSampleInterval(int mTraceSampleInterval) {
+        traceSampleInterval = mTraceSampleInterval;
+    }
+
+    /**
+     * Run a load test of the {@link ReferenceListener} and print the report
+     *
+     * @param args
+     *      The number of devices, the observations pushed every second by each device, the
+     *      number of observations pushed with a single call and the duration in seconds
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 50;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 60;
+
+        OrderedDeviceAdapterListener target = new OrderedDeviceAdapterListener(new ReferenceListener());
+        try {
+            System.out.println(new LoadTest(target, devices, rate, batchSize).run(seconds * 1000));
+        } finally {
+            target.getExecutor().shutdown();
+        }
+    }
+
+    /**
+     * Run the test, blocking the calling thread until it's completed
+     *
+     * @param durationMillis
+     *      The duration of the test, in milliseconds
+     *
+     * @return
+     *      The results of the test
+     */
+    public Report run(long durationMillis) throws InterruptedException {
+        LatencyTracer tracer = new LatencyTracer(traceSampleInterval);
+        LocalDeviceAdapterListener binder = new LocalDeviceAdapterListener(target);
+        binder.setTracer(tracer);
+
+        SimulatedDeviceAdapter da = new SimulatedDeviceAdapter(deviceCount, rate, batchSize);
+        da.setListener(binder);
+        da.setTracer(tracer);
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long peakHeap = heapBefore;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        da.start();
+        try {
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                Thread.sleep(Math.min(HEAP_SAMPLE_INTERVAL, TimeUnit.NANOSECONDS.toMillis(end - now) + 1));
+                peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+            }
+        } finally {
+            da.shutdown();
+            binder.close();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        LatencyHistogram callLatency = binder.getCallLatency();
+        LatencyHistogram endToEnd = tracer.getHistogram(PAAndroidConstants.TRACE_STAGE.CAPTURED);
+
+        return new Report(TimeUnit.NANOSECONDS.toMillis(elapsed), da.getPushedObservations(),
+                da.getPushedBatches(), da.getFailedPushes(), binder.getRejectedCalls(),
+                binder.getTransferredBytes(), binder.getMaxTransactionSize(),
+                callLatency.getPercentile(50), callLatency.getPercentile(99), callLatency.getMax(),
+                endToEnd.getPercentile(99), heapBefore, peakHeap);
+    }
+
+    /**
+     * The results of a load test. Latencies are expressed in microseconds.
+     */
+    public static final class Report {
+        private final long duration;
+        private final long observations;
+        private final long batches;
+        private final long failedPushes;
+        private final long rejectedCalls;
+        private final long transferredBytes;
+        private final long maxTransactionSize;
+        private final long callLatencyP50;
+        private final long callLatencyP99;
+        private final long callLatencyMax;
+        private final long endToEndLatencyP99;
+        private final long heapBefore;
+        private final long peakHeap;
+
+        Report(long duration, long observations, long batches, long failedPushes, long rejectedCalls,
+               long transferredBytes, long maxTransactionSize, long callLatencyP50, long callLatencyP99,
+               long callLatencyMax, long endToEndLatencyP99, long heapBefore, long peakHeap) {
+            this.duration = duration;
+            this.observations = observations;
+            this.batches = batches;
+            this.failedPushes = failedPushes;
+            this.rejectedCalls = rejectedCalls;
+            this.transferredBytes = transferredBytes;
+            this.maxTransactionSize = maxTransactionSize;
+            this.callLatencyP50 = callLatencyP50;
+            this.callLatencyP99 = callLatencyP99;
+            this.callLatencyMax = callLatencyMax;
+            this.endToEndLatencyP99 = endToEndLatencyP99;
+            this.heapBefore = heapBefore;
+            this.peakHeap = peakHeap;
+        }
+
+        /**
+         * Returns the actual duration of the test
+         *
+         * @return
+         *      The duration, in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Returns the number of observations pushed successfully
+         *
+         * @return
+         *      The number of observations
+         */
+        public long getObservations() {
+            return observations;
+        }
+
+        /**
+         * Returns the number of successful push calls
+         *
+         * @return
+         *      The number of batches
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * Returns the number of push calls that failed, including the rejected ones
+         *
+         * @return
+         *      The number of failed pushes
+         */
+        public long getFailedPushes() {
+            return failedPushes;
+        }
+
+        /**
+         * Returns the number of calls rejected because the transaction buffer was full
+         *
+         * @return
+         *      The number of rejected calls
+         */
+        public long getRejectedCalls() {
+            return rejectedCalls;
+        }
+
+        /**
+         * Returns the estimated number of bytes transferred
+         *
+         * @return
+         *      The number of bytes
+         */
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+
+        /**
+         * Returns the estimated size of the biggest call
+         *
+         * @return
+         *      The size, in bytes
+         */
+        public long getMaxTransactionSize() {
+            return maxTransactionSize;
+        }
+
+        /**
+         * Returns the median latency of a call, from the Device Adapter to the return of the Protocol Adapter
+         *
+         * @return
+         *      The latency, in microseconds
+         */
+        public long getCallLatencyP50() {
+            return callLatencyP50;
+        }
+
+        /**
+         * Returns the 99th percentile of the latency of a call
+         *
+         * @return
+         *      The latency, in microseconds
+         */
+        public long getCallLatencyP99() {
+            return callLatencyP99;
+        }
+
+        /**
+         * Returns the maximum latency of a call
+         *
+         * @return
+         *      The latency, in microseconds
+         */
+        public long getCallLatencyMax() {
+            return callLatencyMax;
+        }
+
+        /**
+         * Returns the 99th percentile of the latency of the traced observations, from capture to the return of the Protocol Adapter
+         *
+         * @return
+         *      The latency, in microseconds
+         */
+        public long getEndToEndLatencyP99() {
+            return endToEndLatencyP99;
+        }
+
+        /**
+         * Returns the heap used by the process when the test started
+         *
+         * @return
+         *      The heap used, in bytes
+         */
+        public long getHeapBefore() {
+            return heapBefore;
+        }
+
+        /**
+         * Returns the maximum heap used by the process during the test
+         *
+         * @return
+         *      The heap used, in bytes
+         */
+        public long getPeakHeap() {
+            return peakHeap;
+        }
+
+        /**
+         * Returns the number of observations pushed every second
+         *
+         * @return
+         *      The throughput of the test
+         */
+        public double getThroughput() {
+            return duration > 0 ? observations * 1000.0 / duration : 0;
+        }
+
+        /**
+         * Returns a read-friendly String representing the object
+         *
+         * @return
+         *      The String representing the object
+         */
+        public String toString() {
+            return "Duration: "+duration+" ms\nObservations: "+observations+" ("+Math.round(getThroughput())+
+                    "/s)\nBatches: "+batches+"\nFailed: "+failedPushes+" (rejected: "+rejectedCalls+
+                    ")\nBytes: "+transferredBytes+" (max transaction: "+maxTransactionSize+
+                    ")\nCall latency: p50 "+callLatencyP50+" us, p99 "+callLatencyP99+" us, max "+callLatencyMax+
+                    " us\nEnd to end p99: "+endToEndLatencyP99+" us\nHeap: "+heapBefore+" -> "+peakHeap+" bytes\n";
+        }
+    }
+
+    /**
+     * A stand-in for the Protocol Adapter, made of the components of the library it uses on the
+     * data path: the devices are kept in a {@link DeviceRegistry} and the observations are
+     * summarized in a {@link SummaryRegistry}. Log messages are discarded.
+     */
+    public static class ReferenceListener implements IDeviceAdapterListener {
+        private final DeviceRegistry registry = new DeviceRegistry();
+        private final SummaryRegistry summaries = new SummaryRegistry();
+        private final PriorityDispatcher.Sink sink = new PriorityDispatcher.Sink() {
+            @Override
+            public void deliver(List<Observation> observations, DeviceDescription devDesc, int priority) {
+                summaries.record(observations, devDesc);
+            }
+        };
+
+        /**
+         * Returns the devices registered
+         *
+         * @return
+         *      The registry of the devices
+         */
+        public DeviceRegistry getRegistry() {
+            return registry;
+        }
+
+        /**
+         * Returns the summaries of the observations received
+         *
+         * @return
+         *      The registry of the summaries
+         */
+        public SummaryRegistry getSummaries() {
+            return summaries;
+        }
+
+        @Override
+        public void registerDevice(DeviceDescription devDesc, String daId) {
+            registry.register(devDesc, daId);
+        }
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc) {
+            summaries.record(observations, devDesc);
+        }
+
+        @Override
+        public void deregisterDevice(DeviceDescription devDesc) {
+            registry.unregister(devDesc.getDeviceID());
+            summaries.removeDevice(devDesc.getDeviceID());
+        }
+
+        @Override
+        public void registerDeviceProperties(DeviceDescription devDesc) {}
+
+        @Override
+        public void deviceDisconnected(DeviceDescription devDesc) {}
+
+        @Override
+        public void log(int logLevel, String daId, String message) {}
+
+        @Override
+        public void logBatch(LogBatch batch) {}
+
+        @Override
+        public void pushDataWithPriority(List<Observation> observations, DeviceDescription devDesc, int priority) {
+            summaries.record(observations, devDesc);
+        }
+
+        @Override
+        public void pushRawData(ObservationPayload payload) {
+            summaries.record(payload.getObservations(), payload.getDevice());
+        }
+
+        @Override
+        public void pushMultiData(MultiDeviceBatch batch) throws RemoteException {
+            batch.demultiplex(registry, sink);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This Class is an in-process stand-in for the Binder connection between a Device Adapter and the
+ * Protocol Adapter, used to load test a Protocol Adapter without real Device Adapters or a device.
+ * <br>
+ * Calls are forwarded to the target listener reproducing the behavior of Binder that matters for
+ * performance: regular calls are executed on a pool of binder threads while the caller waits,
+ * oneway calls are queued and executed one at a time, and a call fails with a
+ * TransactionTooLargeException if the data in flight exceeds the transaction buffer of the
+ * process. Arguments are passed by reference, while their size is estimated as if they were
+ * marshaled.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LocalDeviceAdapterListener implements IDeviceAdapterListener {
+
+    // Default values, as in the Android framework
+    public static final int DEFAULT_BINDER_THREADS = 16;
+    public static final int DEFAULT_TRANSACTION_BUFFER = 1024 * 1024;     // Bytes
+
+    // Size of the transaction header and of the fixed size arguments
+    private static final int CALL_OVERHEAD = 64;
+
+    private final IDeviceAdapterListener target;
+    private final int transactionBuffer;
+    private final ExecutorService binderThreads;
+    private final ExecutorService onewayThread;
+
+    private final AtomicLong inFlightBytes = new AtomicLong(0);
+    private final StripedCounter calls = new StripedCounter();
+    private final StripedCounter transferredBytes = new StripedCounter();
+    private final StripedCounter rejectedCalls = new StripedCounter();
+    private final AtomicLong maxTransactionSize = new AtomicLong(0);
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, String> daIds = new ConcurrentHashMap<String, String>();
+    private volatile LatencyTracer tracer;
+
+    /**
+     * Create a connection with default number of binder threads and transaction buffer.
+     *
+     * @param mTarget
+     *      The listener receiving the calls, usually the implementation of the Protocol Adapter
+     */
+    public LocalDeviceAdapterListener(IDeviceAdapterListener mTarget) {
+        this(mTarget, DEFAULT_BINDER_THREADS, DEFAULT_TRANSACTION_BUFFER);
+    }
+
+    /**
+     * Create a connection.
+     *
+     * @param mTarget
+     *      The listener receiving the calls, usually the implementation of the Protocol Adapter
+     *
+     * @param mBinderThreads
+     *      The number of threads executing the regular calls
+     *
+     * @param mTransactionBuffer
+     *      The maximum number of bytes in flight, in bytes
+     */
+    public LocalDeviceAdapterListener(IDeviceAdapterListener mTarget, int mBinderThreads, int mTransactionBuffer) {
+        if (mTarget == null) throw new IllegalArgumentException("Target cannot be null");
+        if (mBinderThreads <= 0 || mTransactionBuffer <= 0) {
+            throw new IllegalArgumentException("Binder threads and transaction buffer must be positive");
+        }
+
+        target = mTarget;
+        transactionBuffer = mTransactionBuffer;
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        binderThreads = Executors.newFixedThreadPool(mBinderThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Binder_" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        onewayThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Binder_oneway");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void registerDevice(final DeviceDescription devDesc, final String daId) throws RemoteException {
+        call(CALL_OVERHEAD + deviceSize(devDesc) + Observation.stringSize(daId), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                if (devDesc != null && devDesc.getDeviceID() != null && daId != null) {
+                    daIds.put(devDesc.getDeviceID(), daId);
+                }
+                target.registerDevice(devDesc, daId);
+            }
+        });
+    }
+
+    @Override
+    public void pushData(final List<Observation> observations, final DeviceDescription devDesc) throws RemoteException {
+        call(CALL_OVERHEAD + Observation.estimateParcelSize(observations) + deviceSize(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.PA_RECEIVED);
+                target.pushData(observations, devDesc);
+                recordTraces(observations, devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void deregisterDevice(final DeviceDescription devDesc) throws RemoteException {
+        call(CALL_OVERHEAD + deviceSize(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                if (devDesc != null && devDesc.getDeviceID() != null) daIds.remove(devDesc.getDeviceID());
+                target.deregisterDevice(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void registerDeviceProperties(final DeviceDescription devDesc) throws RemoteException {
+        call(CALL_OVERHEAD + deviceSize(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                target.registerDeviceProperties(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void deviceDisconnected(final DeviceDescription devDesc) throws RemoteException {
+        call(CALL_OVERHEAD + deviceSize(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                target.deviceDisconnected(devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void log(final int logLevel, final String daId, final String message) throws RemoteException {
+        call(CALL_OVERHEAD + Observation.stringSize(daId) + Observation.stringSize(message), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                target.log(logLevel, daId, message);
+            }
+        });
+    }
+
+    @Override
+    public void logBatch(final LogBatch batch) throws RemoteException {
+        long size = CALL_OVERHEAD;
+        for (int i = 0; i < batch.size(); i++) {
+            size += 4 + 8 + Observation.stringSize(batch.getDaId(i)) + Observation.stringSize(batch.getMessage(i));
+        }
+
+        oneway(size, new Call() {
+            @Override
+            public void run() throws RemoteException {
+                target.logBatch(batch);
+            }
+        });
+    }
+
+    @Override
+    public void pushDataWithPriority(final List<Observation> observations, final DeviceDescription devDesc,
+                                     final int priority) throws RemoteException {
+        call(CALL_OVERHEAD + Observation.estimateParcelSize(observations) + deviceSize(devDesc), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                Observation.stamp(observations, PAAndroidConstants.TRACE_STAGE.PA_RECEIVED);
+                target.pushDataWithPriority(observations, devDesc, priority);
+                recordTraces(observations, devDesc);
+            }
+        });
+    }
+
+    @Override
+    public void pushMultiData(final MultiDeviceBatch batch) throws RemoteException {
+        call(CALL_OVERHEAD + batch.estimateParcelSize(), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                Observation.stamp(batch.getObservations(), PAAndroidConstants.TRACE_STAGE.PA_RECEIVED);
+                target.pushMultiData(batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    recordTraces(batch.getObservations(i), batch.resolveDevice(i, null));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void pushRawData(final ObservationPayload payload) throws RemoteException {
+        call(CALL_OVERHEAD + payload.getPayloadSize(), new Call() {
+            @Override
+            public void run() throws RemoteException {
+                target.pushRawData(payload);
+            }
+        });
+    }
+
+    /**
+     * Aggregate the stamps of the traced observations once the target has processed them
+     *
+     * @param mTracer
+     *      The tracer aggregating the stamps, null to ignore them
+     */
+    public void setTracer(LatencyTracer mTracer) {
+        tracer = mTracer;
+    }
+
+    /**
+     * There's no real Binder behind this object
+     *
+     * @return
+     *      Always null
+     */
+    @Override
+    public IBinder asBinder() {
+        return null;
+    }
+
+    /**
+     * Release the binder threads. Calls made after this one fail with a DeadObjectException, as if
+     * the process of the target had died.
+     */
+    public void close() {
+        binderThreads.shutdown();
+        onewayThread.shutdown();
+    }
+
+    /**
+     * Returns the number of calls executed
+     *
+     * @return
+     *      The number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * Returns the estimated number of bytes transferred by the calls executed
+     *
+     * @return
+     *      The number of bytes
+     */
+    public long getTransferredBytes() {
+        return transferredBytes.sum();
+    }
+
+    /**
+     * Returns the number of calls failed because the transaction buffer was full
+     *
+     * @return
+     *      The number of calls rejected
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    /**
+     * Returns the histogram of the time spent by the callers of regular calls, from the call to
+     * the return, including the time spent waiting for a binder thread
+     *
+     * @return
+     *      The histogram of the latency of the calls
+     */
+    public LatencyHistogram getCallLatency() {
+        return callLatency;
+    }
+
+    /**
+     * Returns the estimated size of the biggest call executed
+     *
+     * @return
+     *      The size of the call, in bytes
+     */
+    public long getMaxTransactionSize() {
+        return maxTransactionSize.get();
+    }
+
+    /**
+     * Execute a regular call on a binder thread, waiting for it to complete
+     */
+    private void call(long size, final Call call) throws RemoteException {
+        reserve(size);
+        long start = System.nanoTime();
+        try {
+            binderThreads.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws RemoteException {
+                    call.run();
+                    return null;
+                }
+            }).get();
+        } catch (RejectedExecutionException e) {
+            throw new DeadObjectException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the call to complete");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) throw (RemoteException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            inFlightBytes.addAndGet(-size);
+            callLatency.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Queue a oneway call, returning immediately. Failures are not reported to the caller.
+     */
+    private void oneway(final long size, final Call call) throws RemoteException {
+        reserve(size);
+        try {
+            onewayThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        call.run();
+                    } catch (Exception e) {
+                        // As with Binder, the caller of a oneway call never sees its failures
+                    } finally {
+                        inFlightBytes.addAndGet(-size);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightBytes.addAndGet(-size);
+            throw new DeadObjectException();
+        }
+    }
+
+    private void reserve(long size) throws RemoteException {
+        if (inFlightBytes.addAndGet(size) > transactionBuffer) {
+            inFlightBytes.addAndGet(-size);
+            rejectedCalls.increment();
+            throw new TransactionTooLargeException();
+        }
+
+        calls.increment();
+        transferredBytes.add(size);
+
+        long max;
+        while ((max = maxTransactionSize.get()) < size) {
+            if (maxTransactionSize.compareAndSet(max, size)) break;
+        }
+    }
+
+    private void recordTraces(List<Observation> observations, DeviceDescription devDesc) {
+        LatencyTracer current = tracer;
+        if (current == null) return;
+
+        String devId = (devDesc != null ? devDesc.getDeviceID() : null);
+        current.record(devId != null ? daIds.get(devId) : null, observations);
+    }
+
+    private static int deviceSize(DeviceDescription devDesc) {
+        if (devDesc == null) return 4;
+
+        int size = 4 + Observation.stringSize(devDesc.getDeviceID()) + Observation.stringSize(devDesc.getSerialNumber()) +
+                Observation.stringSize(devDesc.getModelName()) + Observation.stringSize(devDesc.getManufacturerName()) +
+                Observation.stringSize(devDesc.getAddress()) + 4 + 4;
+        for (SensorDescription sensor : devDesc.getSensorList()) {
+            size += 4 + Observation.stringSize(sensor.getSensorName()) +
+                    Observation.stringSize(sensor.getMeasurementUnit()) + Observation.stringSize(sensor.getPropertyName());
+        }
+        return size;
+    }
+
+    /**
+     * A call to the target listener
+     */
+    private interface Call {
+        void run() throws RemoteException;
+    }
+
+}
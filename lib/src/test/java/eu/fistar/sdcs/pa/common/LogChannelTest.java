@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the filtering, batching and rate limiting of the log channel
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class LogChannelTest {
+
+    private final List<LogBatch> batches = new ArrayList<LogBatch>();
+    private final LogChannel.Sink sink = new LogChannel.Sink() {
+        @Override
+        public void sendLogBatch(LogBatch batch) {
+            synchronized (batches) {
+                batches.add(batch);
+                batches.notifyAll();
+            }
+        }
+    };
+    private LogChannel channel;
+
+    @Before
+    public void setUp() {
+        // The flush interval is long enough for the tests to flush explicitly
+        channel = new LogChannel(sink, PAAndroidConstants.LOG_LEVEL.INFO, 4, 60000, 10);
+    }
+
+    @After
+    public void tearDown() {
+        channel.close();
+    }
+
+    private int messagesSent() {
+        int messages = 0;
+        synchronized (batches) {
+            for (LogBatch batch : batches) {
+                messages += batch.size();
+            }
+        }
+        return messages;
+    }
+
+    private int droppedReported() {
+        int dropped = 0;
+        synchronized (batches) {
+            for (LogBatch batch : batches) {
+                dropped += batch.getTotalDropped();
+            }
+        }
+        return dropped;
+    }
+
+    @Test
+    public void messagesBelowTheMinimumLevelAreDiscarded() {
+        channel.log(PAAndroidConstants.LOG_LEVEL.VERBOSE, "da", "verbose");
+        channel.log(PAAndroidConstants.LOG_LEVEL.WARNING, "da", "warning");
+        channel.flush();
+
+        assertEquals(1, messagesSent());
+        assertEquals("warning", batches.get(0).getMessage(0));
+        assertEquals(PAAndroidConstants.LOG_LEVEL.WARNING, batches.get(0).getLevel(0));
+    }
+
+    @Test
+    public void aFullBufferIsSentWithoutWaiting() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            channel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message " + i);
+        }
+
+        synchronized (batches) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+                batches.wait(100);
+            }
+        }
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+        assertEquals("message 3", batches.get(0).getMessage(3));
+    }
+
+    @Test
+    public void messagesOverTheRateAreDroppedAndReported() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            channel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message " + i);
+        }
+        channel.log(PAAndroidConstants.LOG_LEVEL.ERROR, "da", "error");
+        channel.close();
+
+        // Full batches are sent asynchronously, also after close
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messagesSent() + droppedReported() < 31 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        int dropped = droppedReported();
+        assertTrue(dropped >= 15);
+        assertEquals(31, messagesSent() + dropped);
+    }
+
+    @Test
+    public void discardBufferedKeepsTheImportantMessages() {
+        channel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "info");
+        channel.log(PAAndroidConstants.LOG_LEVEL.ERROR, "da", "error");
+
+        assertEquals(1, channel.discardBuffered(PAAndroidConstants.LOG_LEVEL.INFO));
+        channel.flush();
+        assertEquals(1, messagesSent());
+        assertEquals("error", batches.get(0).getMessage(0));
+        assertEquals(1, batches.get(0).getTotalDropped());
+    }
+
+    @Test
+    public void flushAndCloseDoNotOverlapTheSenderThread() throws Exception {
+        final AtomicInteger sending = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final List<String> sent = new ArrayList<String>();
+        LogChannel slowChannel = new LogChannel(new LogChannel.Sink() {
+            @Override
+            public void sendLogBatch(LogBatch batch) {
+                if (sending.incrementAndGet() > 1) overlaps.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (sent) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        sent.add(batch.getMessage(i));
+                    }
+                }
+                sending.decrementAndGet();
+            }
+        }, PAAndroidConstants.LOG_LEVEL.INFO, 2, 60000, 100);
+
+        // The full batch is being sent by the sender thread while flush() is called
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 0");
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 1");
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 2");
+        slowChannel.flush();
+        assertEquals(3, sent.size());
+
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 3");
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 4");
+        slowChannel.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "message 5");
+        slowChannel.close();
+
+        assertEquals(0, overlaps.get());
+        synchronized (sent) {
+            assertEquals(6, sent.size());
+            for (int i = 0; i < 6; i++) {
+                assertEquals("message " + i, sent.get(i));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the accounting and shedding of the memory budget, and of the components charging it
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class MemoryBudgetTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final SensorDescription SENSOR = new SensorDescription("thermometer", "C", "temperature");
+    private static final DeviceDescription DEVICE = new DeviceDescription("dev1", null, null, null, null, null);
+
+    /**
+     * A component freeing up to a fixed amount of memory at a single level, recording the calls
+     */
+    private static class FixedShedder implements MemoryBudget.Shedder {
+        final int level;
+        final long available;
+        final List<Integer> calls;
+        MemoryBudget.Account account;
+
+        FixedShedder(int level, long available, List<Integer> calls) {
+            this.level = level;
+            this.available = available;
+            this.calls = calls;
+        }
+
+        @Override
+        public long shed(int level, long bytes) {
+            calls.add(level);
+            if (level != this.level) return 0;
+
+            long freed = Math.min(bytes, Math.min(available, account.getUsage()));
+            account.release(freed);
+            return freed;
+        }
+    }
+
+    private static void awaitUsage(MemoryBudget budget, long maxUsage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (budget.getUsage() > maxUsage && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Usage still " + budget.getUsage(), budget.getUsage() <= maxUsage);
+    }
+
+    private static List<Observation> observations(int count) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < count; i++) {
+            observations.add(new Observation(SENSOR, new String[]{String.valueOf(i)}));
+        }
+        return observations;
+    }
+
+    private static long usageOf(String name) {
+        Long usage = MemoryBudget.getDefault().getUsageByAccount().get(name);
+        return usage != null ? usage : 0;
+    }
+
+    @Test
+    public void concurrentChargesBalance() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        final MemoryBudget.Shedder shedder = new FixedShedder(MemoryBudget.SHED_LOGS, 0, new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(8);
+
+        for (int t = 0; t < 8; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    MemoryBudget.Account account = budget.register("test", shedder);
+                    for (int i = 0; i < 10000; i++) {
+                        account.add(100);
+                        account.release(100);
+                    }
+                    account.add(10);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(80, budget.getUsage());
+        assertEquals(Long.valueOf(80), budget.getUsageByAccount().get("test"));
+        assertTrue(budget.getPeakUsage() >= 100 && budget.getPeakUsage() <= 880);
+    }
+
+    @Test
+    public void chargesRacingWithTheCloseAreReleased() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        final MemoryBudget.Shedder shedder = new FixedShedder(MemoryBudget.SHED_LOGS, 0, new ArrayList<Integer>());
+
+        for (int round = 0; round < 200; round++) {
+            final MemoryBudget.Account account = budget.register("test", shedder);
+            final CountDownLatch started = new CountDownLatch(4);
+            final CountDownLatch done = new CountDownLatch(4);
+            for (int t = 0; t < 4; t++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int i = 0; i < 2000; i++) account.add(100);
+                        done.countDown();
+                    }
+                }.start();
+            }
+
+            assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            account.close();
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(0, account.getUsage());
+            assertEquals(0, budget.getUsage());
+        }
+    }
+
+    @Test
+    public void sheddingFollowsTheLevelsDownToTheLowWatermark() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        List<Integer> calls = Collections.synchronizedList(new ArrayList<Integer>());
+        FixedShedder logs = new FixedShedder(MemoryBudget.SHED_LOGS, 300, calls);
+        FixedShedder bulk = new FixedShedder(MemoryBudget.SHED_BULK, 2000, calls);
+        FixedShedder normal = new FixedShedder(MemoryBudget.SHED_NORMAL, 2000, calls);
+        logs.account = budget.register("logs", logs);
+        bulk.account = budget.register("bulk", bulk);
+        normal.account = budget.register("normal", normal);
+
+        normal.account.add(500);
+        bulk.account.add(400);
+        logs.account.add(300);
+
+        awaitUsage(budget, (long) (1000 * MemoryBudget.LOW_WATERMARK));
+        assertEquals(0, logs.account.getUsage());
+        assertEquals(500, normal.account.getUsage());
+        assertEquals(300, budget.getShedBytes(MemoryBudget.SHED_LOGS));
+        assertEquals(0, budget.getShedBytes(MemoryBudget.SHED_NORMAL));
+        assertEquals(MemoryBudget.SHED_LOGS, (int) calls.get(0));
+        assertTrue(!calls.contains(MemoryBudget.SHED_NORMAL));
+    }
+
+    @Test
+    public void loweringTheBudgetStartsShedding() throws Exception {
+        MemoryBudget budget = new MemoryBudget(10000);
+        FixedShedder bulk = new FixedShedder(MemoryBudget.SHED_BULK, 10000, new ArrayList<Integer>());
+        bulk.account = budget.register("bulk", bulk);
+        bulk.account.add(5000);
+        assertEquals(5000, budget.getUsage());
+
+        budget.setBudget(1000);
+        awaitUsage(budget, 900);
+    }
+
+    @Test
+    public void accountsOfCollectedComponentsAreClosed() throws Exception {
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        FixedShedder shedder = new FixedShedder(MemoryBudget.SHED_LOGS, 0, new ArrayList<Integer>());
+        budget.register("collected", shedder).add(1000);
+        WeakReference<Object> collected = new WeakReference<Object>(shedder);
+        shedder = null;
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (collected.get() != null && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // Registering another component closes the accounts left behind
+        budget.register("other", new FixedShedder(MemoryBudget.SHED_LOGS, 0, new ArrayList<Integer>()));
+        assertEquals(0, budget.getUsage());
+        assertNull(budget.getUsageByAccount().get("collected"));
+    }
+
+    @Test
+    public void streamBuffersAreChargedAndShedWhenDroppable() throws Exception {
+        MemoryBudget budget = MemoryBudget.getDefault();
+        StreamPublisher.Sizer<String> sizer = new StreamPublisher.Sizer<String>() {
+            @Override
+            public long sizeOf(String item) {
+                return item.length();
+            }
+        };
+        StreamPublisher<String> droppable = new StreamPublisher<String>(StreamPublisher.OVERFLOW_DROP_OLDEST,
+                "droppable", sizer, MemoryBudget.SHED_LOGS);
+        StreamPublisher<String> lossless = new StreamPublisher<String>(StreamPublisher.OVERFLOW_BLOCK,
+                "lossless", sizer, MemoryBudget.SHED_LOGS);
+        Collector<String> droppableSubscriber = new Collector<String>();
+        Collector<String> losslessSubscriber = new Collector<String>();
+        droppable.subscribe(droppableSubscriber);
+        lossless.subscribe(losslessSubscriber);
+        droppableSubscriber.awaitSubscription();
+        losslessSubscriber.awaitSubscription();
+
+        for (int i = 0; i < 10; i++) {
+            droppable.submit("0123456789");
+            lossless.submit("0123456789");
+        }
+        assertEquals(100, usageOf("droppable"));
+        assertEquals(100, usageOf("lossless"));
+
+        long previousBudget = budget.getBudget();
+        try {
+            budget.setBudget(1);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (usageOf("droppable") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        } finally {
+            budget.setBudget(previousBudget);
+        }
+        assertEquals(0, usageOf("droppable"));
+        assertEquals(100, usageOf("lossless"));
+        assertEquals(10, droppable.getDropped());
+
+        // Delivered items are released
+        losslessSubscriber.subscription.request(10);
+        losslessSubscriber.awaitItems(10);
+        assertEquals(0, usageOf("lossless"));
+    }
+
+    @Test
+    public void orderedListenerQueuesAreCharged() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute("blocker", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        OrderedDeviceAdapterListener listener = new OrderedDeviceAdapterListener(new LoadTest.ReferenceListener(), executor);
+        long before = usageOf("OrderedDeviceAdapterListener");
+
+        List<Observation> observations = observations(5);
+        listener.pushDataWithPriority(observations, DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        assertEquals(before + Observation.estimateParcelSize(observations), usageOf("OrderedDeviceAdapterListener"));
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertEquals(before, usageOf("OrderedDeviceAdapterListener"));
+    }
+
+    /**
+     * A Subscriber collecting the items it requests
+     */
+    private static class Collector<T> implements ReactiveFlow.Subscriber<T> {
+        final List<T> items = Collections.synchronizedList(new ArrayList<T>());
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        volatile ReactiveFlow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(ReactiveFlow.Subscription subscription) {
+            this.subscription = subscription;
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {}
+
+        @Override
+        public void onComplete() {}
+
+        void awaitSubscription() throws InterruptedException {
+            assertTrue(subscribed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void awaitItems(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (items.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, items.size());
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the compaction of the observation store, and of its recovery after the death of the
+ * process
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationStoreTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final DeviceDescription DEVICE = new DeviceDescription("dev1", null, null, null, null, null);
+
+    private File dir;
+    private final List<ObservationStore> stores = new ArrayList<ObservationStore>();
+    private final long hour = System.currentTimeMillis() / HOUR * HOUR - HOUR;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("store", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (ObservationStore store : stores) {
+            store.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private ObservationStore open() {
+        ObservationStore store = new ObservationStore(dir);
+        stores.add(store);
+        return store;
+    }
+
+    private static List<Observation> observations(long time, double... values) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < values.length; i++) {
+            Observation obs = new Observation(new SensorDescription("sensor", "C", "temperature"),
+                    new String[]{String.valueOf(values[i])});
+            obs.setPhenomenonTime(time + i);
+            observations.add(obs);
+        }
+        return observations;
+    }
+
+    private long countOf(ObservationStore store) {
+        long count = 0;
+        for (ObservationStore.Rollup rollup : store.query(ObservationStore.TIER_MINUTE, "dev1", "temperature",
+                hour, hour + HOUR)) {
+            count += rollup.getCount();
+        }
+        return count;
+    }
+
+    private void awaitCount(ObservationStore store, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (countOf(store) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, countOf(store));
+    }
+
+    private File segment(int seq) {
+        return new File(dir, "raw-" + seq + ".seg");
+    }
+
+    private void awaitDeleted(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(file + " still exists", file.exists());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void sealedSegmentsAreRolledUp() throws Exception {
+        ObservationStore store = open();
+        assertEquals(3, store.append(observations(hour, 20, 22, 24), DEVICE));
+        store.close();
+
+        ObservationStore reopened = open();
+        awaitCount(reopened, 3);
+        awaitDeleted(segment(1));
+
+        List<ObservationStore.Rollup> rollups = reopened.query(ObservationStore.TIER_MINUTE, null, "temperature",
+                hour, hour + HOUR);
+        assertEquals(1, rollups.size());
+        assertEquals(22, rollups.get(0).getMean(), 1e-9);
+        assertEquals(24, rollups.get(0).getMax(), 0);
+    }
+
+    @Test
+    public void theSegmentOfADeadStoreIsRolledUp() throws Exception {
+        // The first store is never closed, as if its process died
+        ObservationStore dead = new ObservationStore(dir);
+        dead.append(observations(hour, 20, 22), DEVICE);
+        assertTrue(segment(1).exists());
+
+        ObservationStore store = open();
+        awaitCount(store, 2);
+
+        // New segments don't reuse the number of the old one, already merged into the aggregates
+        store.append(observations(hour, 30), DEVICE);
+        store.close();
+        assertFalse(segment(1).exists());
+        awaitCount(open(), 3);
+        dead.close();
+    }
+
+    @Test
+    public void theValidPartOfATruncatedSegmentIsRolledUp() throws Exception {
+        ObservationStore store = new ObservationStore(dir);
+        store.append(observations(hour, 20, 22, 24), DEVICE);
+        store.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment(1), "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        ObservationStore reopened = open();
+        awaitCount(reopened, 2);
+        awaitDeleted(segment(1));
+    }
+
+    @Test
+    public void aSegmentMergedBeforeTheDeathOfTheProcessIsNotCountedTwice() throws Exception {
+        ObservationStore store = new ObservationStore(dir);
+        store.append(observations(hour, 20, 22, 24), DEVICE);
+        store.close();
+        byte[] data = readFile(segment(1));
+
+        ObservationStore first = new ObservationStore(dir);
+        awaitCount(first, 3);
+        awaitDeleted(segment(1));
+        first.close();
+
+        // The process died after writing the aggregates, but before deleting the segment
+        writeFile(segment(1), data);
+        ObservationStore second = open();
+        awaitDeleted(segment(1));
+        assertEquals(3, countOf(second));
+    }
+
+    @Test
+    public void temporaryFilesOfAnInterruptedCompactionAreDeleted() throws Exception {
+        File tmp = new File(dir, "minute-" + hour + ".seg.tmp");
+        writeFile(tmp, new byte[]{1, 2, 3});
+
+        open();
+
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    public void damagedAggregatesAreDiscarded() throws Exception {
+        writeFile(new File(dir, "minute-" + hour + ".seg"), new byte[64]);
+
+        ObservationStore store = open();
+        assertEquals(0, countOf(store));
+        store.append(observations(hour, 20), DEVICE);
+        store.close();
+
+        ObservationStore reopened = open();
+        awaitCount(reopened, 1);
+    }
+
+    @Test
+    public void aStoreWithUnreadableAggregatesDoesNotStart() throws Exception {
+        ObservationStore store = new ObservationStore(dir);
+        store.append(observations(hour, 20), DEVICE);
+        store.close();
+
+        // A directory exists, but cannot be read as a file
+        File unreadable = new File(dir, "minute-" + hour + ".seg");
+        assertTrue(unreadable.mkdir());
+        try {
+            new ObservationStore(dir);
+            fail("Unreadable aggregates ignored");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            unreadable.delete();
+        }
+        assertTrue(segment(1).exists());
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the numeric accessors of the observations
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ObservationTest {
+
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "mmHg", "Blood Pressure");
+
+    @Test
+    public void valuesAreParsedAsNumbers() {
+        Observation obs = new Observation(SENSOR, new String[]{"120", " 80.5 ", "high", null});
+
+        assertEquals(120.0, obs.getDouble(0), 0);
+        assertEquals(80.5, obs.getDouble(1), 0);
+        assertTrue(Double.isNaN(obs.getDouble(2)));
+        assertTrue(Double.isNaN(obs.getDouble(3)));
+        assertEquals(120, obs.getLong(0));
+        assertEquals(80, obs.getLong(1));
+        assertEquals(0, obs.getLong(2));
+    }
+
+    @Test
+    public void longsKeepTheirPrecisionPastTheRangeOfDoubles() {
+        Observation obs = new Observation(SENSOR, new String[]{"9007199254740993"});
+
+        assertEquals(9007199254740993L, obs.getLong(0));
+    }
+
+    @Test
+    public void parsedValuesAreCachedUntilTheValuesChange() {
+        Observation obs = new Observation(SENSOR, new String[]{"1", "2"});
+        double[] parsed = obs.valuesAsDoubleArray();
+
+        assertSame(parsed, obs.valuesAsDoubleArray());
+        assertSame(parsed, new Observation(obs).valuesAsDoubleArray());
+
+        obs.setValues(new String[]{"3"});
+        assertNotSame(parsed, obs.valuesAsDoubleArray());
+        assertArrayEquals(new double[]{3}, obs.valuesAsDoubleArray(), 0);
+        assertEquals(3, obs.getLong(0));
+    }
+
+    @Test
+    public void aBatchIsParsedByValueIndex() {
+        double[] systolic = Observation.valuesAsDoubleArray(Arrays.asList(
+                new Observation(SENSOR, new String[]{"120", "80"}),
+                new Observation(SENSOR, new String[]{"130"}),
+                new Observation(SENSOR, new String[]{"x", "85"})), 1);
+
+        assertEquals(3, systolic.length);
+        assertEquals(80, systolic[0], 0);
+        assertTrue(Double.isNaN(systolic[1]));
+        assertEquals(85, systolic[2], 0);
+    }
+
+    @Test
+    public void plainObservationsNeedNoConversion() {
+        List<Observation> batch = Arrays.asList(new Observation(SENSOR, new String[]{"1"}));
+
+        assertSame(batch, Observation.withoutExtensions(batch));
+    }
+
+    @Test
+    public void extendedObservationsAreConvertedForLegacyRecipients() {
+        Observation traced = new Observation(SENSOR, new String[]{"1"});
+        traced.startTrace();
+        WaveformObservation waveform = new WaveformObservation(SENSOR, 1000, 250, new short[]{1, -2, 3}, true);
+        Observation plain = new Observation(SENSOR, new String[]{"2"});
+        List<Observation> batch = Arrays.asList(traced, waveform, plain);
+
+        List<Observation> converted = Observation.withoutExtensions(batch);
+
+        assertTrue(traced.isTraced());
+        assertFalse(converted.get(0).isTraced());
+        assertEquals(Arrays.asList("1"), converted.get(0).getValues());
+        assertEquals(Observation.class, converted.get(1).getClass());
+        assertEquals(Arrays.asList("1", "-2", "3"), converted.get(1).getValues());
+        assertEquals(1000, converted.get(1).getPhenomenonTime());
+        assertEquals(waveform.getDuration(), converted.get(1).getDuration());
+        assertSame(plain, converted.get(2));
+    }
+
+    @Test
+    public void longWaveformsDoNotOverflowTheirTimes() {
+        WaveformObservation waveform = new WaveformObservation(SENSOR, 1000, 1000, new short[3000000], false);
+
+        assertEquals(3000000, waveform.getDuration());
+        assertEquals(1000 + 2500000, waveform.getSampleTime(2500000));
+    }
+
+}
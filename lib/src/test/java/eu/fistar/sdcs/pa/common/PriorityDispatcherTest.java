@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the ordering, overtaking and dropping of the priority lanes
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class PriorityDispatcherTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final SensorDescription SENSOR = new SensorDescription("Sensor", "bpm", "Heart Rate");
+
+    private PriorityDispatcher dispatcher;
+
+    /**
+     * A sink recording the values delivered, that can be blocked on the first bulk push
+     */
+    private static class BlockingSink implements PriorityDispatcher.Sink {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        BlockingSink(boolean block) {
+            release = new CountDownLatch(block ? 1 : 0);
+        }
+
+        @Override
+        public void deliver(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+            if (priority == PAAndroidConstants.PRIORITY.BULK && blocked.getCount() > 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            delivered.add(observations.get(0).getValues().get(0));
+        }
+
+        void awaitDelivered(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(2);
+            }
+            assertEquals(count, delivered.size());
+        }
+    }
+
+    // The counter of a lane is updated right after the sink returns
+    private void awaitCounted(int priority, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (dispatcher.getDelivered(priority) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2);
+        }
+        assertEquals(count, dispatcher.getDelivered(priority));
+    }
+
+    private static List<Observation> push(String value) {
+        return Arrays.asList(new Observation(SENSOR, new String[]{value}));
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) dispatcher.shutdown();
+    }
+
+    @Test
+    public void pushesOfALaneAreDeliveredInOrder() throws Exception {
+        BlockingSink sink = new BlockingSink(false);
+        dispatcher = new PriorityDispatcher(sink);
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(push(Integer.toString(i)), null, PAAndroidConstants.PRIORITY.NORMAL);
+        }
+        sink.awaitDelivered(100);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.toString(i), sink.delivered.get(i));
+        }
+        awaitCounted(PAAndroidConstants.PRIORITY.NORMAL, 100);
+    }
+
+    @Test
+    public void alarmsOvertakeABulkBacklog() throws Exception {
+        BlockingSink sink = new BlockingSink(true);
+        dispatcher = new PriorityDispatcher(sink);
+
+        dispatcher.dispatch(push("bulk0"), null, PAAndroidConstants.PRIORITY.BULK);
+        assertTrue(sink.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        dispatcher.dispatch(push("bulk1"), null, PAAndroidConstants.PRIORITY.BULK);
+        dispatcher.dispatch(push("alarm"), null, PAAndroidConstants.PRIORITY.ALARM);
+        sink.awaitDelivered(1);
+
+        assertEquals("alarm", sink.delivered.get(0));
+        assertEquals(1, dispatcher.getQueueDepth(PAAndroidConstants.PRIORITY.BULK));
+
+        sink.release.countDown();
+        sink.awaitDelivered(3);
+        assertEquals(Arrays.asList("alarm", "bulk0", "bulk1"), sink.delivered);
+    }
+
+    @Test
+    public void fullLanesDropTheirOldestPushes() throws Exception {
+        BlockingSink sink = new BlockingSink(true);
+        dispatcher = new PriorityDispatcher(sink, 2, PriorityDispatcher.DEFAULT_LATENCY_BUDGETS);
+
+        dispatcher.dispatch(push("0"), null, PAAndroidConstants.PRIORITY.BULK);
+        assertTrue(sink.blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i <= 4; i++) {
+            dispatcher.dispatch(push(Integer.toString(i)), null, PAAndroidConstants.PRIORITY.BULK);
+        }
+
+        assertEquals(2, dispatcher.getDropped(PAAndroidConstants.PRIORITY.BULK));
+        assertEquals(2, dispatcher.getMaxQueueDepth(PAAndroidConstants.PRIORITY.BULK));
+        sink.release.countDown();
+        sink.awaitDelivered(3);
+        assertEquals(Arrays.asList("0", "3", "4"), sink.delivered);
+    }
+
+    @Test
+    public void outOfRangePrioritiesUseTheNearestLane() throws Exception {
+        BlockingSink sink = new BlockingSink(false);
+        dispatcher = new PriorityDispatcher(sink);
+
+        dispatcher.dispatch(push("high"), null, 99);
+        dispatcher.dispatch(push("low"), null, -1);
+        sink.awaitDelivered(2);
+
+        awaitCounted(PAAndroidConstants.PRIORITY.ALARM, 1);
+        awaitCounted(PAAndroidConstants.PRIORITY.BULK, 1);
+    }
+
+    @Test
+    public void legacyPeersReceiveThePushesWithPushData() throws Exception {
+        LegacyListeners.ProtocolAdapter protocolAdapter = new LegacyListeners.ProtocolAdapter();
+        LegacyListeners.Application application = new LegacyListeners.Application();
+
+        PriorityDispatcher.sinkFor(protocolAdapter).deliver(push("1"), null, PAAndroidConstants.PRIORITY.ALARM);
+        PriorityDispatcher.sinkFor(application).deliver(push("2"), null, PAAndroidConstants.PRIORITY.BULK);
+        PriorityDispatcher.sinkFor(application, null, null).deliver(push("3"), null, PAAndroidConstants.PRIORITY.NORMAL);
+
+        assertEquals(Arrays.asList("1"), protocolAdapter.received);
+        assertEquals(Arrays.asList("2", "3"), application.received);
+    }
+
+    @Test
+    public void multiDeviceBatchesAreSplitForPeersNotAcceptingThem() throws Exception {
+        final List<MultiDeviceBatch> batches = new ArrayList<MultiDeviceBatch>();
+        LegacyListeners.Application application = new LegacyListeners.Application() {
+            @Override
+            public void pushMultiData(MultiDeviceBatch batch) {
+                batches.add(batch);
+            }
+        };
+        MultiDeviceBatch batch = new MultiDeviceBatch();
+        batch.add(new DeviceDescription("sensor1", null, null, null, null, null), push("1"));
+        batch.add(new DeviceDescription("sensor2", null, null, null, null, null), push("2"));
+
+        batch.sendTo(application, null, null);
+        assertEquals(Arrays.asList("1", "2"), application.received);
+        assertTrue(batches.isEmpty());
+
+        ListenerOptions options = new ListenerOptions();
+        options.setAcceptsMultiData(true);
+        batch.sendTo(application, null, options);
+        assertEquals(Arrays.asList("1", "2"), application.received);
+        assertEquals(Arrays.asList(batch), batches);
+    }
+
+    @Test
+    public void everyDispatcherReportsItsOwnLanes() throws Exception {
+        PriorityDispatcher named = new PriorityDispatcher("Named", new BlockingSink(true), 10,
+                PriorityDispatcher.DEFAULT_LATENCY_BUDGETS);
+        dispatcher = new PriorityDispatcher(new BlockingSink(false));
+        String namedLane = "Named-" + PAAndroidConstants.PRIORITY.BULK;
+        String unnamedLane = dispatcher.getName() + "-" + PAAndroidConstants.PRIORITY.BULK;
+        assertNotEquals(named.getName(), dispatcher.getName());
+
+        named.dispatch(push("0"), null, PAAndroidConstants.PRIORITY.BULK);
+        dispatcher.dispatch(push("1"), null, PAAndroidConstants.PRIORITY.BULK);
+        List<String> names = Arrays.asList(MetricsRegistry.getDefault().getStatistics().getQueueNames());
+        assertTrue(names.contains(namedLane));
+        assertTrue(names.contains(unnamedLane));
+
+        named.shutdown();
+        names = Arrays.asList(MetricsRegistry.getDefault().getStatistics().getQueueNames());
+        assertFalse(names.contains(namedLane));
+        assertTrue(names.contains(unnamedLane));
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the demand handling of the batching operators
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ReactiveFlowTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * A source emitting the items pushed by the test, recording the demand it receives
+     */
+    private static class ManualSource implements ReactiveFlow.Publisher<Integer>, ReactiveFlow.Subscription {
+        final AtomicLong requested = new AtomicLong(0);
+        ReactiveFlow.Subscriber<? super Integer> subscriber;
+
+        @Override
+        public void subscribe(ReactiveFlow.Subscriber<? super Integer> subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {}
+
+        void push(int from, int to) {
+            for (int i = from; i < to; i++) {
+                subscriber.onNext(i);
+            }
+        }
+    }
+
+    /**
+     * A Subscriber collecting the lists it receives
+     */
+    private static class Collector implements ReactiveFlow.Subscriber<List<Integer>> {
+        final List<List<Integer>> lists = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile ReactiveFlow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(ReactiveFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<Integer> item) {
+            lists.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {}
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        void awaitLists(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (lists.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, lists.size());
+        }
+    }
+
+    @Test
+    public void itemsAreRequestedOneListAtATime() throws Exception {
+        ManualSource source = new ManualSource();
+        Collector collector = new Collector();
+        ReactiveFlow.batch(source, 3, 0).subscribe(collector);
+
+        collector.subscription.request(2);
+        assertEquals(3, source.requested.get());
+
+        source.push(0, 3);
+        assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2)), collector.lists);
+        assertEquals(6, source.requested.get());
+
+        source.push(3, 6);
+        assertEquals(2, collector.lists.size());
+        assertEquals(6, source.requested.get());
+    }
+
+    @Test
+    public void partialListsDoNotLetTheBufferGrowPastTheMaximumSize() throws Exception {
+        ManualSource source = new ManualSource();
+        Collector collector = new Collector();
+        ReactiveFlow.batch(source, 10, 20).subscribe(collector);
+
+        // Timer-driven partial lists consume the whole demand
+        collector.subscription.request(3);
+        for (int i = 0; i < 3; i++) {
+            source.push(i, i + 1);
+            collector.awaitLists(i + 1);
+        }
+
+        // The source can only send what's left of the last request, which fits in one list
+        long allowed = source.requested.get() - 3;
+        assertTrue("Too many items requested: " + allowed, allowed <= 10);
+        source.push(3, 3 + (int) allowed);
+
+        collector.subscription.request(1);
+        collector.awaitLists(4);
+        for (List<Integer> list : collector.lists) {
+            assertTrue("List too long: " + list.size(), list.size() <= 10);
+        }
+        assertEquals((int) allowed, collector.lists.get(3).size());
+    }
+
+    @Test
+    public void theLastListIsEmittedBeforeCompleting() throws Exception {
+        ManualSource source = new ManualSource();
+        Collector collector = new Collector();
+        ReactiveFlow.batch(source, 5, 0).subscribe(collector);
+
+        collector.subscription.request(2);
+        source.push(0, 7);
+        source.subscriber.onComplete();
+
+        assertTrue(collector.completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2, 3, 4), Arrays.asList(5, 6)), collector.lists);
+    }
+
+    @Test
+    public void batchesOverAStreamPublisherDeliverEveryItem() throws Exception {
+        final StreamPublisher<Integer> publisher = new StreamPublisher<Integer>(StreamPublisher.OVERFLOW_BLOCK);
+        Collector collector = new Collector();
+        ReactiveFlow.batch(publisher, 7, 10).subscribe(collector);
+        collector.subscription.request(Long.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++) {
+            publisher.submit(i);
+        }
+        publisher.close();
+        assertTrue(collector.completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        List<Integer> received = new ArrayList<Integer>();
+        for (List<Integer> list : collector.lists) {
+            assertTrue("List too long: " + list.size(), list.size() <= 7);
+            received.addAll(list);
+        }
+        assertEquals(1000, received.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+    }
+
+    @Test
+    public void windowsRequestABoundedNumberOfItems() throws Exception {
+        ManualSource source = new ManualSource();
+        Collector collector = new Collector();
+        ReactiveFlow.window(source, 60000, 4).subscribe(collector);
+
+        collector.subscription.request(Long.MAX_VALUE);
+        assertEquals(4, source.requested.get());
+
+        // A full window is emitted without waiting for the end of the window
+        source.push(0, 4);
+        collector.awaitLists(1);
+        assertEquals(Arrays.asList(0, 1, 2, 3), collector.lists.get(0));
+        assertEquals(8, source.requested.get());
+    }
+
+    @Test
+    public void windowsHaveADefaultBound() throws Exception {
+        ManualSource source = new ManualSource();
+        Collector collector = new Collector();
+        ReactiveFlow.window(source, 60000).subscribe(collector);
+
+        collector.subscription.request(Long.MAX_VALUE);
+        assertEquals(ReactiveFlow.DEFAULT_MAX_WINDOW_ITEMS, source.requested.get());
+    }
+
+}
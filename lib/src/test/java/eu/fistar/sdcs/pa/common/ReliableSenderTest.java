@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the delivery, resend and lifecycle of the death-aware sender
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ReliableSenderTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final SensorDescription SENSOR = new SensorDescription("thermometer", "C", "temperature");
+    private static final DeviceDescription DEVICE = new DeviceDescription("dev1", null, null, null, null, null);
+
+    private final List<ReliableSender> senders = new ArrayList<ReliableSender>();
+
+    /**
+     * A peer in the same process recording the values it receives, failing the first calls if asked
+     */
+    private static class RecordingPeer implements ReliableSender.Peer {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger failures;
+
+        RecordingPeer(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc, int priority) throws RemoteException {
+            if (failures.getAndDecrement() > 0) throw new RemoteException("Expected");
+            for (Observation obs : observations) {
+                received.add(obs.getValues().get(0));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ReliableSender sender : senders) {
+            sender.close();
+        }
+    }
+
+    private ReliableSender sender(ReliableSender.Connector connector, int maxBuffered) {
+        ReliableSender sender = new ReliableSender(connector, maxBuffered, 10, 50);
+        senders.add(sender);
+        return sender;
+    }
+
+    private static List<Observation> push(String... values) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (String value : values) {
+            observations.add(new Observation(SENSOR, new String[]{value}));
+        }
+        return observations;
+    }
+
+    @Test
+    public void pushesMadeBeforeStartAreDeliveredInOrder() throws Exception {
+        ReliableSender sender = sender(null, 100);
+        RecordingPeer peer = new RecordingPeer(0);
+        sender.setPeer(peer);
+
+        sender.pushData(push("1", "2"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        sender.pushData(push("3"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        Thread.sleep(50);
+        assertTrue("Delivered before start", peer.received.isEmpty());
+
+        sender.start();
+        assertTrue(sender.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("1", "2", "3"), peer.received);
+        assertEquals(1, sender.getLastAcknowledged());
+        assertEquals(0, sender.getBufferedObservations());
+    }
+
+    @Test
+    public void aSenderCanOnlyBeStartedOnce() {
+        ReliableSender sender = sender(null, 100);
+        sender.start();
+        try {
+            sender.start();
+            fail("Started twice");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void aFailedPushIsSentAgain() throws Exception {
+        ReliableSender sender = sender(null, 100);
+        RecordingPeer peer = new RecordingPeer(2);
+        sender.setPeer(peer);
+        sender.start();
+
+        sender.pushData(push("1"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        sender.pushData(push("2"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+
+        assertTrue(sender.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("1", "2"), peer.received);
+        assertEquals(0, sender.getDroppedObservations());
+    }
+
+    @Test
+    public void aNewPeerResumesFromTheFirstPushNotAcknowledged() throws Exception {
+        ReliableSender sender = sender(null, 100);
+        RecordingPeer dead = new RecordingPeer(Integer.MAX_VALUE);
+        sender.setPeer(dead);
+        sender.start();
+
+        sender.pushData(push("1"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        sender.pushData(push("2"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        assertFalse(sender.flush(100));
+
+        RecordingPeer restarted = new RecordingPeer(0);
+        sender.setPeer(restarted);
+        assertTrue(sender.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("1", "2"), restarted.received);
+        assertEquals(1, sender.getReconnections());
+    }
+
+    @Test
+    public void theConnectorIsRetriedUntilThePeerIsAvailable() throws Exception {
+        final RecordingPeer peer = new RecordingPeer(0);
+        final AtomicInteger attempts = new AtomicInteger(0);
+        ReliableSender sender = sender(new ReliableSender.Connector() {
+            @Override
+            public ReliableSender.Peer connect() {
+                return attempts.incrementAndGet() < 3 ? null : peer;
+            }
+        }, 100);
+        sender.pushData(push("1"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        sender.start();
+
+        assertTrue(sender.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("1"), peer.received);
+        assertEquals(3, attempts.get());
+        assertTrue(sender.isConnected());
+    }
+
+    @Test
+    public void aFullBufferDropsTheOldestPushesAlarmsLast() throws Exception {
+        ReliableSender sender = sender(null, 3);
+        sender.pushData(push("alarm"), DEVICE, PAAndroidConstants.PRIORITY.ALARM);
+        sender.pushData(push("bulk1"), DEVICE, PAAndroidConstants.PRIORITY.BULK);
+        sender.pushData(push("bulk2"), DEVICE, PAAndroidConstants.PRIORITY.BULK);
+        sender.pushData(push("normal"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        assertEquals(3, sender.getBufferedObservations());
+        assertEquals(1, sender.getDroppedObservations());
+
+        RecordingPeer peer = new RecordingPeer(0);
+        sender.setPeer(peer);
+        sender.start();
+        assertTrue(sender.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("alarm", "bulk2", "normal"), peer.received);
+    }
+
+    @Test
+    public void bufferedPushesAreChargedToTheBudgetOnceStarted() throws Exception {
+        ReliableSender sender = sender(null, 100);
+        List<Observation> observations = push("1", "2", "3");
+
+        sender.pushData(observations, DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        assertEquals(0, budgetUsage());
+
+        sender.start();
+        assertEquals(Observation.estimateParcelSize(observations), budgetUsage());
+
+        sender.close();
+        assertEquals(0, budgetUsage());
+    }
+
+    private static long budgetUsage() {
+        Long usage = MemoryBudget.getDefault().getUsageByAccount().get("ReliableSender");
+        return usage != null ? usage : 0;
+    }
+
+    @Test
+    public void interruptingTheSenderThreadClosesTheSender() throws Exception {
+        final AtomicReference<Thread> senderThread = new AtomicReference<Thread>();
+        final CountDownLatch connecting = new CountDownLatch(1);
+        ReliableSender sender = sender(new ReliableSender.Connector() {
+            @Override
+            public ReliableSender.Peer connect() {
+                senderThread.set(Thread.currentThread());
+                connecting.countDown();
+                return null;
+            }
+        }, 100);
+        sender.pushData(push("1"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        sender.start();
+
+        assertTrue(connecting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        senderThread.get().interrupt();
+        senderThread.get().join(TIMEOUT_MS);
+
+        assertFalse("The sender thread is still running", senderThread.get().isAlive());
+        assertFalse(sender.flush(TIMEOUT_MS));
+        sender.pushData(push("2"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        assertEquals(1, sender.getBufferedObservations());
+    }
+
+    @Test
+    public void legacyPeersAcknowledgeOnlyWhatTheyReceived() throws Exception {
+        LegacyListeners.ProtocolAdapter protocolAdapter = new LegacyListeners.ProtocolAdapter();
+        LegacyListeners.Application application = new LegacyListeners.Application();
+        ReliableSender toProtocolAdapter = sender(null, 100);
+        ReliableSender toApplication = sender(null, 100);
+        toProtocolAdapter.setPeer(ReliableSender.peerFor(protocolAdapter));
+        toApplication.setPeer(ReliableSender.peerFor(application, null, null));
+        toProtocolAdapter.start();
+        toApplication.start();
+
+        toProtocolAdapter.pushData(push("1", "2"), DEVICE, PAAndroidConstants.PRIORITY.NORMAL);
+        toProtocolAdapter.pushData(push("alarm"), DEVICE, PAAndroidConstants.PRIORITY.ALARM);
+        toApplication.pushData(push("3"), DEVICE, PAAndroidConstants.PRIORITY.BULK);
+
+        assertTrue(toProtocolAdapter.flush(TIMEOUT_MS));
+        assertTrue(toApplication.flush(TIMEOUT_MS));
+        assertEquals(Arrays.asList("1", "2", "alarm"), protocolAdapter.received);
+        assertEquals(Arrays.asList("3"), application.received);
+        assertEquals(1, toProtocolAdapter.getLastAcknowledged());
+        assertEquals(0, toApplication.getLastAcknowledged());
+    }
+
+}
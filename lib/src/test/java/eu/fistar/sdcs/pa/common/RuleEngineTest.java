@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the evaluation of the threshold rules and of the delivery of their matches
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class RuleEngineTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final DeviceDescription DEVICE1 = new DeviceDescription("dev1", null, "ModelA", null, null, null);
+    private static final DeviceDescription DEVICE2 = new DeviceDescription("dev2", null, "ModelB", null, null, null);
+
+    /**
+     * A Listener recording the matches it receives
+     */
+    private static class RecordingListener implements RuleEngine.Listener {
+        final List<Long> ruleIds = new ArrayList<Long>();
+        final List<List<Observation>> matches = new ArrayList<List<Observation>>();
+
+        @Override
+        public void onRuleMatched(ThresholdRule rule, List<Observation> observations, DeviceDescription devDesc) {
+            ruleIds.add(rule.getId());
+            matches.add(observations);
+        }
+    }
+
+    private static Observation observation(String property, long time, String... values) {
+        Observation obs = new Observation(new SensorDescription("sensor", "C", property), values);
+        obs.setPhenomenonTime(time);
+        return obs;
+    }
+
+    private static List<Observation> push(String property, long time, String... values) {
+        return Arrays.asList(observation(property, time, values));
+    }
+
+    @Test
+    public void onlyTheMatchingObservationsOfThePropertyAreReported() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        long ruleId = engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30), listener);
+
+        List<Observation> observations = Arrays.asList(observation("temperature", 1000, "25"),
+                observation("temperature", 2000, "35"), observation("humidity", 2000, "90"),
+                observation("temperature", 3000, "40"));
+        assertEquals(2, engine.evaluate(observations, DEVICE1));
+
+        assertEquals(Arrays.asList(ruleId), listener.ruleIds);
+        assertEquals(Arrays.asList(observations.get(1), observations.get(3)), listener.matches.get(0));
+    }
+
+    @Test
+    public void rulesAreRestrictedToTheirDeviceModelAndValue() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        ThresholdRule byDevice = new ThresholdRule("pressure", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER_OR_EQUAL, 90);
+        byDevice.setDeviceID("dev1");
+        byDevice.setValueIndex(1);
+        ThresholdRule byModel = new ThresholdRule("pressure", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_LESS, 100);
+        byModel.setModelName("ModelB");
+        engine.addRule(byDevice, listener);
+        engine.addRule(byModel, listener);
+
+        assertEquals(1, engine.evaluate(push("pressure", 1000, "140", "95"), DEVICE1));
+        assertEquals(0, engine.evaluate(push("pressure", 1000, "140", "95"), DEVICE2));
+        assertEquals(1, engine.evaluate(push("pressure", 1000, "80"), DEVICE2));
+        // The value compared is missing
+        assertEquals(0, engine.evaluate(push("pressure", 1000, "140"), DEVICE1));
+    }
+
+    @Test
+    public void rateRulesCompareTheChangePerSecond() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_RATE,
+                ThresholdRule.OPERATOR_GREATER, 5), listener);
+
+        assertEquals(0, engine.evaluate(push("temperature", 1000, "10"), DEVICE1));
+        assertEquals(0, engine.evaluate(push("temperature", 2000, "14"), DEVICE1));
+        assertEquals(1, engine.evaluate(push("temperature", 2500, "18"), DEVICE1));
+        // Every device has its own last value
+        assertEquals(0, engine.evaluate(push("temperature", 3000, "100"), DEVICE2));
+
+        engine.removeDevice("dev1");
+        assertEquals(0, engine.evaluate(push("temperature", 3000, "100"), DEVICE1));
+    }
+
+    @Test
+    public void cooldownSuppressesTheMatchesOfTheSameDevice() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        ThresholdRule rule = new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30);
+        rule.setCooldown(60 * 1000);
+        engine.addRule(rule, listener);
+
+        assertEquals(1, engine.evaluate(push("temperature", 1000, "35"), DEVICE1));
+        assertEquals(0, engine.evaluate(push("temperature", 2000, "36"), DEVICE1));
+        assertEquals(1, engine.evaluate(push("temperature", 2000, "36"), DEVICE2));
+        assertEquals(2, listener.matches.size());
+    }
+
+    @Test
+    public void addedRulesAreCopiedAndValidated() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        ThresholdRule rule = new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30);
+        long ruleId = engine.addRule(rule, listener);
+        rule.setValueIndex(3);
+
+        assertEquals(ThresholdRule.NO_ID, rule.getId());
+        assertEquals(ruleId, engine.getRules(listener).get(0).getId());
+        assertEquals(0, engine.getRules(listener).get(0).getValueIndex());
+
+        try {
+            engine.addRule(rule, null);
+            fail("Rule without listener accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            rule.setCooldown(-1);
+            fail("Negative cooldown accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rulesAreScopedByListener() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        long firstRule = engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30), first);
+        long secondRule = engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_LESS, 0), second);
+
+        assertEquals(1, engine.getRules(first).size());
+        assertEquals(firstRule, engine.getRules(first).get(0).getId());
+        assertFalse(engine.removeRule(firstRule, second));
+        assertEquals(1, engine.evaluate(push("temperature", 1000, "35"), DEVICE1));
+        assertEquals(Arrays.asList(firstRule), first.ruleIds);
+        assertTrue(second.ruleIds.isEmpty());
+
+        assertTrue(engine.removeRule(firstRule, first));
+        assertFalse(engine.removeRule(firstRule, first));
+        assertEquals(0, engine.evaluate(push("temperature", 2000, "35"), DEVICE1));
+        assertEquals(1, engine.removeRules(second));
+        assertTrue(engine.getRules(second).isEmpty());
+        assertFalse(engine.removeRule(secondRule, second));
+    }
+
+    @Test
+    public void aFailingListenerDoesNotStopTheOthers() {
+        RuleEngine engine = new RuleEngine();
+        RecordingListener listener = new RecordingListener();
+        engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30), new RuleEngine.Listener() {
+            @Override
+            public void onRuleMatched(ThresholdRule rule, List<Observation> observations, DeviceDescription devDesc) {
+                throw new IllegalStateException("Broken listener");
+            }
+        });
+        long ruleId = engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30), listener);
+
+        assertEquals(2, engine.evaluate(push("temperature", 1000, "35"), DEVICE1));
+        assertEquals(Arrays.asList(ruleId), listener.ruleIds);
+    }
+
+    @Test
+    public void listenersOfTheSameApplicationAreEqual() {
+        ListenerPublisher application = new ListenerPublisher();
+        RuleEngine engine = new RuleEngine();
+        engine.addRule(new ThresholdRule("temperature", ThresholdRule.KIND_VALUE,
+                ThresholdRule.OPERATOR_GREATER, 30), RuleEngine.listenerFor(application));
+
+        assertEquals(1, engine.getRules(RuleEngine.listenerFor(application)).size());
+        assertTrue(engine.getRules(RuleEngine.listenerFor(new ListenerPublisher())).isEmpty());
+        application.close();
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void theOldestMatchesAreDroppedWhenTheSubscriberFallsBehind() throws Exception {
+        ListenerPublisher application = new ListenerPublisher();
+        Collector<ListenerPublisher.RuleMatch> subscriber = new Collector<ListenerPublisher.RuleMatch>();
+        application.getRuleMatches().subscribe(subscriber);
+        subscriber.awaitSubscription();
+
+        // The oneway calls never wait for the Subscriber
+        int count = StreamPublisher.DEFAULT_BUFFER_SIZE + 10;
+        for (int i = 0; i < count; i++) {
+            application.onRuleMatched(i, push("temperature", 1000, "35"), DEVICE1);
+        }
+        subscriber.subscription.request(count);
+        subscriber.awaitItems(StreamPublisher.DEFAULT_BUFFER_SIZE);
+
+        assertEquals(10, subscriber.items.get(0).getRuleId());
+        assertEquals(count - 1, subscriber.items.get(subscriber.items.size() - 1).getRuleId());
+        application.close();
+    }
+
+    @Test
+    public void applicationsOnlyWantingRuleMatchesReceiveNoData() throws Exception {
+        ListenerPublisher application = new ListenerPublisher();
+        Collector<ListenerPublisher.DataEvent> subscriber = new Collector<ListenerPublisher.DataEvent>();
+        application.getData().subscribe(subscriber);
+        subscriber.awaitSubscription();
+        subscriber.subscription.request(10);
+        ListenerOptions options = new ListenerOptions();
+        options.setRulesOnly(true);
+
+        PriorityDispatcher.sinkFor(application, null, options).deliver(push("temperature", 1000, "35"), DEVICE1,
+                PAAndroidConstants.PRIORITY.NORMAL);
+        PriorityDispatcher.sinkFor(application, null, null).deliver(push("temperature", 2000, "36"), DEVICE1,
+                PAAndroidConstants.PRIORITY.NORMAL);
+
+        subscriber.awaitItems(1);
+        assertEquals(2000, subscriber.items.get(0).getObservations().get(0).getPhenomenonTime());
+        application.close();
+    }
+
+    /**
+     * A Subscriber collecting the items it requests
+     */
+    private static class Collector<T> implements ReactiveFlow.Subscriber<T> {
+        final List<T> items = Collections.synchronizedList(new ArrayList<T>());
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        volatile ReactiveFlow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(ReactiveFlow.Subscription subscription) {
+            this.subscription = subscription;
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {}
+
+        @Override
+        public void onComplete() {}
+
+        void awaitSubscription() throws InterruptedException {
+            assertTrue(subscribed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        void awaitItems(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (items.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, items.size());
+        }
+    }
+
+}
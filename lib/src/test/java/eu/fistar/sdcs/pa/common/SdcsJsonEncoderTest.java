@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the JSON form and the gzip compression of the messages forwarded to the SDCS
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SdcsJsonEncoderTest {
+
+    private static final SensorDescription THERMOMETER = new SensorDescription("thermometer", "C", "temperature");
+    private static final DeviceDescription DEVICE = new DeviceDescription("dev1", "SN1", "Model", "Maker",
+            Arrays.asList(THERMOMETER), "00:11:22:33:44:55");
+
+    private static Observation observation(String value) {
+        Observation obs = new Observation(THERMOMETER, new String[]{value});
+        obs.setPhenomenonTime(1000);
+        obs.setDuration(5);
+        return obs;
+    }
+
+    private static String utf8(SdcsJsonEncoder encoder) throws Exception {
+        return new String(encoder.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void dataPushIsEncodedAsJson() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        encoder.encodeDataPush(DEVICE, Arrays.asList(observation("36.5"), observation("-1")));
+
+        assertEquals("{\"type\":11,\"id\":\"dev1\",\"observations\":["
+                + "{\"propertyName\":\"temperature\",\"measurementUnit\":\"C\",\"phenomenonTime\":1000,\"duration\":5,\"values\":[\"36.5\"]},"
+                + "{\"propertyName\":\"temperature\",\"measurementUnit\":\"C\",\"phenomenonTime\":1000,\"duration\":5,\"values\":[\"-1\"]}]}",
+                utf8(encoder));
+    }
+
+    @Test
+    public void deviceMessagesCarryTheDescription() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        encoder.encodeDeviceRegistration(DEVICE);
+        assertEquals("{\"type\":7,\"id\":\"dev1\",\"device\":{\"id\":\"dev1\",\"serialNumber\":\"SN1\","
+                + "\"modelName\":\"Model\",\"manufacturerName\":\"Maker\",\"address\":\"00:11:22:33:44:55\","
+                + "\"sensors\":[{\"sensorName\":\"thermometer\",\"measurementUnit\":\"C\",\"propertyName\":\"temperature\"}]}}",
+                utf8(encoder));
+
+        encoder.reset();
+        encoder.encodeDeviceDeregistration(DEVICE);
+        assertEquals("{\"type\":14,\"id\":\"dev1\"}", utf8(encoder));
+    }
+
+    @Test
+    public void stringsAreEscapedTheSameWayInBothDestinations() throws Exception {
+        String value = "quote\" backslash\\ newline\n tab\t bell\u0007 accent\u00e8 euro\u20ac clef\ud834\udd1e";
+        List<Observation> observations = Collections.singletonList(observation(value));
+
+        SdcsJsonEncoder bytes = new SdcsJsonEncoder(16);
+        bytes.encodeDataPush(DEVICE, observations);
+        StringBuilder chars = new StringBuilder();
+        new SdcsJsonEncoder(chars).encodeDataPush(DEVICE, observations);
+
+        assertEquals(chars.toString(), utf8(bytes));
+        assertTrue(chars.toString().contains(
+                "quote\\\" backslash\\\\ newline\\n tab\\t bell\\u0007 accent\u00e8 euro\u20ac clef\ud834\udd1e"));
+        assertArrayEquals(chars.toString().getBytes("UTF-8"), bytes.toByteArray());
+    }
+
+    @Test
+    public void loneSurrogatesAreReplaced() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        encoder.encodeDataPush(DEVICE, Collections.singletonList(observation("a\ud800b")));
+        assertTrue(utf8(encoder).contains("\"a?b\""));
+    }
+
+    @Test
+    public void waveformSamplesAreWrittenAsNumbers() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        encoder.writeObservation(new WaveformObservation(THERMOMETER, 1000, 250, new short[]{1, -2, 300}, false));
+        assertTrue(utf8(encoder), utf8(encoder).contains("\"sampleRate\":250.0,\"samples\":[1,-2,300]"));
+
+        encoder.reset();
+        encoder.writeObservation(new WaveformObservation(THERMOMETER, 1000, 250, new float[]{1.5f, 2, Float.NaN}));
+        assertTrue(utf8(encoder), utf8(encoder).contains("\"samples\":[1.5,2,null]"));
+    }
+
+    @Test
+    public void gzipOutputDecompressesToTheMessage() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        for (int i = 0; i < 2; i++) {
+            // The Deflater is reused for the second message
+            encoder.reset();
+            encoder.encodeDataPush(DEVICE, Arrays.asList(observation(String.valueOf(i)), observation("36.5")));
+            byte[] plain = encoder.toByteArray();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            encoder.writeTo(compressed, true);
+
+            assertArrayEquals(plain, gunzip(compressed.toByteArray()));
+        }
+        encoder.close();
+    }
+
+    @Test
+    public void plainOutputIsTheBuffer() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder();
+        encoder.encodeDeviceDeregistration(DEVICE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out, false);
+        assertArrayEquals(encoder.toByteArray(), out.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void anAppendableEncoderHasNoBuffer() throws Exception {
+        SdcsJsonEncoder encoder = new SdcsJsonEncoder(new StringBuilder());
+        encoder.encodeDeviceDeregistration(DEVICE);
+        encoder.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[512];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            out.write(chunk, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the canonical sensor lists shared among the devices of the same model
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SensorListCacheTest {
+
+    private static List<SensorDescription> sensors(String... propertyNames) {
+        List<SensorDescription> result = new ArrayList<SensorDescription>();
+        for (String propertyName : propertyNames) {
+            result.add(new SensorDescription("Sensor", "unit", propertyName));
+        }
+        return result;
+    }
+
+    @Test
+    public void devicesOfTheSameModelShareTheSensorList() {
+        DeviceDescription first = new DeviceDescription("a", "1", "Cache Model", "Maker", sensors("Heart Rate"), "a");
+        DeviceDescription second = new DeviceDescription("b", "2", "Cache Model", "Maker", sensors("Heart Rate"), "b");
+
+        assertSame(first.getSensorList(), second.getSensorList());
+        assertSame(first.getSensorList(), new DeviceDescription(first).getSensorList());
+    }
+
+    @Test
+    public void everyVariantOfAModelKeepsItsCanonicalList() {
+        List<SensorDescription> basic = SensorListCache.intern("Maker", "Variant Model", sensors("Heart Rate"));
+        List<SensorDescription> extended = SensorListCache.intern("Maker", "Variant Model",
+                sensors("Heart Rate", "Oxygen Saturation"));
+
+        assertNotSame(basic, extended);
+        assertEquals(2, extended.size());
+        // Devices of the two variants alternating don't evict each other
+        assertSame(basic, SensorListCache.intern("Maker", "Variant Model", sensors("Heart Rate")));
+        assertSame(extended, SensorListCache.intern("Maker", "Variant Model", sensors("Heart Rate", "Oxygen Saturation")));
+        assertSame(basic, SensorListCache.intern("Maker", "Variant Model", sensors("Heart Rate")));
+    }
+
+    @Test
+    public void unusedVariantsAreDiscarded() throws InterruptedException {
+        int before = SensorListCache.size();
+        SensorListCache.intern("Maker", "Discarded Model", sensors("Heart Rate"));
+        SensorListCache.intern("Maker", "Discarded Model", sensors("Heart Rate", "Oxygen Saturation"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SensorListCache.size() > before && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(SensorListCache.size() <= before);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void canonicalListsAreImmutable() {
+        SensorListCache.intern("Maker", "Immutable Model", sensors("Heart Rate")).add(new SensorDescription());
+    }
+
+    @Test
+    public void emptyListsAreNotCached() {
+        assertTrue(SensorListCache.intern("Maker", "Empty Model", null).isEmpty());
+        assertSame(SensorListCache.intern("Maker", "Empty Model", null),
+                SensorListCache.intern("Other", "Empty Model", Arrays.<SensorDescription>asList()));
+    }
+
+    @Test
+    public void sensorDescriptionsAreValues() {
+        SensorDescription sensor = new SensorDescription("Pulsimeter", "bpm", "Heart Rate");
+
+        assertEquals(sensor, new SensorDescription("Pulsimeter", "bpm", "Heart Rate"));
+        assertEquals(sensor.hashCode(), new SensorDescription(sensor).hashCode());
+    }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the persistence of the session snapshot and of the recovery after a crash
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SessionSnapshotTest {
+
+    private static final DeviceDescription DEVICE1 = new DeviceDescription("dev1", "SN1", "Model", "Maker",
+            Arrays.asList(new SensorDescription("thermometer", "C", "temperature")), "00:11:22:33:44:55");
+    private static final DeviceDescription DEVICE2 = new DeviceDescription("dev2", "SN2", "Model", "Maker",
+            Arrays.asList(new SensorDescription("thermometer", "C", "temperature")), "00:11:22:33:44:66");
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("snapshot", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "session");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static SessionSnapshot snapshot() {
+        SessionSnapshot snapshot = new SessionSnapshot();
+        snapshot.addDevice(DEVICE1, "da1", 3);
+        snapshot.addDevice(DEVICE2, "da2", 7);
+        snapshot.setWhitelist(Arrays.asList("dev1"));
+        snapshot.setBlacklist(Arrays.asList("dev9"));
+        snapshot.addBinding("da1", new Capabilities(false, false, null, null, Capabilities.CONFIG_NOT_SUPPORTED,
+                false, false, false, false, "DA", "eu.fistar.da.ACTION", "eu.fistar.da", true, false), null);
+
+        ListenerOptions options = new ListenerOptions();
+        options.setMinLogLevel(PAAndroidConstants.LOG_LEVEL.INFO);
+        options.setCredit(100, 4096);
+        options.setAcceptsRawData(true);
+        options.setAcceptsExtendedObservations(true);
+        options.setRulesOnly(true);
+        options.setAcceptsMultiData(true);
+        snapshot.addSubscription("eu.fistar.app", options);
+        return snapshot;
+    }
+
+    @Test
+    public void aWrittenSnapshotIsReadBack() throws Exception {
+        SessionSnapshot written = snapshot();
+        written.write(file);
+        SessionSnapshot read = SessionSnapshot.read(file);
+
+        assertNotNull(read);
+        assertEquals(written.getTime(), read.getTime());
+        assertEquals(2, read.getDevices().size());
+        assertEquals(DEVICE2, read.getDevices().get(1).getDevice());
+        assertEquals("da2", read.getDevices().get(1).getDaId());
+        assertEquals(7, read.getDevices().get(1).getHandle());
+        assertEquals(Arrays.asList("dev1"), read.getWhitelist());
+        assertEquals(Arrays.asList("dev9"), read.getBlacklist());
+        assertEquals("eu.fistar.da", read.getBindings().get(0).getPackageName());
+        assertEquals("eu.fistar.da.ACTION", read.getBindings().get(0).getActionName());
+        assertNull(read.getBindings().get(0).getOptions());
+
+        ListenerOptions options = read.getSubscriptionOptions("eu.fistar.app");
+        assertEquals(PAAndroidConstants.LOG_LEVEL.INFO, options.getMinLogLevel());
+        assertEquals(100, options.getCreditObservations());
+        assertEquals(4096, options.getCreditBytes());
+        assertTrue(options.acceptsRawData());
+        assertTrue(options.acceptsExtendedObservations());
+        assertTrue(options.isRulesOnly());
+        assertTrue(options.acceptsMultiData());
+    }
+
+    @Test
+    public void aMissingSnapshotIsNotAnError() {
+        assertNull(SessionSnapshot.read(file));
+    }
+
+    @Test
+    public void corruptedAndTruncatedSnapshotsAreDiscarded() throws Exception {
+        byte[] data = snapshot().toByteArray();
+
+        byte[] corrupted = data.clone();
+        corrupted[corrupted.length / 2] ^= 0x10;
+        writeRaw(corrupted);
+        assertNull(SessionSnapshot.read(file));
+
+        writeRaw(Arrays.copyOf(data, data.length - 9));
+        assertNull(SessionSnapshot.read(file));
+
+        writeRaw(new byte[0]);
+        assertNull(SessionSnapshot.read(file));
+    }
+
+    @Test
+    public void aCrashWhileWritingLeavesThePreviousSnapshot() throws Exception {
+        SessionSnapshot previous = snapshot();
+        previous.write(file);
+
+        // The process died halfway through writing the next snapshot
+        File tmp = new File(file.getPath() + ".tmp");
+        byte[] next = new SessionSnapshot().toByteArray();
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(next, 0, next.length / 2);
+        out.close();
+
+        SessionSnapshot read = SessionSnapshot.read(file);
+        assertNotNull(read);
+        assertEquals(2, read.getDevices().size());
+
+        // The leftover is simply overwritten by the next write
+        new SessionSnapshot().write(file);
+        assertFalse(tmp.exists());
+        assertEquals(0, SessionSnapshot.read(file).getDevices().size());
+    }
+
+    @Test
+    public void unknownVersionsAreRejected() throws Exception {
+        byte[] data = new SessionSnapshot().toByteArray();
+        byte[] content = Arrays.copyOf(data, data.length - 4);
+        content[7] = 99;
+
+        try {
+            SessionSnapshot.fromByteArray(withChecksum(content));
+            fail("Unknown version accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void restoredDevicesKeepTheirHandlesAndAreValidated() throws Exception {
+        snapshot().write(file);
+        SessionSnapshot read = SessionSnapshot.read(file);
+        DeviceRegistry registry = new DeviceRegistry();
+
+        assertEquals(2, read.restore(registry));
+        assertEquals(3, registry.getHandle("dev1"));
+        assertEquals(7, registry.getHandle("dev2"));
+
+        // dev1 is gone, dev3 is new
+        DeviceDescription device3 = new DeviceDescription("dev3", null, null, null, null, null);
+        List<DeviceDescription> changed = read.validate("da1", Collections.singletonList(device3), registry);
+
+        assertEquals(Collections.singletonList(device3), changed);
+        assertNull(registry.getByDeviceId("dev1"));
+        assertEquals(DEVICE2, registry.getByDeviceId("dev2"));
+    }
+
+    private void writeRaw(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+    private static byte[] withChecksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        int value = (int) crc.getValue();
+        byte[] data = Arrays.copyOf(content, content.length + 4);
+        data[content.length] = (byte) (value >>> 24);
+        data[content.length + 1] = (byte) (value >>> 16);
+        data[content.length + 2] = (byte) (value >>> 8);
+        data[content.length + 3] = (byte) value;
+        return data;
+    }
+
+}
@@ -0,0 +1,649 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+
+/**
+ * This Class implements a Device Adapter handling simulated devices, used to load test a Protocol
+ * Adapter without real hardware.<br>
+ * The Device Adapter creates a number of virtual devices, cycling through a set of common medical
+ * device models (pulse oximeters, blood pressure monitors, scales, thermometers and ECG monitors),
+ * and pushes plausible observations for every connected device at a fixed rate and in batches of
+ * fixed size. It's not a Binder: it's used in-process through
+ * {@link #setListener(IDeviceAdapterListener)}, typically together with
+ * {@link LocalDeviceAdapterListener}, that reproduces the behavior of Binder.
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SimulatedDeviceAdapter implements IDeviceAdapter {
+
+    public static final String DEFAULT_DA_ID = "eu.fistar.sdcs.pa.da.simulated";
+
+    // Commands supported by the simulated devices
+    public static final String COMMAND_BURST = "burst";             // Parameter: number of batches
+    public static final String COMMAND_DISCONNECT = "disconnect";
+
+    // Configuration key to change the rate of a device, in observations per second
+    public static final String CONFIG_RATE = "rate";
+
+    private static final String MANUFACTURER = "FI-STAR Simulated Devices";
+
+    private static final Model[] MODELS = {
+            new Model("SIM-OX1", "Pulse Oximeter", Model.KIND_OXIMETER,
+                    new SensorDescription("Oximeter", "%", "Oxygen Saturation"),
+                    new SensorDescription("Pulsimeter", "bpm", "Heart Rate")),
+            new Model("SIM-BP1", "Blood Pressure Monitor", Model.KIND_BLOOD_PRESSURE,
+                    new SensorDescription("Sphygmomanometer", "mmHg", "Blood Pressure"),
+                    new SensorDescription("Pulsimeter", "bpm", "Heart Rate")),
+            new Model("SIM-WS1", "Weight Scale", Model.KIND_SCALE,
+                    new SensorDescription("Scale", "kg", "Body Weight")),
+            new Model("SIM-TH1", "Thermometer", Model.KIND_THERMOMETER,
+                    new SensorDescription("Thermometer", "Cel", "Body Temperature")),
+            new Model("SIM-EC1", "ECG Monitor", Model.KIND_ECG,
+                    new SensorDescription("Electrocardiograph", "uV", "ECG"))
+    };
+
+    // Sample rate and length of the ECG waveforms
+    private static final double ECG_SAMPLE_RATE = 250;
+    private static final int ECG_SAMPLES = 250;
+
+    private final String daId;
+    private final int batchSize;
+    private final List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+    private final ConcurrentMap<String, VirtualDevice> byId = new ConcurrentHashMap<String, VirtualDevice>();
+    private final Set<String> whitelist = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> blacklist = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ScheduledExecutorService scheduler;
+    private final CommandExecutor commandExecutor;
+
+    private final StripedCounter pushedObservations = new StripedCounter();
+    private final StripedCounter pushedBatches = new StripedCounter();
+    private final StripedCounter failedPushes = new StripedCounter();
+
+    private volatile IDeviceAdapterListener listener;
+    private volatile CreditedSender sender;
+    private volatile LatencyTracer tracer;
+    private volatile double rate;
+
+    /**
+     * Create a simulated Device Adapter with the default ID.
+     *
+     * @param deviceCount
+     *      The number of virtual devices
+     *
+     * @param mRate
+     *      The number of observations pushed every second for each device
+     *
+     * @param mBatchSize
+     *      The number of observations pushed with a single call
+     */
+    public SimulatedDeviceAdapter(int deviceCount, double mRate, int mBatchSize) {
+        this(DEFAULT_DA_ID, deviceCount, mRate, mBatchSize);
+    }
+
+    /**
+     * Create a simulated Device Adapter.
+     *
+     * @param mDaId
+     *      The ID of the Device Adapter
+     *
+     * @param deviceCount
+     *      The number of virtual devices
+     *
+     * @param mRate
+     *      The number of observations pushed every second for each device
+     *
+     * @param mBatchSize
+     *      The number of observations pushed with a single call
+     */
+    public SimulatedDeviceAdapter(String mDaId, int deviceCount, double mRate, int mBatchSize) {
+        if (deviceCount <= 0 || mRate <= 0 || mBatchSize <= 0) {
+            throw new IllegalArgumentException("Device count, rate and batch size must be positive");
+        }
+
+        daId = mDaId;
+        rate = mRate;
+        batchSize = mBatchSize;
+
+        for (int i = 0; i < deviceCount; i++) {
+            VirtualDevice device = new VirtualDevice(i, MODELS[i % MODELS.length]);
+            devices.add(device);
+            byId.put(device.devDesc.getDeviceID(), device);
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        int threads = Math.min(deviceCount, Math.max(1, Runtime.getRuntime().availableProcessors()));
+        scheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SimulatedDA-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        commandExecutor = new CommandExecutor(new CommandExecutor.Handler() {
+            @Override
+            public String execute(String command, String parameter, String devId) throws Exception {
+                return runCommand(command, parameter, devId);
+            }
+        }, daId);
+    }
+
+    /**
+     * Set the listener receiving the data, when the Device Adapter is used in-process
+     *
+     * @param mListener
+     *      The listener of the Protocol Adapter
+     */
+    public void setListener(IDeviceAdapterListener mListener) {
+        setListener(mListener, null);
+    }
+
+    /**
+     * Set the listener receiving the data, when the Device Adapter is used in-process
+     *
+     * @param mListener
+     *      The listener of the Protocol Adapter
+     *
+     * @param options
+     *      The options of the communication, may be null
+     */
+    public void setListener(IDeviceAdapterListener mListener, ListenerOptions options) {
+        listener = mListener;
+        sender = (mListener != null && options != null && options.getCreditObservations() > 0 ?
+                new CreditedSender(CreditedSender.sinkFor(mListener, daId, options), options) : null);
+    }
+
+    /**
+     * Trace a sample of the observations pushed
+     *
+     * @param mTracer
+     *      The tracer choosing the observations to trace, null to disable tracing
+     */
+    public void setTracer(LatencyTracer mTracer) {
+        tracer = mTracer;
+    }
+
+    /**
+     * Returns the ID of the Device Adapter
+     *
+     * @return
+     *      The ID of the Device Adapter
+     */
+    public String getDaId() {
+        return daId;
+    }
+
+    /**
+     * Returns the number of observations pushed successfully
+     *
+     * @return
+     *      The number of observations
+     */
+    public long getPushedObservations() {
+        return pushedObservations.sum();
+    }
+
+    /**
+     * Returns the number of batches pushed successfully
+     *
+     * @return
+     *      The number of batches
+     */
+    public long getPushedBatches() {
+        return pushedBatches.sum();
+    }
+
+    /**
+     * Returns the number of batches that could not be pushed
+     *
+     * @return
+     *      The number of failed pushes
+     */
+    public long getFailedPushes() {
+        return failedPushes.sum();
+    }
+
+    /**
+     * Stop all the devices and release the threads of the Device Adapter
+     */
+    public void shutdown() {
+        stop();
+        scheduler.shutdown();
+        commandExecutor.shutdown();
+    }
+
+    @Override
+    public List<DeviceDescription> getConnectedDevices() {
+        List<DeviceDescription> result = new ArrayList<DeviceDescription>();
+        for (VirtualDevice device : devices) {
+            if (device.isConnected()) result.add(device.devDesc);
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getPairedDevicesAddress() {
+        List<String> result = new ArrayList<String>(devices.size());
+        for (VirtualDevice device : devices) {
+            result.add(device.devDesc.getAddress());
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> detectDevices() {
+        List<String> result = new ArrayList<String>();
+        for (VirtualDevice device : devices) {
+            if (!device.isConnected()) result.add(device.devDesc.getDeviceID());
+        }
+        return result;
+    }
+
+    @Override
+    public void setDeviceConfig(Map config, String devId) {
+        Object value = (config != null ? config.get(CONFIG_RATE) : null);
+        if (value == null) return;
+
+        try {
+            setRate(devId, Double.parseDouble(value.toString()));
+        } catch (NumberFormatException e) {
+            Log.w(PAAndroidConstants.DA_LOGTAG, "Invalid rate for device " + devId + ": " + value);
+        }
+    }
+
+    @Override
+    public Capabilities getDACapabilities() {
+        return new Capabilities(true, true, null, null, Capabilities.CONFIG_RUNTIME_ONLY, true, true,
+                false, true, "Simulated Device Adapter", null, null, true, true);
+    }
+
+    /**
+     * Connect all the virtual devices allowed by whitelist and blacklist
+     */
+    @Override
+    public void start() {
+        for (VirtualDevice device : devices) {
+            String devId = device.devDesc.getDeviceID();
+            if (isAllowed(devId)) connectDev(devId);
+        }
+    }
+
+    /**
+     * Disconnect all the virtual devices
+     */
+    @Override
+    public void stop() {
+        for (VirtualDevice device : devices) {
+            disconnectDev(device.devDesc.getDeviceID());
+        }
+    }
+
+    @Override
+    public void connectDev(String devId) {
+        if (isAllowed(devId)) forceConnectDev(devId);
+    }
+
+    @Override
+    public void forceConnectDev(String devId) {
+        VirtualDevice device = byId.get(devId);
+        if (device == null || scheduler.isShutdown()) return;
+
+        IDeviceAdapterListener current = listener;
+        if (current != null) {
+            try {
+                current.registerDevice(device.devDesc, daId);
+                current.registerDeviceProperties(device.devDesc);
+            } catch (RemoteException e) {
+                Log.e(PAAndroidConstants.DA_LOGTAG, "Cannot register device " + devId, e);
+                return;
+            }
+        }
+        device.schedule(rate);
+    }
+
+    @Override
+    public void disconnectDev(String devId) {
+        VirtualDevice device = byId.get(devId);
+        if (device == null || !device.cancel()) return;
+
+        IDeviceAdapterListener current = listener;
+        if (current == null) return;
+        try {
+            current.deviceDisconnected(device.devDesc);
+        } catch (RemoteException e) {
+            Log.w(PAAndroidConstants.DA_LOGTAG, "Cannot notify disconnection of device " + devId, e);
+        }
+    }
+
+    @Override
+    public void registerDAListener(IBinder pa) {
+        setListener(IDeviceAdapterListener.Stub.asInterface(pa));
+    }
+
+    @Override
+    public void addDeviceToWhitelist(String devId) {
+        whitelist.add(devId);
+    }
+
+    @Override
+    public void removeDeviceFromWhitelist(String devId) {
+        whitelist.remove(devId);
+    }
+
+    @Override
+    public List<String> getWhitelist() {
+        return new ArrayList<String>(whitelist);
+    }
+
+    @Override
+    public void setWhitelist(List<String> devicesId) {
+        whitelist.clear();
+        if (devicesId != null) whitelist.addAll(devicesId);
+    }
+
+    @Override
+    public void addDeviceToBlackList(String devId) {
+        blacklist.add(devId);
+    }
+
+    @Override
+    public void removeDeviceFromBlacklist(String devId) {
+        blacklist.remove(devId);
+    }
+
+    @Override
+    public List<String> getBlacklist() {
+        return new ArrayList<String>(blacklist);
+    }
+
+    @Override
+    public void setBlackList(List<String> devicesId) {
+        blacklist.clear();
+        if (devicesId != null) blacklist.addAll(devicesId);
+    }
+
+    @Override
+    public List<String> getCommandList() {
+        return Arrays.asList(COMMAND_BURST, COMMAND_DISCONNECT);
+    }
+
+    @Override
+    public void execCommand(String command, String parameter, String devId) {
+        try {
+            runCommand(command, parameter, devId);
+        } catch (RuntimeException e) {
+            Log.w(PAAndroidConstants.DA_LOGTAG, "Cannot execute command " + command + " on device " + devId, e);
+        }
+    }
+
+    @Override
+    public void registerDAListenerWithOptions(IBinder pa, ListenerOptions options) {
+        setListener(IDeviceAdapterListener.Stub.asInterface(pa), options);
+    }
+
+    @Override
+    public long execCommands(List<CommandRequest> commands, ICommandCallback callback) {
+        return commandExecutor.submit(commands, callback);
+    }
+
+    @Override
+    public void setDevicesConfig(DeviceConfig config, List<String> devIds) {
+        if (config == null || devIds == null || !config.contains(CONFIG_RATE)) return;
+
+        double newRate = config.getDouble(CONFIG_RATE, rate);
+        for (String devId : devIds) {
+            setRate(devId, newRate);
+        }
+    }
+
+    @Override
+    public void grantCredit(int observations, long bytes) {
+        CreditedSender current = sender;
+        if (current != null) current.grantCredit(observations, bytes);
+    }
+
+    @Override
+    public Statistics getStatistics() {
+        return MetricsRegistry.getDefault().getStatistics();
+    }
+
+    /**
+     * There's no real Binder behind this object when it's used in-process
+     *
+     * @return
+     *      Always null
+     */
+    @Override
+    public IBinder asBinder() {
+        return null;
+    }
+
+    private String runCommand(String command, String parameter, String devId) {
+        VirtualDevice device = byId.get(devId);
+        if (device == null) throw new IllegalArgumentException("Unknown device " + devId);
+
+        if (COMMAND_BURST.equals(command)) {
+            int batches = (parameter != null ? Integer.parseInt(parameter.trim()) : 1);
+            for (int i = 0; i < batches; i++) {
+                device.push();
+            }
+            return batches + " batches pushed";
+        } else if (COMMAND_DISCONNECT.equals(command)) {
+            disconnectDev(devId);
+            return null;
+        }
+        throw new UnsupportedOperationException("Unknown command " + command);
+    }
+
+    private void setRate(String devId, double newRate) {
+        if (newRate <= 0) throw new IllegalArgumentException("Rate must be positive");
+
+        VirtualDevice device = byId.get(devId);
+        if (device != null && device.isConnected()) device.schedule(newRate);
+    }
+
+    private boolean isAllowed(String devId) {
+        return !blacklist.contains(devId) && (whitelist.isEmpty() || whitelist.contains(devId));
+    }
+
+    /**
+     * The model of a virtual device, with the sensors it provides
+     */
+    private static final class Model {
+        static final int KIND_OXIMETER = 0;
+        static final int KIND_BLOOD_PRESSURE = 1;
+        static final int KIND_SCALE = 2;
+        static final int KIND_THERMOMETER = 3;
+        static final int KIND_ECG = 4;
+
+        final String code;
+        final String name;
+        final int kind;
+        final List<SensorDescription> sensors;
+
+        Model(String code, String name, int kind, SensorDescription... sensors) {
+            this.code = code;
+            this.name = name;
+            this.kind = kind;
+            this.sensors = Arrays.asList(sensors);
+        }
+    }
+
+    /**
+     * A virtual device, pushing its observations on the scheduler
+     */
+    private final class VirtualDevice implements Runnable {
+        final DeviceDescription devDesc;
+        final Model model;
+        final Random random;
+        private ScheduledFuture<?> task;        // Guarded by this
+        private int sensorIndex = 0;            // Only used by the thread pushing
+
+        VirtualDevice(int index, Model model) {
+            String serial = String.format("%s-%06d", model.code, index);
+            String address = String.format("00:1A:7D:%02X:%02X:%02X", (index >> 16) & 0xff,
+                    (index >> 8) & 0xff, index & 0xff);
+
+            this.model = model;
+            this.random = new Random(index);
+            this.devDesc = new DeviceDescription(serial, serial, model.name, MANUFACTURER,
+                    model.sensors, address);
+        }
+
+        synchronized boolean isConnected() {
+            return task != null;
+        }
+
+        synchronized void schedule(double rate) {
+            if (task != null) task.cancel(false);
+
+            long period = Math.max(1, (long) (batchSize * 1e9 / rate));
+            long delay = (long) (random.nextDouble() * period);      // Spread the devices over the period
+            task = scheduler.scheduleAtFixedRate(this, delay, period, TimeUnit.NANOSECONDS);
+        }
+
+        synchronized boolean cancel() {
+            if (task == null) return false;
+
+            task.cancel(false);
+            task = null;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            push();
+        }
+
+        void push() {
+            IDeviceAdapterListener current = listener;
+            if (current == null) return;
+
+            List<Observation> batch = new ArrayList<Observation>(batchSize);
+            long now = System.currentTimeMillis();
+            LatencyTracer currentTracer = tracer;
+            synchronized (random) {
+                for (int i = 0; i < batchSize; i++) {
+                    Observation obs = createObservation(now);
+                    if (currentTracer != null) currentTracer.begin(obs);
+                    batch.add(obs);
+                }
+            }
+
+            try {
+                CreditedSender currentSender = sender;
+                if (currentSender != null) {
+                    currentSender.pushData(batch, devDesc);
+                } else {
+                    Observation.stamp(batch, PAAndroidConstants.TRACE_STAGE.DA_SENT);
+                    current.pushData(batch, devDesc);
+                }
+                pushedObservations.add(batch.size());
+                pushedBatches.increment();
+            } catch (RemoteException e) {
+                failedPushes.increment();
+            } catch (RuntimeException e) {
+                failedPushes.increment();
+                Log.e(PAAndroidConstants.DA_LOGTAG, "Error pushing data of device " + devDesc.getDeviceID(), e);
+            }
+        }
+
+        // Must be called holding the lock on random
+        private Observation createObservation(long now) {
+            SensorDescription sensor = model.sensors.get(sensorIndex);
+            sensorIndex = (sensorIndex + 1) % model.sensors.size();
+
+            switch (model.kind) {
+                case Model.KIND_OXIMETER:
+                    return sensor.getMeasurementUnit().equals("%") ?
+                            new Observation(sensor, new String[] { format(gaussian(97, 1.5, 85, 100), 0) }) :
+                            new Observation(sensor, new String[] { format(gaussian(72, 8, 40, 180), 0) });
+                case Model.KIND_BLOOD_PRESSURE:
+                    if (!sensor.getMeasurementUnit().equals("mmHg")) {
+                        return new Observation(sensor, new String[] { format(gaussian(72, 8, 40, 180), 0) });
+                    }
+                    double systolic = gaussian(120, 12, 80, 200);
+                    double diastolic = gaussian(78, 8, 40, systolic - 10);
+                    double mean = diastolic + (systolic - diastolic) / 3;
+                    return new Observation(sensor, new String[] { format(systolic, 0), format(diastolic, 0), format(mean, 0) });
+                case Model.KIND_SCALE:
+                    return new Observation(sensor, new String[] { format(gaussian(75, 12, 30, 200), 1) });
+                case Model.KIND_THERMOMETER:
+                    return new Observation(sensor, new String[] { format(gaussian(36.8, 0.4, 34, 42), 1) });
+                default:
+                    return new WaveformObservation(sensor, now, ECG_SAMPLE_RATE, ecg(), true);
+            }
+        }
+
+        private double gaussian(double mean, double deviation, double min, double max) {
+            return Math.min(max, Math.max(min, mean + random.nextGaussian() * deviation));
+        }
+
+        // A rough ECG trace in microvolts: flat baseline with noise and a QRS spike every beat
+        private short[] ecg() {
+            short[] samples = new short[ECG_SAMPLES];
+            int beat = (int) (ECG_SAMPLE_RATE * 60 / gaussian(72, 5, 50, 120));
+            int offset = random.nextInt(beat);
+            for (int i = 0; i < samples.length; i++) {
+                int phase = (i + offset) % beat;
+                double value = random.nextGaussian() * 20;
+                if (phase < 3) value += 1000 * (phase + 1) / 3;
+                else if (phase < 6) value -= 300;
+                samples[i] = (short) value;
+            }
+            return samples;
+        }
+    }
+
+    private static String format(double value, int decimals) {
+        if (decimals == 0) return String.valueOf(Math.round(value));
+
+        double scale = Math.pow(10, decimals);
+        return String.valueOf(Math.round(value * scale) / scale);
+    }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import android.os.TransactionTooLargeException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the load test harness: the simulated Device Adapter and the in-process Binder
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SimulatedDeviceAdapterTest {
+
+    @Test
+    public void loadTestDeliversTheDataOfEveryDevice() throws Exception {
+        LoadTest.ReferenceListener pa = new LoadTest.ReferenceListener();
+        LoadTest.Report report = new LoadTest(pa, 5, 100, 10).run(1000);
+
+        assertTrue(report.getObservations() > 0);
+        assertEquals(0, report.getFailedPushes());
+        assertEquals(5, pa.getRegistry().size());
+        assertTrue(report.getTransferredBytes() > 0);
+    }
+
+    @Test
+    public void callsBiggerThanTheTransactionBufferAreRejected() throws Exception {
+        LocalDeviceAdapterListener binder = new LocalDeviceAdapterListener(new LoadTest.ReferenceListener(), 1, 1024);
+        SensorDescription sensor = new SensorDescription("Pulsimeter", "bpm", "Heart Rate");
+        DeviceDescription dev = new DeviceDescription("dev", "1", "Model", "Manufacturer",
+                new ArrayList<SensorDescription>(), "00:00:00:00:00:00");
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < 100; i++) {
+            observations.add(new Observation(sensor, new String[]{"72"}));
+        }
+
+        try {
+            binder.pushData(observations, dev);
+            fail("The call should be rejected");
+        } catch (TransactionTooLargeException e) {
+            assertEquals(1, binder.getRejectedCalls());
+        } finally {
+            binder.close();
+        }
+    }
+
+}
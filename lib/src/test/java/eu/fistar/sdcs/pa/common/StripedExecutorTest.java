@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the ordering, bounded queues and shutdown of the striped executor
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class StripedExecutorTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void tasksWithTheSameKeyRunInOrder() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 4);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Integer> expected = new ArrayList<Integer>();
+
+        for (int i = 0; i < 500; i++) {
+            final int n = i;
+            expected.add(n);
+            executor.execute("dev", new Runnable() {
+                @Override
+                public void run() {
+                    executed.add(n);
+                }
+            });
+        }
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertEquals(expected, executed);
+    }
+
+    @Test
+    public void tasksWithDifferentKeysRunInParallel() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 2);
+        String first = "dev0";
+        String second = null;
+        for (int i = 1; second == null; i++) {
+            if (executor.stripeFor("dev" + i) != executor.stripeFor(first)) second = "dev" + i;
+        }
+
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final AtomicBoolean parallel = new AtomicBoolean(true);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                bothRunning.countDown();
+                try {
+                    if (!bothRunning.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) parallel.set(false);
+                } catch (InterruptedException e) {
+                    parallel.set(false);
+                }
+            }
+        };
+        executor.execute(first, task);
+        executor.execute(second, task);
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertTrue("Tasks not executed in parallel", parallel.get());
+    }
+
+    @Test
+    public void aFailingTaskDoesNotStopTheStripe() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 1);
+        final CountDownLatch executed = new CountDownLatch(1);
+
+        executor.execute("dev", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected");
+            }
+        });
+        executor.execute("dev", new Runnable() {
+            @Override
+            public void run() {
+                executed.countDown();
+            }
+        });
+
+        assertTrue(executed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void aFullQueueBlocksTheCaller() throws Exception {
+        final StripedExecutor executor = new StripedExecutor("test", 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final Runnable noop = new Runnable() {
+            @Override
+            public void run() {}
+        };
+
+        executor.execute("dev", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        executor.execute("dev", noop);
+        executor.execute("dev", noop);
+        assertEquals(2, executor.getQueueDepth());
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                executor.execute("dev", noop);
+                queued.countDown();
+            }
+        };
+        producer.start();
+
+        assertFalse("The caller was not blocked", queued.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, executor.getQueueDepth());
+
+        release.countDown();
+        assertTrue("The caller was not unblocked", queued.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+    }
+
+    @Test
+    public void shutdownRunsQueuedTasksAndRejectsNewOnes() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 2, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch executed = new CountDownLatch(5);
+
+        executor.execute("dev", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executed.countDown();
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            executor.execute("dev", new Runnable() {
+                @Override
+                public void run() {
+                    executed.countDown();
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+        try {
+            executor.execute("dev", new Runnable() {
+                @Override
+                public void run() {}
+            });
+            fail("Task accepted after the shutdown");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        release.countDown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertEquals(0, executed.getCount());
+    }
+
+    @Test
+    public void orderedListenerDropsCallsAfterTheShutdown() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 1);
+        final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+        OrderedDeviceAdapterListener listener = new OrderedDeviceAdapterListener(
+                new LoadTest.ReferenceListener() {
+                    @Override
+                    public void log(int logLevel, String daId, String message) {
+                        logged.add(message);
+                    }
+                }, executor);
+
+        listener.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "before");
+        executor.shutdown();
+        listener.log(PAAndroidConstants.LOG_LEVEL.INFO, "da", "after");
+
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertEquals(Collections.singletonList("before"), logged);
+    }
+
+    @Test
+    public void tryExecuteGivesUpWhenTheQueueIsFull() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {}
+        };
+
+        assertTrue(executor.tryExecute("dev", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(executor.tryExecute("dev", noop));
+        assertFalse(executor.tryExecute("dev", noop));
+        assertEquals(1, executor.getQueueDepth());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+    }
+
+    @Test
+    public void orderedListenerDropsOnewayCallsInsteadOfWaiting() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<Long> matched = Collections.synchronizedList(new ArrayList<Long>());
+        OrderedProtocolAdapterListener listener = new OrderedProtocolAdapterListener(new ListenerPublisher() {
+            @Override
+            public void log(int logLevel, String daId, String message) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onRuleMatched(long ruleId, List<Observation> observations, DeviceDescription devDesc) {
+                matched.add(ruleId);
+            }
+        }, executor);
+
+        listener.log(PAAndroidConstants.LOG_LEVEL.INFO, null, "blocking");
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        listener.onRuleMatched(1, new ArrayList<Observation>(), null);
+        listener.onRuleMatched(2, new ArrayList<Observation>(), null);
+        listener.logBatch(new LogBatch(new int[0], new long[0], new String[0], new String[0], new String[0], new int[0]));
+        assertEquals(2, listener.getDroppedCalls());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MS));
+        assertEquals(Collections.singletonList(1L), matched);
+    }
+
+}
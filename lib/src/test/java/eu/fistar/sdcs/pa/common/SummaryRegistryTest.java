@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the summaries kept by device, property and time window
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class SummaryRegistryTest {
+
+    private static final long WINDOW = 60 * 1000;
+    private static final DeviceDescription DEVICE1 = new DeviceDescription("dev1", null, null, null, null, null);
+    private static final DeviceDescription DEVICE2 = new DeviceDescription("dev2", null, null, null, null, null);
+
+    private static List<Observation> observations(String property, long time, double... values) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (double value : values) {
+            Observation obs = new Observation(new SensorDescription("sensor", "C", property),
+                    new String[]{String.valueOf(value)});
+            obs.setPhenomenonTime(time);
+            observations.add(obs);
+        }
+        return observations;
+    }
+
+    @Test
+    public void summarizesEveryDeviceAndProperty() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        long now = System.currentTimeMillis();
+        registry.record(observations("temperature", now, 20, 22, 24), DEVICE1);
+        registry.record(observations("humidity", now, 50), DEVICE1);
+        registry.record(observations("temperature", now, 30), DEVICE2);
+
+        PropertySummary summary = registry.getSummary("dev1", "temperature", 0);
+        assertEquals("dev1", summary.getDeviceID());
+        assertEquals(3, summary.getCount());
+        assertEquals(22, summary.getMean(), 1e-9);
+        assertEquals(24, summary.getMax(), 0);
+        assertTrue(summary.getStartTime() <= now && now < summary.getEndTime());
+
+        PropertySummary all = registry.getSummary(null, "temperature", 0);
+        assertNull(all.getDeviceID());
+        assertEquals(4, all.getCount());
+        assertEquals(30, all.getMax(), 0);
+
+        assertEquals(1, registry.getSummary("dev1", "humidity", 0).getCount());
+        assertEquals(0, registry.getSummary("dev2", "humidity", 0).getCount());
+        assertEquals(0, registry.getSummary("dev3", "temperature", 0).getCount());
+    }
+
+    @Test
+    public void valuesWithoutPhenomenonTimeAreRecordedNow() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        registry.record(observations("temperature", 0, 20), DEVICE1);
+
+        assertEquals(1, registry.getSummary("dev1", "temperature", 0).getCount());
+    }
+
+    @Test
+    public void valuesOutOfTheRetentionPeriodAreNotSummarized() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        long now = System.currentTimeMillis();
+        registry.record(observations("temperature", now - 10 * WINDOW, 100), DEVICE1);
+        registry.record(observations("temperature", now, 20), DEVICE1);
+
+        PropertySummary summary = registry.getSummary("dev1", "temperature", 0);
+        assertEquals(1, summary.getCount());
+        assertEquals(20, summary.getMax(), 0);
+    }
+
+    @Test
+    public void summariesStartWithTheWindowContainingTheTimeRequested() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        long now = System.currentTimeMillis();
+        registry.record(observations("temperature", now - WINDOW, 10), DEVICE1);
+        registry.record(observations("temperature", now, 20), DEVICE1);
+
+        assertEquals(2, registry.getSummary("dev1", "temperature", 0).getCount());
+        PropertySummary recent = registry.getSummary("dev1", "temperature", now);
+        assertEquals(1, recent.getCount());
+        assertEquals(20, recent.getMin(), 0);
+    }
+
+    @Test
+    public void skipsWaveformsAndValuesThatAreNotNumbers() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(new Observation(new SensorDescription("sensor", null, "state"), new String[]{"on"}));
+        registry.record(observations, DEVICE1);
+
+        assertEquals(0, registry.getSummary("dev1", "state", 0).getCount());
+    }
+
+    @Test
+    public void listsAndForgetsTheDevices() {
+        SummaryRegistry registry = new SummaryRegistry(WINDOW, 3);
+        long now = System.currentTimeMillis();
+        registry.record(observations("temperature", now, 20), DEVICE1);
+        registry.record(observations("temperature", now, 30), DEVICE2);
+        registry.record(observations("humidity", now, 50), DEVICE2);
+
+        assertEquals(2, registry.getDeviceIds("temperature").size());
+        assertEquals(1, registry.getDeviceIds("humidity").size());
+        assertEquals(2, registry.getPropertyNames("dev2").size());
+        assertTrue(registry.getPropertyNames("dev3").isEmpty());
+
+        registry.removeDevice("dev2");
+        assertEquals(1, registry.getDeviceIds("temperature").size());
+        assertEquals(20, registry.getSummary(null, "temperature", 0).getMax(), 0);
+
+        registry.reset();
+        assertTrue(registry.getDeviceIds("temperature").isEmpty());
+    }
+
+}
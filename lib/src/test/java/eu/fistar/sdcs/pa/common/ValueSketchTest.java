@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the statistics and the approximate quantiles of the value sketches
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class ValueSketchTest {
+
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    // The value of a quantile with the same definition of rank used by the sketch
+    private static double exactQuantile(double[] sorted, double quantile) {
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static void assertRelative(String message, double expected, double actual) {
+        assertTrue(message + ": expected " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= ValueSketch.RELATIVE_ACCURACY * Math.abs(expected) + 1e-12);
+    }
+
+    private static void assertQuantiles(double[] values, ValueSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES) {
+            assertRelative("Quantile " + q, exactQuantile(sorted, q), sketch.getQuantile(q));
+        }
+    }
+
+    private static ValueSketch sketchOf(double[] values) {
+        ValueSketch sketch = new ValueSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+        return sketch;
+    }
+
+    @Test
+    public void emptySketchHasNoStatistics() {
+        ValueSketch sketch = new ValueSketch();
+
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.getMin()));
+        assertTrue(Double.isNaN(sketch.getMax()));
+        assertTrue(Double.isNaN(sketch.getMean()));
+        assertTrue(Double.isNaN(sketch.getVariance()));
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    }
+
+    @Test
+    public void computesExactStatistics() {
+        ValueSketch sketch = sketchOf(new double[]{2, 4, 4, 4, 5, 5, 7, 9});
+        sketch.add(Double.NaN);
+        sketch.add(Double.POSITIVE_INFINITY);
+
+        assertEquals(8, sketch.getCount());
+        assertEquals(2, sketch.getMin(), 0);
+        assertEquals(9, sketch.getMax(), 0);
+        assertEquals(5, sketch.getMean(), 1e-12);
+        assertEquals(4, sketch.getVariance(), 1e-12);
+        assertEquals(2, sketch.getStandardDeviation(), 1e-12);
+        assertEquals(2, sketch.getQuantile(0), 0);
+        assertEquals(9, sketch.getQuantile(1), 0);
+    }
+
+    @Test
+    public void quantilesAreWithinTheRelativeAccuracy() {
+        Random random = new Random(42);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 20 + random.nextDouble() * 800;
+        }
+
+        assertQuantiles(values, sketchOf(values));
+    }
+
+    @Test
+    public void smallerValuesArrivingLaterKeepTheAccuracy() {
+        double[] values = new double[400];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 800 - 2 * i;                // From 800 down to 2
+        }
+
+        // The window moves down until the biggest value no longer fits
+        ValueSketch sketch = sketchOf(values);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertRelative("Quantile 0.5", exactQuantile(sorted, 0.5), sketch.getQuantile(0.5));
+        assertRelative("Quantile 0.99", exactQuantile(sorted, 0.99), sketch.getQuantile(0.99));
+        assertTrue(sketch.getQuantile(0.01) >= sketch.getMin());
+    }
+
+    @Test
+    public void quantilesOfNegativeAndZeroValues() {
+        double[] values = new double[301];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i - 150) / 10.0;
+        }
+        ValueSketch sketch = sketchOf(values);
+
+        assertQuantiles(values, sketch);
+        assertEquals(0, sketch.getQuantile(0.5), 0);
+        assertEquals(-15, sketch.getMin(), 0);
+        assertEquals(15, sketch.getMax(), 0);
+    }
+
+    @Test
+    public void wideRangesKeepTheAccuracyOfTheBiggestValues() {
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(10, i / 200.0);      // From 1 to about 1e5
+        }
+        ValueSketch sketch = sketchOf(values);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        assertRelative("Quantile 0.9", exactQuantile(sorted, 0.9), sketch.getQuantile(0.9));
+        assertRelative("Quantile 0.99", exactQuantile(sorted, 0.99), sketch.getQuantile(0.99));
+        // The smallest values are collapsed, but never reported outside the range
+        assertTrue(sketch.getQuantile(0.01) >= sketch.getMin());
+        assertTrue(sketch.getQuantile(0.01) <= exactQuantile(sorted, 0.9));
+    }
+
+    @Test
+    public void mergeEqualsAddingAllTheValues() {
+        Random random = new Random(7);
+        double[] first = new double[500];
+        double[] second = new double[700];
+        double[] all = new double[first.length + second.length];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = 50 + random.nextGaussian() * 10;
+            all[i] = first[i];
+        }
+        for (int i = 0; i < second.length; i++) {
+            second[i] = 80 + random.nextGaussian() * 5;
+            all[first.length + i] = second[i];
+        }
+
+        ValueSketch merged = sketchOf(first);
+        merged.merge(sketchOf(second));
+        ValueSketch expected = sketchOf(all);
+
+        assertEquals(expected.getCount(), merged.getCount());
+        assertEquals(expected.getMin(), merged.getMin(), 0);
+        assertEquals(expected.getMax(), merged.getMax(), 0);
+        assertEquals(expected.getMean(), merged.getMean(), 1e-9);
+        assertEquals(expected.getVariance(), merged.getVariance(), 1e-6);
+        for (double q : QUANTILES) {
+            assertEquals(expected.getQuantile(q), merged.getQuantile(q), 0);
+        }
+        assertQuantiles(all, merged);
+    }
+
+    @Test
+    public void mergeIntoEmptySketchAndOfEmptySketch() {
+        ValueSketch values = sketchOf(new double[]{1, 2, 3});
+        ValueSketch empty = new ValueSketch();
+
+        empty.merge(values);
+        values.merge(new ValueSketch());
+
+        assertEquals(3, empty.getCount());
+        assertEquals(2, empty.getMean(), 1e-12);
+        assertEquals(values.getVariance(), empty.getVariance(), 1e-12);
+        assertEquals(3, values.getCount());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        ValueSketch sketch = sketchOf(new double[]{-3, 0, 5});
+        ValueSketch copy = sketch.copy();
+        sketch.add(100);
+
+        assertEquals(3, copy.getCount());
+        assertEquals(5, copy.getMax(), 0);
+        assertRelative("Quantile 0.1", -3, copy.getQuantile(0.1));
+        assertEquals(4, sketch.getCount());
+    }
+
+    @Test
+    public void resetForgetsAllTheValues() {
+        ValueSketch sketch = sketchOf(new double[]{-1000, 1000});
+        sketch.reset();
+
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+
+        double[] values = {0.5, 0.7, 0.9};
+        for (double value : values) {
+            sketch.add(value);
+        }
+        assertEquals(0.5, sketch.getMin(), 0);
+        assertQuantiles(values, sketch);
+    }
+
+}
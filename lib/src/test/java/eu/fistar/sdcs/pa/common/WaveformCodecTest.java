@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the lossless compression of waveforms
+ *
+ * @author Marcello Morena
+ * @author Alexandru Serbanati
+ */
+public class WaveformCodecTest {
+
+    private static void assertRoundTrip(short[] samples) {
+        assertArrayEquals(samples, WaveformCodec.decode(WaveformCodec.encode(samples), samples.length));
+    }
+
+    @Test
+    public void anEmptyWaveformIsRestored() {
+        assertRoundTrip(new short[0]);
+    }
+
+    @Test
+    public void partialBlocksAreRestored() {
+        for (int n : new int[]{1, 63, 64, 65, 130}) {
+            short[] samples = new short[n];
+            for (int i = 0; i < n; i++) {
+                samples[i] = (short) (i * 7 - 100);
+            }
+            assertRoundTrip(samples);
+        }
+    }
+
+    @Test
+    public void extremeDifferencesAreRestored() {
+        short[] samples = new short[200];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (i % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE);
+        }
+        assertRoundTrip(samples);
+    }
+
+    @Test
+    public void randomSignalsAreRestored() {
+        Random random = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            short[] samples = new short[random.nextInt(1000)];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) random.nextInt();
+            }
+            assertRoundTrip(samples);
+        }
+    }
+
+    @Test
+    public void smoothSignalsAreCompressed() {
+        short[] samples = new short[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (1000 * Math.sin(i / 20.0));
+        }
+
+        byte[] encoded = WaveformCodec.encode(samples);
+        assertTrue("Encoded in " + encoded.length + " bytes", encoded.length < samples.length);
+        assertArrayEquals(samples, WaveformCodec.decode(encoded, samples.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCountsAreRejected() {
+        WaveformCodec.decode(WaveformCodec.encode(new short[]{1, 2, 3}), -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countsTooLargeForTheDataAreRejected() {
+        WaveformCodec.decode(WaveformCodec.encode(new short[]{1, 2, 3}), Integer.MAX_VALUE);
+    }
+
+}